@@ -0,0 +1,226 @@
+package xbeerelay;
+
+/**
+ * Paces the frames sent through one coordinator so its serial link and the
+ * radio channel run near capacity instead of backing up until requests time out.
+ *
+ * <p>Every frame is charged the time it occupies the link, estimated from its
+ * payload length: the API frame on the coordinator's serial port at its baud
+ * rate, plus the 802.15.4 frame on air at 250 kbps.  Sends are admitted through
+ * two token buckets, one for the coordinator and one for the destination node,
+ * each filling at a fraction of real time and allowing a short burst.  A
+ * send that would overdraw either bucket is told how long to wait instead.
+ *
+ * <p>The buckets are kept in their "theoretical arrival time" form (when the
+ * bucket would be full again), which is the same token bucket but needs one
+ * long per bucket and no timer.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class AirtimeLimiter {
+
+	/** API overhead of a ZigBee transmit request: delimiter, length, type, frame ID, addresses, radius, options, checksum. */
+	public static final int TX_FRAME_OVERHEAD = 18;
+	/** API overhead of a ZigBee receive packet at the remote node. */
+	public static final int RX_FRAME_OVERHEAD = 16;
+	/** MAC, network and APS headers plus PHY preamble around a payload on air. */
+	public static final int RF_FRAME_OVERHEAD = 37;
+	/** 802.15.4 at 2.4 GHz: 250 kbps, so 32 microseconds per byte. */
+	public static final long RF_NANOS_PER_BYTE = 32000;
+	/** MAC acknowledgement, turnaround and an average CSMA backoff. */
+	public static final long RF_ACK_NANOS = 1500000;
+
+	/**
+	 * Constructs a limiter for a coordinator whose nodes talk to their
+	 * hosts at the same baud rate as the coordinator.
+	 *
+	 * @param inBaudRate baud rate of the coordinator's serial port
+	 */
+	public AirtimeLimiter(int inBaudRate) {
+		this(inBaudRate, inBaudRate);
+	}
+
+	/**
+	 * Constructs a limiter for a coordinator.
+	 *
+	 * @param inBaudRate baud rate of the coordinator's serial port
+	 * @param inNodeBaudRate baud rate of the nodes' serial ports
+	 */
+	public AirtimeLimiter(int inBaudRate, int inNodeBaudRate) {
+		if (inBaudRate <= 0 || inNodeBaudRate <= 0) {
+			throw new IllegalArgumentException("Baud rates must be positive");
+		}
+		baudRate = inBaudRate;
+		nodeBaudRate = inNodeBaudRate;
+	}
+
+	/**
+	 * Estimates how long bytes take on a serial link (8N1, so 10 bits a byte).
+	 *
+	 * @param inBytes number of bytes
+	 * @param inBaudRate baud rate of the link
+	 * @return time in nanoseconds
+	 */
+	public static long serialNanos(int inBytes, int inBaudRate) {
+		return inBytes * 10L * 1000000000L / inBaudRate;
+	}
+
+	/**
+	 * Estimates how long a unicast frame takes on the radio channel.
+	 *
+	 * @param inPayloadLength payload length in bytes
+	 * @return time in nanoseconds
+	 */
+	public static long rfNanos(int inPayloadLength) {
+		return (RF_FRAME_OVERHEAD + inPayloadLength) * RF_NANOS_PER_BYTE + RF_ACK_NANOS;
+	}
+
+	/**
+	 * Estimates how long sending a frame ties up the coordinator: the request
+	 * going out its serial port, then the frame going out on air.
+	 *
+	 * @param inPayloadLength payload length in bytes
+	 * @return time in nanoseconds
+	 */
+	public long estimateCoordinatorNanos(int inPayloadLength) {
+		return serialNanos(TX_FRAME_OVERHEAD + inPayloadLength, baudRate) + rfNanos(inPayloadLength);
+	}
+
+	/**
+	 * Estimates how long receiving a frame ties up a node: the frame on air,
+	 * then the received packet going out the node's serial port.
+	 *
+	 * @param inPayloadLength payload length in bytes
+	 * @return time in nanoseconds
+	 */
+	public long estimateNodeNanos(int inPayloadLength) {
+		return rfNanos(inPayloadLength) + serialNanos(RX_FRAME_OVERHEAD + inPayloadLength, nodeBaudRate);
+	}
+
+	/**
+	 * Estimates how long a frame to a node would have to wait to be sent,
+	 * without reserving anything.
+	 *
+	 * @param inNode packed 64-bit node address (see NodeAddress), NodeAddress.NONE for a broadcast
+	 * @param inPayloadLength payload length in bytes
+	 * @return wait in nanoseconds, 0 if it could go now
+	 */
+	public synchronized long estimateDelayNanos(long inNode, int inPayloadLength) {
+		long now = System.nanoTime();
+		return sendTime(inNode, now) - now;
+	}
+
+	/**
+	 * Reserves the link for a frame to a node.  The caller should wait the
+	 * returned time before sending; later reservations queue up behind it.
+	 *
+	 * @param inNode packed 64-bit node address (see NodeAddress), NodeAddress.NONE for a broadcast
+	 * @param inPayloadLength payload length in bytes
+	 * @return wait in nanoseconds, 0 if it can go now
+	 */
+	public synchronized long reserve(long inNode, int inPayloadLength) {
+		long now = System.nanoTime();
+		long send = sendTime(inNode, now);
+		coordinatorFull = Math.max(coordinatorFull, send) + scale(estimateCoordinatorNanos(inPayloadLength));
+		if (inNode != NodeAddress.NONE) {
+			int i = nodeIndex(inNode);
+			nodeFull[i] = Math.max(nodeFull[i], send) + scale(estimateNodeNanos(inPayloadLength));
+		}
+		reserved++;
+		if (send > now) {
+			delayed++;
+			totalDelayNanos += send - now;
+			return send - now;
+		}
+		return 0;
+	}
+
+	/**
+	 * Sets how much of real time the link may be busy, which leaves headroom
+	 * for IO samples, retries and the estimates being off.
+	 *
+	 * @param inUtilization fraction of the link to use, above 0 and at most 1 (the default is 0.8)
+	 */
+	public synchronized void setUtilization(double inUtilization) {
+		if (inUtilization <= 0 || inUtilization > 1) {
+			throw new IllegalArgumentException("Utilization must be above 0 and at most 1");
+		}
+		utilization = inUtilization;
+	}
+
+	/**
+	 * Sets how much link time can be sent back-to-back after the link has been idle.
+	 *
+	 * @param inMillis burst size in milliseconds (the default is 250 ms, a few full frames at 9600 baud)
+	 */
+	public synchronized void setBurst(long inMillis) {
+		burstNanos = Math.max(inMillis, 0) * 1000000L;
+	}
+
+	/**
+	 * Gets the number of frames reserved so far.
+	 */
+	public synchronized long getReservedCount() {
+		return reserved;
+	}
+
+	/**
+	 * Gets the number of frames that had to wait.
+	 */
+	public synchronized long getDelayedCount() {
+		return delayed;
+	}
+
+	/**
+	 * Gets the total time frames have been told to wait.
+	 *
+	 * @return time in nanoseconds
+	 */
+	public synchronized long getTotalDelayNanos() {
+		return totalDelayNanos;
+	}
+
+	// Earliest time a frame can go without overdrawing either bucket
+	private long sendTime(long inNode, long inNow) {
+		long send = Math.max(inNow, coordinatorFull - burstNanos);
+		if (inNode != NodeAddress.NONE) {
+			int i = nodes.get(inNode);
+			if (i != LongIntMap.MISSING) {
+				send = Math.max(send, nodeFull[i] - burstNanos);
+			}
+		}
+		return send;
+	}
+
+	private long scale(long inNanos) {
+		return (long) (inNanos / utilization);
+	}
+
+	private int nodeIndex(long inNode) {
+		int i = nodes.get(inNode);
+		if (i == LongIntMap.MISSING) {
+			i = nodes.size();
+			if (i == nodeFull.length) {
+				long[] grown = new long[i * 2];
+				System.arraycopy(nodeFull, 0, grown, 0, i);
+				nodeFull = grown;
+			}
+			nodes.put(inNode, i);
+			nodeFull[i] = Long.MIN_VALUE / 2;
+		}
+		return i;
+	}
+
+	private final int baudRate;
+	private final int nodeBaudRate;
+	private double utilization = 0.8;
+	private long burstNanos = 250000000L;
+	// When each bucket would be full again, in System.nanoTime()
+	private long coordinatorFull = Long.MIN_VALUE / 2;
+	private final LongIntMap nodes = new LongIntMap(16);
+	private long[] nodeFull = new long[16];
+	private long reserved;
+	private long delayed;
+	private long totalDelayNanos;
+}
@@ -0,0 +1,712 @@
+package xbeerelay;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import xbeerelay.Relay.RelayStatus;
+
+/**
+ * Raises alerts from rules over the house's power, relay states and node
+ * silences, checked as each sample and transition comes in.
+ *
+ * <p>Rules are written one per line, for instance:
+ * <pre>
+ * power &gt; 3W for 10s
+ * power &lt;= 200mW for 5m
+ * relay 5 ON while relay 6 ON
+ * relay 2 ON for 2h
+ * relay 0013A20040A1B2C3 5 ON while relay 0013A20040D4E5F6 5 ON
+ * node 0013A20040A1B2C3 silent 60s
+ * node silent for 60s
+ * </pre>
+ * <ul>
+ * <li><code>power</code> compares the total power with a threshold in W, mW or kW;</li>
+ * <li><code>relay</code> asks for one relay, or two at once (<code>while</code>),
+ * to be ON or OFF.  Relay numbers are only unique on a node, so each relay may
+ * be preceded by its node's address; without one it means the relay on the
+ * one node watched, and is refused once more than one node is;</li>
+ * <li><code>node &lt;address&gt; silent</code> is raised once that node has sent
+ * no sample for the time given, and <code>node silent</code> once any node has.</li>
+ * </ul>
+ * A power or relay rule can end in <code>for &lt;time&gt;</code>, so it is only
+ * raised once its condition has held that long.  Times are in ms, s, m or h.
+ *
+ * <p>Each rule is parsed once, by addRule(), into an AlertRule holding just the
+ * state it is updated from, and indexed by what it watches: power rules in one
+ * array, relay rules by node and relay number and silence rules by node.  So a power
+ * reading updates only the power rules, a transition only the rules on that
+ * relay, and a sample only the silence rules on that node, each for a constant
+ * amount of work.  Anything that can become true just by time passing (a rule
+ * waiting out its <code>for</code>, or a node going quiet) is checked by tick(),
+ * which start() calls on a timer; tick() only looks at the rules waiting and
+ * the silence rules.  A <code>node silent</code> rule for any node clears on
+ * the tick after the last silent node is heard from.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class AlertEngine implements RelayTransitionListener, RelaySampleListener {
+
+	private static final int NONE = -1;
+	private static final Pattern NODE_ADDRESS = Pattern.compile("(?:0[xX])?[0-9a-fA-F]{16}");
+	private static final Pattern TOKEN = Pattern.compile("\\d+(?:\\.\\d+)?|[A-Za-z]+|[<>]=?");
+
+	/**
+	 * Constructs a new AlertEngine with no rules.
+	 *
+	 * @param inTickMillis how often start() checks rules that time can raise, e.g. 250 ms
+	 */
+	public AlertEngine(long inTickMillis) {
+		tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(inTickMillis, 1));
+	}
+
+	/**
+	 * Parses a rule and starts checking it.  A relay rule starts out from the
+	 * current status of the relays on the nodes already watched.
+	 *
+	 * @param inText the rule (see the class description)
+	 * @return the compiled rule
+	 * @throws RelayException if the rule can't be parsed, or names a relay
+	 *   without its node while more than one node is watched
+	 */
+	public AlertRule addRule(String inText)
+		throws RelayException {
+		AlertRule rule = parse(inText.trim());
+		indexRule(rule);
+		if (rule instanceof AlertRule.RelayRule) {
+			for (XbeeRelayManager manager : managers) {
+				seedRelayRules(manager, (AlertRule.RelayRule) rule);
+			}
+		}
+		return rule;
+	}
+
+	// Adds a parsed rule to the index for what it watches
+	private synchronized void indexRule(AlertRule inRule)
+		throws RelayException {
+		long now = System.nanoTime();
+		if (inRule instanceof AlertRule.RelayRule) {
+			AlertRule.RelayRule relayRule = (AlertRule.RelayRule) inRule;
+			for (long node : relayRule.nodes) {
+				if (node == NodeAddress.NONE && !managers.isEmpty() && watchesOtherThan(managers.get(0).getNode())) {
+					throw new RelayException("Alert rule \"" + inRule + "\" must give each relay's node, as more than one node is watched");
+				}
+			}
+		}
+		if (inRule instanceof AlertRule.PowerRule) {
+			if (powerCount == powerRules.length) {
+				powerRules = Arrays.copyOf(powerRules, powerCount * 2);
+			}
+			powerRules[powerCount++] = (AlertRule.PowerRule) inRule;
+		} else if (inRule instanceof AlertRule.RelayRule) {
+			AlertRule.RelayRule relayRule = (AlertRule.RelayRule) inRule;
+			for (int c = 0; c < relayRule.relayNumbers.length; c++) {
+				int w = relayWatchCount++;
+				if (w == relayWatchRules.length) {
+					relayWatchRules = Arrays.copyOf(relayWatchRules, w * 2);
+					relayWatchClauses = Arrays.copyOf(relayWatchClauses, w * 2);
+					relayWatchNext = Arrays.copyOf(relayWatchNext, w * 2);
+				}
+				relayWatchRules[w] = relayRule;
+				relayWatchClauses[w] = c;
+				long key = relayKey(relayRule.nodes[c], relayRule.relayNumbers[c]);
+				relayWatchNext[w] = relayHeads.get(key);
+				relayHeads.put(key, w);
+				if (relayRule.nodes[c] == NodeAddress.NONE) {
+					anyNodeClauses++;
+				}
+			}
+		} else {
+			AlertRule.SilenceRule silenceRule = (AlertRule.SilenceRule) inRule;
+			int s = silenceCount++;
+			if (s == silenceRules.length) {
+				silenceRules = Arrays.copyOf(silenceRules, s * 2);
+				silenceNodes = Arrays.copyOf(silenceNodes, s * 2);
+				silenceNext = Arrays.copyOf(silenceNext, s * 2);
+			}
+			silenceRules[s] = silenceRule;
+			silenceNext[s] = NONE;
+			if (silenceRule.node == NodeAddress.NONE) {
+				silenceNodes[s] = NONE;
+			} else {
+				// The node's clock starts now if we haven't heard from it
+				int n = node(silenceRule.node, now);
+				silenceNodes[s] = n;
+				silenceNext[s] = nodeSilenceHeads[n];
+				nodeSilenceHeads[n] = s;
+			}
+		}
+		rules.add(inRule);
+	}
+
+	/**
+	 * Adds the rules in a file, one per line.  Blank lines and lines starting
+	 * with # are skipped.
+	 *
+	 * @param inFile the file
+	 * @return the number of rules added
+	 * @throws IOException if the file can't be read
+	 * @throws RelayException if a rule can't be parsed; the rules before it are kept
+	 */
+	public int loadRules(File inFile)
+		throws IOException, RelayException {
+		BufferedReader reader = new BufferedReader(new FileReader(inFile));
+		int added = 0;
+		try {
+			int lineNumber = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				try {
+					addRule(line);
+				} catch (RelayException e) {
+					throw new RelayException(inFile + ":" + lineNumber + ": " + e.getMessage());
+				}
+				added++;
+			}
+		} finally {
+			reader.close();
+		}
+		return added;
+	}
+
+	/**
+	 * Starts taking a node's samples and transitions.  Its clock starts now, so
+	 * a node that never sends a sample is caught by silence rules too; and the
+	 * relay rules on its relays start out from their current status, so a
+	 * relay that is already ON counts without having to switch first.
+	 *
+	 * @param inManager the node's relay manager
+	 * @throws RelayException if it would be a second node, and a relay rule
+	 *   doesn't give its relays' nodes
+	 */
+	public void watch(XbeeRelayManager inManager)
+		throws RelayException {
+		synchronized (this) {
+			if (anyNodeClauses > 0 && watchesOtherThan(inManager.getNode())) {
+				throw new RelayException("Can't watch node " + NodeAddress.toString(inManager.getNode())
+						+ ": relay rules without a node are only allowed with one node watched");
+			}
+			node(inManager.getNode(), System.nanoTime());
+			managers.add(inManager);
+		}
+		inManager.addTransitionListener(this);
+		inManager.addSampleListener(this);
+		seedRelayRules(inManager, null);
+	}
+
+	/**
+	 * Checks the power rules against a reading of the house's total power.
+	 *
+	 * @param inMilliwatts total power
+	 * @param inNanos System.nanoTime() when it was read
+	 */
+	public void addPowerReading(double inMilliwatts, long inNanos) {
+		List<Event> events = null;
+		synchronized (this) {
+			for (int i = 0; i < powerCount; i++) {
+				events = apply(powerRules[i], powerRules[i].holds(inMilliwatts), inNanos, events);
+			}
+		}
+		notifyListeners(events);
+	}
+
+	/* (non-Javadoc)
+	 * @see xbeerelay.RelayTransitionListener#relayChanged(xbeerelay.Relay, xbeerelay.Relay.RelayStatus, xbeerelay.Relay.RelayStatus, long)
+	 */
+	@Override
+	public void relayChanged(Relay inRelay, RelayStatus inOldStatus, RelayStatus inNewStatus, long inNanos) {
+		List<Event> events;
+		synchronized (this) {
+			events = applyRelay(inRelay, inNewStatus, null, inNanos, null);
+		}
+		notifyListeners(events);
+	}
+
+	/* (non-Javadoc)
+	 * @see xbeerelay.RelaySampleListener#sampleProcessed(xbeerelay.XbeeRelayManager, long)
+	 */
+	@Override
+	public void sampleProcessed(XbeeRelayManager inManager, long inNanos) {
+		List<Event> events = null;
+		synchronized (this) {
+			int n = node(inManager.getNode(), inNanos);
+			lastSeen[n] = inNanos;
+			for (int s = nodeSilenceHeads[n]; s != NONE; s = silenceNext[s]) {
+				events = apply(silenceRules[s], false, inNanos, events);
+			}
+		}
+		notifyListeners(events);
+	}
+
+	/**
+	 * Raises the rules that time alone can raise: those that have waited out
+	 * their <code>for</code>, and silence rules.  start() calls this on a timer;
+	 * call it directly to drive the engine yourself.
+	 *
+	 * @param inNanos System.nanoTime() now
+	 */
+	public void tick(long inNanos) {
+		List<Event> events = null;
+		synchronized (this) {
+			// Backwards, as raising a rule takes it off the list
+			for (int i = waitingCount - 1; i >= 0; i--) {
+				events = apply(waiting[i], true, inNanos, events);
+			}
+			if (silenceCount > 0) {
+				long oldest = inNanos;
+				for (int n = 0; n < nodeCount; n++) {
+					if (lastSeen[n] - oldest < 0) {
+						oldest = lastSeen[n];
+					}
+				}
+				for (int s = 0; s < silenceCount; s++) {
+					long seen = silenceNodes[s] == NONE ? oldest : lastSeen[silenceNodes[s]];
+					events = apply(silenceRules[s], inNanos - seen >= silenceRules[s].silenceNanos, inNanos, events);
+				}
+			}
+		}
+		notifyListeners(events);
+	}
+
+	/**
+	 * Starts calling tick() on a daemon thread.
+	 */
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "xbee-alerts");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleAtFixedRate(new Runnable() {
+
+			@Override
+			public void run() {
+				tick(System.nanoTime());
+			}
+		}, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Stops the ticks started by start().
+	 */
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Gets every rule, in the order they were added.
+	 */
+	public synchronized List<AlertRule> getRules() {
+		return new ArrayList<AlertRule>(rules);
+	}
+
+	/**
+	 * Registers a listener to be told when rules are raised and cleared.
+	 *
+	 * @param inListener listener to add
+	 */
+	public void addAlertListener(AlertListener inListener) {
+		listeners.add(inListener);
+	}
+
+	/**
+	 * Unregisters an alert listener.
+	 *
+	 * @param inListener listener to remove
+	 */
+	public void removeAlertListener(AlertListener inListener) {
+		listeners.remove(inListener);
+	}
+
+	// Updates a rule and the waiting list, noting any alert to send.  Called with our lock held.
+	private List<Event> apply(AlertRule inRule, boolean inHolds, long inNanos, List<Event> inEvents) {
+		int change = inRule.update(inHolds, inNanos);
+		boolean wait = inRule.isWaiting();
+		if (wait && inRule.waitingIndex == NONE) {
+			if (waitingCount == waiting.length) {
+				waiting = Arrays.copyOf(waiting, waitingCount * 2);
+			}
+			inRule.waitingIndex = waitingCount;
+			waiting[waitingCount++] = inRule;
+		} else if (!wait && inRule.waitingIndex != NONE) {
+			AlertRule last = waiting[--waitingCount];
+			waiting[inRule.waitingIndex] = last;
+			last.waitingIndex = inRule.waitingIndex;
+			waiting[waitingCount] = null;
+			inRule.waitingIndex = NONE;
+		}
+		if (change == AlertRule.UNCHANGED) {
+			return inEvents;
+		}
+		List<Event> events = inEvents == null ? new ArrayList<Event>(2) : inEvents;
+		events.add(new Event(inRule, change == AlertRule.RAISED, inNanos));
+		return events;
+	}
+
+	/*
+	 * Sets the relay rules' clauses for a node's relays from their current
+	 * status, as if each had just switched to it.  inRule is the one rule to set,
+	 * or null for all of them.  The node's lock is taken before ours, as it is
+	 * when transitions come in, so none can slip in between.
+	 */
+	private void seedRelayRules(XbeeRelayManager inManager, AlertRule.RelayRule inRule) {
+		List<Event> events = null;
+		synchronized (inManager) {
+			long now = System.nanoTime();
+			for (Relay r : inManager.getManagedRelays()) {
+				RelayStatus status = r.getConfirmedStatus();
+				synchronized (this) {
+					events = applyRelay(r, status, inRule, now, events);
+				}
+			}
+		}
+		notifyListeners(events);
+	}
+
+	/*
+	 * Updates the clauses on a relay from its status: those naming its node, then
+	 * those naming no node (which can only mean this one).  inRule is the one
+	 * rule to update, or null for all of them.  Called with our lock held.
+	 */
+	private List<Event> applyRelay(Relay inRelay, RelayStatus inStatus, AlertRule.RelayRule inRule, long inNanos,
+			List<Event> inEvents) {
+		List<Event> events = inEvents;
+		long node = inRelay.getNode();
+		for (int pass = 0; pass < 2; pass++) {
+			if (pass == 1) {
+				if (node == NodeAddress.NONE || anyNodeClauses == 0) {
+					break;
+				}
+				node = NodeAddress.NONE;
+			}
+			int nodeIndex = relayNodes.get(node);
+			if (nodeIndex == LongIntMap.MISSING) {
+				continue;
+			}
+			long key = ((long) nodeIndex << 32) | (inRelay.getNumber() & 0xffffffffL);
+			for (int w = relayHeads.get(key); w != LongIntMap.MISSING; w = relayWatchNext[w]) {
+				AlertRule.RelayRule rule = relayWatchRules[w];
+				if (inRule == null || rule == inRule) {
+					events = apply(rule, rule.relayChanged(relayWatchClauses[w], inStatus), inNanos, events);
+				}
+			}
+		}
+		return events;
+	}
+
+	// Key in relayHeads for a relay on a node, adding the node if it's new.  Called with our lock held.
+	private long relayKey(long inNode, int inNumber) {
+		int n = relayNodes.get(inNode);
+		if (n == LongIntMap.MISSING) {
+			n = relayNodes.size();
+			relayNodes.put(inNode, n);
+		}
+		return ((long) n << 32) | (inNumber & 0xffffffffL);
+	}
+
+	// Whether a node other than inNode is watched.  Called with our lock held.
+	private boolean watchesOtherThan(long inNode) {
+		for (XbeeRelayManager manager : managers) {
+			if (manager.getNode() != inNode) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Outside our lock, so listeners can look at the engine
+	private void notifyListeners(List<Event> inEvents) {
+		if (inEvents == null) {
+			return;
+		}
+		for (Event event : inEvents) {
+			for (AlertListener listener : listeners) {
+				if (event.raised) {
+					listener.alertRaised(event.rule, event.nanos);
+				} else {
+					listener.alertCleared(event.rule, event.nanos);
+				}
+			}
+		}
+	}
+
+	// Index of a node, adding it (last seen at inNanos) if it's new.  Called with our lock held.
+	private int node(long inNode, long inNanos) {
+		int n = nodeIndex.get(inNode);
+		if (n == LongIntMap.MISSING) {
+			n = nodeCount++;
+			if (n == lastSeen.length) {
+				lastSeen = Arrays.copyOf(lastSeen, n * 2);
+				nodeSilenceHeads = Arrays.copyOf(nodeSilenceHeads, n * 2);
+			}
+			nodeIndex.put(inNode, n);
+			lastSeen[n] = inNanos;
+			nodeSilenceHeads[n] = NONE;
+		}
+		return n;
+	}
+
+	private static AlertRule parse(String inText)
+		throws RelayException {
+		RuleParser parser = new RuleParser(inText);
+		String kind = parser.next();
+		AlertRule rule;
+		if (kind.equals("power")) {
+			String op = parser.next();
+			int operator;
+			if (op.equals(">")) {
+				operator = AlertRule.PowerRule.GREATER;
+			} else if (op.equals(">=")) {
+				operator = AlertRule.PowerRule.GREATER_OR_EQUAL;
+			} else if (op.equals("<")) {
+				operator = AlertRule.PowerRule.LESS;
+			} else if (op.equals("<=")) {
+				operator = AlertRule.PowerRule.LESS_OR_EQUAL;
+			} else {
+				throw parser.error("expected >, >=, < or <= but found '" + op + "'");
+			}
+			double milliwatts = parser.number() * parser.powerUnit();
+			rule = new AlertRule.PowerRule(inText, parser.hold(), operator, milliwatts);
+		} else if (kind.equals("relay")) {
+			List<Long> nodes = new ArrayList<Long>();
+			List<Integer> numbers = new ArrayList<Integer>();
+			List<Boolean> wantOn = new ArrayList<Boolean>();
+			while (true) {
+				long node = NodeAddress.NONE;
+				if (parser.peek() != null && NODE_ADDRESS.matcher(parser.peek()).matches()) {
+					node = NodeAddress.parse(parser.next());
+				}
+				nodes.add(node);
+				numbers.add((int) parser.wholeNumber());
+				String state = parser.next();
+				if (!state.equals("on") && !state.equals("off")) {
+					throw parser.error("expected ON or OFF but found '" + state + "'");
+				}
+				wantOn.add(state.equals("on"));
+				if (!parser.skip("while")) {
+					break;
+				}
+				parser.expect("relay");
+			}
+			long[] relayNodes = new long[numbers.size()];
+			int[] relayNumbers = new int[numbers.size()];
+			boolean[] states = new boolean[numbers.size()];
+			for (int i = 0; i < relayNumbers.length; i++) {
+				relayNodes[i] = nodes.get(i);
+				relayNumbers[i] = numbers.get(i);
+				states[i] = wantOn.get(i);
+			}
+			rule = new AlertRule.RelayRule(inText, parser.hold(), relayNodes, relayNumbers, states);
+		} else if (kind.equals("node")) {
+			long node = NodeAddress.NONE;
+			if (parser.peek() != null && NODE_ADDRESS.matcher(parser.peek()).matches()) {
+				node = NodeAddress.parse(parser.next());
+			}
+			parser.expect("silent");
+			parser.skip("for");
+			rule = new AlertRule.SilenceRule(inText, node, parser.duration());
+		} else {
+			throw parser.error("expected power, relay or node but found '" + kind + "'");
+		}
+		parser.end();
+		return rule;
+	}
+
+	/**
+	 * Splits a rule into lower-cased words, numbers, units and operators ("3W"
+	 * is "3" then "w"), and reads them in order.
+	 */
+	private static final class RuleParser {
+
+		RuleParser(String inText) throws RelayException {
+			text = inText;
+			for (String word : inText.split("\\s+")) {
+				if (word.isEmpty()) {
+					continue;
+				}
+				if (NODE_ADDRESS.matcher(word).matches()) {
+					tokens.add(word.toLowerCase());
+					continue;
+				}
+				Matcher m = TOKEN.matcher(word);
+				int end = 0;
+				while (end < word.length() && m.find(end) && m.start() == end) {
+					tokens.add(m.group().toLowerCase());
+					end = m.end();
+				}
+				if (end != word.length()) {
+					throw error("can't read '" + word + "'");
+				}
+			}
+		}
+
+		String peek() {
+			return position < tokens.size() ? tokens.get(position) : null;
+		}
+
+		String next() throws RelayException {
+			if (position == tokens.size()) {
+				throw error("rule ends too soon");
+			}
+			return tokens.get(position++);
+		}
+
+		boolean skip(String inToken) {
+			if (inToken.equals(peek())) {
+				position++;
+				return true;
+			}
+			return false;
+		}
+
+		void expect(String inToken) throws RelayException {
+			String token = next();
+			if (!token.equals(inToken)) {
+				throw error("expected '" + inToken + "' but found '" + token + "'");
+			}
+		}
+
+		double number() throws RelayException {
+			String token = next();
+			try {
+				return Double.parseDouble(token);
+			} catch (NumberFormatException e) {
+				throw error("expected a number but found '" + token + "'");
+			}
+		}
+
+		long wholeNumber() throws RelayException {
+			double number = number();
+			if (number != Math.floor(number)) {
+				throw error("expected a whole number but found " + number);
+			}
+			return (long) number;
+		}
+
+		// Milliwatts per unit
+		double powerUnit() throws RelayException {
+			String unit = next();
+			if (unit.equals("w")) {
+				return 1000;
+			} else if (unit.equals("mw")) {
+				return 1;
+			} else if (unit.equals("kw")) {
+				return 1000000;
+			}
+			throw error("expected W, mW or kW but found '" + unit + "'");
+		}
+
+		long duration() throws RelayException {
+			double number = number();
+			String unit = next();
+			long nanosPerUnit;
+			if (unit.equals("ms")) {
+				nanosPerUnit = TimeUnit.MILLISECONDS.toNanos(1);
+			} else if (unit.equals("s") || unit.equals("sec")) {
+				nanosPerUnit = TimeUnit.SECONDS.toNanos(1);
+			} else if (unit.equals("m") || unit.equals("min")) {
+				nanosPerUnit = TimeUnit.MINUTES.toNanos(1);
+			} else if (unit.equals("h")) {
+				nanosPerUnit = TimeUnit.HOURS.toNanos(1);
+			} else {
+				throw error("expected ms, s, m or h but found '" + unit + "'");
+			}
+			return (long) (number * nanosPerUnit);
+		}
+
+		// An optional "for <time>"
+		long hold() throws RelayException {
+			return skip("for") ? duration() : 0;
+		}
+
+		void end() throws RelayException {
+			if (position < tokens.size()) {
+				throw error("unexpected '" + tokens.get(position) + "'");
+			}
+		}
+
+		RelayException error(String inProblem) {
+			return new RelayException("Bad alert rule \"" + text + "\": " + inProblem);
+		}
+
+		private final String text;
+		private final List<String> tokens = new ArrayList<String>();
+		private int position;
+	}
+
+	/**
+	 * A rule raised or cleared, waiting to be sent to the listeners.
+	 */
+	private static final class Event {
+
+		Event(AlertRule inRule, boolean inRaised, long inNanos) {
+			rule = inRule;
+			raised = inRaised;
+			nanos = inNanos;
+		}
+
+		final AlertRule rule;
+		final boolean raised;
+		final long nanos;
+	}
+
+	private final long tickNanos;
+	private ScheduledExecutorService scheduler;
+	private final List<AlertRule> rules = new ArrayList<AlertRule>();
+	private final List<AlertListener> listeners = new CopyOnWriteArrayList<AlertListener>();
+	private final List<XbeeRelayManager> managers = new CopyOnWriteArrayList<XbeeRelayManager>();
+	// Power rules
+	private AlertRule.PowerRule[] powerRules = new AlertRule.PowerRule[16];
+	private int powerCount;
+	// Relay rules, by node and relay number: the first watch on each, linked through
+	// relayWatchNext (LongIntMap.MISSING ends a list).  The key is the node's index in
+	// relayNodes in the high half, and the relay number in the low half; clauses that
+	// don't give a node are under NodeAddress.NONE.
+	private final LongIntMap relayNodes = new LongIntMap(16);
+	private final LongIntMap relayHeads = new LongIntMap(64);
+	private int anyNodeClauses;
+	private AlertRule.RelayRule[] relayWatchRules = new AlertRule.RelayRule[16];
+	private int[] relayWatchClauses = new int[16];
+	private int[] relayWatchNext = new int[16];
+	private int relayWatchCount;
+	// Silence rules, and per node the first on it, linked through silenceNext
+	private AlertRule.SilenceRule[] silenceRules = new AlertRule.SilenceRule[16];
+	private int[] silenceNodes = new int[16];
+	private int[] silenceNext = new int[16];
+	private int silenceCount;
+	// Per node, by index
+	private final LongIntMap nodeIndex = new LongIntMap(64);
+	private int nodeCount;
+	private long[] lastSeen = new long[64];
+	private int[] nodeSilenceHeads = new int[64];
+	// Rules whose condition holds but hasn't held for long enough yet
+	private AlertRule[] waiting = new AlertRule[16];
+	private int waitingCount;
+}
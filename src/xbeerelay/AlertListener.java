@@ -0,0 +1,28 @@
+package xbeerelay;
+
+/**
+ * Notified when an alert rule starts and stops holding.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public interface AlertListener {
+
+	/**
+	 * Called when a rule's condition has held for as long as the rule asks.
+	 * This can be called with a relay manager locked, so keep it short.
+	 *
+	 * @param inRule the rule
+	 * @param inNanos System.nanoTime() when it was raised
+	 */
+	void alertRaised(AlertRule inRule, long inNanos);
+
+	/**
+	 * Called when a raised rule's condition stops holding.
+	 * This can be called with a relay manager locked, so keep it short.
+	 *
+	 * @param inRule the rule
+	 * @param inNanos System.nanoTime() when it was cleared
+	 */
+	void alertCleared(AlertRule inRule, long inNanos);
+}
@@ -0,0 +1,193 @@
+package xbeerelay;
+
+/**
+ * An alert rule, compiled by AlertEngine.addRule() from text such as
+ * <code>power &gt; 3W for 10s</code>.
+ *
+ * <p>A rule is raised once its condition has held for its hold time (at once if
+ * it has none), and cleared when the condition stops holding.  Each rule keeps
+ * just the state it needs to be updated as samples come in (when its condition
+ * started holding, and whatever the condition is worked out from), so updating
+ * one is constant work however long the rule has been running.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public abstract class AlertRule {
+
+	// What update() did
+	static final int UNCHANGED = 0;
+	static final int RAISED = 1;
+	static final int CLEARED = 2;
+
+	AlertRule(String inText, long inHoldNanos) {
+		text = inText;
+		holdNanos = inHoldNanos;
+	}
+
+	/**
+	 * Gets the rule as it was written.
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * Checks if the rule is raised.
+	 */
+	public synchronized boolean isRaised() {
+		return raised;
+	}
+
+	/**
+	 * Gets when the rule was last raised.
+	 *
+	 * @return System.nanoTime() when it was last raised, 0 if it never has been
+	 */
+	public synchronized long getRaisedNanos() {
+		return raisedNanos;
+	}
+
+	/**
+	 * Gets the number of times the rule has been raised.
+	 */
+	public synchronized long getRaiseCount() {
+		return raiseCount;
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+
+	/**
+	 * Updates the rule with whether its condition holds now.
+	 *
+	 * @param inHolds true if the condition holds
+	 * @param inNanos System.nanoTime() now
+	 * @return RAISED or CLEARED if that just happened, otherwise UNCHANGED
+	 */
+	synchronized int update(boolean inHolds, long inNanos) {
+		if (!inHolds) {
+			holding = false;
+			if (raised) {
+				raised = false;
+				return CLEARED;
+			}
+			return UNCHANGED;
+		}
+		if (!holding) {
+			holding = true;
+			holdingSince = inNanos;
+		}
+		if (!raised && inNanos - holdingSince >= holdNanos) {
+			raised = true;
+			raisedNanos = inNanos;
+			raiseCount++;
+			return RAISED;
+		}
+		return UNCHANGED;
+	}
+
+	// True if the condition holds but hasn't held long enough yet
+	synchronized boolean isWaiting() {
+		return holding && !raised;
+	}
+
+	/**
+	 * <code>power &lt;op&gt; &lt;threshold&gt;</code>: the house's total power
+	 * compared with a threshold.
+	 */
+	static final class PowerRule extends AlertRule {
+
+		static final int GREATER = 0;
+		static final int GREATER_OR_EQUAL = 1;
+		static final int LESS = 2;
+		static final int LESS_OR_EQUAL = 3;
+
+		PowerRule(String inText, long inHoldNanos, int inOperator, double inMilliwatts) {
+			super(inText, inHoldNanos);
+			operator = inOperator;
+			milliwatts = inMilliwatts;
+		}
+
+		boolean holds(double inMilliwatts) {
+			switch (operator) {
+			case GREATER:
+				return inMilliwatts > milliwatts;
+			case GREATER_OR_EQUAL:
+				return inMilliwatts >= milliwatts;
+			case LESS:
+				return inMilliwatts < milliwatts;
+			default:
+				return inMilliwatts <= milliwatts;
+			}
+		}
+
+		private final int operator;
+		private final double milliwatts;
+	}
+
+	/**
+	 * <code>relay [&lt;address&gt;] &lt;n&gt; ON|OFF [while relay [&lt;address&gt;]
+	 * &lt;m&gt; ON|OFF]</code>: one relay, or two at once, in a given state.  The relays' current states are
+	 * kept here, updated from transitions, so the condition never has to go and
+	 * look at them.
+	 */
+	static final class RelayRule extends AlertRule {
+
+		RelayRule(String inText, long inHoldNanos, long[] inNodes, int[] inRelayNumbers, boolean[] inWantOn) {
+			super(inText, inHoldNanos);
+			nodes = inNodes;
+			relayNumbers = inRelayNumbers;
+			wantOn = inWantOn;
+			matching = new boolean[inRelayNumbers.length];
+		}
+
+		// Records one of the rule's relays changing; returns true if the condition now holds
+		boolean relayChanged(int inClause, Relay.RelayStatus inStatus) {
+			matching[inClause] = inStatus == (wantOn[inClause] ? Relay.RelayStatus.ON : Relay.RelayStatus.OFF);
+			for (boolean m : matching) {
+				if (!m) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		// Each relay's node, or NodeAddress.NONE for the one node watched
+		final long[] nodes;
+		final int[] relayNumbers;
+		private final boolean[] wantOn;
+		// Whether each relay is in the wanted state, as of its last transition (or its
+		// status when the engine started watching it)
+		private final boolean[] matching;
+	}
+
+	/**
+	 * <code>node [&lt;address&gt;] silent &lt;time&gt;</code>: a node, or any
+	 * node, sending no samples for a time.
+	 */
+	static final class SilenceRule extends AlertRule {
+
+		SilenceRule(String inText, long inNode, long inSilenceNanos) {
+			super(inText, 0);
+			node = inNode;
+			silenceNanos = inSilenceNanos;
+		}
+
+		// NodeAddress.NONE for any node
+		final long node;
+		final long silenceNanos;
+	}
+
+	private final String text;
+	private final long holdNanos;
+	private boolean holding;
+	private long holdingSince;
+	private boolean raised;
+	private long raisedNanos;
+	private long raiseCount;
+	// Position in the engine's list of waiting rules, -1 if not in it (guarded by the engine)
+	int waitingIndex = -1;
+}
@@ -0,0 +1,34 @@
+package xbeerelay;
+
+/**
+ * Classes of outbound traffic, most urgent first.  A CommandScheduler gives
+ * each its own queue.
+ * 
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public enum CommandPriority
+{
+	/** Safety shutdowns.  Always sent next, ahead of everything else. */
+	EMERGENCY_OFF(0),
+	/** Someone is waiting on it, e.g. a relay switched from the GUI. */
+	INTERACTIVE(8),
+	/** Groups and scenes. */
+	BULK(3),
+	/** Status polling and node configuration. */
+	POLLING(1);
+
+	private CommandPriority(int inWeight) {
+		weight = inWeight;
+	}
+
+	/**
+	 * Gets this class's share of the link when several classes are waiting,
+	 * relative to the others.  0 means strict priority.
+	 */
+	public int getWeight() {
+		return weight;
+	}
+
+	private final int weight;
+}
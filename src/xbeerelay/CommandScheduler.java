@@ -0,0 +1,242 @@
+package xbeerelay;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import com.rapplogic.xbee.api.XBeeException;
+
+/**
+ * Puts the sends through one coordinator in order of priority, so a safety
+ * shutdown never waits behind a scene change or status polling.
+ *
+ * <p>Each CommandPriority has its own queue, and a single thread does the actual
+ * sending.  When it is free it picks:
+ * <ol>
+ * <li>the oldest EMERGENCY_OFF command, if there is one;</li>
+ * <li>otherwise, the oldest command that has waited longer than the maximum
+ * wait, so no class starves however busy the link is;</li>
+ * <li>otherwise, the next class in a smooth weighted round robin over the
+ * classes with commands waiting, so each gets a share of the link in
+ * proportion to its weight.</li>
+ * </ol>
+ * An emergency command therefore waits for at most the one send already in
+ * progress (its airtime plus, at worst, its ack timeout).
+ *
+ * <p>Callers still block until their command has been sent and acked, as they
+ * did when they called XbeeManager directly.  If the sending thread is
+ * interrupted it stops, and every command still queued fails with an
+ * XBeeException, as do any submitted afterwards.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class CommandScheduler {
+
+	private static final CommandPriority[] PRIORITIES = CommandPriority.values();
+
+	/**
+	 * Constructs a new CommandScheduler and starts its sending thread.
+	 *
+	 * @param inName name for the sending thread, e.g. the coordinator's serial port
+	 */
+	public CommandScheduler(String inName) {
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i] = new ArrayDeque<Queued>();
+			waits[i] = new LatencyStats();
+		}
+		sender = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				runSender();
+			}
+		}, "xbee-send-" + inName);
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	/**
+	 * Queues a send and waits for it to be done.
+	 *
+	 * @param inPriority class of the send
+	 * @param inSend does the send, returning true if it was acked
+	 * @return what inSend returned
+	 * @throws XBeeException if inSend threw it, the wait was interrupted, or
+	 *   the scheduler stopped before sending it
+	 */
+	public boolean submit(CommandPriority inPriority, Callable<Boolean> inSend)
+		throws XBeeException {
+		FutureTask<Boolean> task = new FutureTask<Boolean>(inSend);
+		if (Thread.currentThread() == sender) {
+			// A send that sends: don't queue behind ourselves
+			task.run();
+		} else {
+			synchronized (this) {
+				if (shutdown) {
+					throw new XBeeException("Command scheduler has been shut down");
+				}
+				lanes[inPriority.ordinal()].addLast(new Queued(task, System.nanoTime()));
+				queued++;
+				notifyAll();
+			}
+		}
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof XBeeException) {
+				throw (XBeeException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new XBeeException(cause.toString());
+		} catch (CancellationException e) {
+			throw new XBeeException("Command scheduler stopped before sending");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new XBeeException("Interrupted waiting to send");
+		}
+	}
+
+	/**
+	 * Sets how long a command can wait before it is sent ahead of its turn.
+	 *
+	 * @param inMillis maximum wait in milliseconds (the default is 2000 ms)
+	 */
+	public synchronized void setMaxWait(long inMillis) {
+		maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(inMillis, 0));
+	}
+
+	/**
+	 * Gets the number of commands waiting in a class.
+	 *
+	 * @param inPriority the class
+	 */
+	public synchronized int getQueueLength(CommandPriority inPriority) {
+		return lanes[inPriority.ordinal()].size();
+	}
+
+	/**
+	 * Gets how long commands of a class have waited between being queued and
+	 * starting to send.
+	 *
+	 * @param inPriority the class
+	 * @return wait statistics
+	 */
+	public LatencyStats getWaitStats(CommandPriority inPriority) {
+		return waits[inPriority.ordinal()];
+	}
+
+	/**
+	 * Stops the sending thread once the commands already queued have been sent.
+	 * New submissions are refused.
+	 */
+	public synchronized void shutdown() {
+		shutdown = true;
+		notifyAll();
+	}
+
+	private void runSender() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				Queued next;
+				int lane;
+				synchronized (this) {
+					while (queued == 0 && !shutdown) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if (queued == 0) {
+						return;
+					}
+					lane = pickLane(System.nanoTime());
+					next = lanes[lane].pollFirst();
+					queued--;
+				}
+				waits[lane].record(System.nanoTime() - next.queuedNanos);
+				next.task.run();
+			}
+		} finally {
+			abandonQueued();
+		}
+	}
+
+	// Refuses new sends and fails the queued ones, whose callers would otherwise wait forever
+	private synchronized void abandonQueued() {
+		shutdown = true;
+		for (ArrayDeque<Queued> lane : lanes) {
+			for (Queued q = lane.pollFirst(); q != null; q = lane.pollFirst()) {
+				q.task.cancel(false);
+			}
+		}
+		queued = 0;
+	}
+
+	// Which lane to send from next.  Called with at least one command queued.
+	private int pickLane(long inNow) {
+		if (!lanes[CommandPriority.EMERGENCY_OFF.ordinal()].isEmpty()) {
+			return CommandPriority.EMERGENCY_OFF.ordinal();
+		}
+
+		// Starvation protection: anything that has waited too long goes first, oldest first
+		int oldest = -1;
+		for (int i = 0; i < lanes.length; i++) {
+			Queued head = lanes[i].peekFirst();
+			if (head != null && inNow - head.queuedNanos >= maxWaitNanos
+					&& (oldest < 0 || head.queuedNanos - lanes[oldest].peekFirst().queuedNanos < 0)) {
+				oldest = i;
+			}
+		}
+		if (oldest >= 0) {
+			return oldest;
+		}
+
+		// Smooth weighted round robin over the lanes with something waiting
+		int best = -1;
+		int total = 0;
+		for (int i = 0; i < lanes.length; i++) {
+			if (lanes[i].isEmpty()) {
+				continue;
+			}
+			int weight = Math.max(PRIORITIES[i].getWeight(), 1);
+			credits[i] += weight;
+			total += weight;
+			if (best < 0 || credits[i] > credits[best]) {
+				best = i;
+			}
+		}
+		credits[best] -= total;
+		return best;
+	}
+
+	/**
+	 * A send waiting in a lane.
+	 */
+	private static final class Queued {
+
+		Queued(FutureTask<Boolean> inTask, long inQueuedNanos) {
+			task = inTask;
+			queuedNanos = inQueuedNanos;
+		}
+
+		final FutureTask<Boolean> task;
+		final long queuedNanos;
+	}
+
+	private final Thread sender;
+	@SuppressWarnings("unchecked")
+	private final ArrayDeque<Queued>[] lanes = new ArrayDeque[PRIORITIES.length];
+	private final int[] credits = new int[PRIORITIES.length];
+	private final LatencyStats[] waits = new LatencyStats[PRIORITIES.length];
+	private int queued;
+	private long maxWaitNanos = TimeUnit.SECONDS.toNanos(2);
+	private boolean shutdown;
+}
@@ -0,0 +1,311 @@
+package xbeerelay;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.rapplogic.xbee.api.ApiId;
+import com.rapplogic.xbee.api.PacketListener;
+import com.rapplogic.xbee.api.XBee;
+import com.rapplogic.xbee.api.XBeeException;
+import com.rapplogic.xbee.api.XBeeResponse;
+import com.rapplogic.xbee.api.zigbee.ZNetRxIoSampleResponse;
+
+/**
+ * Manages several coordinator XBees, each on its own serial port and baud
+ * rate, so traffic isn't limited to what one serial link can carry.
+ *
+ * <p>Every node is assigned to one coordinator, and commands for it go out
+ * through that coordinator's XbeeManager.  Nodes can be assigned up front (they
+ * have to have joined that coordinator's network).  Whenever a node's IO sample
+ * arrives on a coordinator other than the one it's assigned to, it is moved to
+ * that one, as that's the network it is on.  A node that hasn't been assigned
+ * or heard from yet is sent to through the coordinator with the fewest nodes,
+ * which is only a guess; it isn't recorded as an assignment.
+ *
+ * <p>XbeeRelayManagers made with the pool (rather than with one XbeeManager)
+ * look up their node's coordinator on every send, so they follow a node that
+ * has been moved.
+ *
+ * <p>Packets from all coordinators are merged into a single PacketDispatcher.
+ * The dispatcher's ring only takes one producer at a time, so the coordinators'
+ * reader threads take turns publishing (which only takes as long as a ring insert).
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class CoordinatorPool {
+
+	/**
+	 * Constructs a new, empty pool.
+	 *
+	 * @param inDispatcher where packets from all coordinators are published
+	 */
+	public CoordinatorPool(PacketDispatcher inDispatcher) {
+		dispatcher = inDispatcher;
+	}
+
+	/**
+	 * Adds a coordinator on a serial port.  It is opened by open().
+	 *
+	 * @param inSerialPort serial port the coordinator is on, e.g. /dev/ttyUSB0
+	 * @param inBaudRate baud rate the coordinator is configured for
+	 * @return the index of the new coordinator
+	 */
+	public int addCoordinator(String inSerialPort, int inBaudRate) {
+		return addCoordinator(new XBee(), inSerialPort, inBaudRate);
+	}
+
+	/**
+	 * Adds a coordinator using an existing XBee object.  It is opened by open().
+	 *
+	 * @param inXbee the XBee to use
+	 * @param inSerialPort serial port the coordinator is on
+	 * @param inBaudRate baud rate the coordinator is configured for
+	 * @return the index of the new coordinator
+	 */
+	public synchronized int addCoordinator(XBee inXbee, String inSerialPort, int inBaudRate) {
+		coordinators.add(new Coordinator(coordinators.size(), inXbee, inSerialPort, inBaudRate));
+		return coordinators.size() - 1;
+	}
+
+	/**
+	 * Opens every coordinator and starts merging their packets into the dispatcher.
+	 *
+	 * Coordinators that are already open are left as they are.
+	 *
+	 * @throws XBeeException if a coordinator can't be opened; the ones this call
+	 * opened are closed again
+	 */
+	public void open()
+		throws XBeeException {
+		List<Coordinator> opened = new ArrayList<Coordinator>();
+		try {
+			for (Coordinator c : getCoordinators()) {
+				if (!c.isOpen()) {
+					c.xbee.open(c.serialPort, c.baudRate);
+					c.setOpen(true);
+					opened.add(c);
+					c.xbee.addPacketListener(c);
+				}
+			}
+		} catch (XBeeException e) {
+			for (int i = opened.size() - 1; i >= 0; i--) {
+				close(opened.get(i));
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes every coordinator that is open.  XBee objects that were never opened
+	 * are left alone, as the XBee API won't close them.
+	 */
+	public void close() {
+		for (Coordinator c : getCoordinators()) {
+			CommandScheduler scheduler = c.xbManager.getCommandScheduler();
+			if (scheduler != null) {
+				scheduler.shutdown();
+			}
+			if (c.isOpen()) {
+				close(c);
+			}
+		}
+	}
+
+	/**
+	 * Assigns a node to a coordinator, replacing any earlier assignment.
+	 *
+	 * @param inNode packed 64-bit node address (see NodeAddress)
+	 * @param inCoordinator index of the coordinator
+	 */
+	public synchronized void assign(long inNode, int inCoordinator) {
+		Coordinator coordinator = coordinators.get(inCoordinator);
+		int previous = assignments.get(inNode);
+		if (previous != LongIntMap.MISSING) {
+			coordinators.get(previous).nodeCount--;
+		}
+		assignments.put(inNode, inCoordinator);
+		coordinator.nodeCount++;
+	}
+
+	/**
+	 * Gets the coordinator a node is assigned to or, if it isn't assigned yet,
+	 * the least loaded coordinator (without assigning it there).
+	 *
+	 * @param inNode packed 64-bit node address (see NodeAddress)
+	 * @return index of the coordinator
+	 */
+	public synchronized int getCoordinatorFor(long inNode) {
+		int index = assignments.get(inNode);
+		if (index == LongIntMap.MISSING) {
+			if (coordinators.isEmpty()) {
+				throw new IllegalStateException("No coordinators in the pool");
+			}
+			index = 0;
+			for (Coordinator c : coordinators) {
+				if (c.nodeCount < coordinators.get(index).nodeCount) {
+					index = c.index;
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Checks if a node has been assigned to a coordinator, up front or by a sample.
+	 *
+	 * @param inNode packed 64-bit node address (see NodeAddress)
+	 */
+	public synchronized boolean isAssigned(long inNode) {
+		return assignments.containsKey(inNode);
+	}
+
+	/**
+	 * Gets the XbeeManager that sends to a node.
+	 *
+	 * @param inNode packed 64-bit node address (see NodeAddress)
+	 * @return XbeeManager of the node's coordinator
+	 */
+	public XbeeManager getXbeeManager(long inNode) {
+		return getCoordinator(getCoordinatorFor(inNode)).xbManager;
+	}
+
+	/**
+	 * Gets a coordinator.
+	 *
+	 * @param inIndex index of the coordinator
+	 * @return the coordinator
+	 */
+	public synchronized Coordinator getCoordinator(int inIndex) {
+		return coordinators.get(inIndex);
+	}
+
+	/**
+	 * Gets all coordinators, in the order they were added.
+	 */
+	public synchronized List<Coordinator> getCoordinators() {
+		return new ArrayList<Coordinator>(coordinators);
+	}
+
+	/**
+	 * Gets the number of coordinators in the pool.
+	 */
+	public synchronized int size() {
+		return coordinators.size();
+	}
+
+	private void close(Coordinator inCoordinator) {
+		inCoordinator.setOpen(false);
+		inCoordinator.xbee.removePacketListener(inCoordinator);
+		inCoordinator.xbManager.close();
+		try {
+			inCoordinator.xbee.close();
+		} catch (RuntimeException e) {
+			// TODO: Log error.  Go on closing the others.
+			e.printStackTrace();
+		}
+	}
+
+	// Learns where nodes are from their samples, moving them if need be
+	private synchronized void learn(long inNode, int inCoordinator) {
+		if (assignments.get(inNode) != inCoordinator) {
+			assign(inNode, inCoordinator);
+		}
+	}
+
+	/**
+	 * One coordinator XBee in the pool.
+	 */
+	public final class Coordinator implements PacketListener {
+
+		private Coordinator(int inIndex, XBee inXbee, String inSerialPort, int inBaudRate) {
+			index = inIndex;
+			xbee = inXbee;
+			serialPort = inSerialPort;
+			baudRate = inBaudRate;
+			xbManager = new XbeeManager(inXbee);
+		}
+
+		@Override
+		public void processResponse(XBeeResponse response) {
+			if (response.getApiId() == ApiId.ZNET_IO_SAMPLE_RESPONSE) {
+				learn(NodeAddress.pack(((ZNetRxIoSampleResponse) response).getRemoteAddress64()), index);
+			}
+			synchronized (publishLock) {
+				dispatcher.processResponse(response);
+			}
+		}
+
+		/**
+		 * Gets the index of this coordinator in the pool.
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * Gets the XBee object for this coordinator.
+		 */
+		public XBee getXbee() {
+			return xbee;
+		}
+
+		/**
+		 * Gets the XbeeManager that sends through this coordinator.
+		 */
+		public XbeeManager getXbeeManager() {
+			return xbManager;
+		}
+
+		/**
+		 * Gets the serial port this coordinator is on.
+		 */
+		public String getSerialPort() {
+			return serialPort;
+		}
+
+		/**
+		 * Gets the baud rate this coordinator is opened at.
+		 */
+		public int getBaudRate() {
+			return baudRate;
+		}
+
+		/**
+		 * Checks if the pool has opened this coordinator.
+		 */
+		public boolean isOpen() {
+			synchronized (CoordinatorPool.this) {
+				return open;
+			}
+		}
+
+		/**
+		 * Gets the number of nodes assigned to this coordinator.
+		 */
+		public int getNodeCount() {
+			synchronized (CoordinatorPool.this) {
+				return nodeCount;
+			}
+		}
+
+		private void setOpen(boolean inOpen) {
+			synchronized (CoordinatorPool.this) {
+				open = inOpen;
+			}
+		}
+
+		private final int index;
+		private final XBee xbee;
+		private final String serialPort;
+		private final int baudRate;
+		private final XbeeManager xbManager;
+		private int nodeCount; // guarded by the pool
+		private boolean open; // guarded by the pool
+	}
+
+	private final PacketDispatcher dispatcher;
+	private final Object publishLock = new Object();
+	private final List<Coordinator> coordinators = new ArrayList<Coordinator>();
+	private final LongIntMap assignments = new LongIntMap(64);
+}
@@ -0,0 +1,253 @@
+package xbeerelay;
+
+import java.util.concurrent.TimeUnit;
+
+import com.rapplogic.xbee.api.AtCommandResponse;
+import com.rapplogic.xbee.api.PacketListener;
+import com.rapplogic.xbee.api.XBeeAddress16;
+import com.rapplogic.xbee.api.XBeeAddress64;
+import com.rapplogic.xbee.api.XBeeException;
+import com.rapplogic.xbee.api.XBeeResponse;
+import com.rapplogic.xbee.api.zigbee.ZNetTxRequest;
+import com.rapplogic.xbee.api.zigbee.ZNetTxStatusResponse;
+
+/**
+ * Hands out the 255 API frame IDs one coordinator can have in flight, and
+ * matches status responses (transmit statuses and AT command responses) to the
+ * sends that are waiting for them.
+ *
+ * <p>Each frame ID has a Slot that owns a ZNetTxRequest and payload buffers,
+ * reused by every send under that ID, so a steady stream of commands produces
+ * no garbage on our side.  The ID is chosen before the frame is sent (the
+ * request is stamped with it), the frame is sent asynchronously, and the status
+ * response is routed here by the radio's reader thread and handed straight to
+ * the waiting slot, without the per-send listener xbee-api's sendSynchronous
+ * would add.
+ *
+ * <p>IDs are handed out in rotation, skipping any still in flight, so an ID
+ * comes round again as late as possible and a response that arrives after its
+ * send gave up is unlikely to be taken for a later send's.  If all 255 are in
+ * flight, acquire() waits for one to come free.  Each send also says what
+ * kind of response it expects, and a response of any other kind under its ID
+ * (a late AT response landing on a transmit, say) is counted as unmatched
+ * rather than handed over.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class FrameCorrelator implements PacketListener {
+
+	/** Number of frame IDs (1 to 255; 0 means no response is wanted). */
+	public static final int FRAME_IDS = 255;
+
+	/**
+	 * Constructs a new FrameCorrelator with every frame ID free.
+	 */
+	public FrameCorrelator() {
+		for (int i = 0; i < FRAME_IDS; i++) {
+			slots[i] = new Slot(i + 1);
+		}
+	}
+
+	/**
+	 * Takes the next free frame ID, waiting if all are in flight.
+	 *
+	 * @param inExpected the type of response the send waits for, e.g.
+	 *   ZNetTxStatusResponse.class; responses of other types aren't handed to it
+	 * @param inTimeoutMillis longest to wait for a free ID
+	 * @return the ID's slot; give it back with release()
+	 * @throws XBeeException if no ID came free in time, or the wait was interrupted
+	 */
+	public synchronized Slot acquire(Class<? extends XBeeResponse> inExpected, long inTimeoutMillis)
+		throws XBeeException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(inTimeoutMillis);
+		while (inFlight == FRAME_IDS) {
+			long wait = deadline - System.nanoTime();
+			if (wait <= 0) {
+				throw new XBeeException("All " + FRAME_IDS + " frame IDs are in flight");
+			}
+			try {
+				TimeUnit.NANOSECONDS.timedWait(this, wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new XBeeException("Interrupted waiting for a frame ID");
+			}
+		}
+		while (slots[next].inUse) {
+			next = (next + 1) % FRAME_IDS;
+		}
+		Slot slot = slots[next];
+		next = (next + 1) % FRAME_IDS;
+		slot.inUse = true;
+		inFlight++;
+		slot.reset(inExpected);
+		return slot;
+	}
+
+	/**
+	 * Gives a frame ID back.  A response for it that arrives later is dropped
+	 * (and counted) until it is acquired again.
+	 *
+	 * @param inSlot slot from acquire()
+	 */
+	public synchronized void release(Slot inSlot) {
+		if (inSlot.inUse) {
+			inSlot.inUse = false;
+			inFlight--;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Routes status and AT command responses to the slots waiting for them.
+	 * Register this with the radio; other packets are ignored.
+	 *
+	 * @param response packet received from the radio
+	 */
+	@Override
+	public void processResponse(XBeeResponse response) {
+		int frameId;
+		if (response instanceof ZNetTxStatusResponse) {
+			frameId = ((ZNetTxStatusResponse) response).getFrameId();
+		} else if (response instanceof AtCommandResponse) {
+			frameId = ((AtCommandResponse) response).getFrameId();
+		} else {
+			return;
+		}
+		if (frameId < 1 || frameId > FRAME_IDS || !slots[frameId - 1].complete(response)) {
+			synchronized (this) {
+				unmatched++;
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of frame IDs in flight.
+	 */
+	public synchronized int getInFlightCount() {
+		return inFlight;
+	}
+
+	/**
+	 * Gets the number of responses that matched no waiting send (late, or for
+	 * frames sent by someone else).
+	 */
+	public synchronized long getUnmatchedCount() {
+		return unmatched;
+	}
+
+	/**
+	 * One frame ID, with the request object and payload buffers reused by
+	 * every send under it.
+	 */
+	public static final class Slot {
+
+		Slot(int inFrameId) {
+			frameId = inFrameId;
+			request = new ZNetTxRequest(XBeeAddress64.BROADCAST, new int[0]);
+			request.setFrameId(inFrameId);
+		}
+
+		/**
+		 * Gets the frame ID.
+		 */
+		public int getFrameId() {
+			return frameId;
+		}
+
+		/**
+		 * Gets a payload buffer of exactly the given length, to fill in and pass
+		 * to prepare().  The same buffer comes back for the same length next time.
+		 *
+		 * @param inLength payload length, at most XbeeManager.MAX_PAYLOAD_LENGTH
+		 * @return the buffer
+		 */
+		public int[] payload(int inLength) {
+			int[] buffer = payloads[inLength];
+			if (buffer == null) {
+				buffer = new int[inLength];
+				payloads[inLength] = buffer;
+			}
+			return buffer;
+		}
+
+		/**
+		 * Readies this slot's request for a send.
+		 *
+		 * @param inAddr64 destination
+		 * @param inRoute destination's 16-bit address, or XbeeManager.NO_ROUTE to
+		 *   have the coordinator discover it
+		 * @param inPayload buffer from payload()
+		 * @return the request, stamped with this slot's frame ID
+		 */
+		public ZNetTxRequest prepare(XBeeAddress64 inAddr64, int inRoute, int[] inPayload) {
+			request.setFrameId(frameId);
+			request.setDestAddr64(inAddr64);
+			if (inRoute == XbeeManager.NO_ROUTE) {
+				request.setDestAddr16(XBeeAddress16.ZNET_BROADCAST);
+			} else {
+				route.setMsb(inRoute >> 8);
+				route.setLsb(inRoute & 0xff);
+				request.setDestAddr16(route);
+			}
+			request.setPayload(inPayload);
+			return request;
+		}
+
+		/**
+		 * Waits for the response to the frame sent under this ID.
+		 *
+		 * @param inTimeoutMillis longest to wait
+		 * @return the response, always of the type given to acquire(), or null if
+		 *   none came in time
+		 * @throws XBeeException if the wait was interrupted
+		 */
+		public synchronized XBeeResponse await(long inTimeoutMillis)
+			throws XBeeException {
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(inTimeoutMillis);
+			long wait;
+			while (response == null && (wait = deadline - System.nanoTime()) > 0) {
+				try {
+					TimeUnit.NANOSECONDS.timedWait(this, wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new XBeeException("Interrupted waiting for frame " + frameId);
+				}
+			}
+			awaiting = false;
+			return response;
+		}
+
+		// Called from acquire(), before the frame is sent
+		synchronized void reset(Class<? extends XBeeResponse> inExpected) {
+			expected = inExpected;
+			response = null;
+			awaiting = true;
+		}
+
+		// Returns false if nobody is waiting for this ID, or not for this kind of response
+		synchronized boolean complete(XBeeResponse inResponse) {
+			if (!awaiting || response != null || !expected.isInstance(inResponse)) {
+				return false;
+			}
+			response = inResponse;
+			notifyAll();
+			return true;
+		}
+
+		private final int frameId;
+		private final ZNetTxRequest request;
+		private final XBeeAddress16 route = new XBeeAddress16(0, 0);
+		private final int[][] payloads = new int[XbeeManager.MAX_PAYLOAD_LENGTH + 1][];
+		private Class<? extends XBeeResponse> expected;
+		private XBeeResponse response;
+		private boolean awaiting;
+		// Guarded by the FrameCorrelator
+		private boolean inUse;
+	}
+
+	private final Slot[] slots = new Slot[FRAME_IDS];
+	private int next;
+	private int inFlight;
+	private long unmatched;
+}
@@ -0,0 +1,203 @@
+package xbeerelay;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.rapplogic.xbee.api.XBeeRequest;
+import com.rapplogic.xbee.api.XBeeResponse;
+
+/**
+ * Captures every API frame sent to or received from an XBee into a compact
+ * binary log, so field problems can be reproduced (and the decode/plotting
+ * pipeline benchmarked) offline with FrameReplayer.
+ *
+ * <p>Subscribe an instance to the PacketDispatcher as a lossless subscriber (or
+ * register it as a PacketListener on the XBee) to capture received frames, and
+ * with XbeeManager.setFrameRecorder to capture sent ones.  Through the
+ * dispatcher, received frames are stamped with when the reader thread handed
+ * them over, not when the recorder got round to them.
+ *
+ * <p>The log format is a header followed by one record per frame:
+ * <pre>
+ * header: int MAGIC, short VERSION, long wall-clock millis at start
+ * record: byte direction, varlong nanos since previous record, varint length, bytes
+ * </pre>
+ * Frames are stored as the raw bytes that went over the serial line (start
+ * delimiter, length, escaped frame data and checksum).
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class FrameRecorder implements TimedPacketListener {
+
+	/** Identifies a capture file ("XBCF"). */
+	public static final int MAGIC = 0x58424346;
+	/** Capture format version. */
+	public static final short VERSION = 1;
+	/** Direction byte for a frame received from the XBee. */
+	public static final int RECEIVED = 0;
+	/** Direction byte for a frame sent to the XBee. */
+	public static final int SENT = 1;
+
+	/**
+	 * Constructs a new FrameRecorder writing to a file.
+	 *
+	 * @param inFile the capture file (overwritten if it exists)
+	 * @throws IOException if the file can't be opened
+	 */
+	public FrameRecorder(File inFile)
+		throws IOException {
+		this(new FileOutputStream(inFile));
+	}
+
+	/**
+	 * Constructs a new FrameRecorder writing to a stream.  The stream is closed
+	 * when this recorder is.
+	 *
+	 * @param inStream stream to write the capture to
+	 * @throws IOException if the header can't be written
+	 */
+	public FrameRecorder(OutputStream inStream)
+		throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(inStream, 64 * 1024));
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeLong(System.currentTimeMillis());
+		lastNanos = System.nanoTime();
+	}
+
+	/**
+	 * Records a frame received from the XBee.
+	 *
+	 * @param response the response xbee-api parsed
+	 */
+	@Override
+	public void processResponse(XBeeResponse response) {
+		recordFrame(RECEIVED, response.getRawPacketBytes(), System.nanoTime());
+	}
+
+	/**
+	 * Records a frame received from the XBee at a given time.
+	 *
+	 * @param inResponse the response xbee-api parsed
+	 * @param inNanos System.nanoTime() when it was received
+	 */
+	@Override
+	public void processResponse(XBeeResponse inResponse, long inNanos) {
+		recordFrame(RECEIVED, inResponse.getRawPacketBytes(), inNanos);
+	}
+
+	/**
+	 * Records a frame about to be sent to the XBee.
+	 *
+	 * @param inRequest the request being sent
+	 */
+	public void recordSent(XBeeRequest inRequest) {
+		recordFrame(SENT, inRequest.getXBeePacket().getByteArray(), System.nanoTime());
+	}
+
+	/**
+	 * Records a frame sent or received now.
+	 *
+	 * @param inDirection RECEIVED or SENT
+	 * @param inPacket raw packet bytes, one byte per int
+	 */
+	public void recordFrame(int inDirection, int[] inPacket) {
+		recordFrame(inDirection, inPacket, System.nanoTime());
+	}
+
+	/**
+	 * Records a frame.  Frames are silently dropped once this recorder is closed or
+	 * has failed, since a broken capture shouldn't take the radio down with it.
+	 *
+	 * <p>Frames are stored in the order they are recorded in.  One recorded with
+	 * an earlier time than the frame before it (a received frame that waited in
+	 * the dispatcher while a send was recorded) is stored as coming at the same
+	 * time as that frame.
+	 *
+	 * @param inDirection RECEIVED or SENT
+	 * @param inPacket raw packet bytes, one byte per int
+	 * @param inNanos System.nanoTime() when the frame was sent or received
+	 */
+	public synchronized void recordFrame(int inDirection, int[] inPacket, long inNanos) {
+		if (inPacket == null || out == null) {
+			return;
+		}
+		long now = Math.max(inNanos - lastNanos, 0) + lastNanos;
+		try {
+			out.writeByte(inDirection);
+			writeVarLong(now - lastNanos);
+			writeVarLong(inPacket.length);
+			for (int b : inPacket) {
+				out.writeByte(b);
+			}
+			lastNanos = now;
+			frameCount++;
+		} catch (IOException e) {
+			// TODO: Log error.
+			e.printStackTrace();
+			closeQuietly();
+		}
+	}
+
+	/**
+	 * Gets the number of frames recorded so far.
+	 */
+	public synchronized long getFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * Flushes buffered frames to the underlying stream.
+	 *
+	 * @throws IOException if the write fails
+	 */
+	public synchronized void flush()
+		throws IOException {
+		if (out != null) {
+			out.flush();
+		}
+	}
+
+	/**
+	 * Flushes and closes the capture.
+	 *
+	 * @throws IOException if the write fails
+	 */
+	public synchronized void close()
+		throws IOException {
+		if (out != null) {
+			try {
+				out.close();
+			} finally {
+				out = null;
+			}
+		}
+	}
+
+	private void closeQuietly() {
+		try {
+			close();
+		} catch (IOException e) {
+			// already failing
+		}
+	}
+
+	// Unsigned LEB128, so typical inter-frame gaps take 3-4 bytes instead of 8
+	private void writeVarLong(long inValue)
+		throws IOException {
+		while ((inValue & ~0x7fL) != 0) {
+			out.writeByte((int) ((inValue & 0x7f) | 0x80));
+			inValue >>>= 7;
+		}
+		out.writeByte((int) inValue);
+	}
+
+	private DataOutputStream out;
+	private long lastNanos;
+	private long frameCount;
+}
@@ -0,0 +1,198 @@
+package xbeerelay;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.locks.LockSupport;
+
+import com.rapplogic.xbee.api.ApiId;
+import com.rapplogic.xbee.api.PacketListener;
+import com.rapplogic.xbee.api.PacketParser;
+import com.rapplogic.xbee.api.XBeeResponse;
+
+/**
+ * Plays back a capture written by FrameRecorder, feeding the received frames
+ * to PacketListeners as if they had just come off the radio.  Playback can run
+ * at the captured pace, N times faster, or as fast as the listeners can keep up.
+ *
+ * <p>Frames are re-parsed with xbee-api's own PacketParser, so replaying also
+ * exercises (and lets you benchmark) the decoding.  Sent frames are skipped, but
+ * still count towards the timing.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class FrameReplayer {
+
+	/** Pass as the speed to replay without any pacing. */
+	public static final double MAX_SPEED = 0.0;
+	
+	private static final int START_DELIMITER = 0x7e;
+
+	/**
+	 * Opens a capture file for replay.
+	 *
+	 * @param inFile capture file written by FrameRecorder
+	 * @throws IOException if the file can't be read or isn't a capture
+	 */
+	public FrameReplayer(File inFile)
+		throws IOException {
+		this(new FileInputStream(inFile));
+	}
+
+	/**
+	 * Opens a capture stream for replay.  The stream is closed when replay finishes.
+	 *
+	 * @param inStream capture written by FrameRecorder
+	 * @throws IOException if the stream can't be read or isn't a capture
+	 */
+	public FrameReplayer(InputStream inStream)
+		throws IOException {
+		in = new DataInputStream(new BufferedInputStream(inStream, 64 * 1024));
+		if (in.readInt() != FrameRecorder.MAGIC) {
+			in.close();
+			throw new IOException("Not an Xbee frame capture");
+		}
+		int version = in.readShort();
+		if (version != FrameRecorder.VERSION) {
+			in.close();
+			throw new IOException("Unsupported capture version " + version);
+		}
+		startMillis = in.readLong();
+	}
+
+	/**
+	 * Gets the wall-clock time the capture was started.
+	 *
+	 * @return milliseconds since the epoch
+	 */
+	public long getCaptureStartMillis() {
+		return startMillis;
+	}
+
+	/**
+	 * Replays the rest of the capture into the given listeners, on the calling thread.
+	 *
+	 * @param inSpeed playback speed: 1.0 for the captured pace, N for N times
+	 *   faster, MAX_SPEED for no pacing at all
+	 * @param inListeners listeners to receive each received frame
+	 * @return the number of received frames delivered
+	 * @throws IOException if the capture can't be read
+	 */
+	public long replay(double inSpeed, PacketListener... inListeners)
+		throws IOException {
+		long delivered = 0;
+		long captureNanos = 0;
+		long replayStart = System.nanoTime();
+		int[] packet = new int[128];
+		try {
+			while (true) {
+				int direction = in.read();
+				if (direction < 0) {
+					break;
+				}
+				captureNanos += readVarLong();
+				int length = (int) readVarLong();
+				if (packet.length < length) {
+					packet = new int[length];
+				}
+				for (int i = 0; i < length; i++) {
+					packet[i] = in.readUnsignedByte();
+				}
+				if (direction != FrameRecorder.RECEIVED) {
+					continue;
+				}
+
+				if (inSpeed > 0) {
+					long due = replayStart + (long) (captureNanos / inSpeed);
+					long wait;
+					while ((wait = due - System.nanoTime()) > 0) {
+						LockSupport.parkNanos(wait);
+					}
+				}
+
+				XBeeResponse response = parse(packet, length);
+				for (PacketListener listener : inListeners) {
+					listener.processResponse(response);
+				}
+				delivered++;
+			}
+		} finally {
+			in.close();
+		}
+		return delivered;
+	}
+
+	/**
+	 * Parses raw packet bytes (as seen on the serial line) into a response.
+	 *
+	 * @param inPacket raw packet bytes, one byte per int
+	 * @param inLength number of bytes in inPacket to use
+	 * @return the parsed response
+	 */
+	public static XBeeResponse parse(int[] inPacket, int inLength) {
+		byte[] bytes = new byte[inLength];
+		for (int i = 0; i < inLength; i++) {
+			bytes[i] = (byte) inPacket[i];
+		}
+		// The parser expects the start delimiter to have been consumed already
+		int offset = (inLength > 0 && inPacket[0] == START_DELIMITER) ? 1 : 0;
+		ByteArrayInputStream stream = new ByteArrayInputStream(bytes, offset, inLength - offset);
+		return new PacketParser(stream).parsePacket();
+	}
+
+	private long readVarLong()
+		throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException("Truncated capture record");
+			}
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Corrupt capture record");
+	}
+
+	/**
+	 * Replays a capture as fast as possible (or at the given speed) and prints
+	 * how long decoding took.
+	 *
+	 * @param args capture file, optionally followed by a speed
+	 * @throws IOException if the capture can't be read
+	 */
+	public static void main(String[] args)
+		throws IOException {
+		if (args.length < 1) {
+			System.out.println("usage: FrameReplayer <capture file> [speed]");
+			return;
+		}
+		double speed = args.length > 1 ? Double.parseDouble(args[1]) : MAX_SPEED;
+		final long[] ioSamples = new long[1];
+		FrameReplayer replayer = new FrameReplayer(new File(args[0]));
+		long start = System.nanoTime();
+		long frames = replayer.replay(speed, new PacketListener() {
+
+			@Override
+			public void processResponse(XBeeResponse response) {
+				if (response.getApiId() == ApiId.ZNET_IO_SAMPLE_RESPONSE) {
+					ioSamples[0]++;
+				}
+			}
+		});
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%d frames (%d i/o samples) in %.3f s, %.0f frames/s",
+				frames, ioSamples[0], seconds, frames / seconds));
+	}
+
+	private final DataInputStream in;
+	private final long startMillis;
+}
@@ -0,0 +1,328 @@
+package xbeerelay;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compresses a run of (time, value) points, the way Facebook's Gorilla
+ * time-series store does: times as deltas of deltas, values as the XOR with
+ * the value before.
+ *
+ * <p>Readings arrive at a steady rate and mostly repeat or change a little, so:
+ * <ul>
+ * <li>a time is stored as how much the gap since the last point differs from the
+ * gap before it; for a steady rate that's 0 and takes one bit, and jitter of up
+ * to 63 ms takes 9 bits;</li>
+ * <li>a value is stored as its XOR with the last value; a repeat is 0 and takes
+ * one bit, and otherwise only the bits between the XOR's leading and trailing
+ * zeros are kept (reusing the last point's window when they fit in it).</li>
+ * </ul>
+ * The first point is stored whole, in 128 bits.  A relay series (1s and 0s at
+ * irregular times) or a power reading worked out from a 10-bit ADC compresses
+ * well; a series of arbitrary doubles compresses far less.
+ *
+ * <p>Points are appended to a Writer, which keeps the compressed bytes in one
+ * array sized for the worst case, and read back with a Reader, which decodes one
+ * point at a time straight out of a ByteBuffer.  Neither allocates once made.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public final class GorillaChunk {
+
+	// Worst case per point after the first: '1111' and a 64-bit delta of deltas,
+	// then '11', 5 bits of leading zeros, 6 of length and 64 meaningful bits
+	private static final int MAX_BITS_PER_POINT = 4 + 64 + 2 + 5 + 6 + 64;
+
+	private GorillaChunk() {
+	}
+
+	/**
+	 * Gets the most bytes a chunk of points can take.
+	 *
+	 * @param inPoints number of points
+	 * @return bytes needed in the worst case
+	 */
+	public static int maxBytes(int inPoints) {
+		if (inPoints <= 0) {
+			return 0;
+		}
+		long bits = 128 + (long) (inPoints - 1) * MAX_BITS_PER_POINT;
+		return (int) ((bits + 7) / 8);
+	}
+
+	/**
+	 * Compresses points into a chunk.  Points must be appended in time order.
+	 */
+	public static final class Writer {
+
+		/**
+		 * Constructs a new, empty Writer.
+		 *
+		 * @param inMaxPoints the most points the chunk will hold
+		 */
+		public Writer(int inMaxPoints) {
+			maxPoints = inMaxPoints;
+			bytes = new byte[maxBytes(inMaxPoints)];
+			view = ByteBuffer.wrap(bytes);
+		}
+
+		/**
+		 * Empties the chunk, to start a new one.
+		 */
+		public void reset() {
+			Arrays.fill(bytes, 0, getByteCount(), (byte) 0);
+			bitPosition = 0;
+			count = 0;
+		}
+
+		/**
+		 * Appends a point.
+		 *
+		 * @param inTime time of the point; not before the last point's
+		 * @param inValue value of the point
+		 */
+		public void append(long inTime, double inValue) {
+			if (count == maxPoints) {
+				throw new IllegalStateException("Chunk already holds " + maxPoints + " points");
+			}
+			long valueBits = Double.doubleToRawLongBits(inValue);
+			if (count == 0) {
+				writeBits(inTime, 64);
+				writeBits(valueBits, 64);
+				lastDelta = 0;
+				leading = -1;
+			} else {
+				long delta = inTime - lastTime;
+				writeTime(delta - lastDelta);
+				lastDelta = delta;
+				writeValue(valueBits ^ lastValueBits);
+			}
+			lastTime = inTime;
+			lastValueBits = valueBits;
+			count++;
+		}
+
+		/**
+		 * Gets the number of points in the chunk.
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		 * Gets the time of the last point appended.
+		 */
+		public long getLastTime() {
+			return lastTime;
+		}
+
+		/**
+		 * Gets the number of bytes the chunk takes so far.
+		 */
+		public int getByteCount() {
+			return (bitPosition + 7) >>> 3;
+		}
+
+		/**
+		 * Copies the chunk's bytes into a buffer, at its position.
+		 *
+		 * @param inBuffer buffer with at least getByteCount() bytes remaining
+		 */
+		public void writeTo(ByteBuffer inBuffer) {
+			inBuffer.put(bytes, 0, getByteCount());
+		}
+
+		/**
+		 * Gets a Reader over the chunk as it is now.  Appending more points
+		 * doesn't change what the Reader returns, but reset() does.
+		 *
+		 * @param inReader reader to reuse
+		 * @return inReader, positioned before the first point
+		 */
+		public Reader read(Reader inReader) {
+			return inReader.reset(view, 0, count);
+		}
+
+		private void writeTime(long inDeltaOfDelta) {
+			if (inDeltaOfDelta == 0) {
+				writeBits(0, 1);
+			} else if (inDeltaOfDelta >= -63 && inDeltaOfDelta <= 64) {
+				writeBits(0x2, 2);
+				writeBits(inDeltaOfDelta + 63, 7);
+			} else if (inDeltaOfDelta >= -255 && inDeltaOfDelta <= 256) {
+				writeBits(0x6, 3);
+				writeBits(inDeltaOfDelta + 255, 9);
+			} else if (inDeltaOfDelta >= -2047 && inDeltaOfDelta <= 2048) {
+				writeBits(0xe, 4);
+				writeBits(inDeltaOfDelta + 2047, 12);
+			} else {
+				writeBits(0xf, 4);
+				writeBits(inDeltaOfDelta, 64);
+			}
+		}
+
+		private void writeValue(long inXor) {
+			if (inXor == 0) {
+				writeBits(0, 1);
+				return;
+			}
+			int lead = Math.min(Long.numberOfLeadingZeros(inXor), 31);
+			int trail = Long.numberOfTrailingZeros(inXor);
+			if (leading >= 0 && lead >= leading && trail >= trailing) {
+				// Fits in the last window
+				writeBits(0x2, 2);
+				writeBits(inXor >>> trailing, 64 - leading - trailing);
+			} else {
+				int meaningful = 64 - lead - trail;
+				writeBits(0x3, 2);
+				writeBits(lead, 5);
+				writeBits(meaningful & 0x3f, 6); // 64 is written as 0
+				writeBits(inXor >>> trail, meaningful);
+				leading = lead;
+				trailing = trail;
+			}
+		}
+
+		// Writes the low inCount bits of inBits, most significant first
+		private void writeBits(long inBits, int inCount) {
+			while (inCount > 0) {
+				int free = 8 - (bitPosition & 7);
+				int n = Math.min(free, inCount);
+				int bits = (int) (inBits >>> (inCount - n)) & ((1 << n) - 1);
+				bytes[bitPosition >>> 3] |= bits << (free - n);
+				bitPosition += n;
+				inCount -= n;
+			}
+		}
+
+		private final int maxPoints;
+		private final byte[] bytes;
+		private final ByteBuffer view;
+		private int bitPosition;
+		private int count;
+		private long lastTime;
+		private long lastDelta;
+		private long lastValueBits;
+		// The last value window written, -1 before there is one
+		private int leading = -1;
+		private int trailing;
+	}
+
+	/**
+	 * Decodes a chunk one point at a time.  Reuse one for many chunks.
+	 */
+	public static final class Reader {
+
+		/**
+		 * Positions this reader before the first point of a chunk.
+		 *
+		 * @param inBuffer buffer holding the chunk; read with absolute gets, so
+		 *   its position isn't changed
+		 * @param inOffset index of the chunk's first byte in the buffer
+		 * @param inCount number of points in the chunk
+		 * @return this reader
+		 */
+		public Reader reset(ByteBuffer inBuffer, int inOffset, int inCount) {
+			buffer = inBuffer;
+			offset = inOffset;
+			count = inCount;
+			index = 0;
+			bitPosition = 0;
+			return this;
+		}
+
+		/**
+		 * Moves to the next point.
+		 *
+		 * @return false if there are no more
+		 */
+		public boolean next() {
+			if (index == count) {
+				return false;
+			}
+			if (index == 0) {
+				time = readBits(64);
+				valueBits = readBits(64);
+				delta = 0;
+				leading = 0;
+				trailing = 0;
+			} else {
+				delta += readTime();
+				time += delta;
+				readValue();
+			}
+			index++;
+			return true;
+		}
+
+		/**
+		 * Gets the time of the current point.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Gets the value of the current point.
+		 */
+		public double getValue() {
+			return Double.longBitsToDouble(valueBits);
+		}
+
+		private long readTime() {
+			if (readBits(1) == 0) {
+				return 0;
+			}
+			if (readBits(1) == 0) {
+				return readBits(7) - 63;
+			}
+			if (readBits(1) == 0) {
+				return readBits(9) - 255;
+			}
+			if (readBits(1) == 0) {
+				return readBits(12) - 2047;
+			}
+			return readBits(64);
+		}
+
+		private void readValue() {
+			if (readBits(1) == 0) {
+				return; // same as the last value
+			}
+			if (readBits(1) != 0) {
+				leading = (int) readBits(5);
+				int meaningful = (int) readBits(6);
+				if (meaningful == 0) {
+					meaningful = 64;
+				}
+				trailing = 64 - leading - meaningful;
+			}
+			valueBits ^= readBits(64 - leading - trailing) << trailing;
+		}
+
+		private long readBits(int inCount) {
+			long bits = 0;
+			while (inCount > 0) {
+				int available = 8 - (bitPosition & 7);
+				int n = Math.min(available, inCount);
+				int b = buffer.get(offset + (bitPosition >>> 3)) & 0xff;
+				bits = (bits << n) | ((b >>> (available - n)) & ((1 << n) - 1));
+				bitPosition += n;
+				inCount -= n;
+			}
+			return bits;
+		}
+
+		private ByteBuffer buffer;
+		private int offset;
+		private int count;
+		private int index;
+		private int bitPosition;
+		private long time;
+		private long delta;
+		private long valueBits;
+		private int leading;
+		private int trailing;
+	}
+}
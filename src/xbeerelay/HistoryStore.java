@@ -0,0 +1,716 @@
+package xbeerelay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import xbeerelay.Relay.RelayStatus;
+
+/**
+ * Keeps the history of the house's power and every relay's state on disk, and
+ * answers range queries over it without reading more than it has to.
+ *
+ * <p>Each series (the power total, and one per relay) is a file of blocks of up
+ * to BLOCK_POINTS (time, value) points, in time order.  Every block starts with
+ * its time range, the min, max, sum and count of its values and the length of
+ * its points, and those headers are kept in memory as a sparse index.  A range
+ * query binary searches the index for the first block that can match and reads
+ * blocks one at a time until it passes the end of the range, and a rollup only
+ * reads the blocks at the ends of the range, using the headers for the ones in
+ * between.
+ *
+ * <p>A block's points are compressed as a GorillaChunk (times as deltas of
+ * deltas, values XORed with the value before), which takes steady readings and
+ * relay states from 16 bytes a point to a few bits, so blocks vary in length.
+ * Queries decode a block a point at a time as they stream through it.
+ *
+ * <p>Relay series hold 1 when the relay turned ON and 0 when it turned OFF,
+ * recorded by listening for transitions.  Points are appended in time order;
+ * a point older than the newest one in its series is recorded at the newest time.
+ * The block being filled is kept compressed in memory and only written by
+ * flush() and close(), so a crash can lose up to a block per series; a block
+ * torn by a crash is dropped when the series is next opened.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class HistoryStore implements RelayTransitionListener {
+
+	/** Name of the series holding the house's total power. */
+	public static final String POWER_SERIES = "power";
+	/** Points in a block. */
+	public static final int BLOCK_POINTS = 256;
+
+	static final int MAGIC = 0x58424853; // "XBHS"
+	static final int VERSION = 2;
+	static final int FILE_HEADER_BYTES = 12;
+	// first time, last time, count, min, max, sum, length of the compressed points
+	static final int BLOCK_HEADER_BYTES = 8 + 8 + 4 + 8 + 8 + 8 + 4;
+	static final int MAX_CHUNK_BYTES = GorillaChunk.maxBytes(BLOCK_POINTS);
+	private static final String SUFFIX = ".hist";
+
+	/**
+	 * Opens a store in a directory, creating it if needed.  Series already in
+	 * the directory are opened the first time they're used.
+	 *
+	 * @param inDirectory directory holding one file per series
+	 * @throws IOException if the directory can't be created
+	 */
+	public HistoryStore(File inDirectory)
+		throws IOException {
+		if (!inDirectory.isDirectory() && !inDirectory.mkdirs()) {
+			throw new IOException("Can't create history directory " + inDirectory);
+		}
+		directory = inDirectory;
+	}
+
+	/**
+	 * Gets the name of the series holding a relay's state.
+	 *
+	 * @param inRelay the relay
+	 * @return the series name
+	 */
+	public static String relaySeries(Relay inRelay) {
+		return "relay-" + NodeAddress.toString(inRelay.getNode()) + "-" + inRelay.getNumber();
+	}
+
+	/**
+	 * Appends a point to a series, creating the series if it doesn't exist.
+	 *
+	 * @param inSeries series name
+	 * @param inTimeMillis time of the point, as System.currentTimeMillis()
+	 * @param inValue value of the point
+	 * @throws IOException if a full block can't be written
+	 */
+	public synchronized void append(String inSeries, long inTimeMillis, double inValue)
+		throws IOException {
+		series(inSeries).append(inTimeMillis, inValue);
+	}
+
+	/**
+	 * Appends a reading of the house's total power to the power series.
+	 *
+	 * @param inTimeMillis time of the reading, as System.currentTimeMillis()
+	 * @param inMilliwatts total power
+	 * @throws IOException if a full block can't be written
+	 */
+	public void addPowerReading(long inTimeMillis, double inMilliwatts)
+		throws IOException {
+		append(POWER_SERIES, inTimeMillis, inMilliwatts);
+	}
+
+	/* (non-Javadoc)
+	 * @see xbeerelay.RelayTransitionListener#relayChanged(xbeerelay.Relay, xbeerelay.Relay.RelayStatus, xbeerelay.Relay.RelayStatus, long)
+	 */
+	@Override
+	public void relayChanged(Relay inRelay, RelayStatus inOldStatus, RelayStatus inNewStatus, long inNanos) {
+		if (inNewStatus == RelayStatus.UNITIALIZED) {
+			return;
+		}
+		try {
+			append(relaySeries(inRelay), System.currentTimeMillis(), inNewStatus == RelayStatus.ON ? 1 : 0);
+		} catch (IOException e) {
+			// TODO: Log error.  Losing history mustn't stop samples being processed.
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Gets the names of every series in the store.
+	 */
+	public synchronized SortedSet<String> getSeriesNames() {
+		SortedSet<String> names = new TreeSet<String>(open.keySet());
+		String[] files = directory.list();
+		if (files != null) {
+			for (String file : files) {
+				if (file.endsWith(SUFFIX)) {
+					names.add(file.substring(0, file.length() - SUFFIX.length()));
+				}
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Streams the points of a series in a time range.
+	 *
+	 * @param inSeries series name
+	 * @param inFromMillis start of the range, inclusive
+	 * @param inToMillis end of the range, inclusive
+	 * @return cursor over the points, in time order
+	 * @throws IOException if the series can't be opened
+	 */
+	public synchronized Cursor query(String inSeries, long inFromMillis, long inToMillis)
+		throws IOException {
+		return new Cursor(series(inSeries), inFromMillis, inToMillis);
+	}
+
+	/**
+	 * Summarizes the points of a series in a time range.
+	 *
+	 * @param inSeries series name
+	 * @param inFromMillis start of the range, inclusive
+	 * @param inToMillis end of the range, inclusive
+	 * @return min, max, sum and count of the points in the range
+	 * @throws IOException if the series can't be read
+	 */
+	public synchronized Rollup rollup(String inSeries, long inFromMillis, long inToMillis)
+		throws IOException {
+		Series s = series(inSeries);
+		Rollup rollup = new Rollup(inFromMillis, inToMillis);
+		GorillaChunk.Reader points = null;
+		ByteBuffer buffer = null;
+		for (int b = s.firstBlockEndingAfter(inFromMillis); b < s.blocks && s.firstTimes[b] <= inToMillis; b++) {
+			if (s.firstTimes[b] >= inFromMillis && s.lastTimes[b] <= inToMillis) {
+				// Whole block is in range, so its header says all we need
+				rollup.add(s.counts[b], s.mins[b], s.maxs[b], s.sums[b]);
+				continue;
+			}
+			if (points == null) {
+				points = new GorillaChunk.Reader();
+				buffer = ByteBuffer.allocate(MAX_CHUNK_BYTES);
+			}
+			s.readBlock(b, buffer, points);
+			while (points.next()) {
+				long time = points.getTime();
+				if (time >= inFromMillis && time <= inToMillis) {
+					rollup.add(1, points.getValue(), points.getValue(), points.getValue());
+				}
+			}
+		}
+		return rollup;
+	}
+
+	/**
+	 * Summarizes the points of a series in consecutive buckets of a time range,
+	 * e.g. one per minute for a chart.
+	 *
+	 * @param inSeries series name
+	 * @param inFromMillis start of the range, inclusive
+	 * @param inToMillis end of the range, inclusive
+	 * @param inBucketMillis length of each bucket
+	 * @return one rollup per bucket, empty buckets included
+	 * @throws IOException if the series can't be read
+	 */
+	public List<Rollup> rollups(String inSeries, long inFromMillis, long inToMillis, long inBucketMillis)
+		throws IOException {
+		if (inBucketMillis <= 0) {
+			throw new IllegalArgumentException("Bucket length must be positive");
+		}
+		List<Rollup> rollups = new ArrayList<Rollup>();
+		for (long start = inFromMillis; start <= inToMillis; start += inBucketMillis) {
+			rollups.add(rollup(inSeries, start, Math.min(start + inBucketMillis - 1, inToMillis)));
+		}
+		return rollups;
+	}
+
+	/**
+	 * Gets the value of a series at a time, i.e. the value of the last point at or before it.
+	 *
+	 * @param inSeries series name
+	 * @param inTimeMillis the time
+	 * @return the value, or NaN if the series has no point that early
+	 * @throws IOException if the series can't be read
+	 */
+	public synchronized double valueAt(String inSeries, long inTimeMillis)
+		throws IOException {
+		Series s = series(inSeries);
+		int b = s.lastBlockStartingBefore(inTimeMillis);
+		if (b < 0) {
+			return Double.NaN;
+		}
+		GorillaChunk.Reader points = s.readBlock(b, ByteBuffer.allocate(MAX_CHUNK_BYTES), new GorillaChunk.Reader());
+		double value = Double.NaN;
+		while (points.next() && points.getTime() <= inTimeMillis) {
+			value = points.getValue();
+		}
+		return value;
+	}
+
+	/**
+	 * Streams the intervals a relay was ON within a time range, e.g. to answer
+	 * "when was relay 4 on yesterday".  Intervals are clipped to the range.
+	 *
+	 * @param inRelay the relay
+	 * @param inFromMillis start of the range, inclusive
+	 * @param inToMillis end of the range, inclusive
+	 * @return cursor over the ON intervals, in time order
+	 * @throws IOException if the relay's series can't be read
+	 */
+	public IntervalCursor onIntervals(Relay inRelay, long inFromMillis, long inToMillis)
+		throws IOException {
+		String series = relaySeries(inRelay);
+		return new IntervalCursor(valueAt(series, inFromMillis) > 0,
+				query(series, inFromMillis, inToMillis), inFromMillis, inToMillis);
+	}
+
+	/**
+	 * Writes the blocks being filled, so everything appended so far is on disk.
+	 *
+	 * @throws IOException if a block can't be written
+	 */
+	public synchronized void flush()
+		throws IOException {
+		for (Series s : open.values()) {
+			s.flush();
+		}
+	}
+
+	/**
+	 * Flushes and closes every series.
+	 *
+	 * @throws IOException if a block can't be written
+	 */
+	public synchronized void close()
+		throws IOException {
+		IOException failure = null;
+		for (Series s : open.values()) {
+			try {
+				s.flush();
+			} catch (IOException e) {
+				failure = e;
+			}
+			s.file.close();
+		}
+		open.clear();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private Series series(String inName)
+		throws IOException {
+		Series s = open.get(inName);
+		if (s == null) {
+			s = new Series(new File(directory, fileName(inName)));
+			open.put(inName, s);
+		}
+		return s;
+	}
+
+	private static String fileName(String inSeries) {
+		return inSeries.replaceAll("[^A-Za-z0-9_-]", "_") + SUFFIX;
+	}
+
+	/**
+	 * Summary of the points in a time range.
+	 */
+	public static final class Rollup {
+
+		Rollup(long inFromMillis, long inToMillis) {
+			from = inFromMillis;
+			to = inToMillis;
+		}
+
+		void add(int inCount, double inMin, double inMax, double inSum) {
+			if (inCount == 0) {
+				return;
+			}
+			min = count == 0 ? inMin : Math.min(min, inMin);
+			max = count == 0 ? inMax : Math.max(max, inMax);
+			sum += inSum;
+			count += inCount;
+		}
+
+		/** Gets the start of the range. */
+		public long getFromMillis() {
+			return from;
+		}
+
+		/** Gets the end of the range. */
+		public long getToMillis() {
+			return to;
+		}
+
+		/** Gets the number of points in the range. */
+		public long getCount() {
+			return count;
+		}
+
+		/** Gets the smallest value in the range, NaN if there are no points. */
+		public double getMin() {
+			return count == 0 ? Double.NaN : min;
+		}
+
+		/** Gets the largest value in the range, NaN if there are no points. */
+		public double getMax() {
+			return count == 0 ? Double.NaN : max;
+		}
+
+		/** Gets the sum of the values in the range. */
+		public double getSum() {
+			return sum;
+		}
+
+		/** Gets the mean of the values in the range, NaN if there are no points. */
+		public double getMean() {
+			return count == 0 ? Double.NaN : sum / count;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d..%d n=%d min=%.1f max=%.1f mean=%.1f",
+					from, to, count, getMin(), getMax(), getMean());
+		}
+
+		private final long from;
+		private final long to;
+		private long count;
+		private double min;
+		private double max;
+		private double sum;
+	}
+
+	/**
+	 * Streams points out of a series a block at a time.  Only one block is held
+	 * in memory, compressed, and its points are decoded one by one as the cursor
+	 * moves, so any range can be walked.
+	 */
+	public final class Cursor {
+
+		Cursor(Series inSeries, long inFromMillis, long inToMillis) {
+			series = inSeries;
+			from = inFromMillis;
+			to = inToMillis;
+			block = inSeries.firstBlockEndingAfter(inFromMillis);
+		}
+
+		/**
+		 * Moves to the next point in the range.
+		 *
+		 * @return false if there are no more
+		 * @throws IOException if the next block can't be read
+		 */
+		public boolean next()
+			throws IOException {
+			while (true) {
+				if (points.next()) {
+					time = points.getTime();
+					value = points.getValue();
+					if (time > to) {
+						points.reset(buffer, 0, 0);
+						block = Integer.MAX_VALUE;
+						return false;
+					}
+					if (time >= from) {
+						return true;
+					}
+					continue;
+				}
+				synchronized (HistoryStore.this) {
+					if (block >= series.blocks || series.firstTimes[block] > to) {
+						return false;
+					}
+					series.readBlock(block++, buffer, points);
+				}
+			}
+		}
+
+		/** Gets the time of the current point. */
+		public long getTimeMillis() {
+			return time;
+		}
+
+		/** Gets the value of the current point. */
+		public double getValue() {
+			return value;
+		}
+
+		private final Series series;
+		private final long from;
+		private final long to;
+		private int block;
+		private final ByteBuffer buffer = ByteBuffer.allocate(MAX_CHUNK_BYTES);
+		private final GorillaChunk.Reader points = new GorillaChunk.Reader().reset(buffer, 0, 0);
+		private long time;
+		private double value;
+	}
+
+	/**
+	 * Streams the intervals a relay series was ON.
+	 */
+	public static final class IntervalCursor {
+
+		IntervalCursor(boolean inOnAtStart, Cursor inPoints, long inFromMillis, long inToMillis) {
+			on = inOnAtStart;
+			onSince = inFromMillis;
+			points = inPoints;
+			to = inToMillis;
+		}
+
+		/**
+		 * Moves to the next ON interval.
+		 *
+		 * @return false if there are no more
+		 * @throws IOException if the relay's series can't be read
+		 */
+		public boolean next()
+			throws IOException {
+			while (!done) {
+				if (!points.next()) {
+					done = true;
+					if (on) {
+						start = onSince;
+						end = to;
+						return true;
+					}
+					return false;
+				}
+				boolean nowOn = points.getValue() > 0;
+				if (nowOn && !on) {
+					onSince = points.getTimeMillis();
+				} else if (!nowOn && on) {
+					start = onSince;
+					end = points.getTimeMillis();
+					on = false;
+					return true;
+				}
+				on = nowOn;
+			}
+			return false;
+		}
+
+		/** Gets when the current interval started (or the start of the range). */
+		public long getStartMillis() {
+			return start;
+		}
+
+		/** Gets when the current interval ended (or the end of the range). */
+		public long getEndMillis() {
+			return end;
+		}
+
+		private final Cursor points;
+		private final long to;
+		private boolean on;
+		private boolean done;
+		private long onSince;
+		private long start;
+		private long end;
+	}
+
+	/**
+	 * One series: its file, the in-memory index of its block headers, and the
+	 * block being filled.
+	 */
+	private static final class Series {
+
+		Series(File inFile)
+			throws IOException {
+			file = new RandomAccessFile(inFile, "rw");
+			channel = file.getChannel();
+			if (file.length() == 0) {
+				ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+				header.putInt(MAGIC).putInt(VERSION).putInt(BLOCK_POINTS).flip();
+				channel.write(header, 0);
+			} else {
+				loadIndex(inFile);
+			}
+		}
+
+		// Reads every block header, and the points of the last block so it can be added to
+		private void loadIndex(File inFile)
+			throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+			channel.read(header, 0);
+			header.flip();
+			if (header.remaining() < FILE_HEADER_BYTES || header.getInt() != MAGIC
+					|| header.getInt() != VERSION || header.getInt() != BLOCK_POINTS) {
+				file.close();
+				throw new IOException(inFile + " is not a history series this version can read");
+			}
+			// Blocks vary in length, so walk them from the start
+			long length = file.length();
+			long position = FILE_HEADER_BYTES;
+			ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+			while (position + BLOCK_HEADER_BYTES <= length) {
+				blockHeader.clear();
+				while (blockHeader.hasRemaining()
+						&& channel.read(blockHeader, position + blockHeader.position()) > 0) {
+					// keep reading
+				}
+				blockHeader.flip();
+				long first = blockHeader.getLong();
+				long last = blockHeader.getLong();
+				int count = blockHeader.getInt();
+				double min = blockHeader.getDouble();
+				double max = blockHeader.getDouble();
+				double sum = blockHeader.getDouble();
+				int chunkBytes = blockHeader.getInt();
+				if (count < 1 || count > BLOCK_POINTS || chunkBytes < 0 || chunkBytes > MAX_CHUNK_BYTES
+						|| position + BLOCK_HEADER_BYTES + chunkBytes > length) {
+					break; // torn by a crash mid-write
+				}
+				grow();
+				int b = blocks++;
+				firstTimes[b] = first;
+				lastTimes[b] = last;
+				counts[b] = count;
+				mins[b] = min;
+				maxs[b] = max;
+				sums[b] = sum;
+				offsets[b] = position;
+				chunkLengths[b] = chunkBytes;
+				position += BLOCK_HEADER_BYTES + chunkBytes;
+			}
+			if (position < length) {
+				// So a later, shorter block can't leave stale bytes behind it
+				channel.truncate(position);
+			}
+			if (blocks > 0) {
+				// Rebuild the last block's chunk; it comes out the same as on disk
+				int b = blocks - 1;
+				GorillaChunk.Reader points = readChunk(b, ByteBuffer.allocate(MAX_CHUNK_BYTES), new GorillaChunk.Reader());
+				while (points.next()) {
+					tail.append(points.getTime(), points.getValue());
+				}
+			}
+		}
+
+		void append(long inTimeMillis, double inValue)
+			throws IOException {
+			if (blocks > 0) {
+				inTimeMillis = Math.max(inTimeMillis, lastTimes[blocks - 1]);
+			}
+			if (blocks == 0 || counts[blocks - 1] == BLOCK_POINTS) {
+				grow();
+				offsets[blocks] = blocks == 0 ? FILE_HEADER_BYTES
+						: offsets[blocks - 1] + BLOCK_HEADER_BYTES + chunkLengths[blocks - 1];
+				blocks++;
+				tail.reset();
+			}
+			int b = blocks - 1;
+			tail.append(inTimeMillis, inValue);
+			if (tail.getCount() == 1) {
+				firstTimes[b] = inTimeMillis;
+				mins[b] = inValue;
+				maxs[b] = inValue;
+				sums[b] = 0;
+			}
+			lastTimes[b] = inTimeMillis;
+			counts[b] = tail.getCount();
+			chunkLengths[b] = tail.getByteCount();
+			mins[b] = Math.min(mins[b], inValue);
+			maxs[b] = Math.max(maxs[b], inValue);
+			sums[b] += inValue;
+			tailDirty = true;
+			if (tail.getCount() == BLOCK_POINTS) {
+				// Sealed: written once, compressed, and never touched again
+				flush();
+			}
+		}
+
+		void flush()
+			throws IOException {
+			if (!tailDirty) {
+				return;
+			}
+			int b = blocks - 1;
+			writeBuffer.clear();
+			writeBuffer.putLong(firstTimes[b]).putLong(lastTimes[b]).putInt(counts[b])
+				.putDouble(mins[b]).putDouble(maxs[b]).putDouble(sums[b]).putInt(chunkLengths[b]);
+			tail.writeTo(writeBuffer);
+			writeBuffer.flip();
+			while (writeBuffer.hasRemaining()) {
+				channel.write(writeBuffer, offsets[b] + writeBuffer.position());
+			}
+			tailDirty = false;
+		}
+
+		// Loads a block's compressed points into a buffer and readies a reader over them;
+		// the block being filled comes from memory
+		GorillaChunk.Reader readBlock(int inBlock, ByteBuffer inBuffer, GorillaChunk.Reader inReader)
+			throws IOException {
+			if (inBlock == blocks - 1) {
+				inBuffer.clear();
+				tail.writeTo(inBuffer);
+				return inReader.reset(inBuffer, 0, tail.getCount());
+			}
+			return readChunk(inBlock, inBuffer, inReader);
+		}
+
+		private GorillaChunk.Reader readChunk(int inBlock, ByteBuffer inBuffer, GorillaChunk.Reader inReader)
+			throws IOException {
+			inBuffer.clear();
+			inBuffer.limit(chunkLengths[inBlock]);
+			long start = offsets[inBlock] + BLOCK_HEADER_BYTES;
+			while (inBuffer.hasRemaining() && channel.read(inBuffer, start + inBuffer.position()) > 0) {
+				// keep reading
+			}
+			return inReader.reset(inBuffer, 0, counts[inBlock]);
+		}
+
+		// Index of the first block whose last point is at or after a time
+		int firstBlockEndingAfter(long inTimeMillis) {
+			int low = 0;
+			int high = blocks;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (lastTimes[mid] < inTimeMillis) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		// Index of the last block whose first point is at or before a time, -1 if none
+		int lastBlockStartingBefore(long inTimeMillis) {
+			int low = 0;
+			int high = blocks;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (firstTimes[mid] <= inTimeMillis) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low - 1;
+		}
+
+		private void grow() {
+			if (blocks == firstTimes.length) {
+				int size = firstTimes.length * 2;
+				firstTimes = Arrays.copyOf(firstTimes, size);
+				lastTimes = Arrays.copyOf(lastTimes, size);
+				counts = Arrays.copyOf(counts, size);
+				mins = Arrays.copyOf(mins, size);
+				maxs = Arrays.copyOf(maxs, size);
+				sums = Arrays.copyOf(sums, size);
+				offsets = Arrays.copyOf(offsets, size);
+				chunkLengths = Arrays.copyOf(chunkLengths, size);
+			}
+		}
+
+		final RandomAccessFile file;
+		private final FileChannel channel;
+		// Sparse index: one entry per block
+		int blocks;
+		long[] firstTimes = new long[16];
+		long[] lastTimes = new long[16];
+		int[] counts = new int[16];
+		double[] mins = new double[16];
+		double[] maxs = new double[16];
+		double[] sums = new double[16];
+		private long[] offsets = new long[16];
+		private int[] chunkLengths = new int[16];
+		// The last block's points, compressed, while it is being filled
+		private final GorillaChunk.Writer tail = new GorillaChunk.Writer(BLOCK_POINTS);
+		private final ByteBuffer writeBuffer = ByteBuffer.allocate(BLOCK_HEADER_BYTES + MAX_CHUNK_BYTES);
+		private boolean tailDirty;
+	}
+
+	private final File directory;
+	private final Map<String, Series> open = new HashMap<String, Series>();
+}
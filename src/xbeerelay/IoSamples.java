@@ -0,0 +1,115 @@
+package xbeerelay;
+
+import xbeerelay.Relay.RelayStatus;
+import xbeerelay.Relay.XbeeDigitalIOPin;
+
+import com.rapplogic.xbee.api.zigbee.ZNetRxIoSampleResponse;
+
+/**
+ * Decodes the digital part of Xbee IO samples into a bit mask, one bit per
+ * digital IO pin (bit n is pin Dn), so relay status can be checked with a
+ * shift and a mask instead of a method call per pin.  Analog readings come out
+ * as plain ints, with NO_ANALOG for a channel that isn't in the sample.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public final class IoSamples {
+
+	/** Returned by analog() for a channel that isn't in the sample. */
+	public static final int NO_ANALOG = -1;
+
+	private IoSamples() {
+	}
+
+	/**
+	 * Gets the bit in a digital mask for an Xbee pin.
+	 *
+	 * @param inXbPin Xbee digital IO pin
+	 * @return the pin's bit, 0 if inXbPin is null
+	 */
+	public static int bit(XbeeDigitalIOPin inXbPin) {
+		return inXbPin == null ? 0 : PIN_BITS[inXbPin.ordinal()];
+	}
+
+	/**
+	 * Builds the digital mask for an IO sample.
+	 * <p>To do this, it makes use of the methods in ZNetRxIoSampleResponse.
+	 *
+	 * @param inIOResponse IO sample
+	 * @return one bit per pin that is sensed as ON
+	 */
+	public static int digitalMask(ZNetRxIoSampleResponse inIOResponse) {
+		int mask = 0;
+		if (inIOResponse.isD0On()) mask |= 1 << 0;
+		if (inIOResponse.isD1On()) mask |= 1 << 1;
+		if (inIOResponse.isD2On()) mask |= 1 << 2;
+		if (inIOResponse.isD3On()) mask |= 1 << 3;
+		if (inIOResponse.isD4On()) mask |= 1 << 4;
+		if (inIOResponse.isD5On()) mask |= 1 << 5;
+		if (inIOResponse.isD6On()) mask |= 1 << 6;
+		if (inIOResponse.isD7On()) mask |= 1 << 7;
+		if (inIOResponse.isD10On()) mask |= 1 << 10;
+		if (inIOResponse.isD11On()) mask |= 1 << 11;
+		if (inIOResponse.isD12On()) mask |= 1 << 12;
+		return mask;
+	}
+
+	/**
+	 * Gets an analog reading from an IO sample.
+	 *
+	 * @param inIOResponse IO sample
+	 * @param inChannel analog channel, 0 to 3 (AD0 to AD3)
+	 * @return the 10-bit reading, or NO_ANALOG if the sample doesn't have it
+	 */
+	public static int analog(ZNetRxIoSampleResponse inIOResponse, int inChannel) {
+		if (!inIOResponse.containsAnalog()) {
+			return NO_ANALOG;
+		}
+		Integer reading;
+		switch (inChannel) {
+		case 0:
+			reading = inIOResponse.getAnalog0();
+			break;
+		case 1:
+			reading = inIOResponse.getAnalog1();
+			break;
+		case 2:
+			reading = inIOResponse.getAnalog2();
+			break;
+		case 3:
+			reading = inIOResponse.getAnalog3();
+			break;
+		default:
+			return NO_ANALOG;
+		}
+		return reading == null ? NO_ANALOG : reading.intValue();
+	}
+
+	/**
+	 * Checks if a Xbee pin is sensed as ON in a digital mask.
+	 *
+	 * @param inMask digital mask
+	 * @param inXbPin Xbee digital IO pin
+	 * @return true if the pin is on
+	 */
+	public static boolean isPinOn(int inMask, XbeeDigitalIOPin inXbPin) {
+		return (inMask & bit(inXbPin)) != 0;
+	}
+
+	/**
+	 * Gets the status of a relay monitored by a pin.
+	 *
+	 * @param inMask digital mask
+	 * @param inXbPin Xbee digital IO pin monitoring the relay
+	 * @return RelayStatus.ON if pin is on, RelayStatus.OFF if not
+	 */
+	public static RelayStatus relayStatus(int inMask, XbeeDigitalIOPin inXbPin) {
+		return isPinOn(inMask, inXbPin) ? RelayStatus.ON : RelayStatus.OFF;
+	}
+
+	// Indexed by XbeeDigitalIOPin ordinal
+	private static final int[] PIN_BITS = {
+		1 << 0, 1 << 1, 1 << 2, 1 << 3, 1 << 4, 1 << 5, 1 << 6, 1 << 7, 1 << 10, 1 << 11, 1 << 12
+	};
+}
@@ -0,0 +1,131 @@
+package xbeerelay;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free latency histogram.  Recording is a couple of atomic
+ * increments and never allocates, so it can sit on the sample path.
+ *
+ * <p>Buckets are log-linear: each power of two is split into 8 sub-buckets,
+ * so percentiles are accurate to within 12.5%.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class LatencyStats {
+
+	/**
+	 * Records one latency.
+	 *
+	 * @param inNanos latency in nanoseconds (negative values count as 0)
+	 */
+	public void record(long inNanos) {
+		long value = Math.max(inNanos, 0);
+		buckets.incrementAndGet(bucketOf(value));
+		count.incrementAndGet();
+		total.addAndGet(value);
+		long max;
+		while (value > (max = maximum.get()) && !maximum.compareAndSet(max, value)) {
+			// retry
+		}
+	}
+
+	/**
+	 * Gets the number of latencies recorded.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Gets the mean latency.
+	 *
+	 * @return mean in nanoseconds, 0 if nothing has been recorded
+	 */
+	public long getMeanNanos() {
+		long n = count.get();
+		return n == 0 ? 0 : total.get() / n;
+	}
+
+	/**
+	 * Gets the largest latency recorded.
+	 *
+	 * @return maximum in nanoseconds
+	 */
+	public long getMaxNanos() {
+		return maximum.get();
+	}
+
+	/**
+	 * Gets a percentile of the recorded latencies.
+	 *
+	 * @param inPercentile percentile, 0 to 100
+	 * @return upper bound of the bucket holding that percentile, in nanoseconds
+	 */
+	public long getPercentileNanos(double inPercentile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(n * Math.min(Math.max(inPercentile, 0), 100) / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= Math.max(rank, 1)) {
+				return Math.min(upperBoundOf(i), maximum.get());
+			}
+		}
+		return maximum.get();
+	}
+
+	/**
+	 * Clears everything recorded so far.  Not atomic with respect to concurrent records.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, 0);
+		}
+		count.set(0);
+		total.set(0);
+		maximum.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("n=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms",
+				getCount(), getMeanNanos() / 1e6, getPercentileNanos(50) / 1e6,
+				getPercentileNanos(99) / 1e6, getMaxNanos() / 1e6);
+	}
+
+	// Values below 8 get a bucket each; after that, 8 buckets per power of two
+	private static int bucketOf(long inValue) {
+		if (inValue < SUB_BUCKETS) {
+			return (int) inValue;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(inValue); // >= 3
+		int sub = (int) (inValue >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBoundOf(int inBucket) {
+		if (inBucket < SUB_BUCKETS) {
+			return inBucket;
+		}
+		int exponent = inBucket / SUB_BUCKETS + SUB_BITS - 1;
+		if (exponent >= 60) {
+			return Long.MAX_VALUE;
+		}
+		long sub = inBucket % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+	}
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong maximum = new AtomicLong();
+}
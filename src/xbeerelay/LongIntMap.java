@@ -0,0 +1,197 @@
+package xbeerelay;
+
+import java.util.Arrays;
+
+/**
+ * A small open-addressing hash map from primitive long keys to non-negative
+ * int values.  It exists so that hot lookups (relay number to relay, node
+ * address to node index, etc.) don't have to box their keys the way a
+ * HashMap&lt;Integer,...&gt; does.
+ *
+ * <p>Collisions are resolved by linear probing, and removals use backward-shift
+ * deletion so there are never any tombstones.  Lookups and updates never allocate;
+ * only growing the table does.
+ *
+ * <p>This class is not thread-safe.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+final class LongIntMap {
+
+	/** Returned by get/remove when a key isn't in the map. */
+	static final int MISSING = -1;
+
+	/**
+	 * Constructs a new map sized to hold the given number of entries without
+	 * growing.
+	 *
+	 * @param inExpectedSize number of entries expected
+	 */
+	LongIntMap(int inExpectedSize) {
+		int capacity = 8;
+		while (capacity < inExpectedSize * 2) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	/**
+	 * Gets the value associated with a key.
+	 *
+	 * @param inKey key to look up
+	 * @return the value, or MISSING if the key isn't present
+	 */
+	int get(long inKey) {
+		int slot = hash(inKey) & mask;
+		while (values[slot] != MISSING) {
+			if (keys[slot] == inKey) {
+				return values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return MISSING;
+	}
+
+	/**
+	 * Checks if a key is present in this map.
+	 *
+	 * @param inKey key to look up
+	 * @return true if the key is present
+	 */
+	boolean containsKey(long inKey) {
+		return get(inKey) != MISSING;
+	}
+
+	/**
+	 * Associates a key with a value, replacing any previous value.
+	 *
+	 * @param inKey key
+	 * @param inValue value, must be non-negative
+	 */
+	void put(long inKey, int inValue) {
+		if (inValue < 0) {
+			throw new IllegalArgumentException("Values must be non-negative: " + inValue);
+		}
+		int slot = hash(inKey) & mask;
+		while (values[slot] != MISSING) {
+			if (keys[slot] == inKey) {
+				values[slot] = inValue;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = inKey;
+		values[slot] = inValue;
+		if (++size > (mask + 1) >> 1) {
+			rehash((mask + 1) << 1);
+		}
+	}
+
+	/**
+	 * Removes a key from this map.
+	 *
+	 * @param inKey key to remove
+	 * @return the value that was associated with the key, or MISSING
+	 */
+	int remove(long inKey) {
+		int slot = hash(inKey) & mask;
+		while (values[slot] != MISSING) {
+			if (keys[slot] == inKey) {
+				int old = values[slot];
+				shiftBack(slot);
+				size--;
+				return old;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return MISSING;
+	}
+
+	/**
+	 * Gets the number of entries in this map.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Gets every key in this map, in no particular order.
+	 *
+	 * @return a new array of the keys
+	 */
+	long[] keys() {
+		long[] present = new long[size];
+		int n = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != MISSING) {
+				present[n++] = keys[i];
+			}
+		}
+		return present;
+	}
+
+	/**
+	 * Removes all entries from this map (without shrinking it).
+	 */
+	void clear() {
+		Arrays.fill(values, MISSING);
+		size = 0;
+	}
+
+	// Closes the hole at inSlot by moving later entries of the same probe run back
+	private void shiftBack(int inSlot) {
+		int hole = inSlot;
+		int slot = (hole + 1) & mask;
+		while (values[slot] != MISSING) {
+			int home = hash(keys[slot]) & mask;
+			// Move the entry if its home slot is not cyclically in (hole, slot]
+			if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+				keys[hole] = keys[slot];
+				values[hole] = values[slot];
+				hole = slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		values[hole] = MISSING;
+	}
+
+	private void rehash(int inCapacity) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(inCapacity);
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != MISSING) {
+				int slot = hash(oldKeys[i]) & mask;
+				while (values[slot] != MISSING) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private void allocate(int inCapacity) {
+		keys = new long[inCapacity];
+		values = new int[inCapacity];
+		Arrays.fill(values, MISSING);
+		mask = inCapacity - 1;
+	}
+
+	// Finalizer from MurmurHash3, so sequential relay numbers don't cluster
+	private static int hash(long inKey) {
+		long h = inKey;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+
+	private long[] keys;
+	private int[] values; // MISSING marks an empty slot
+	private int mask;
+	private int size;
+}
@@ -0,0 +1,100 @@
+package xbeerelay;
+
+import com.rapplogic.xbee.api.XBeeAddress64;
+
+/**
+ * Converts between XBee 64-bit addresses and the packed long form we use
+ * to identify nodes internally.  Packed addresses are cheap to compare, hash
+ * and store in primitive arrays, unlike XBeeAddress64 objects.
+ *
+ * <p>A packed address of 0 means "no node assigned".
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public final class NodeAddress {
+
+	/** Packed form of "no node". */
+	public static final long NONE = 0L;
+
+	private NodeAddress() {
+	}
+
+	/**
+	 * Packs an 8-integer array (SH + SL, most significant byte first) into a long.
+	 *
+	 * @param inAddress the 8-integer array representing a 64-bit xb address
+	 * @return packed address
+	 */
+	public static long pack(int[] inAddress) {
+		if (inAddress == null || inAddress.length != 8) {
+			throw new IllegalArgumentException("A 64-bit Xbee address must have 8 bytes");
+		}
+		long packed = 0;
+		for (int i = 0; i < 8; i++) {
+			packed = (packed << 8) | (inAddress[i] & 0xff);
+		}
+		return packed;
+	}
+
+	/**
+	 * Packs an XBeeAddress64 into a long.
+	 *
+	 * @param inAddress 64-bit address
+	 * @return packed address
+	 */
+	public static long pack(XBeeAddress64 inAddress) {
+		return pack(inAddress.getAddress());
+	}
+
+	/**
+	 * Unpacks a long into a new XBeeAddress64.
+	 *
+	 * @param inPacked packed address
+	 * @return 64-bit address
+	 */
+	public static XBeeAddress64 unpack(long inPacked) {
+		int[] address = new int[8];
+		for (int i = 7; i >= 0; i--) {
+			address[i] = (int) (inPacked & 0xff);
+			inPacked >>>= 8;
+		}
+		return new XBeeAddress64(address);
+	}
+
+	/**
+	 * Gets the low 32 bits of the address (the XBee's SL register).
+	 *
+	 * @param inPacked packed address
+	 * @return the serial number low word
+	 */
+	public static int serialLow(long inPacked) {
+		return (int) inPacked;
+	}
+
+	/**
+	 * Parses an address written as 16 hex digits (as toString() writes it),
+	 * optionally after 0x.
+	 *
+	 * @param inHex the address
+	 * @return packed address
+	 * @throws NumberFormatException if it isn't 16 hex digits
+	 */
+	public static long parse(String inHex) {
+		String hex = inHex.startsWith("0x") || inHex.startsWith("0X") ? inHex.substring(2) : inHex;
+		if (hex.length() != 16) {
+			throw new NumberFormatException("A 64-bit Xbee address must have 16 hex digits: " + inHex);
+		}
+		return Long.parseLong(hex.substring(0, 8), 16) << 32 | Long.parseLong(hex.substring(8), 16);
+	}
+
+	/**
+	 * Formats a packed address as 16 hex digits, the way XCTU shows it.
+	 *
+	 * @param inPacked packed address
+	 * @return hex string
+	 */
+	public static String toString(long inPacked) {
+		return String.format("%016X", inPacked);
+	}
+}
@@ -0,0 +1,351 @@
+package xbeerelay;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches for nodes that stop sending IO samples.  When a node misses its
+ * expected samples its relays are marked UNITIALIZED (so nobody mistakes their
+ * last status for the current one) and NodeLivenessListeners are told.
+ *
+ * <p>Deadlines are kept in a hashed timer wheel: a ring of slots, each a linked
+ * list of the nodes due in that tick, so the ticker only looks at the nodes due
+ * now however many there are.  A sample only records the time; a node isn't moved
+ * in the wheel until its slot comes round, at which point it is either put back
+ * at its new deadline or found to be silent.  So a sample costs a few array
+ * writes, and there is no list surgery on the sample path.
+ *
+ * <p>Unless it's set, each node's sample interval is learned from the gaps
+ * between its samples, and a node is silent once it has gone a few intervals
+ * (3 unless setMissedSamples says otherwise) without one.  The gap that ends a
+ * silence is learned from too (up to four times the old interval at once), so a
+ * node sampling more slowly than the default interval allows is only reported
+ * silent a time or two, rather than on every sample.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class NodeHealthMonitor implements RelaySampleListener {
+
+	private static final int WHEEL_SLOTS = 512;
+	private static final int NONE = -1;
+	// Most a learned interval can grow by from the gap that ends a silence
+	private static final int RECOVERY_GROWTH = 4;
+
+	/**
+	 * Constructs a new NodeHealthMonitor.
+	 *
+	 * @param inTickMillis resolution of the deadlines, e.g. 250 ms
+	 */
+	public NodeHealthMonitor(long inTickMillis) {
+		tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(inTickMillis, 1));
+		epochNanos = System.nanoTime();
+		Arrays.fill(slots, NONE);
+	}
+
+	/**
+	 * Starts watching a node's samples.  Its clock starts now, so a node that
+	 * never sends a sample is reported silent too.
+	 *
+	 * @param inManager the node's relay manager
+	 */
+	public void watch(XbeeRelayManager inManager) {
+		synchronized (this) {
+			if (nodeIndex.containsKey(inManager.getNode())) {
+				return;
+			}
+			int i = nodeCount++;
+			grow();
+			managers[i] = inManager;
+			nodeIndex.put(inManager.getNode(), i);
+			lastSeen[i] = System.nanoTime();
+			intervals[i] = defaultIntervalNanos;
+			fixedInterval[i] = false;
+			sampled[i] = false;
+			silent[i] = false;
+			schedule(i);
+		}
+		inManager.addSampleListener(this);
+	}
+
+	/* (non-Javadoc)
+	 * @see xbeerelay.RelaySampleListener#sampleProcessed(xbeerelay.XbeeRelayManager, long)
+	 */
+	@Override
+	public void sampleProcessed(XbeeRelayManager inManager, long inNanos) {
+		long silentFor;
+		synchronized (this) {
+			int i = nodeIndex.get(inManager.getNode());
+			if (i == LongIntMap.MISSING) {
+				return;
+			}
+			long gap = inNanos - lastSeen[i];
+			lastSeen[i] = inNanos;
+			if (!silent[i]) {
+				if (!fixedInterval[i] && sampled[i] && gap > 0) {
+					// Learn the interval, but not from the gap before the first sample or a silence
+					intervals[i] += (gap - intervals[i]) / 4;
+				}
+				sampled[i] = true;
+				return;
+			}
+			if (!fixedInterval[i] && sampled[i] && gap > 0) {
+				/*
+				 * The node came back, so its interval may just be longer than we
+				 * thought (a hand-set IR above the timeout).  Take the gap as its
+				 * interval, but at most a few times the old one, so a real outage
+				 * can't stretch the timeout far; later gaps refine it as usual.
+				 */
+				intervals[i] = Math.max(intervals[i], Math.min(gap, intervals[i] * RECOVERY_GROWTH));
+			}
+			sampled[i] = true;
+			silent[i] = false;
+			silentFor = gap;
+			schedule(i);
+		}
+		// The manager is locked already, and listeners don't take this monitor's lock
+		for (NodeLivenessListener listener : listeners) {
+			listener.nodeRecovered(inManager, silentFor);
+		}
+	}
+
+	/**
+	 * Checks every node due up to now, marking the silent ones stale and telling
+	 * the listeners.  start() calls this on a timer; call it directly to drive
+	 * the monitor yourself.
+	 *
+	 * @param inNanos System.nanoTime() now
+	 */
+	public void tick(long inNanos) {
+		List<Integer> expired = null;
+		synchronized (this) {
+			long target = (inNanos - epochNanos) / tickNanos;
+			while (currentTick < target) {
+				currentTick++;
+				int slot = (int) (currentTick & (WHEEL_SLOTS - 1));
+				int i = slots[slot];
+				slots[slot] = NONE;
+				while (i != NONE) {
+					int following = next[i];
+					if (dueTick[i] > currentTick) {
+						// Due on a later turn of the wheel
+						next[i] = slots[slot];
+						slots[slot] = i;
+					} else if (inNanos - lastSeen[i] >= timeout(i)) {
+						silent[i] = true;
+						silentCount++;
+						if (expired == null) {
+							expired = new ArrayList<Integer>();
+						}
+						expired.add(i);
+					} else {
+						schedule(i);
+					}
+					i = following;
+				}
+			}
+		}
+		if (expired == null) {
+			return;
+		}
+		/*
+		 * Samples take the manager's lock before ours, so take them in that
+		 * order here too.  Checking and marking under the manager's lock means a
+		 * sample is either in before the check (and the node isn't stale) or
+		 * after the mark (and recovers it); it can't be overwritten by the mark.
+		 */
+		for (int i : expired) {
+			XbeeRelayManager manager;
+			synchronized (this) {
+				manager = managers[i];
+			}
+			synchronized (manager) {
+				long seen;
+				synchronized (this) {
+					if (!silent[i]) {
+						continue; // a sample got in first
+					}
+					seen = lastSeen[i];
+				}
+				manager.markStale(inNanos);
+				for (NodeLivenessListener listener : listeners) {
+					listener.nodeSilent(manager, seen);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts checking for silent nodes once a tick on a daemon thread.
+	 */
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "xbee-health");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleAtFixedRate(new Runnable() {
+
+			@Override
+			public void run() {
+				tick(System.nanoTime());
+			}
+		}, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Stops the checks started by start().
+	 */
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Sets the sample interval nodes start with before theirs has been learned.
+	 *
+	 * @param inMillis interval in milliseconds (the default is 5000 ms)
+	 */
+	public synchronized void setDefaultInterval(long inMillis) {
+		defaultIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(inMillis, 1));
+	}
+
+	/**
+	 * Sets a node's sample interval (its IR setting), instead of learning it.
+	 *
+	 * @param inNode packed 64-bit node address (see NodeAddress)
+	 * @param inMillis interval in milliseconds
+	 */
+	public synchronized void setInterval(long inNode, long inMillis) {
+		int i = nodeIndex.get(inNode);
+		if (i == LongIntMap.MISSING) {
+			throw new IllegalArgumentException("Node " + NodeAddress.toString(inNode) + " isn't watched");
+		}
+		intervals[i] = TimeUnit.MILLISECONDS.toNanos(Math.max(inMillis, 1));
+		fixedInterval[i] = true;
+	}
+
+	/**
+	 * Sets how many sample intervals a node may miss before it counts as silent.
+	 *
+	 * @param inSamples number of intervals (the default is 3)
+	 */
+	public synchronized void setMissedSamples(int inSamples) {
+		missedSamples = Math.max(inSamples, 1);
+	}
+
+	/**
+	 * Checks whether a node is sending samples.
+	 *
+	 * @param inNode packed 64-bit node address (see NodeAddress)
+	 * @return false if the node is silent or isn't watched
+	 */
+	public synchronized boolean isAlive(long inNode) {
+		int i = nodeIndex.get(inNode);
+		return i != LongIntMap.MISSING && !silent[i];
+	}
+
+	/**
+	 * Gets when a node's last sample arrived.
+	 *
+	 * @param inNode packed 64-bit node address (see NodeAddress)
+	 * @return System.nanoTime() of the last sample, or when watching started
+	 */
+	public synchronized long getLastSeenNanos(long inNode) {
+		int i = nodeIndex.get(inNode);
+		if (i == LongIntMap.MISSING) {
+			throw new IllegalArgumentException("Node " + NodeAddress.toString(inNode) + " isn't watched");
+		}
+		return lastSeen[i];
+	}
+
+	/**
+	 * Gets the number of times a node has been found silent.
+	 */
+	public synchronized long getSilentCount() {
+		return silentCount;
+	}
+
+	/**
+	 * Registers a listener to be told when nodes go silent or recover.
+	 *
+	 * @param inListener listener to add
+	 */
+	public void addLivenessListener(NodeLivenessListener inListener) {
+		listeners.add(inListener);
+	}
+
+	/**
+	 * Unregisters a liveness listener.
+	 *
+	 * @param inListener listener to remove
+	 */
+	public void removeLivenessListener(NodeLivenessListener inListener) {
+		listeners.remove(inListener);
+	}
+
+	private long timeout(int inNode) {
+		return intervals[inNode] * missedSamples;
+	}
+
+	// Puts a node in the slot for its deadline
+	private void schedule(int inNode) {
+		long deadline = lastSeen[inNode] + timeout(inNode);
+		long tick = Math.max((deadline - epochNanos + tickNanos - 1) / tickNanos, currentTick + 1);
+		int slot = (int) (tick & (WHEEL_SLOTS - 1));
+		dueTick[inNode] = tick;
+		next[inNode] = slots[slot];
+		slots[slot] = inNode;
+	}
+
+	private void grow() {
+		if (nodeCount > managers.length) {
+			int size = managers.length * 2;
+			managers = Arrays.copyOf(managers, size);
+			lastSeen = Arrays.copyOf(lastSeen, size);
+			intervals = Arrays.copyOf(intervals, size);
+			dueTick = Arrays.copyOf(dueTick, size);
+			next = Arrays.copyOf(next, size);
+			silent = Arrays.copyOf(silent, size);
+			fixedInterval = Arrays.copyOf(fixedInterval, size);
+			sampled = Arrays.copyOf(sampled, size);
+		}
+	}
+
+	private final long tickNanos;
+	private final long epochNanos;
+	private long currentTick;
+	private long defaultIntervalNanos = TimeUnit.SECONDS.toNanos(5);
+	private int missedSamples = 3;
+	private ScheduledExecutorService scheduler;
+	private long silentCount;
+	private final List<NodeLivenessListener> listeners = new CopyOnWriteArrayList<NodeLivenessListener>();
+	// Wheel slots: the first node due in each, linked through next[]
+	private final int[] slots = new int[WHEEL_SLOTS];
+	// Per node, by index
+	private final LongIntMap nodeIndex = new LongIntMap(64);
+	private int nodeCount;
+	private XbeeRelayManager[] managers = new XbeeRelayManager[64];
+	private long[] lastSeen = new long[64];
+	private long[] intervals = new long[64];
+	private long[] dueTick = new long[64];
+	private int[] next = new int[64];
+	private boolean[] silent = new boolean[64];
+	private boolean[] fixedInterval = new boolean[64];
+	private boolean[] sampled = new boolean[64];
+}
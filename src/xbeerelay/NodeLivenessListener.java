@@ -0,0 +1,27 @@
+package xbeerelay;
+
+/**
+ * Notified when a node stops sending IO samples, and when it starts again.
+ * 
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public interface NodeLivenessListener {
+
+	/**
+	 * Called when a node has missed its expected samples.  Its relays have
+	 * already been marked RelayStatus.UNITIALIZED.
+	 * 
+	 * @param inManager the silent node's relay manager
+	 * @param inLastSeenNanos System.nanoTime() of the node's last sample
+	 */
+	void nodeSilent(XbeeRelayManager inManager, long inLastSeenNanos);
+
+	/**
+	 * Called when a node that was silent sends a sample again.
+	 * 
+	 * @param inManager the node's relay manager
+	 * @param inSilentNanos how long the node had been silent
+	 */
+	void nodeRecovered(XbeeRelayManager inManager, long inSilentNanos);
+}
@@ -0,0 +1,315 @@
+package xbeerelay;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import xbeerelay.Relay.RelayStatus;
+
+import com.rapplogic.xbee.api.XBeeException;
+
+/**
+ * Sets up each node's IO sampling from the PC, over remote AT commands, so
+ * nodes report relay changes as they happen and otherwise sample slowly.
+ *
+ * <p>Each node gets change detection (IC) on the pins that sense its relays, so
+ * a relay switching sends a sample straight away, and a periodic sample rate
+ * (IR) that follows how busy the node is:
+ * <ul>
+ * <li>a node whose relays have just changed is sampled at the fast interval
+ * (1 s by default), which keeps its power readings current while it's in use;</li>
+ * <li>a node with no changes for the idle time (60 s by default) drops back to
+ * the slow interval (30 s by default), a background check that it's still there.</li>
+ * </ul>
+ * A node has to stay at one rate for the minimum dwell time (10 s by default)
+ * before it is changed again, so a node that is used on and off doesn't flap
+ * between rates and spend the link on AT commands.
+ *
+ * <p>Settings are applied but not written to the nodes' flash, so a node that
+ * restarts goes back to whatever it was configured with.  A node that goes
+ * silent and recovers (see NodeHealthMonitor) is set up again in case that's
+ * what happened, and a node that doesn't answer is retried after the minimum
+ * dwell time.  If a NodeHealthMonitor is set, it is told each node's new sample
+ * interval, so silence is judged against the rate the node was actually given.
+ *
+ * <p>AT commands are sent from the provisioner's own thread as POLLING, so
+ * they never hold up relay commands or the sample path.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class NodeProvisioner implements RelayTransitionListener, NodeLivenessListener {
+
+	/**
+	 * Starts managing a node's sampling.  It is set up on the next review.
+	 *
+	 * @param inManager the node's relay manager
+	 */
+	public void manage(XbeeRelayManager inManager) {
+		int mask = 0;
+		synchronized (inManager) {
+			for (Relay r : inManager.getManagedRelays()) {
+				mask |= IoSamples.bit(r.getXbeePin());
+			}
+		}
+		synchronized (this) {
+			int i = nodeIndex.get(inManager.getNode());
+			if (i == LongIntMap.MISSING) {
+				i = nodeCount++;
+				if (i == managers.length) {
+					int size = i * 2;
+					managers = Arrays.copyOf(managers, size);
+					changeMasks = Arrays.copyOf(changeMasks, size);
+					intervals = Arrays.copyOf(intervals, size);
+					lastActivity = Arrays.copyOf(lastActivity, size);
+					lastChange = Arrays.copyOf(lastChange, size);
+					provisioned = Arrays.copyOf(provisioned, size);
+				}
+				nodeIndex.put(inManager.getNode(), i);
+				managers[i] = inManager;
+				// Idle until we see otherwise, and due for setting up now
+				lastActivity[i] = System.nanoTime() - idleNanos;
+				lastChange[i] = System.nanoTime() - minDwellNanos;
+			}
+			changeMasks[i] = mask;
+			provisioned[i] = false;
+		}
+		inManager.addTransitionListener(this);
+	}
+
+	/* (non-Javadoc)
+	 * @see xbeerelay.RelayTransitionListener#relayChanged(xbeerelay.Relay, xbeerelay.Relay.RelayStatus, xbeerelay.Relay.RelayStatus, long)
+	 */
+	@Override
+	public synchronized void relayChanged(Relay inRelay, RelayStatus inOldStatus,
+			RelayStatus inNewStatus, long inNanos) {
+		if (inOldStatus == RelayStatus.UNITIALIZED || inNewStatus == RelayStatus.UNITIALIZED) {
+			return; // first sample or gone stale, not anybody using it
+		}
+		int i = nodeIndex.get(inRelay.getNode());
+		if (i != LongIntMap.MISSING) {
+			lastActivity[i] = inNanos;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see xbeerelay.NodeLivenessListener#nodeSilent(xbeerelay.XbeeRelayManager, long)
+	 */
+	@Override
+	public void nodeSilent(XbeeRelayManager inManager, long inLastSeenNanos) {
+		// Nothing to do until it's back
+	}
+
+	/* (non-Javadoc)
+	 * @see xbeerelay.NodeLivenessListener#nodeRecovered(xbeerelay.XbeeRelayManager, long)
+	 */
+	@Override
+	public synchronized void nodeRecovered(XbeeRelayManager inManager, long inSilentNanos) {
+		int i = nodeIndex.get(inManager.getNode());
+		if (i != LongIntMap.MISSING) {
+			// It may have restarted and lost its settings
+			provisioned[i] = false;
+		}
+	}
+
+	/**
+	 * Sets up any node that needs it, and moves nodes between the fast and slow
+	 * rates as their activity calls for.  start() calls this every second; call
+	 * it directly to drive the provisioner yourself.  AT commands are sent from
+	 * the calling thread, which waits for each node to answer.
+	 *
+	 * @param inNanos System.nanoTime() now
+	 */
+	public void review(long inNanos) {
+		int count;
+		synchronized (this) {
+			count = nodeCount;
+		}
+		for (int i = 0; i < count; i++) {
+			XbeeRelayManager manager;
+			int mask;
+			int interval;
+			boolean setChangeMask;
+			synchronized (this) {
+				if (inNanos - lastChange[i] < minDwellNanos) {
+					continue;
+				}
+				boolean active = inNanos - lastActivity[i] < idleNanos;
+				interval = active ? fastMillis : slowMillis;
+				if (provisioned[i] && intervals[i] == interval) {
+					continue;
+				}
+				manager = managers[i];
+				mask = changeMasks[i];
+				setChangeMask = !provisioned[i];
+				// Counts as a change even if it fails, so a dead node is retried at the dwell time
+				lastChange[i] = inNanos;
+			}
+			boolean ok = push(manager, setChangeMask, mask, interval);
+			NodeHealthMonitor monitor;
+			synchronized (this) {
+				if (ok) {
+					provisioned[i] = true;
+					intervals[i] = interval;
+					changes++;
+				} else {
+					failures++;
+				}
+				monitor = healthMonitor;
+			}
+			if (ok && monitor != null) {
+				try {
+					monitor.setInterval(manager.getNode(), interval);
+				} catch (IllegalArgumentException e) {
+					// The monitor isn't watching this node
+				}
+			}
+		}
+	}
+
+	// Sends the AT commands for one node; returns true if it took them all
+	private boolean push(XbeeRelayManager inManager, boolean inSetChangeMask, int inMask, int inIntervalMillis) {
+		XbeeManager xbManager = inManager.getXbeeManager();
+		try {
+			if (inSetChangeMask && !xbManager.sendRemoteAt(NodeAddress.unpack(inManager.getNode()), "IC",
+					new int[] {(inMask >> 8) & 0xff, inMask & 0xff}, CommandPriority.POLLING)) {
+				return false;
+			}
+			return xbManager.sendRemoteAt(NodeAddress.unpack(inManager.getNode()), "IR",
+					new int[] {(inIntervalMillis >> 8) & 0xff, inIntervalMillis & 0xff}, CommandPriority.POLLING);
+		} catch (XBeeException e) {
+			// TODO: Log warning.  Retried after the dwell time.
+			return false;
+		}
+	}
+
+	/**
+	 * Starts reviewing the nodes once a second on a daemon thread.
+	 */
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "xbee-provision");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				review(System.nanoTime());
+			}
+		}, 0, 1, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stops the reviews started by start().
+	 */
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Sets the sample interval for nodes in use.
+	 *
+	 * @param inMillis interval in milliseconds, up to 65535 (the default is 1000 ms)
+	 */
+	public synchronized void setFastInterval(int inMillis) {
+		fastMillis = clampInterval(inMillis);
+	}
+
+	/**
+	 * Sets the sample interval for idle nodes.
+	 *
+	 * @param inMillis interval in milliseconds, up to 65535 (the default is 30000 ms)
+	 */
+	public synchronized void setSlowInterval(int inMillis) {
+		slowMillis = clampInterval(inMillis);
+	}
+
+	/**
+	 * Sets how long a node goes without relay changes before it counts as idle.
+	 *
+	 * @param inMillis idle time in milliseconds (the default is 60000 ms)
+	 */
+	public synchronized void setIdleTime(long inMillis) {
+		idleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(inMillis, 0));
+	}
+
+	/**
+	 * Sets the least time between changes to one node's sampling.
+	 *
+	 * @param inMillis dwell time in milliseconds (the default is 10000 ms)
+	 */
+	public synchronized void setMinDwell(long inMillis) {
+		minDwellNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(inMillis, 0));
+	}
+
+	/**
+	 * Sets a monitor to be told each node's sample interval when it changes.
+	 *
+	 * @param inMonitor the monitor, or null
+	 */
+	public synchronized void setHealthMonitor(NodeHealthMonitor inMonitor) {
+		healthMonitor = inMonitor;
+	}
+
+	/**
+	 * Gets the sample interval a node was last given.
+	 *
+	 * @param inNode packed 64-bit node address (see NodeAddress)
+	 * @return interval in milliseconds, 0 if it hasn't been set up
+	 */
+	public synchronized int getSampleInterval(long inNode) {
+		int i = nodeIndex.get(inNode);
+		return i == LongIntMap.MISSING || !provisioned[i] ? 0 : intervals[i];
+	}
+
+	/**
+	 * Gets the number of times a node's sampling was changed.
+	 */
+	public synchronized long getChangeCount() {
+		return changes;
+	}
+
+	/**
+	 * Gets the number of times a node refused or didn't answer its AT commands.
+	 */
+	public synchronized long getFailureCount() {
+		return failures;
+	}
+
+	private static int clampInterval(int inMillis) {
+		// IR is 16 bits; 0 would turn periodic sampling off
+		return Math.min(Math.max(inMillis, 1), 0xffff);
+	}
+
+	private int fastMillis = 1000;
+	private int slowMillis = 30000;
+	private long idleNanos = TimeUnit.SECONDS.toNanos(60);
+	private long minDwellNanos = TimeUnit.SECONDS.toNanos(10);
+	private NodeHealthMonitor healthMonitor;
+	private ScheduledExecutorService scheduler;
+	private long changes;
+	private long failures;
+	// Per node, by index
+	private final LongIntMap nodeIndex = new LongIntMap(64);
+	private int nodeCount;
+	private XbeeRelayManager[] managers = new XbeeRelayManager[64];
+	private int[] changeMasks = new int[64];
+	private int[] intervals = new int[64];
+	private long[] lastActivity = new long[64];
+	private long[] lastChange = new long[64];
+	private boolean[] provisioned = new boolean[64];
+}
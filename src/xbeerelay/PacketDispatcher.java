@@ -0,0 +1,307 @@
+package xbeerelay;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.rapplogic.xbee.api.PacketListener;
+import com.rapplogic.xbee.api.XBeeResponse;
+
+/**
+ * Hands packets off from xbee-api's reader thread to any number of subscribers,
+ * each running on its own thread, through a bounded ring buffer.  Register this
+ * as the only PacketListener on the XBee and subscribe the real listeners here,
+ * so a slow consumer (the UI, the plot, storage) can never back up serial reads.
+ *
+ * <p>The ring is allocated once and has a single producer (the radio's reader
+ * thread).  Every subscriber sees every packet, in order, unless it falls a full
+ * ring behind, in which case the OverflowPolicy decides what happens.  Lossless
+ * subscribers (e.g. a FrameRecorder) are always waited for, as with BLOCK,
+ * whatever the policy.
+ *
+ * <p>Each packet is stamped with System.nanoTime() as it is published, and
+ * TimedPacketListeners are given that time, so what they see doesn't depend on
+ * how far behind they are running.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class PacketDispatcher implements PacketListener {
+
+	/**
+	 * What to do when a subscriber is a full ring behind and a new packet arrives.
+	 */
+	public enum OverflowPolicy
+	{
+		/** Wait for the slow subscriber to catch up.  Nothing is lost, but the radio stalls. */
+		BLOCK,
+		/** Skip the slow subscriber past its oldest unread packets. */
+		DROP_OLDEST,
+		/**
+		 * Drop incoming packets while anyone is full, except every Nth one, which
+		 * is published as with DROP_OLDEST.  Slow subscribers see a thinned-out
+		 * but still current stream.  While there are lossless subscribers nothing
+		 * is dropped before publishing, and slow subscribers are skipped ahead as
+		 * with DROP_OLDEST instead.
+		 */
+		SAMPLE
+	}
+
+	/**
+	 * Constructs a new PacketDispatcher.
+	 *
+	 * @param inCapacity ring size, rounded up to a power of two
+	 * @param inPolicy what to do when a subscriber falls a full ring behind
+	 */
+	public PacketDispatcher(int inCapacity, OverflowPolicy inPolicy) {
+		this(inCapacity, inPolicy, 8);
+	}
+
+	/**
+	 * Constructs a new PacketDispatcher.
+	 *
+	 * @param inCapacity ring size, rounded up to a power of two
+	 * @param inPolicy what to do when a subscriber falls a full ring behind
+	 * @param inSampleEvery for SAMPLE, publish one in this many overflowing packets
+	 */
+	public PacketDispatcher(int inCapacity, OverflowPolicy inPolicy, int inSampleEvery) {
+		int capacity = 2;
+		while (capacity < inCapacity) {
+			capacity <<= 1;
+		}
+		slots = new AtomicReferenceArray<XBeeResponse>(capacity);
+		times = new long[capacity];
+		mask = capacity - 1;
+		policy = inPolicy;
+		sampleEvery = Math.max(inSampleEvery, 1);
+	}
+
+	/**
+	 * Starts delivering packets to a listener on a new daemon thread.  The
+	 * listener sees packets published from now on.
+	 *
+	 * @param inName name for the subscriber thread
+	 * @param inListener listener to deliver packets to
+	 * @return the subscription, for monitoring and closing it
+	 */
+	public Subscriber subscribe(String inName, PacketListener inListener) {
+		return subscribe(inName, inListener, false);
+	}
+
+	/**
+	 * Starts delivering packets to a listener on a new daemon thread.  The
+	 * listener sees packets published from now on.
+	 *
+	 * @param inName name for the subscriber thread
+	 * @param inListener listener to deliver packets to
+	 * @param inLossless true if the listener must see every packet, however far
+	 * behind it falls (the radio waits for it), whatever the overflow policy
+	 * @return the subscription, for monitoring and closing it
+	 */
+	public Subscriber subscribe(String inName, PacketListener inListener, boolean inLossless) {
+		Subscriber subscriber;
+		synchronized (subscribers) {
+			subscriber = new Subscriber(inName, inListener, inLossless, published.get());
+			subscribers.add(subscriber);
+			if (inLossless) {
+				losslessCount++;
+			}
+		}
+		subscriber.thread.start();
+		return subscriber;
+	}
+
+	/**
+	 * Publishes a packet to all subscribers.  Called by xbee-api's reader thread;
+	 * there must only ever be one thread calling this at a time.
+	 *
+	 * @param response packet received from the radio
+	 */
+	@Override
+	public void processResponse(XBeeResponse response) {
+		long now = System.nanoTime();
+		long seq = published.get();
+		long wrapPoint = seq - slots.length();
+
+		if (policy == OverflowPolicy.SAMPLE && losslessCount == 0 && isAnyoneFull(wrapPoint)
+				&& ++overflowCount % sampleEvery != 0) {
+			sampledOut.incrementAndGet();
+			return;
+		}
+
+		for (Subscriber s : subscribers) {
+			long cursor;
+			while ((cursor = s.cursor.get()) <= wrapPoint && s.running) {
+				if (policy == OverflowPolicy.BLOCK || s.lossless) {
+					LockSupport.parkNanos(BLOCK_PARK_NANOS);
+				} else if (s.cursor.compareAndSet(cursor, wrapPoint + 1)) {
+					s.dropped.addAndGet(wrapPoint + 1 - cursor);
+				}
+			}
+		}
+
+		// The time is plain, published along with the packet by the writes after it
+		times[(int) seq & mask] = now;
+		slots.set((int) seq & mask, response);
+		published.set(seq + 1);
+
+		for (Subscriber s : subscribers) {
+			if (s.waiting) {
+				LockSupport.unpark(s.thread);
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of packets published so far.
+	 */
+	public long getPublishedCount() {
+		return published.get();
+	}
+
+	/**
+	 * Gets the number of packets dropped before being published (SAMPLE policy only).
+	 */
+	public long getSampledOutCount() {
+		return sampledOut.get();
+	}
+
+	/**
+	 * Gets the current subscribers.
+	 */
+	public List<Subscriber> getSubscribers() {
+		return subscribers;
+	}
+
+	/**
+	 * Stops all subscriber threads.  Packets still in the ring are not delivered.
+	 */
+	public void close() {
+		for (Subscriber s : subscribers) {
+			s.close();
+		}
+	}
+
+	private boolean isAnyoneFull(long inWrapPoint) {
+		for (Subscriber s : subscribers) {
+			if (s.cursor.get() <= inWrapPoint) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A listener subscribed to a PacketDispatcher, with its own thread and read position.
+	 */
+	public final class Subscriber implements Runnable {
+
+		private Subscriber(String inName, PacketListener inListener, boolean inLossless, long inStart) {
+			name = inName;
+			listener = inListener;
+			timedListener = inListener instanceof TimedPacketListener ? (TimedPacketListener) inListener : null;
+			lossless = inLossless;
+			cursor = new AtomicLong(inStart);
+			thread = new Thread(this, "xbee-" + inName);
+			thread.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				long seq = cursor.get();
+				if (seq >= published.get()) {
+					waiting = true;
+					if (seq >= published.get() && running) {
+						LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+					}
+					waiting = false;
+					continue;
+				}
+				XBeeResponse response = slots.get((int) seq & mask);
+				long nanos = times[(int) seq & mask];
+				// If this fails the producer skipped us ahead, and the slot may be newer
+				if (!cursor.compareAndSet(seq, seq + 1)) {
+					continue;
+				}
+				try {
+					if (timedListener != null) {
+						timedListener.processResponse(response, nanos);
+					} else {
+						listener.processResponse(response);
+					}
+				} catch (RuntimeException e) {
+					// TODO: Log error.  Keep going, one bad packet shouldn't kill the subscriber.
+					e.printStackTrace();
+				}
+			}
+		}
+
+		/**
+		 * Gets the name of this subscriber.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Checks if this subscriber is lossless, i.e. always waited for.
+		 */
+		public boolean isLossless() {
+			return lossless;
+		}
+
+		/**
+		 * Gets the number of packets this subscriber missed because it fell behind.
+		 */
+		public long getDroppedCount() {
+			return dropped.get();
+		}
+
+		/**
+		 * Gets the number of published packets this subscriber hasn't processed yet.
+		 */
+		public long getLag() {
+			return published.get() - cursor.get();
+		}
+
+		/**
+		 * Stops this subscriber's thread.
+		 */
+		public void close() {
+			running = false;
+			synchronized (subscribers) {
+				if (subscribers.remove(this) && lossless) {
+					losslessCount--;
+				}
+			}
+			LockSupport.unpark(thread);
+		}
+
+		private final String name;
+		private final PacketListener listener;
+		private final TimedPacketListener timedListener;
+		private final boolean lossless;
+		private final AtomicLong cursor; // next sequence to read
+		private final AtomicLong dropped = new AtomicLong();
+		private final Thread thread;
+		private volatile boolean running = true;
+		private volatile boolean waiting;
+	}
+
+	private static final long BLOCK_PARK_NANOS = 20000L;
+	private static final long IDLE_PARK_NANOS = 100000000L;
+
+	private final AtomicReferenceArray<XBeeResponse> slots;
+	private final long[] times; // when each slot's packet was published
+	private final int mask;
+	private final OverflowPolicy policy;
+	private final int sampleEvery;
+	private final AtomicLong published = new AtomicLong(); // next sequence to write
+	private final AtomicLong sampledOut = new AtomicLong();
+	private long overflowCount; // only touched by the producer
+	private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+	private volatile int losslessCount; // written holding subscribers
+}
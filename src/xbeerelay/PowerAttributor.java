@@ -0,0 +1,233 @@
+package xbeerelay;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import xbeerelay.Relay.RelayStatus;
+
+/**
+ * Works out how much power each relay's appliance draws from the house total
+ * alone, by matching relay transitions to steps in the total.
+ *
+ * <p>When a sample shows a relay switching ON or OFF, the total power just before
+ * it is remembered and the readings over the next second or so are averaged.  The
+ * difference is the appliance's draw (positive for ON, negative for OFF), which is
+ * folded into a running estimate for that relay.  If several relays switch within
+ * the same window the step can't be split between them, so it is thrown away.
+ *
+ * <p>Each reading costs a constant amount of work whatever the number of relays:
+ * there is at most one window open, and energy is only integrated for a relay
+ * when its state or estimate changes, or someone asks for it.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class PowerAttributor implements RelayTransitionListener {
+
+	/** Most transitions a single window remembers before it is given up as ambiguous. */
+	private static final int MAX_WINDOW_RELAYS = 8;
+
+	/**
+	 * Adds a reading of total power.  Feed readings in after the relays have been
+	 * updated from the same IO sample, so a transition is seen before the first
+	 * reading that includes it.
+	 *
+	 * @param inMilliwatts total power
+	 * @param inNanos System.nanoTime() when the reading was taken
+	 */
+	public synchronized void addPowerReading(double inMilliwatts, long inNanos) {
+		if (windowSize > 0) {
+			if (inNanos - windowStartNanos < settleNanos) {
+				windowSum += inMilliwatts;
+				windowCount++;
+			} else {
+				closeWindow(inNanos);
+			}
+		}
+		level = readings == 0 ? inMilliwatts : level + LEVEL_ALPHA * (inMilliwatts - level);
+		readings++;
+		lastReading = inMilliwatts;
+	}
+
+	/* (non-Javadoc)
+	 * @see xbeerelay.RelayTransitionListener#relayChanged(xbeerelay.Relay, xbeerelay.Relay.RelayStatus, xbeerelay.Relay.RelayStatus, long)
+	 */
+	@Override
+	public synchronized void relayChanged(Relay inRelay, RelayStatus inOldStatus,
+			RelayStatus inNewStatus, long inNanos) {
+		Estimate e = estimateOf(inRelay);
+		e.fold(inNanos);
+		e.on = inNewStatus == RelayStatus.ON;
+		if (e.on) {
+			onMilliwatts += e.milliwatts;
+		} else if (inOldStatus == RelayStatus.ON) {
+			onMilliwatts -= e.milliwatts;
+		}
+		if (inOldStatus == RelayStatus.UNITIALIZED || inNewStatus == RelayStatus.UNITIALIZED || readings == 0) {
+			// Nothing to compare against
+			return;
+		}
+		if (windowSize == 0) {
+			windowStartNanos = inNanos;
+			windowBefore = level;
+			windowSum = 0;
+			windowCount = 0;
+		}
+		if (windowSize < MAX_WINDOW_RELAYS) {
+			windowRelays[windowSize] = e;
+			windowSigns[windowSize] = e.on ? 1 : -1;
+		}
+		windowSize++;
+	}
+
+	/**
+	 * Gets the estimated draw of a relay's appliance while it is ON.
+	 *
+	 * @param inRelay the relay
+	 * @return estimated power in milliwatts, 0 if it hasn't been seen to switch yet
+	 */
+	public synchronized double getPower(Relay inRelay) {
+		Estimate e = estimates.get(inRelay);
+		return e == null ? 0 : e.milliwatts;
+	}
+
+	/**
+	 * Gets the number of switches a relay's estimate is based on.
+	 *
+	 * @param inRelay the relay
+	 * @return number of transitions attributed to it
+	 */
+	public synchronized int getObservationCount(Relay inRelay) {
+		Estimate e = estimates.get(inRelay);
+		return e == null ? 0 : e.observations;
+	}
+
+	/**
+	 * Gets the estimated energy used by a relay's appliance since the attributor
+	 * started watching it.
+	 *
+	 * @param inRelay the relay
+	 * @return energy in milliwatt-hours
+	 */
+	public synchronized double getEnergy(Relay inRelay) {
+		Estimate e = estimates.get(inRelay);
+		if (e == null) {
+			return 0;
+		}
+		e.fold(System.nanoTime());
+		return e.milliwattNanos / NANOS_PER_HOUR;
+	}
+
+	/**
+	 * Gets the part of the latest reading not explained by the relays that are ON.
+	 *
+	 * @return power in milliwatts
+	 */
+	public synchronized double getUnattributedPower() {
+		return lastReading - onMilliwatts;
+	}
+
+	/**
+	 * Gets the number of windows thrown away because several relays switched at once
+	 * or the step had the wrong sign.
+	 */
+	public synchronized long getDiscardedCount() {
+		return discarded;
+	}
+
+	/**
+	 * Sets how long after a transition readings are averaged to measure the new level.
+	 * It should cover a few samples after the appliance has settled.
+	 *
+	 * @param inMillis window length in milliseconds (the default is 1500 ms)
+	 */
+	public synchronized void setSettleTime(long inMillis) {
+		settleNanos = Math.max(inMillis, 1) * 1000000L;
+	}
+
+	/**
+	 * Sets how much each new step moves a relay's estimate.
+	 *
+	 * @param inAlpha weight of the newest step, above 0 and at most 1 (the default is 0.3)
+	 */
+	public synchronized void setSmoothing(double inAlpha) {
+		if (inAlpha <= 0 || inAlpha > 1) {
+			throw new IllegalArgumentException("Smoothing must be above 0 and at most 1");
+		}
+		alpha = inAlpha;
+	}
+
+	private void closeWindow(long inNanos) {
+		int size = windowSize;
+		windowSize = 0;
+		if (size != 1 || windowCount == 0) {
+			discarded++;
+			return;
+		}
+		Estimate e = windowRelays[0];
+		double step = windowSigns[0] * (windowSum / windowCount - windowBefore);
+		if (step <= 0) {
+			// Load somewhere else changed more than this appliance did
+			discarded++;
+			return;
+		}
+		e.fold(inNanos);
+		double updated = e.observations == 0 ? step : e.milliwatts + alpha * (step - e.milliwatts);
+		if (e.on) {
+			onMilliwatts += updated - e.milliwatts;
+		}
+		e.milliwatts = updated;
+		e.observations++;
+	}
+
+	private Estimate estimateOf(Relay inRelay) {
+		Estimate e = estimates.get(inRelay);
+		if (e == null) {
+			e = new Estimate();
+			estimates.put(inRelay, e);
+		}
+		return e;
+	}
+
+	/**
+	 * What is known about one relay's appliance.
+	 */
+	private static final class Estimate {
+
+		// Integrates energy up to now at the current estimate
+		void fold(long inNanos) {
+			if (on) {
+				milliwattNanos += milliwatts * (inNanos - sinceNanos);
+			}
+			sinceNanos = inNanos;
+		}
+
+		boolean on;
+		long sinceNanos;
+		double milliwatts;
+		double milliwattNanos;
+		int observations;
+	}
+
+	private static final double LEVEL_ALPHA = 0.5;
+	private static final double NANOS_PER_HOUR = 3600e9;
+
+	private final Map<Relay, Estimate> estimates = new IdentityHashMap<Relay, Estimate>();
+	private double alpha = 0.3;
+	private long settleNanos = 1500000000L;
+	// Smoothed total power, and the latest reading
+	private double level;
+	private double lastReading;
+	private long readings;
+	// Sum of the estimates of the relays that are ON
+	private double onMilliwatts;
+	// The open window, if windowSize > 0
+	private int windowSize;
+	private long windowStartNanos;
+	private double windowBefore;
+	private double windowSum;
+	private int windowCount;
+	private final Estimate[] windowRelays = new Estimate[MAX_WINDOW_RELAYS];
+	private final int[] windowSigns = new int[MAX_WINDOW_RELAYS];
+	private long discarded;
+}
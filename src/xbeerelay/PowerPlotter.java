@@ -4,9 +4,15 @@ import java.awt.BasicStroke;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Font;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.swing.BorderFactory;
 import javax.swing.JPanel;
+import javax.swing.Timer;
 
 import org.jfree.chart.ChartPanel;
 import org.jfree.chart.JFreeChart;
@@ -15,7 +21,7 @@ import org.jfree.chart.axis.NumberAxis;
 import org.jfree.chart.plot.XYPlot;
 import org.jfree.chart.renderer.xy.XYItemRenderer;
 import org.jfree.chart.renderer.xy.XYLineAndShapeRenderer;
-import org.jfree.data.time.Second;
+import org.jfree.data.time.Millisecond;
 import org.jfree.data.time.TimeSeries;
 import org.jfree.data.time.TimeSeriesCollection;
 import org.jfree.ui.RectangleInsets;
@@ -26,6 +32,12 @@ import org.jfree.ui.RectangleInsets;
  * <p> It makes use of the open source JFreeChart library: <a href=http://www.jfree.org/jfreechart>jfree.org/jfreechart</a>
  *  and the code here is modeled off of examples found in that library.
  * 
+ * <p>Readings can be added from any thread.  They go into a lock-free ring and
+ * are applied to the chart on the Swing event thread in batches, at most a few
+ * times a second, with change events held back until the whole batch is in.
+ * So the chart repaints once per batch however fast samples arrive.  If the
+ * ring fills up before the event thread gets to it, the oldest readings are lost.
+ * 
  * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
  *
  */
@@ -35,18 +47,40 @@ public class PowerPlotter extends JPanel {
 	 * Generated serial version ID (by Eclipse).
 	 */
 	private static final long serialVersionUID = -4172513523886548443L;
+	private static final int DEFAULT_FRAME_RATE = 10;
+	private static final int RING_CAPACITY = 4096;
 	private TimeSeries powerSeries;
+	private final Timer refreshTimer;
+	// Ring of readings waiting for the event thread.  A slot's sequence is set
+	// to (its write sequence + 1) once its time and value are in.
+	private final long[] readingTimes = new long[RING_CAPACITY];
+	private final double[] readingValues = new double[RING_CAPACITY];
+	private final AtomicLongArray readingSequences = new AtomicLongArray(RING_CAPACITY);
+	private final AtomicLong writeSequence = new AtomicLong();
+	private long readSequence; // event thread only
+	private long lostReadings; // event thread only
 
 	/**
-	 * Constructs a new PowerPlotter instance.
+	 * Constructs a new PowerPlotter instance that redraws at most 10 times a second.
 	 * 
 	 * @param inMaxItemAgeInSeconds the maximum age for something to stay in plot
 	 */
 	public PowerPlotter(int inMaxItemAgeInSeconds) {
+		this(inMaxItemAgeInSeconds, DEFAULT_FRAME_RATE);
+	}
+
+	/**
+	 * Constructs a new PowerPlotter instance.
+	 * 
+	 * @param inMaxItemAgeInSeconds the maximum age for something to stay in plot
+	 * @param inMaxFrameRate the most times a second the plot is redrawn
+	 */
+	public PowerPlotter(int inMaxItemAgeInSeconds, int inMaxFrameRate) {
 		super(new BorderLayout());
 
 		powerSeries = new TimeSeries("Total Power Consumption");
-		powerSeries.setMaximumItemAge(inMaxItemAgeInSeconds);
+		// Item age is counted in the series' time periods, milliseconds here
+		powerSeries.setMaximumItemAge(inMaxItemAgeInSeconds * 1000L);
 
 		TimeSeriesCollection powerDataset = new TimeSeriesCollection();
 		powerDataset.addSeries(powerSeries);
@@ -82,15 +116,104 @@ public class PowerPlotter extends JPanel {
 				BorderFactory.createEmptyBorder(4, 4, 4, 4),
 				BorderFactory.createLineBorder(Color.black)));
 		add(chartPanel);
+
+		refreshTimer = new Timer(1000 / Math.max(inMaxFrameRate, 1), new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				applyReadings();
+			}
+		});
 	}
 
 	/**
-	 * Adds a new power reading to the power plot.
+	 * Adds a new power reading to the power plot, timestamped now.
 	 * 
 	 * @param inPowerReading the power, in mW
 	 */
 	public void addPowerReading(double inPowerReading) {
-		powerSeries.add(new Second(), inPowerReading);
+		addPowerReading(System.currentTimeMillis(), inPowerReading);
+	}
+
+	/**
+	 * Adds a new power reading to the power plot.  Safe to call from any thread;
+	 * it never blocks and the chart picks it up on its next refresh.
+	 * 
+	 * @param inTimeMillis when the reading was taken, as System.currentTimeMillis()
+	 * @param inPowerReading the power, in mW
+	 */
+	public void addPowerReading(long inTimeMillis, double inPowerReading) {
+		long sequence = writeSequence.getAndIncrement();
+		int slot = (int) (sequence & (RING_CAPACITY - 1));
+		readingSequences.set(slot, 0); // mark the slot as being written
+		readingTimes[slot] = inTimeMillis;
+		readingValues[slot] = inPowerReading;
+		readingSequences.set(slot, sequence + 1);
+	}
+
+	/**
+	 * Gets the number of readings lost because the ring filled up before the
+	 * event thread emptied it.  Call on the event thread.
+	 */
+	public long getLostReadingCount() {
+		return lostReadings;
+	}
+
+	@Override
+	public void addNotify() {
+		super.addNotify();
+		refreshTimer.start();
+	}
+
+	@Override
+	public void removeNotify() {
+		refreshTimer.stop();
+		super.removeNotify();
+	}
+
+	/**
+	 * Gets the number of readings on the chart.  Call on the event thread.
+	 */
+	int getPlottedCount() {
+		return powerSeries.getItemCount();
+	}
+
+	/**
+	 * Moves the readings waiting in the ring onto the chart, firing one change
+	 * event for the lot.  Runs on the event thread: off the refresh timer when on
+	 * screen, or called directly (as SoakRunner does) when not.
+	 */
+	void applyReadings() {
+		boolean changed = false;
+		while (true) {
+			int slot = (int) (readSequence & (RING_CAPACITY - 1));
+			long published = readingSequences.get(slot);
+			if (published != readSequence + 1) {
+				long oldest = writeSequence.get() - RING_CAPACITY;
+				if (oldest <= readSequence) {
+					break; // not written yet
+				}
+				// Overwritten before we got to it; skip to the oldest reading still there
+				lostReadings += oldest - readSequence;
+				readSequence = oldest;
+				continue;
+			}
+			long time = readingTimes[slot];
+			double value = readingValues[slot];
+			if (readingSequences.get(slot) != published) {
+				continue; // overwritten while we read it; the check above will skip it
+			}
+			if (!changed) {
+				powerSeries.setNotify(false);
+				changed = true;
+			}
+			powerSeries.addOrUpdate(new Millisecond(new Date(time)), value);
+			readSequence++;
+		}
+		if (changed) {
+			// Turning notification back on fires a single change event and repaint
+			powerSeries.setNotify(true);
+		}
 	}
 
 }
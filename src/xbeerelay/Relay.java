@@ -61,7 +61,9 @@ public class Relay {
 	 * @param inDP a valid digital I/O pin on Xbee Series 2
 	 */
 	public void setPin(int inDP) {
+		beforeIndexedChange();
 		dp = inDP;
+		afterIndexedChange();
 	}
 	
 	/**
@@ -89,7 +91,110 @@ public class Relay {
 	 * @param inStatus status to set this relay to
 	 */
 	protected void setStatus(RelayStatus inStatus) {
+		setStatus(inStatus, System.nanoTime());
+	}
+	
+	/**
+	 * Sets the status of this relay, as observed at a given time.
+	 * <p>Protected since we want only RelayManagers to be able to do this.
+	 * 
+	 * @param inStatus status to set this relay to
+	 * @param inNanos System.nanoTime() when the status was observed
+	 */
+	protected void setStatus(RelayStatus inStatus, long inNanos) {
 		status = inStatus;
+		statusNanos = inNanos;
+		provisional = false;
+	}
+	
+	/**
+	 * Sets the status of this relay from something other than a sample, e.g. a 
+	 * saved snapshot.  The status is provisional until a sample sets it again:
+	 * transition listeners haven't been told about it, so getConfirmedStatus() 
+	 * still reports UNITIALIZED.
+	 * <p>Protected since we want only RelayManagers to be able to do this.
+	 * 
+	 * @param inStatus status to set this relay to
+	 * @param inNanos System.nanoTime() when the status was last observed
+	 */
+	protected void setProvisionalStatus(RelayStatus inStatus, long inNanos) {
+		setStatus(inStatus, inNanos);
+		provisional = true;
+	}
+	
+	/**
+	 * Checks if the status of this relay was set provisionally and no sample 
+	 * has confirmed it yet.
+	 */
+	public boolean isStatusProvisional() {
+		return provisional;
+	}
+	
+	/**
+	 * Gets the status of this relay as transition listeners last heard it.
+	 * 
+	 * @return UNITIALIZED if the status is provisional, getStatus() otherwise
+	 */
+	public RelayStatus getConfirmedStatus() {
+		return provisional ? RelayStatus.UNITIALIZED : status;
+	}
+	
+	/**
+	 * Gets when the status of this relay was last observed.  Together with getStatus,
+	 * this tells how much the locally-stored status can be trusted.
+	 * 
+	 * @return System.nanoTime() when the status was last set
+	 */
+	public long getStatusNanos() {
+		return statusNanos;
+	}
+	
+	/**
+	 * Gets the state this relay has been commanded to but not yet seen in.
+	 * 
+	 * @return ON or OFF if a command is waiting for a sample to confirm it, null otherwise
+	 */
+	public RelayStatus getPendingStatus() {
+		return pendingStatus;
+	}
+	
+	/**
+	 * Gets when the pending command was sent.
+	 * 
+	 * @return System.nanoTime() when the pending command was sent
+	 */
+	public long getPendingSinceNanos() {
+		return pendingSinceNanos;
+	}
+	
+	/**
+	 * Gets when the pending command counts as failed if no sample has confirmed it.
+	 * 
+	 * @return deadline, in System.nanoTime() terms
+	 */
+	public long getPendingDeadlineNanos() {
+		return pendingDeadlineNanos;
+	}
+	
+	/**
+	 * Records that this relay has been commanded to a state.
+	 * <p>Protected since we want only RelayManagers to be able to do this.
+	 * 
+	 * @param inStatus commanded state
+	 * @param inSinceNanos System.nanoTime() when the command was sent
+	 * @param inDeadlineNanos when the command counts as failed
+	 */
+	protected void setPending(RelayStatus inStatus, long inSinceNanos, long inDeadlineNanos) {
+		pendingSinceNanos = inSinceNanos;
+		pendingDeadlineNanos = inDeadlineNanos;
+		pendingStatus = inStatus;
+	}
+	
+	/**
+	 * Clears the pending command, once it has been confirmed or has failed.
+	 */
+	protected void clearPending() {
+		pendingStatus = null;
 	}
 	
 	/**
@@ -101,7 +206,9 @@ public class Relay {
 	public void setLabel(String inLabel) 
 		throws RelayException {
 		if (inLabel != null) {
+			beforeIndexedChange();
 			label = inLabel;
+			afterIndexedChange();
 		} else {
 			throw new RelayException("A relay's label cannot be null!");
 		}
@@ -152,7 +259,44 @@ public class Relay {
 	 * @param inXbeePin
 	 */
 	public void setXbeePin(XbeeDigitalIOPin inXbeePin) {
+		beforeIndexedChange();
 		xbeePin = inXbeePin;
+		afterIndexedChange();
+	}
+	
+	/**
+	 * Gets the node (remote XBee) this relay is attached to.
+	 * 
+	 * @return packed 64-bit address of the node (see NodeAddress), or 
+	 *   NodeAddress.NONE if it hasn't been assigned yet
+	 */
+	public long getNode() {
+		return node;
+	}
+	
+	/**
+	 * Sets the node (remote XBee) this relay is attached to.  XbeeRelayManagers
+	 * set this to their own address for relays that don't have one yet.
+	 * 
+	 * @param inNode packed 64-bit address of the node (see NodeAddress)
+	 */
+	public void setNode(long inNode) {
+		beforeIndexedChange();
+		node = inNode;
+		afterIndexedChange();
+	}
+	
+	// Keep the registry's secondary indexes in step with our properties
+	private void beforeIndexedChange() {
+		if (registry != null) {
+			registry.unlinkSecondary(this);
+		}
+	}
+	
+	private void afterIndexedChange() {
+		if (registry != null) {
+			registry.linkSecondary(this);
+		}
 	}
 	
 	
@@ -205,8 +349,18 @@ public class Relay {
 	private int relayNumber;
 	private int dp;
 	private RelayStatus status;
+	private long statusNanos;
+	private boolean provisional; // status set by setProvisionalStatus, not yet by a sample
+	private volatile RelayStatus pendingStatus; // written last, so it publishes the times
+	private long pendingSinceNanos;
+	private long pendingDeadlineNanos;
 	private String label;
 	private XbeeDigitalIOPin xbeePin; // the pin used to monitor the status of this relay
+	private long node = NodeAddress.NONE;
+	
+	// The registry this relay belongs to, and its position there (maintained by RelayRegistry)
+	RelayRegistry registry;
+	int registryIndex = -1;
 	
 	/**
 	 * Represents the status of a relay.
@@ -0,0 +1,625 @@
+package xbeerelay;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import xbeerelay.Relay.RelayStatus;
+
+import com.rapplogic.xbee.api.XBeeException;
+import com.rapplogic.xbee.api.zigbee.ZNetRxIoSampleResponse;
+
+/**
+ * Manages the relays on many nodes, one XbeeRelayManager per node, and lets
+ * operators work with named groups ("all lights in wing B") and scenes ("night
+ * mode") instead of relay numbers.
+ *
+ * <p>Groups and scenes are compiled when they are defined: their relays are
+ * sorted by node into per-node on/off lists.  Switching one then costs one
+ * setRelays call per affected node (which XbeeRelayManager packs into as few
+ * frames as possible), and the nodes are all sent to in parallel.
+ *
+ * <p>A node's manager is only synchronized on while its commands are worked out
+ * (see XbeeRelayManager), not while they are sent, so an allOff() isn't held up
+ * by a scene still being sent to the same node.
+ *
+ * <p>A broadcast (see setBroadcastEnabled) isn't waited on: the nodes' relays
+ * are marked pending, as for any delivered command, and a timer thread checks
+ * them once the broadcast timeout is up, sending a unicast to each node whose
+ * samples haven't shown the switch.  So switching a group never holds up the
+ * caller (e.g. the GUI thread) for longer than the sends themselves.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class RelayFleet {
+
+	/**
+	 * Constructs a new, empty fleet that sends to nodes on its own daemon threads.
+	 */
+	public RelayFleet() {
+		this(Executors.newCachedThreadPool(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "relay-fleet");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}));
+	}
+
+	/**
+	 * Constructs a new, empty fleet.
+	 *
+	 * @param inExecutor executor used to send to several nodes in parallel
+	 */
+	public RelayFleet(ExecutorService inExecutor) {
+		executor = inExecutor;
+	}
+
+	/**
+	 * Adds a node's relay manager to this fleet.
+	 *
+	 * @param inManager manager for one node
+	 * @throws RelayException if the fleet already has a manager for that node
+	 */
+	public synchronized void addRelayManager(XbeeRelayManager inManager)
+		throws RelayException {
+		if (managerIndex.containsKey(inManager.getNode())) {
+			throw new RelayException("Node " + NodeAddress.toString(inManager.getNode()) + " is already in this fleet");
+		}
+		managerIndex.put(inManager.getNode(), managers.size());
+		managers.add(inManager);
+	}
+
+	/**
+	 * Gets the relay manager for a node.
+	 *
+	 * @param inNode packed 64-bit node address (see NodeAddress)
+	 * @return the node's manager, or null if the node isn't in this fleet
+	 */
+	public synchronized XbeeRelayManager getRelayManager(long inNode) {
+		int index = managerIndex.get(inNode);
+		return index == LongIntMap.MISSING ? null : managers.get(index);
+	}
+
+	/**
+	 * Gets the relay managers of all nodes in this fleet.
+	 */
+	public synchronized List<XbeeRelayManager> getRelayManagers() {
+		return new ArrayList<XbeeRelayManager>(managers);
+	}
+
+	/**
+	 * Defines (or redefines) a named group of relays.
+	 *
+	 * @param inName name of the group
+	 * @param inRelays relays in the group, which must be managed by this fleet
+	 * @throws RelayException if a relay isn't managed by this fleet
+	 */
+	public synchronized void defineGroup(String inName, Relay[] inRelays)
+		throws RelayException {
+		RelayScene on = new RelayScene(inName).setAll(inRelays, RelayStatus.ON);
+		RelayScene off = new RelayScene(inName).setAll(inRelays, RelayStatus.OFF);
+		groups.put(inName, new Plan[] { compile(on), compile(off) });
+	}
+
+	/**
+	 * Defines (or redefines) a scene.  Later changes to the scene object have
+	 * no effect unless it is defined again.
+	 *
+	 * @param inScene the scene
+	 * @throws RelayException if a relay isn't managed by this fleet
+	 */
+	public synchronized void defineScene(RelayScene inScene)
+		throws RelayException {
+		scenes.put(inScene.getName(), compile(inScene));
+	}
+
+	/**
+	 * Gets the names of the groups defined on this fleet.
+	 */
+	public synchronized Set<String> getGroupNames() {
+		return new TreeSet<String>(groups.keySet());
+	}
+
+	/**
+	 * Gets the names of the scenes defined on this fleet.
+	 */
+	public synchronized Set<String> getSceneNames() {
+		return new TreeSet<String>(scenes.keySet());
+	}
+
+	/**
+	 * Turns every relay in a group on or off.
+	 *
+	 * @param inName name of the group
+	 * @param inStatus ON or OFF
+	 * @throws RelayException if there is no such group, or any node fails
+	 */
+	public void setGroup(String inName, RelayStatus inStatus)
+		throws RelayException {
+		Plan[] plans;
+		synchronized (this) {
+			plans = groups.get(inName);
+		}
+		if (plans == null) {
+			throw new RelayException("No such group: " + inName);
+		}
+		if (inStatus == RelayStatus.ON) {
+			dispatch(plans[0], CommandPriority.BULK);
+		} else if (inStatus == RelayStatus.OFF) {
+			dispatch(plans[1], CommandPriority.BULK);
+		} else {
+			throw new RelayException("A group can only be turned on or off");
+		}
+	}
+
+	/**
+	 * Switches every relay in a scene to its target state.
+	 *
+	 * @param inName name of the scene
+	 * @throws RelayException if there is no such scene, or any node fails
+	 */
+	public void applyScene(String inName)
+		throws RelayException {
+		Plan plan;
+		synchronized (this) {
+			plan = scenes.get(inName);
+		}
+		if (plan == null) {
+			throw new RelayException("No such scene: " + inName);
+		}
+		dispatch(plan, CommandPriority.BULK);
+	}
+
+	/**
+	 * Turns off every relay on every node in this fleet.  The commands are sent
+	 * as EMERGENCY_OFF, ahead of anything else waiting for the radios.
+	 * 
+	 * @throws RelayException if any node fails
+	 */
+	public void allOff()
+		throws RelayException {
+		RelayScene everything = new RelayScene("all off");
+		Plan plan;
+		synchronized (this) {
+			for (XbeeRelayManager manager : managers) {
+				synchronized (manager) {
+					everything.setAll(manager.getManagedRelays().toArray(new Relay[0]), RelayStatus.OFF);
+				}
+			}
+			plan = compile(everything);
+		}
+		dispatch(plan, CommandPriority.EMERGENCY_OFF);
+	}
+	
+	/**
+	 * Routes an IO sample to the manager of the node that sent it.
+	 * 
+	 * @param inIOResponse the IO sample
+	 * @return true if the sample came from a node in this fleet
+	 */
+	public boolean processSample(ZNetRxIoSampleResponse inIOResponse) {
+		return processSample(NodeAddress.pack(inIOResponse.getRemoteAddress64()),
+				IoSamples.digitalMask(inIOResponse), System.nanoTime());
+	}
+	
+	/**
+	 * Routes an IO sample, already taken apart, to the manager of the node that sent it.
+	 * 
+	 * @param inNode packed 64-bit address of the node (see NodeAddress)
+	 * @param inDigitalMask one bit per Xbee pin sensed as ON (see IoSamples)
+	 * @param inNanos System.nanoTime() when the sample was received
+	 * @return true if the sample came from a node in this fleet
+	 */
+	public boolean processSample(long inNode, int inDigitalMask, long inNanos) {
+		XbeeRelayManager manager = getRelayManager(inNode);
+		if (manager == null) {
+			return false;
+		}
+		synchronized (manager) {
+			manager.processSample(inDigitalMask, inNanos);
+		}
+		return true;
+	}
+	
+	/**
+	 * Turns broadcast dispatch on or off.  When on, groups and scenes that touch
+	 * more than one node on the same radio are sent as a single broadcast carrying
+	 * every node's commands.  Nodes whose IO samples haven't confirmed the switch
+	 * once the broadcast timeout is up are then sent a normal unicast, from a
+	 * timer thread; a failure there can't be thrown to the caller, so it is only
+	 * logged.
+	 * <p>This needs MCU firmware that understands "BCMD" frames.  Off by default.
+	 * 
+	 * @param inEnabled true to broadcast
+	 */
+	public void setBroadcastEnabled(boolean inEnabled) {
+		broadcastEnabled = inEnabled;
+	}
+	
+	/**
+	 * Sets how long to wait for IO samples to confirm a broadcast before falling
+	 * back to unicast.  This should be a bit longer than the nodes' sample interval.
+	 * 
+	 * @param inMillis timeout in milliseconds
+	 */
+	public void setBroadcastTimeout(long inMillis) {
+		broadcastTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(inMillis);
+	}
+	
+	/**
+	 * Gets the number of dispatches that were broadcast.
+	 */
+	public long getBroadcastCount() {
+		return broadcasts.get();
+	}
+	
+	/**
+	 * Gets the number of nodes that had to be sent a unicast after a broadcast attempt.
+	 */
+	public long getUnicastFallbackCount() {
+		return unicastFallbacks.get();
+	}
+	
+	/**
+	 * Stops the threads used for parallel sends and broadcast confirmation.
+	 * Unicasts still waiting on a broadcast timeout aren't sent.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		synchronized (this) {
+			if (confirmTimer != null) {
+				confirmTimer.shutdownNow();
+			}
+		}
+	}
+
+	// Sorts a scene's relays into per-node relay number lists
+	private Plan compile(RelayScene inScene)
+		throws RelayException {
+		List<Relay> relays = inScene.getRelays();
+		List<RelayStatus> targets = inScene.getTargets();
+		int[] onCounts = new int[managers.size()];
+		int[] offCounts = new int[managers.size()];
+		int[] owners = new int[relays.size()];
+
+		for (int i = 0; i < relays.size(); i++) {
+			Relay r = relays.get(i);
+			int index = managerIndex.get(r.getNode());
+			if (index == LongIntMap.MISSING || managers.get(index).getRegistry().get(r.getNumber()) != r) {
+				throw new RelayException("Relay " + r.getNumber() + " (" + r.getLabel() + ") is not managed by this fleet");
+			}
+			owners[i] = index;
+			if (targets.get(i) == RelayStatus.ON) {
+				onCounts[index]++;
+			} else {
+				offCounts[index]++;
+			}
+		}
+
+		int nodes = 0;
+		for (int m = 0; m < managers.size(); m++) {
+			if (onCounts[m] + offCounts[m] > 0) {
+				nodes++;
+			}
+		}
+		Plan plan = new Plan(nodes);
+		int[] slotOf = new int[managers.size()];
+		int slot = 0;
+		for (int m = 0; m < managers.size(); m++) {
+			if (onCounts[m] + offCounts[m] > 0) {
+				plan.managers[slot] = managers.get(m);
+				plan.on[slot] = new int[onCounts[m]];
+				plan.off[slot] = new int[offCounts[m]];
+				slotOf[m] = slot++;
+			}
+		}
+		int[] onFill = new int[nodes];
+		int[] offFill = new int[nodes];
+		for (int i = 0; i < relays.size(); i++) {
+			int s = slotOf[owners[i]];
+			if (targets.get(i) == RelayStatus.ON) {
+				plan.on[s][onFill[s]++] = relays.get(i).getNumber();
+			} else {
+				plan.off[s][offFill[s]++] = relays.get(i).getNumber();
+			}
+		}
+		return plan;
+	}
+
+	// Sends a compiled plan to all of its nodes at once
+	private void dispatch(Plan inPlan, CommandPriority inPriority)
+		throws RelayException {
+		int[] nodes = new int[inPlan.managers.length];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = i;
+		}
+		if (broadcastEnabled && nodes.length > 1) {
+			nodes = broadcast(inPlan, inPriority);
+		}
+		unicast(inPlan, nodes, inPriority);
+	}
+
+	/*
+	 * Broadcasts a plan once per radio, and schedules a check for the nodes'
+	 * samples to have shown their relays switched.  Returns the nodes that need a
+	 * unicast now (no radio to share, or the broadcast failed).
+	 */
+	private int[] broadcast(Plan inPlan, CommandPriority inPriority)
+		throws RelayException {
+		Map<XbeeManager, List<Integer>> byRadio = new IdentityHashMap<XbeeManager, List<Integer>>();
+		for (int i = 0; i < inPlan.managers.length; i++) {
+			XbeeManager radio = inPlan.managers[i].getXbeeManager();
+			if (!byRadio.containsKey(radio)) {
+				byRadio.put(radio, new ArrayList<Integer>());
+			}
+			byRadio.get(radio).add(i);
+		}
+
+		List<Integer> fallback = new ArrayList<Integer>();
+		List<Integer> pending = new ArrayList<Integer>();
+		long sentAt = System.nanoTime();
+		for (Map.Entry<XbeeManager, List<Integer>> radio : byRadio.entrySet()) {
+			List<Integer> nodes = radio.getValue();
+			if (nodes.size() < 2) {
+				// Nothing to gain over a unicast, which at least gets acked
+				fallback.addAll(nodes);
+				continue;
+			}
+			try {
+				XbeeRelayManager.CommandBatch[] batches = new XbeeRelayManager.CommandBatch[nodes.size()];
+				for (int i = 0; i < batches.length; i++) {
+					XbeeRelayManager manager = inPlan.managers[nodes.get(i)];
+					synchronized (manager) {
+						batches[i] = manager.buildCommands(inPlan.on[nodes.get(i)], inPlan.off[nodes.get(i)]);
+					}
+				}
+				boolean sent = true;
+				for (String frame : packBroadcast(inPlan, nodes, batches)) {
+					sent &= radio.getKey().broadcastCommand(frame, inPriority);
+				}
+				if (sent) {
+					for (int i = 0; i < batches.length; i++) {
+						XbeeRelayManager manager = inPlan.managers[nodes.get(i)];
+						synchronized (manager) {
+							manager.commandsDelivered(batches[i], sentAt);
+						}
+					}
+					pending.addAll(nodes);
+				} else {
+					fallback.addAll(nodes);
+				}
+			} catch (XBeeException e) {
+				// TODO: Log warning.  The unicast fallback will report real failures.
+				fallback.addAll(nodes);
+			}
+		}
+		broadcasts.addAndGet(pending.isEmpty() ? 0 : 1);
+		unicastFallbacks.addAndGet(fallback.size());
+		if (!pending.isEmpty()) {
+			scheduleConfirmation(inPlan, pending, sentAt, inPriority);
+		}
+
+		int[] result = new int[fallback.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = fallback.get(i);
+		}
+		return result;
+	}
+
+	// Once the broadcast timeout is up, unicasts to the nodes that haven't confirmed it
+	private void scheduleConfirmation(final Plan inPlan, final List<Integer> inPending, final long inSentAt,
+			final CommandPriority inPriority) {
+		long delay = inSentAt + broadcastTimeoutNanos - System.nanoTime();
+		getConfirmTimer().schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					List<Integer> unconfirmed = new ArrayList<Integer>();
+					for (int node : inPending) {
+						if (!isConfirmed(inPlan, node, inSentAt)) {
+							abandonBroadcast(inPlan, node);
+							unconfirmed.add(node);
+						}
+					}
+					unicastFallbacks.addAndGet(unconfirmed.size());
+					int[] nodes = new int[unconfirmed.size()];
+					for (int i = 0; i < nodes.length; i++) {
+						nodes[i] = unconfirmed.get(i);
+					}
+					unicast(inPlan, nodes, inPriority);
+				} catch (RelayException e) {
+					// TODO: Log error.  Nobody is waiting to be told.
+					e.printStackTrace();
+				}
+			}
+		}, Math.max(delay, 0), TimeUnit.NANOSECONDS);
+	}
+
+	private synchronized ScheduledExecutorService getConfirmTimer() {
+		if (confirmTimer == null) {
+			confirmTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "relay-fleet-confirm");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return confirmTimer;
+	}
+
+	// Stops counting on the broadcast for a node, so its unicast isn't taken as redundant
+	private static void abandonBroadcast(Plan inPlan, int inNode)
+		throws RelayException {
+		XbeeRelayManager manager = inPlan.managers[inNode];
+		synchronized (manager) {
+			for (int relayNumber : inPlan.on[inNode]) {
+				Relay r = manager.getManagedRelay(relayNumber);
+				if (r.getPendingStatus() == RelayStatus.ON) {
+					r.clearPending();
+				}
+			}
+			for (int relayNumber : inPlan.off[inNode]) {
+				Relay r = manager.getManagedRelay(relayNumber);
+				if (r.getPendingStatus() == RelayStatus.OFF) {
+					r.clearPending();
+				}
+			}
+		}
+	}
+
+	// True if the node has sampled since inSentAt and all its relays are where the plan wants them
+	private static boolean isConfirmed(Plan inPlan, int inNode, long inSentAt)
+		throws RelayException {
+		XbeeRelayManager manager = inPlan.managers[inNode];
+		synchronized (manager) {
+			if (manager.getLastSampleNanos() - inSentAt <= 0) {
+				return false;
+			}
+			for (int relayNumber : inPlan.on[inNode]) {
+				if (manager.getRelayStatus(relayNumber) != RelayStatus.ON) {
+					return false;
+				}
+			}
+			for (int relayNumber : inPlan.off[inNode]) {
+				if (manager.getRelayStatus(relayNumber) != RelayStatus.OFF) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/*
+	 * Packs the commands for several nodes into broadcast payloads:
+	 * "BCMD @<SL> RON01 ROFF02 @<SL> RON03 ".  Each node acts on the tokens after
+	 * its own serial number (SL, 8 hex digits) and ignores the rest.
+	 */
+	private static List<String> packBroadcast(Plan inPlan, List<Integer> inNodes, 
+			XbeeRelayManager.CommandBatch[] inBatches) {
+		List<String> frames = new ArrayList<String>();
+		StringBuilder cmd = new StringBuilder(XbeeManager.MAX_PAYLOAD_LENGTH);
+		for (int i = 0; i < inBatches.length; i++) {
+			XbeeRelayManager manager = inPlan.managers[inNodes.get(i)];
+			String address = String.format("@%08X ", NodeAddress.serialLow(manager.getNode()));
+			boolean addressed = false;
+			XbeeRelayManager.CommandBatch batch = inBatches[i];
+			for (int j = 0; j < batch.size; j++) {
+				int needed = XbeeRelayManager.commandLength(batch.pins[j], batch.targets[j]) + 1
+						+ (addressed ? 0 : address.length());
+				if (cmd.length() > 0 && cmd.length() + needed > XbeeManager.MAX_PAYLOAD_LENGTH) {
+					frames.add(cmd.toString());
+					cmd.setLength(0);
+					addressed = false;
+				}
+				if (cmd.length() == 0) {
+					cmd.append("BCMD ");
+				}
+				if (!addressed) {
+					cmd.append(address);
+					addressed = true;
+				}
+				XbeeRelayManager.appendCommand(cmd, batch.pins[j], batch.targets[j]);
+				cmd.append(' ');
+			}
+		}
+		if (cmd.length() > 0) {
+			frames.add(cmd.toString());
+		}
+		return frames;
+	}
+
+	// Sends each of the given nodes its part of the plan, in parallel
+	private void unicast(final Plan inPlan, int[] inNodes, final CommandPriority inPriority)
+		throws RelayException {
+		if (inNodes.length == 0) {
+			return;
+		}
+		if (inNodes.length == 1) {
+			send(inPlan, inNodes[0], inPriority);
+			return;
+		}
+
+		List<Future<Void>> results = new ArrayList<Future<Void>>(inNodes.length);
+		for (final int node : inNodes) {
+			results.add(executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws RelayException {
+					send(inPlan, node, inPriority);
+					return null;
+				}
+			}));
+		}
+
+		RelayException failure = null;
+		for (Future<Void> result : results) {
+			try {
+				result.get();
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause() instanceof RelayException
+						? (RelayException) e.getCause() : new RelayException((Exception) e.getCause());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RelayException(e);
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private static void send(Plan inPlan, int inNode, CommandPriority inPriority)
+		throws RelayException {
+		inPlan.managers[inNode].setRelays(inPlan.on[inNode], inPlan.off[inNode], inPriority);
+	}
+
+	/**
+	 * A compiled group or scene: for each affected node, the relays to turn on and off.
+	 */
+	private static final class Plan {
+
+		Plan(int inNodes) {
+			managers = new XbeeRelayManager[inNodes];
+			on = new int[inNodes][];
+			off = new int[inNodes][];
+		}
+
+		final XbeeRelayManager[] managers;
+		final int[][] on;
+		final int[][] off;
+	}
+
+	private final ExecutorService executor;
+	private final List<XbeeRelayManager> managers = new ArrayList<XbeeRelayManager>();
+	private final LongIntMap managerIndex = new LongIntMap(16);
+	private final Map<String, Plan[]> groups = new HashMap<String, Plan[]>();
+	private final Map<String, Plan> scenes = new HashMap<String, Plan>();
+	private volatile boolean broadcastEnabled;
+	private volatile long broadcastTimeoutNanos = TimeUnit.SECONDS.toNanos(5);
+	private ScheduledExecutorService confirmTimer;
+	private final AtomicLong broadcasts = new AtomicLong();
+	private final AtomicLong unicastFallbacks = new AtomicLong();
+}
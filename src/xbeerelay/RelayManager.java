@@ -2,7 +2,6 @@ package xbeerelay;
 
 import java.util.Collection;
 import java.util.List;
-import java.util.Map;
 
 import xbeerelay.Relay.RelayStatus;
 
@@ -22,13 +21,7 @@ public abstract class RelayManager {
 	 */
 	public void addManagedRelay(Relay inRelay) 
 		throws RelayException {
-		if (!managedRelays.containsKey(inRelay.getNumber())) {
-			managedRelays.put(inRelay.getNumber(), inRelay);	
-		} else {
-			// Relay number already in use
-			throw new RelayException("Relay number " + inRelay.getNumber() + " already in use!");
-		}
-		
+		managedRelays.add(inRelay);
 	}
 	
 	/**
@@ -39,22 +32,20 @@ public abstract class RelayManager {
 	 * @param inRelayNum number of relay to disassociate
 	 */
 	public void removeManagedRelay(int inRelayNum) {
-		if (managedRelays.containsKey(inRelayNum)) {
-			managedRelays.remove(inRelayNum);
-		}
+		managedRelays.remove(inRelayNum);
 	}
 	
 	/**
 	 * Associates multiple relays with this manager.
+	 * <p>This is all or nothing: if any relay can't be associated (e.g. its
+	 * number is already in use), none of them are.
 	 * 
 	 * @param inRelays array of relays to associate
-	 * @throws RelayException 
+	 * @throws RelayException if any relay number is already in use
 	 */
 	public void addManagedRelays(Relay[] inRelays) 
 		throws RelayException {
-		for (Relay inRelay : inRelays) {
-			addManagedRelay(inRelay);
-		}
+		managedRelays.addAll(inRelays);
 	}
 	
 	/**
@@ -117,6 +108,26 @@ public abstract class RelayManager {
 		}
 	}
 	
+	/**
+	 * Switches several relays at once: the first set is turned on and the second
+	 * turned off.  This is what groups and scenes (see RelayFleet) compile down to.
+	 * <p>The default implementation calls turnOn/turnOff for each relay.  Managers
+	 * that can batch commands should override it.
+	 * 
+	 * @param inOnRelayNumbers relay numbers to turn on
+	 * @param inOffRelayNumbers relay numbers to turn off
+	 * @throws RelayException if any relay number is invalid (not associated with this manager)
+	 */
+	public void setRelays(int[] inOnRelayNumbers, int[] inOffRelayNumbers)
+		throws RelayException {
+		for (int inRelayNumber : inOnRelayNumbers) {
+			turnOn(inRelayNumber);
+		}
+		for (int inRelayNumber : inOffRelayNumbers) {
+			turnOff(inRelayNumber);
+		}
+	}
+	
 	/**
 	 * Gets the locally-stored status of the given relay number.
 	 * <p>Note that this method does NOT do anything to query the relay
@@ -129,13 +140,36 @@ public abstract class RelayManager {
 	public RelayStatus getRelayStatus(int inRelayNumber) 
 		throws RelayException
 	{
-		if (managedRelays.containsKey(new Integer(inRelayNumber))) {
-			return managedRelays.get(new Integer(inRelayNumber)).getStatus();
+		return getManagedRelay(inRelayNumber).getStatus();
+	}
+	
+	/**
+	 * Gets the Relay object with the given relay number.
+	 * 
+	 * @param inRelayNumber number of relay to get
+	 * @return the relay
+	 * @throws RelayException if relay number is invalid
+	 */
+	public Relay getManagedRelay(int inRelayNumber) 
+		throws RelayException {
+		Relay relay = managedRelays.get(inRelayNumber);
+		if (relay != null) {
+			return relay;
 		} else {
 			throw new RelayException("Invalid relay number: " + inRelayNumber);
 		}
 	}
 	
+	/**
+	 * Gets a Relay object by the MCU pin it is on.
+	 * 
+	 * @param inDP pin number on MCU
+	 * @return the relay, or null if no managed relay is on that pin
+	 */
+	public Relay getManagedRelayByPin(int inDP) {
+		return managedRelays.getByPin(inDP);
+	}
+	
 	/**
 	 * Goes to source and actually updates the locally-stored status of the relay.
 	 * 
@@ -178,7 +212,17 @@ public abstract class RelayManager {
 		return managedRelays.values();
 	}
 	
+	/**
+	 * Gets the registry holding the relays managed by this instance, for
+	 * allocation-free lookups by number, pin, Xbee pin, node or label.
+	 * 
+	 * @return the relay registry
+	 */
+	public RelayRegistry getRegistry() {
+		return managedRelays;
+	}
+	
 	// Stores the relays being managed by this RelayManager
 	// protected and not private so it can be inherited
-	protected Map<Integer,Relay> managedRelays;
+	protected RelayRegistry managedRelays = new RelayRegistry();
 }
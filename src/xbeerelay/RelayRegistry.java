@@ -0,0 +1,483 @@
+package xbeerelay;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import xbeerelay.Relay.XbeeDigitalIOPin;
+
+/**
+ * Stores the relays managed by a RelayManager.  Relays are kept in a dense
+ * array and indexed by relay number with a primitive open-addressing table,
+ * so looking a relay up by number is O(1) and never boxes or allocates.
+ *
+ * <p>Relays are also indexed by MCU pin, Xbee pin, node and label.  These
+ * secondary keys aren't unique (two nodes can both have a relay on MCU pin 2),
+ * so each secondary index maps a key to the first matching relay, and the
+ * rest are reached with the matching nextBy... method:
+ *
+ * <pre>
+ * for (Relay r = registry.getByPin(2); r != null; r = registry.nextByPin(r)) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * <p>A relay can belong to only one registry at a time.  Changing a relay's
+ * pin, Xbee pin, node or label while it is registered updates the indexes.
+ *
+ * <p>This class is not thread-safe; RelayManagers are synchronized on by
+ * their users.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class RelayRegistry {
+
+	/**
+	 * Constructs a new, empty registry.
+	 */
+	public RelayRegistry() {
+		this(16);
+	}
+
+	/**
+	 * Constructs a new, empty registry sized for the given number of relays.
+	 *
+	 * @param inExpectedSize number of relays expected
+	 */
+	public RelayRegistry(int inExpectedSize) {
+		int capacity = Math.max(inExpectedSize, 4);
+		relays = new Relay[capacity];
+		byNumber = new LongIntMap(capacity);
+		byPin = new Chain(capacity);
+		byXbeePin = new Chain(capacity);
+		byNode = new Chain(capacity);
+		byLabel = new Chain(capacity);
+	}
+
+	/**
+	 * Adds a relay to this registry.
+	 *
+	 * @param inRelay relay to add
+	 * @throws RelayException if the relay number is already in use, or the relay
+	 *   already belongs to a registry
+	 */
+	public void add(Relay inRelay)
+		throws RelayException {
+		checkAddable(inRelay);
+		if (byNumber.containsKey(inRelay.getNumber())) {
+			throw new RelayException("Relay number " + inRelay.getNumber() + " already in use!");
+		}
+		ensureCapacity(size + 1);
+		insert(inRelay);
+	}
+
+	/**
+	 * Adds several relays to this registry.  Either all of them are added or,
+	 * if any of them can't be, none are.
+	 *
+	 * @param inRelays relays to add
+	 * @throws RelayException if any relay number is already in use (in this
+	 *   registry or twice in the input), or any relay already belongs to a registry
+	 */
+	public void addAll(Relay[] inRelays)
+		throws RelayException {
+		LongIntMap seen = new LongIntMap(inRelays.length);
+		for (Relay r : inRelays) {
+			checkAddable(r);
+			if (byNumber.containsKey(r.getNumber()) || seen.containsKey(r.getNumber())) {
+				throw new RelayException("Relay number " + r.getNumber() + " already in use!");
+			}
+			seen.put(r.getNumber(), 0);
+		}
+		ensureCapacity(size + inRelays.length);
+		for (Relay r : inRelays) {
+			insert(r);
+		}
+	}
+
+	/**
+	 * Removes a relay from this registry.
+	 *
+	 * @param inRelayNumber number of the relay to remove
+	 * @return the removed relay, or null if there was no such relay
+	 */
+	public Relay remove(int inRelayNumber) {
+		int index = byNumber.remove(inRelayNumber);
+		if (index == LongIntMap.MISSING) {
+			return null;
+		}
+		Relay removed = relays[index];
+		unlinkSecondary(removed);
+
+		// Keep the array dense by moving the last relay into the hole
+		int last = size - 1;
+		if (index != last) {
+			Relay moved = relays[last];
+			relays[index] = moved;
+			moved.registryIndex = index;
+			byNumber.put(moved.getNumber(), index);
+			byPin.move(last, index, moved.getPin());
+			byXbeePin.move(last, index, xbeePinKey(moved));
+			byNode.move(last, index, moved.getNode());
+			byLabel.move(last, index, moved.getLabel().hashCode());
+		}
+		relays[last] = null;
+		size--;
+
+		removed.registry = null;
+		removed.registryIndex = -1;
+		return removed;
+	}
+
+	/**
+	 * Removes every relay from this registry.
+	 */
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			relays[i].registry = null;
+			relays[i].registryIndex = -1;
+			relays[i] = null;
+		}
+		size = 0;
+		byNumber.clear();
+		byPin.clear();
+		byXbeePin.clear();
+		byNode.clear();
+		byLabel.clear();
+	}
+
+	/**
+	 * Gets a relay by its relay number.
+	 *
+	 * @param inRelayNumber relay number
+	 * @return the relay, or null if there is no such relay
+	 */
+	public Relay get(int inRelayNumber) {
+		int index = byNumber.get(inRelayNumber);
+		return index == LongIntMap.MISSING ? null : relays[index];
+	}
+
+	/**
+	 * Checks if a relay number is in use.
+	 *
+	 * @param inRelayNumber relay number
+	 * @return true if a relay with this number is registered
+	 */
+	public boolean contains(int inRelayNumber) {
+		return byNumber.containsKey(inRelayNumber);
+	}
+
+	/**
+	 * Gets the first relay on the given MCU pin.
+	 *
+	 * @param inDP pin number on MCU
+	 * @return a relay, or null if none is on that pin
+	 */
+	public Relay getByPin(int inDP) {
+		return relayAtIndex(byPin.head(inDP));
+	}
+
+	/**
+	 * Gets the next relay on the same MCU pin as the given relay.
+	 *
+	 * @param inRelay a registered relay
+	 * @return the next relay, or null if there are no more
+	 */
+	public Relay nextByPin(Relay inRelay) {
+		return relayAtIndex(byPin.next[indexOf(inRelay)]);
+	}
+
+	/**
+	 * Gets the first relay monitored by the given Xbee pin.
+	 *
+	 * @param inXbeePin Xbee digital IO pin
+	 * @return a relay, or null if none is monitored by that pin
+	 */
+	public Relay getByXbeePin(XbeeDigitalIOPin inXbeePin) {
+		return relayAtIndex(byXbeePin.head(inXbeePin == null ? -1 : inXbeePin.ordinal()));
+	}
+
+	/**
+	 * Gets the next relay monitored by the same Xbee pin as the given relay.
+	 *
+	 * @param inRelay a registered relay
+	 * @return the next relay, or null if there are no more
+	 */
+	public Relay nextByXbeePin(Relay inRelay) {
+		return relayAtIndex(byXbeePin.next[indexOf(inRelay)]);
+	}
+
+	/**
+	 * Gets the first relay on the given node.
+	 *
+	 * @param inNode packed 64-bit node address (see NodeAddress)
+	 * @return a relay, or null if none is on that node
+	 */
+	public Relay getByNode(long inNode) {
+		return relayAtIndex(byNode.head(inNode));
+	}
+
+	/**
+	 * Gets the next relay on the same node as the given relay.
+	 *
+	 * @param inRelay a registered relay
+	 * @return the next relay, or null if there are no more
+	 */
+	public Relay nextByNode(Relay inRelay) {
+		return relayAtIndex(byNode.next[indexOf(inRelay)]);
+	}
+
+	/**
+	 * Gets the first relay with the given label.
+	 *
+	 * @param inLabel label
+	 * @return a relay, or null if none has that label
+	 */
+	public Relay getByLabel(String inLabel) {
+		return matchLabel(byLabel.head(inLabel.hashCode()), inLabel);
+	}
+
+	/**
+	 * Gets the next relay with the same label as the given relay.
+	 *
+	 * @param inRelay a registered relay
+	 * @return the next relay, or null if there are no more
+	 */
+	public Relay nextByLabel(Relay inRelay) {
+		return matchLabel(byLabel.next[indexOf(inRelay)], inRelay.getLabel());
+	}
+
+	/**
+	 * Gets the number of relays in this registry.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the relay at a position in this registry, for iterating without
+	 * allocating an iterator.  Positions run from 0 to size() - 1 and change
+	 * when relays are removed.
+	 *
+	 * @param inIndex position
+	 * @return the relay at that position
+	 */
+	public Relay relayAt(int inIndex) {
+		if (inIndex < 0 || inIndex >= size) {
+			throw new IndexOutOfBoundsException("Index: " + inIndex + ", size: " + size);
+		}
+		return relays[inIndex];
+	}
+
+	/**
+	 * Gets a live, read-only view of the relays in this registry.
+	 *
+	 * @return collection of registered relays
+	 */
+	public Collection<Relay> values() {
+		return values;
+	}
+
+	/**
+	 * Called by a registered relay just before one of its indexed properties changes.
+	 */
+	void unlinkSecondary(Relay inRelay) {
+		int index = inRelay.registryIndex;
+		byPin.unlink(index, inRelay.getPin());
+		byXbeePin.unlink(index, xbeePinKey(inRelay));
+		byNode.unlink(index, inRelay.getNode());
+		byLabel.unlink(index, inRelay.getLabel().hashCode());
+	}
+
+	/**
+	 * Called by a registered relay just after one of its indexed properties changed.
+	 */
+	void linkSecondary(Relay inRelay) {
+		int index = inRelay.registryIndex;
+		byPin.link(index, inRelay.getPin());
+		byXbeePin.link(index, xbeePinKey(inRelay));
+		byNode.link(index, inRelay.getNode());
+		byLabel.link(index, inRelay.getLabel().hashCode());
+	}
+
+	private void checkAddable(Relay inRelay)
+		throws RelayException {
+		if (inRelay == null) {
+			throw new RelayException("Cannot manage a null relay!");
+		}
+		if (inRelay.registry != null) {
+			throw new RelayException("Relay number " + inRelay.getNumber() + " is already managed!");
+		}
+	}
+
+	private void insert(Relay inRelay) {
+		int index = size++;
+		relays[index] = inRelay;
+		inRelay.registry = this;
+		inRelay.registryIndex = index;
+		byNumber.put(inRelay.getNumber(), index);
+		linkSecondary(inRelay);
+	}
+
+	private void ensureCapacity(int inCapacity) {
+		if (inCapacity > relays.length) {
+			int capacity = Math.max(inCapacity, relays.length * 2);
+			Relay[] grown = new Relay[capacity];
+			System.arraycopy(relays, 0, grown, 0, size);
+			relays = grown;
+			byPin.grow(capacity);
+			byXbeePin.grow(capacity);
+			byNode.grow(capacity);
+			byLabel.grow(capacity);
+		}
+	}
+
+	private int indexOf(Relay inRelay) {
+		if (inRelay.registry != this) {
+			throw new IllegalArgumentException("Relay number " + inRelay.getNumber() + " is not in this registry");
+		}
+		return inRelay.registryIndex;
+	}
+
+	private Relay relayAtIndex(int inIndex) {
+		return inIndex == LongIntMap.MISSING ? null : relays[inIndex];
+	}
+
+	// Labels are indexed by hash code, so skip over colliding labels
+	private Relay matchLabel(int inIndex, String inLabel) {
+		while (inIndex != LongIntMap.MISSING && !relays[inIndex].getLabel().equals(inLabel)) {
+			inIndex = byLabel.next[inIndex];
+		}
+		return relayAtIndex(inIndex);
+	}
+
+	private static long xbeePinKey(Relay inRelay) {
+		return inRelay.getXbeePin() == null ? -1 : inRelay.getXbeePin().ordinal();
+	}
+
+	/**
+	 * A non-unique index: maps each key to the first relay position with that key,
+	 * and links positions with the same key into a doubly linked list.
+	 */
+	private static final class Chain {
+
+		Chain(int inCapacity) {
+			heads = new LongIntMap(inCapacity);
+			next = new int[inCapacity];
+			prev = new int[inCapacity];
+		}
+
+		int head(long inKey) {
+			return heads.get(inKey);
+		}
+
+		void link(int inIndex, long inKey) {
+			int head = heads.get(inKey);
+			next[inIndex] = head;
+			prev[inIndex] = LongIntMap.MISSING;
+			if (head != LongIntMap.MISSING) {
+				prev[head] = inIndex;
+			}
+			heads.put(inKey, inIndex);
+		}
+
+		void unlink(int inIndex, long inKey) {
+			int p = prev[inIndex];
+			int n = next[inIndex];
+			if (p == LongIntMap.MISSING) {
+				if (n == LongIntMap.MISSING) {
+					heads.remove(inKey);
+				} else {
+					heads.put(inKey, n);
+				}
+			} else {
+				next[p] = n;
+			}
+			if (n != LongIntMap.MISSING) {
+				prev[n] = p;
+			}
+		}
+
+		// Relinks the entry at inFrom so it lives at inTo
+		void move(int inFrom, int inTo, long inKey) {
+			int p = prev[inFrom];
+			int n = next[inFrom];
+			next[inTo] = n;
+			prev[inTo] = p;
+			if (p == LongIntMap.MISSING) {
+				heads.put(inKey, inTo);
+			} else {
+				next[p] = inTo;
+			}
+			if (n != LongIntMap.MISSING) {
+				prev[n] = inTo;
+			}
+		}
+
+		void grow(int inCapacity) {
+			int[] grownNext = new int[inCapacity];
+			int[] grownPrev = new int[inCapacity];
+			System.arraycopy(next, 0, grownNext, 0, next.length);
+			System.arraycopy(prev, 0, grownPrev, 0, prev.length);
+			next = grownNext;
+			prev = grownPrev;
+		}
+
+		void clear() {
+			heads.clear();
+		}
+
+		private final LongIntMap heads;
+		int[] next;
+		int[] prev;
+	}
+
+	private final RelayView values = new RelayView();
+
+	/**
+	 * Read-only view over the dense relay array.
+	 */
+	private final class RelayView extends AbstractCollection<Relay> {
+
+		@Override
+		public Iterator<Relay> iterator() {
+			return new Iterator<Relay>() {
+
+				@Override
+				public boolean hasNext() {
+					return position < size;
+				}
+
+				@Override
+				public Relay next() {
+					if (position >= size) {
+						throw new NoSuchElementException();
+					}
+					return relays[position++];
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException("Use RelayManager.removeManagedRelay");
+				}
+
+				private int position;
+			};
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+
+	private Relay[] relays;
+	private int size;
+	private final LongIntMap byNumber;
+	private final Chain byPin;
+	private final Chain byXbeePin;
+	private final Chain byNode;
+	private final Chain byLabel;
+}
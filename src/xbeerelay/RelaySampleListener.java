@@ -0,0 +1,19 @@
+package xbeerelay;
+
+/**
+ * Notified each time an XbeeRelayManager has updated its relays from an IO sample.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public interface RelaySampleListener {
+
+	/**
+	 * Called after a manager has updated the status of its relays from a sample.
+	 * The manager is locked while this is called, so keep it short.
+	 *
+	 * @param inManager the manager whose relays were updated
+	 * @param inNanos System.nanoTime() when the sample was processed
+	 */
+	void sampleProcessed(XbeeRelayManager inManager, long inNanos);
+}
@@ -0,0 +1,91 @@
+package xbeerelay;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import xbeerelay.Relay.RelayStatus;
+
+/**
+ * A named set of relays, each with the state it should be in (e.g. "night mode":
+ * porch light on, everything else in wing B off).  Scenes are defined on a
+ * RelayFleet, which switches all of their relays at once.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class RelayScene {
+
+	/**
+	 * Constructs a new, empty scene.
+	 *
+	 * @param inName name of the scene
+	 */
+	public RelayScene(String inName) {
+		name = inName;
+	}
+
+	/**
+	 * Adds a relay to this scene.
+	 *
+	 * @param inRelay relay to switch
+	 * @param inTarget state the relay should be in, ON or OFF
+	 * @return this scene, so calls can be chained
+	 * @throws RelayException if the target is UNITIALIZED, or the relay is already in this scene
+	 */
+	public RelayScene set(Relay inRelay, RelayStatus inTarget)
+		throws RelayException {
+		if (inTarget != RelayStatus.ON && inTarget != RelayStatus.OFF) {
+			throw new RelayException("A scene can only turn relays on or off");
+		}
+		for (Relay r : relays) {
+			if (r == inRelay) {
+				throw new RelayException("Relay " + inRelay.getLabel() + " is already in scene " + name);
+			}
+		}
+		relays.add(inRelay);
+		targets.add(inTarget);
+		return this;
+	}
+
+	/**
+	 * Adds several relays to this scene, all with the same target state.
+	 *
+	 * @param inRelays relays to switch
+	 * @param inTarget state the relays should be in, ON or OFF
+	 * @return this scene, so calls can be chained
+	 * @throws RelayException if the target is UNITIALIZED, or a relay is already in this scene
+	 */
+	public RelayScene setAll(Relay[] inRelays, RelayStatus inTarget)
+		throws RelayException {
+		for (Relay r : inRelays) {
+			set(r, inTarget);
+		}
+		return this;
+	}
+
+	/**
+	 * Gets the name of this scene.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Gets the relays in this scene, in the order they were added.
+	 */
+	public List<Relay> getRelays() {
+		return Collections.unmodifiableList(relays);
+	}
+
+	/**
+	 * Gets the target states of the relays in this scene, in the same order as getRelays.
+	 */
+	public List<RelayStatus> getTargets() {
+		return Collections.unmodifiableList(targets);
+	}
+
+	private String name;
+	private List<Relay> relays = new ArrayList<Relay>();
+	private List<RelayStatus> targets = new ArrayList<RelayStatus>();
+}
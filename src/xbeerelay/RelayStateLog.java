@@ -0,0 +1,580 @@
+package xbeerelay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import xbeerelay.Relay.RelayStatus;
+
+/**
+ * An append-only log of every relay's state over time, compact enough to keep
+ * in memory and quick to answer "what was on at time t".
+ *
+ * <p>Each node's relays are held as a mask with the IoSamples bit of every
+ * relay that is ON.  When a sample changes a node's mask, the log gets a delta
+ * record with the node and the bits that flipped (old mask XOR new mask), a
+ * few bytes per change.  Every SNAPSHOT_INTERVAL deltas it also gets a snapshot
+ * of every node's mask, and the snapshots' times are kept in an index.  To
+ * rebuild the state at a time, stateAt() binary searches for the last snapshot
+ * before it and replays the deltas after it.
+ *
+ * <p>A log backed by a file writes its records out as it goes: once 4 KB have
+ * built up, or the oldest unwritten record is a second old, whichever comes
+ * first.  The age is checked as records come in and also on a timer (a daemon
+ * thread per log, stopped by close()), so a last burst of transitions goes out
+ * even if nothing follows it.  So a crash loses at most about a second of
+ * transitions, and what it
+ * cut short is dropped when the log is opened again.  After each write, memory
+ * is trimmed to the records from the last snapshot on; stateAt() reads older
+ * stretches back from the file, one snapshot interval at a time.  A log kept
+ * only in memory keeps everything.
+ *
+ * <p>The log format is a header followed by records:
+ * <pre>
+ * header:   int MAGIC, short VERSION, long wall-clock millis at start
+ * record:   varlong (millis since previous record &lt;&lt; 2 | kind), then
+ * NODE:     varlong 64-bit address (the node gets the next index)
+ * DELTA:    varint node index, varint flipped bits
+ * SNAPSHOT: varint node count, varint mask per node
+ * </pre>
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class RelayStateLog implements RelaySampleListener {
+
+	/** Identifies a relay state log file ("XBSL"). */
+	public static final int MAGIC = 0x5842534C;
+	/** Log format version. */
+	public static final short VERSION = 1;
+	/** Deltas between snapshots. */
+	public static final int SNAPSHOT_INTERVAL = 512;
+
+	private static final int NODE = 0;
+	private static final int DELTA = 1;
+	private static final int SNAPSHOT = 2;
+	private static final int HEADER_BYTES = 4 + 2 + 8;
+	private static final int FLUSH_BYTES = 4096;
+	private static final long FLUSH_MILLIS = 1000;
+	private static final long FLUSH_CHECK_MILLIS = FLUSH_MILLIS / 4;
+	private static final int LOAD_CHUNK_BYTES = 64 * 1024;
+
+	/**
+	 * Constructs a log kept only in memory.
+	 */
+	public RelayStateLog() {
+		startMillis = System.currentTimeMillis();
+		lastMillis = startMillis;
+	}
+
+	/**
+	 * Constructs a log backed by a file.  If the file already holds a log it is
+	 * loaded and appended to; a record cut short by a crash is dropped.
+	 *
+	 * @param inFile the log file
+	 * @throws IOException if the file can't be read or isn't a relay state log
+	 */
+	public RelayStateLog(File inFile)
+		throws IOException {
+		file = new RandomAccessFile(inFile, "rw");
+		try {
+			if (file.length() == 0) {
+				startMillis = System.currentTimeMillis();
+				lastMillis = startMillis;
+				file.writeInt(MAGIC);
+				file.writeShort(VERSION);
+				file.writeLong(startMillis);
+			} else {
+				if (file.length() < HEADER_BYTES || file.readInt() != MAGIC || file.readShort() != VERSION) {
+					throw new IOException(inFile + " is not a relay state log this version can read");
+				}
+				startMillis = file.readLong();
+				lastMillis = startMillis;
+				long end = load();
+				file.setLength(HEADER_BYTES + end); // drops a partial last record
+				// Keep the records from the last snapshot on
+				base = snapshotCount == 0 ? 0 : snapshotOffsets[snapshotCount - 1];
+				size = (int) (end - base);
+				ensureCapacity(size);
+				file.seek(HEADER_BYTES + base);
+				file.readFully(log, 0, size);
+			}
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+		flushed = size;
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "xbee-state-log");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		flusher.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				flushIfOld(System.currentTimeMillis());
+			}
+		}, FLUSH_CHECK_MILLIS, FLUSH_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/* (non-Javadoc)
+	 * @see xbeerelay.RelaySampleListener#sampleProcessed(xbeerelay.XbeeRelayManager, long)
+	 */
+	@Override
+	public void sampleProcessed(XbeeRelayManager inManager, long inNanos) {
+		RelayRegistry relays = inManager.getRegistry();
+		int mask = 0;
+		for (int i = 0; i < relays.size(); i++) {
+			Relay r = relays.relayAt(i);
+			if (r.getStatus() == RelayStatus.ON) {
+				mask |= IoSamples.bit(r.getXbeePin());
+			}
+		}
+		record(inManager.getNode(), mask, System.currentTimeMillis());
+	}
+
+	/**
+	 * Records a node's relay mask.  Nothing is written unless it has changed.
+	 *
+	 * @param inNode packed 64-bit node address (see NodeAddress)
+	 * @param inMask IoSamples bit of every relay on the node that is ON
+	 * @param inTimeMillis when, as System.currentTimeMillis(); earlier than the last record counts as the same time
+	 */
+	public synchronized void record(long inNode, int inMask, long inTimeMillis) {
+		flushIfOld(inTimeMillis);
+		int index = nodeIndex.get(inNode);
+		if (index == LongIntMap.MISSING) {
+			if (inMask == 0) {
+				return; // new nodes start out all OFF
+			}
+			index = addNode(inNode);
+			writeHeader(NODE, inTimeMillis);
+			writeVarLong(inNode);
+		}
+		int flipped = masks[index] ^ inMask;
+		if (flipped == 0) {
+			return;
+		}
+		writeHeader(DELTA, inTimeMillis);
+		writeVarLong(index);
+		writeVarLong(flipped);
+		masks[index] = inMask;
+		transitions += Integer.bitCount(flipped);
+		if (++deltasSinceSnapshot >= SNAPSHOT_INTERVAL) {
+			snapshot(inTimeMillis);
+		}
+		if (file != null && size - flushed >= FLUSH_BYTES) {
+			flushQuietly();
+		}
+	}
+
+	/**
+	 * Rebuilds every node's relay mask at a time.
+	 *
+	 * @param inTimeMillis the time, as System.currentTimeMillis()
+	 * @return masks indexed by node index (see getNodeIndex); nodes not seen yet are 0
+	 * @throws IOException if the records for that time have to be read from the
+	 * file and can't be
+	 */
+	public synchronized int[] stateAt(long inTimeMillis)
+		throws IOException {
+		int[] state = new int[nodeCount];
+		int s = lastSnapshotAtOrBefore(inTimeMillis);
+		long from = s < 0 ? 0 : snapshotOffsets[s];
+		byte[] records;
+		int position;
+		int end;
+		if (from >= base) {
+			records = log;
+			position = (int) (from - base);
+			end = size;
+		} else {
+			// Trimmed from memory; the next snapshot is after the time, so read up to it
+			if (file == null) {
+				throw new IOException("Relay state log is closed");
+			}
+			records = new byte[(int) (snapshotOffsets[s + 1] - from)];
+			file.seek(HEADER_BYTES + from);
+			file.readFully(records);
+			position = 0;
+			end = records.length;
+		}
+		// Time of the record before the starting one, since each header holds a delta
+		long time = s < 0 ? startMillis : snapshotTimes[s] - (readVarLong(records, new int[] { position }) >>> 2);
+		int[] cursor = { position };
+		while (cursor[0] < end) {
+			long header = readVarLong(records, cursor);
+			time += header >>> 2;
+			if (time > inTimeMillis) {
+				break;
+			}
+			int kind = (int) (header & 3);
+			if (kind == NODE) {
+				readVarLong(records, cursor);
+			} else if (kind == DELTA) {
+				int node = (int) readVarLong(records, cursor);
+				state[node] ^= (int) readVarLong(records, cursor);
+			} else {
+				int count = (int) readVarLong(records, cursor);
+				for (int i = 0; i < count; i++) {
+					state[i] = (int) readVarLong(records, cursor);
+				}
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * Gets a node's relay mask at a time.
+	 *
+	 * @param inNode packed 64-bit node address (see NodeAddress)
+	 * @param inTimeMillis the time, as System.currentTimeMillis()
+	 * @return IoSamples bit of every relay on the node that was ON
+	 * @throws IOException if the records for that time can't be read
+	 */
+	public synchronized int maskAt(long inNode, long inTimeMillis)
+		throws IOException {
+		int index = nodeIndex.get(inNode);
+		return index == LongIntMap.MISSING ? 0 : stateAt(inTimeMillis)[index];
+	}
+
+	/**
+	 * Checks whether a relay was ON at a time.
+	 *
+	 * @param inRelay the relay
+	 * @param inTimeMillis the time, as System.currentTimeMillis()
+	 * @return true if the log had it ON then
+	 * @throws IOException if the records for that time can't be read
+	 */
+	public boolean wasOn(Relay inRelay, long inTimeMillis)
+		throws IOException {
+		return (maskAt(inRelay.getNode(), inTimeMillis) & IoSamples.bit(inRelay.getXbeePin())) != 0;
+	}
+
+	/**
+	 * Gets the index a node's mask has in the arrays stateAt() returns.
+	 *
+	 * @param inNode packed 64-bit node address (see NodeAddress)
+	 * @return the index, or -1 if the node isn't in the log
+	 */
+	public synchronized int getNodeIndex(long inNode) {
+		int index = nodeIndex.get(inNode);
+		return index == LongIntMap.MISSING ? -1 : index;
+	}
+
+	/**
+	 * Gets the node with an index.
+	 *
+	 * @param inIndex node index
+	 * @return packed 64-bit node address
+	 */
+	public synchronized long getNode(int inIndex) {
+		if (inIndex < 0 || inIndex >= nodeCount) {
+			throw new IndexOutOfBoundsException("No node " + inIndex);
+		}
+		return nodes[inIndex];
+	}
+
+	/**
+	 * Gets the number of relay transitions recorded (one per relay that switched).
+	 */
+	public synchronized long getTransitionCount() {
+		return transitions;
+	}
+
+	/**
+	 * Gets the size of the log's records.
+	 *
+	 * @return size in bytes
+	 */
+	public synchronized long getByteCount() {
+		return base + size;
+	}
+
+	/**
+	 * Gets the size of the records held in memory.
+	 *
+	 * @return size in bytes
+	 */
+	public synchronized int getMemoryByteCount() {
+		return size;
+	}
+
+	/**
+	 * Writes the records not yet on disk, then trims memory to the records from
+	 * the last snapshot on.  Does nothing for a log kept in memory.  Records are
+	 * written as they build up anyway; call this to be sure they're out now.
+	 *
+	 * @throws IOException if the file can't be written
+	 */
+	public synchronized void flush()
+		throws IOException {
+		if (file == null) {
+			return;
+		}
+		if (flushed < size) {
+			file.seek(HEADER_BYTES + base + flushed);
+			file.write(log, flushed, size - flushed);
+			flushed = size;
+		}
+		trim();
+	}
+
+	/**
+	 * Flushes and closes the log's file, and stops its timer.
+	 *
+	 * @throws IOException if the file can't be written
+	 */
+	public synchronized void close()
+		throws IOException {
+		if (flusher != null) {
+			flusher.shutdown();
+			flusher = null;
+		}
+		if (file != null) {
+			try {
+				flush();
+			} finally {
+				file.close();
+				file = null;
+			}
+		}
+	}
+
+	/*
+	 * Parses the file's records a chunk at a time, rebuilding the node table,
+	 * masks and snapshot index, and returns where the last whole record ends.
+	 */
+	private long load()
+		throws IOException {
+		long records = file.length() - HEADER_BYTES;
+		byte[] chunk = new byte[LOAD_CHUNK_BYTES];
+		long chunkOffset = 0; // record offset of chunk[0]
+		int have = 0;
+		file.seek(HEADER_BYTES);
+		while (true) {
+			int wanted = (int) Math.min(chunk.length - have, records - chunkOffset - have);
+			file.readFully(chunk, have, wanted);
+			have += wanted;
+			boolean atEnd = chunkOffset + have == records;
+			int parsed = loadRecords(chunk, have, chunkOffset);
+			if (atEnd || parsed < 0) {
+				// The end, or a record that doesn't make sense (cut short by a crash)
+				return chunkOffset + Math.abs(parsed);
+			}
+			if (parsed == 0) {
+				// One record bigger than the chunk (a snapshot of many nodes)
+				chunk = Arrays.copyOf(chunk, chunk.length * 2);
+				continue;
+			}
+			System.arraycopy(chunk, parsed, chunk, 0, have - parsed);
+			have -= parsed;
+			chunkOffset += parsed;
+		}
+	}
+
+	/*
+	 * Loads the whole records in the first inLength bytes, which start at record
+	 * offset inOffset, returning the length they take up, negated if one is bad.
+	 */
+	private int loadRecords(byte[] inBytes, int inLength, long inOffset) {
+		int[] cursor = { 0 };
+		int end = 0;
+		while (cursor[0] < inLength) {
+			try {
+				long header = readVarLong(inBytes, cursor);
+				long time = lastMillis + (header >>> 2);
+				int kind = (int) (header & 3);
+				if (kind == NODE) {
+					long node = readVarLong(inBytes, cursor);
+					if (cursor[0] > inLength) {
+						break;
+					}
+					addNode(node);
+				} else if (kind == DELTA) {
+					int node = (int) readVarLong(inBytes, cursor);
+					int flipped = (int) readVarLong(inBytes, cursor);
+					if (cursor[0] > inLength) {
+						break;
+					}
+					if (node < 0 || node >= nodeCount) {
+						return -end;
+					}
+					masks[node] ^= flipped;
+					transitions += Integer.bitCount(flipped);
+					deltasSinceSnapshot++;
+				} else if (kind == SNAPSHOT) {
+					int count = (int) readVarLong(inBytes, cursor);
+					for (int i = 0; i < count && cursor[0] <= inLength; i++) {
+						readVarLong(inBytes, cursor);
+					}
+					if (cursor[0] > inLength) {
+						break;
+					}
+					addSnapshot(time, inOffset + end);
+				} else {
+					return -end;
+				}
+				lastMillis = time;
+			} catch (ArrayIndexOutOfBoundsException e) {
+				break; // runs past the chunk
+			}
+			end = cursor[0];
+		}
+		return end;
+	}
+
+	private void snapshot(long inTimeMillis) {
+		long start = base + size;
+		long time = writeHeader(SNAPSHOT, inTimeMillis);
+		writeVarLong(nodeCount);
+		for (int i = 0; i < nodeCount; i++) {
+			writeVarLong(masks[i]);
+		}
+		addSnapshot(time, start);
+	}
+
+	private void addSnapshot(long inTimeMillis, long inOffset) {
+		if (snapshotCount == snapshotTimes.length) {
+			snapshotTimes = Arrays.copyOf(snapshotTimes, snapshotCount * 2);
+			snapshotOffsets = Arrays.copyOf(snapshotOffsets, snapshotCount * 2);
+		}
+		snapshotTimes[snapshotCount] = inTimeMillis;
+		snapshotOffsets[snapshotCount] = inOffset;
+		snapshotCount++;
+		deltasSinceSnapshot = 0;
+	}
+
+	private int lastSnapshotAtOrBefore(long inTimeMillis) {
+		int low = 0;
+		int high = snapshotCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (snapshotTimes[mid] <= inTimeMillis) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low - 1;
+	}
+
+	// Drops the records before the last snapshot from memory; they're all on disk
+	private void trim() {
+		if (snapshotCount == 0 || snapshotOffsets[snapshotCount - 1] <= base) {
+			return;
+		}
+		int drop = (int) (snapshotOffsets[snapshotCount - 1] - base);
+		System.arraycopy(log, drop, log, 0, size - drop);
+		size -= drop;
+		flushed -= drop;
+		base += drop;
+		if (log.length > 4 * Math.max(size, 4096)) {
+			log = Arrays.copyOf(log, Math.max(size * 2, 4096));
+		}
+	}
+
+	// Writes the records out if the oldest not yet on disk is FLUSH_MILLIS old at inNowMillis
+	synchronized void flushIfOld(long inNowMillis) {
+		if (file != null && flushed < size && inNowMillis - unflushedSinceMillis >= FLUSH_MILLIS) {
+			flushQuietly();
+		}
+	}
+
+	// A failed automatic write is reported, and tried again when flushed or closed
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (IOException e) {
+			// TODO: Log error.
+			e.printStackTrace();
+			unflushedSinceMillis = Long.MAX_VALUE / 2;
+		}
+	}
+
+	private int addNode(long inNode) {
+		if (nodeCount == nodes.length) {
+			nodes = Arrays.copyOf(nodes, nodeCount * 2);
+			masks = Arrays.copyOf(masks, nodeCount * 2);
+		}
+		nodes[nodeCount] = inNode;
+		nodeIndex.put(inNode, nodeCount);
+		return nodeCount++;
+	}
+
+	private long writeHeader(int inKind, long inTimeMillis) {
+		long time = Math.max(inTimeMillis, lastMillis);
+		if (flushed == size) {
+			unflushedSinceMillis = time;
+		}
+		writeVarLong(((time - lastMillis) << 2) | inKind);
+		lastMillis = time;
+		return time;
+	}
+
+	private void writeVarLong(long inValue) {
+		ensureCapacity(size + 10);
+		size = writeVarLong(log, size, inValue);
+	}
+
+	// Unsigned LEB128; returns the offset after it.  At most 10 bytes.
+	static int writeVarLong(byte[] outBytes, int inOffset, long inValue) {
+		while ((inValue & ~0x7fL) != 0) {
+			outBytes[inOffset++] = (byte) ((inValue & 0x7f) | 0x80);
+			inValue >>>= 7;
+		}
+		outBytes[inOffset++] = (byte) inValue;
+		return inOffset;
+	}
+
+	// Reads what writeVarLong wrote at inCursor[0], moving the cursor past it
+	static long readVarLong(byte[] inBytes, int[] inCursor) {
+		long value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = inBytes[inCursor[0]++];
+			value |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	private void ensureCapacity(int inSize) {
+		if (inSize > log.length) {
+			log = Arrays.copyOf(log, Math.max(inSize, log.length * 2));
+		}
+	}
+
+	private RandomAccessFile file;
+	private ScheduledExecutorService flusher;
+	private final long startMillis;
+	private long lastMillis;
+	// Records in memory, from record offset base on, and how much of them is on disk
+	private byte[] log = new byte[4096];
+	private long base;
+	private int size;
+	private int flushed;
+	private long unflushedSinceMillis; // time of the oldest record not on disk
+	// Nodes in the order they were first seen, and their current masks
+	private final LongIntMap nodeIndex = new LongIntMap(64);
+	private long[] nodes = new long[64];
+	private int[] masks = new int[64];
+	private int nodeCount;
+	// Snapshot index
+	private long[] snapshotTimes = new long[16];
+	private long[] snapshotOffsets = new long[16]; // record offsets
+	private int snapshotCount;
+	private int deltasSinceSnapshot;
+	private long transitions;
+}
@@ -0,0 +1,555 @@
+package xbeerelay;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import xbeerelay.Relay.RelayStatus;
+
+/**
+ * Rows for the relay table, read from a fleet's relay registries and filtered
+ * and sorted for display, so the table can be virtual (SWT.VIRTUAL) and only
+ * build the rows that are on screen.
+ *
+ * <p>refresh() takes a snapshot of every relay's status, power and node, one
+ * relay manager at a time so samples are only held up briefly, and works out
+ * which relays are shown and in what order.  Given a SampleWindow, it also
+ * works out how much of the recent past each relay has been on, from one scan
+ * of the window's samples per refresh.  The snapshot is kept column by
+ * column in arrays that are reused from one refresh to the next, and lower-cased
+ * labels and node addresses are only worked out again when they change, so a
+ * refresh of 10,000 relays allocates next to nothing.  A table asks for a row's
+ * text only when the row is drawn.
+ *
+ * <p>The filter is a list of terms separated by spaces, all of which a relay
+ * has to match.  A term matches if it appears (ignoring case) in the relay's
+ * label, node address or status; <code>label:</code>, <code>node:</code> or
+ * <code>status:</code> in front of a term only matches that property.  While
+ * the user types, each new filter usually only narrows the one before (another
+ * letter, or another term), so only the relays already shown are checked again.
+ *
+ * <p>This class is not thread-safe; use it from the UI thread.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class RelayTableModel {
+
+	/** Column showing the relay's label. */
+	public static final int LABEL_COLUMN = 0;
+	/** Column showing the relay's number. */
+	public static final int NUMBER_COLUMN = 1;
+	/** Column showing the relay's MCU pin. */
+	public static final int PIN_COLUMN = 2;
+	/** Column showing the relay's status. */
+	public static final int STATUS_COLUMN = 3;
+	/** Column showing the power attributed to the relay. */
+	public static final int POWER_COLUMN = 4;
+	/** Column showing the share of recent samples in which the relay was on. */
+	public static final int DUTY_COLUMN = 5;
+	/** Column showing the relay's node address. */
+	public static final int NODE_COLUMN = 6;
+	/** Number of columns. */
+	public static final int COLUMN_COUNT = 7;
+
+	private static final String[] TITLES = { "Label", "Relay #", "Pin #", "Status", "Power (mW)", "On (%)", "Node" };
+	// Bits in a digital mask
+	private static final int MASK_BITS = 32;
+
+	// Filter keys; a term without one matches any of them
+	private static final int ANY_KEY = 0;
+	private static final int LABEL_KEY = 1;
+	private static final int NODE_KEY = 2;
+	private static final int STATUS_KEY = 3;
+	private static final String[] KEY_PREFIXES = { null, "label:", "node:", "status:" };
+
+	/**
+	 * Constructs a new RelayTableModel.  It is empty until the first refresh().
+	 *
+	 * @param inFleet fleet whose relays are shown
+	 * @param inAttributor source of the power column, or null to leave it blank
+	 */
+	public RelayTableModel(RelayFleet inFleet, PowerAttributor inAttributor) {
+		fleet = inFleet;
+		attributor = inAttributor;
+	}
+
+	/**
+	 * Sets the samples the on (%) column is worked out from.
+	 *
+	 * @param inWindow recent IO samples, or null to leave the column blank
+	 * @param inSpanMillis how far back to look
+	 */
+	public void setSampleWindow(SampleWindow inWindow, long inSpanMillis) {
+		window = inWindow;
+		windowSpanNanos = TimeUnit.MILLISECONDS.toNanos(inSpanMillis);
+	}
+
+	/**
+	 * Gets a column's title.
+	 *
+	 * @param inColumn column, 0 to COLUMN_COUNT - 1
+	 */
+	public static String getColumnTitle(int inColumn) {
+		return TITLES[inColumn];
+	}
+
+	/**
+	 * Reads every relay's current state from the fleet, then filters and sorts
+	 * them again.
+	 */
+	public void refresh() {
+		countSamples();
+		int count = 0;
+		for (XbeeRelayManager manager : fleet.getRelayManagers()) {
+			synchronized (manager) {
+				RelayRegistry registry = manager.getRegistry();
+				ensureCapacity(count + registry.size());
+				for (int i = 0; i < registry.size(); i++) {
+					Relay r = registry.relayAt(i);
+					relays[count] = r;
+					managers[count] = manager;
+					statuses[count] = r.getStatus();
+					powers[count] = attributor == null ? Double.NaN : attributor.getPower(r);
+					duties[count] = dutyCycle(r);
+					String label = r.getLabel();
+					if (label != labels[count]) {
+						labels[count] = label;
+						labelKeys[count] = label.toLowerCase();
+					}
+					long node = r.getNode();
+					if (node != nodes[count] || nodeKeys[count] == null) {
+						nodes[count] = node;
+						nodeKeys[count] = NodeAddress.toString(node).toLowerCase();
+					}
+					count++;
+				}
+			}
+		}
+		// Let go of relays that are no longer managed
+		if (count < size) {
+			Arrays.fill(relays, count, size, null);
+			Arrays.fill(managers, count, size, null);
+		}
+		size = count;
+
+		rowCount = 0;
+		for (int i = 0; i < size; i++) {
+			if (matches(i)) {
+				rows[rowCount++] = i;
+			}
+		}
+		sortRows();
+	}
+
+	/**
+	 * Sets the filter and works out which relays are shown.  If the new filter
+	 * only narrows the current one, only the relays already shown are checked.
+	 *
+	 * @param inFilter terms separated by spaces (see the class description), or
+	 *   null or empty to show every relay
+	 */
+	public void setFilter(String inFilter) {
+		String filter = inFilter == null ? "" : inFilter.trim().toLowerCase();
+		boolean narrows = narrows(filter);
+		parseFilter(filter);
+		if (narrows) {
+			// Keeps the rows in order, so no need to sort again
+			int kept = 0;
+			for (int i = 0; i < rowCount; i++) {
+				if (matches(rows[i])) {
+					rows[kept++] = rows[i];
+				}
+			}
+			rowCount = kept;
+		} else {
+			rowCount = 0;
+			for (int i = 0; i < size; i++) {
+				if (matches(i)) {
+					rows[rowCount++] = i;
+				}
+			}
+			sortRows();
+		}
+	}
+
+	/**
+	 * Gets the current filter, as given to setFilter() (lower-cased).
+	 */
+	public String getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Sets the column rows are sorted on, and sorts them.  Rows that are equal on
+	 * that column stay in the order their relay managers keep them in.
+	 *
+	 * @param inColumn column, 0 to COLUMN_COUNT - 1
+	 * @param inAscending true to sort smallest first
+	 */
+	public void setSort(int inColumn, boolean inAscending) {
+		if (inColumn < 0 || inColumn >= COLUMN_COUNT) {
+			throw new IllegalArgumentException("No column " + inColumn);
+		}
+		sortColumn = inColumn;
+		ascending = inAscending;
+		sortRows();
+	}
+
+	/**
+	 * Gets the column rows are sorted on.
+	 */
+	public int getSortColumn() {
+		return sortColumn;
+	}
+
+	/**
+	 * Checks if rows are sorted smallest first.
+	 */
+	public boolean isAscending() {
+		return ascending;
+	}
+
+	/**
+	 * Gets the number of relays shown.
+	 */
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Gets the number of relays in the fleet, shown or not, as of the last refresh.
+	 */
+	public int getRelayCount() {
+		return size;
+	}
+
+	/**
+	 * Gets the relay in a row.
+	 *
+	 * @param inRow row, 0 to getRowCount() - 1
+	 */
+	public Relay getRelay(int inRow) {
+		return relays[relayIndex(inRow)];
+	}
+
+	/**
+	 * Gets the text of one cell, as of the last refresh.
+	 *
+	 * @param inRow row, 0 to getRowCount() - 1
+	 * @param inColumn column, 0 to COLUMN_COUNT - 1
+	 */
+	public String getText(int inRow, int inColumn) {
+		int i = relayIndex(inRow);
+		switch (inColumn) {
+		case LABEL_COLUMN:
+			return labels[i];
+		case NUMBER_COLUMN:
+			return String.valueOf(relays[i].getNumber());
+		case PIN_COLUMN:
+			return String.valueOf(relays[i].getPin());
+		case STATUS_COLUMN:
+			return statusString(statuses[i]);
+		case POWER_COLUMN:
+			return Double.isNaN(powers[i]) ? "" : String.format("%.0f", powers[i]);
+		case DUTY_COLUMN:
+			return Double.isNaN(duties[i]) ? "" : String.format("%.0f", duties[i] * 100);
+		case NODE_COLUMN:
+			return NodeAddress.toString(nodes[i]);
+		default:
+			throw new IllegalArgumentException("No column " + inColumn);
+		}
+	}
+
+	/**
+	 * Gets the text of a whole row, as of the last refresh.
+	 *
+	 * @param inRow row, 0 to getRowCount() - 1
+	 * @return one string per column
+	 */
+	public String[] getRowText(int inRow) {
+		String[] text = new String[COLUMN_COUNT];
+		for (int c = 0; c < COLUMN_COUNT; c++) {
+			text[c] = getText(inRow, c);
+		}
+		return text;
+	}
+
+	/**
+	 * Checks if the relay in a row is checked.  Checks belong to the relay, so
+	 * they follow it when it's sorted elsewhere or filtered out and back.
+	 *
+	 * @param inRow row, 0 to getRowCount() - 1
+	 */
+	public boolean isChecked(int inRow) {
+		return checked.contains(getRelay(inRow));
+	}
+
+	/**
+	 * Checks or unchecks the relay in a row.
+	 *
+	 * @param inRow row, 0 to getRowCount() - 1
+	 * @param inChecked true to check it
+	 */
+	public void setChecked(int inRow, boolean inChecked) {
+		if (inChecked) {
+			checked.add(getRelay(inRow));
+		} else {
+			checked.remove(getRelay(inRow));
+		}
+	}
+
+	/**
+	 * Gets the MCU pins of a relay manager's checked relays, whether or not they
+	 * are shown, as XbeeRelayManager.turnOn() and turnOff() take them.  Relays
+	 * that were no longer managed at the last refresh are left out.
+	 *
+	 * @param inManager relay manager
+	 * @return pin numbers, empty if none of the manager's relays are checked
+	 */
+	public List<Integer> getCheckedPins(XbeeRelayManager inManager) {
+		List<Integer> pins = new ArrayList<Integer>();
+		for (int i = 0; i < size; i++) {
+			if (managers[i] == inManager && checked.contains(relays[i])) {
+				pins.add(relays[i].getPin());
+			}
+		}
+		return pins;
+	}
+
+	private int relayIndex(int inRow) {
+		if (inRow < 0 || inRow >= rowCount) {
+			throw new IndexOutOfBoundsException("Row: " + inRow + ", rows: " + rowCount);
+		}
+		return rows[inRow];
+	}
+
+	private void ensureCapacity(int inCapacity) {
+		if (inCapacity <= relays.length) {
+			return;
+		}
+		int capacity = Math.max(inCapacity, relays.length * 2);
+		relays = Arrays.copyOf(relays, capacity);
+		managers = Arrays.copyOf(managers, capacity);
+		statuses = Arrays.copyOf(statuses, capacity);
+		powers = Arrays.copyOf(powers, capacity);
+		duties = Arrays.copyOf(duties, capacity);
+		labels = Arrays.copyOf(labels, capacity);
+		labelKeys = Arrays.copyOf(labelKeys, capacity);
+		nodes = Arrays.copyOf(nodes, capacity);
+		nodeKeys = Arrays.copyOf(nodeKeys, capacity);
+		rows = new int[capacity];
+		sortBuffer = new int[capacity];
+	}
+
+	// True if the new (lower-cased) filter can only match relays the current one matches
+	private boolean narrows(String inFilter) {
+		String[] oldValues = Arrays.copyOf(termValues, termCount);
+		int[] oldKeys = Arrays.copyOf(termKeys, termCount);
+		int oldCount = termCount;
+		parseFilter(inFilter);
+		boolean narrows = termCount >= oldCount;
+		for (int i = 0; narrows && i < oldCount; i++) {
+			narrows = termKeys[i] == oldKeys[i] && termValues[i].contains(oldValues[i]);
+		}
+		return narrows;
+	}
+
+	private void parseFilter(String inFilter) {
+		filter = inFilter;
+		String[] terms = inFilter.isEmpty() ? new String[0] : inFilter.split("\\s+");
+		termKeys = new int[terms.length];
+		termValues = new String[terms.length];
+		termCount = terms.length;
+		for (int t = 0; t < terms.length; t++) {
+			termKeys[t] = ANY_KEY;
+			termValues[t] = terms[t];
+			for (int k = 1; k < KEY_PREFIXES.length; k++) {
+				if (terms[t].startsWith(KEY_PREFIXES[k])) {
+					termKeys[t] = k;
+					termValues[t] = terms[t].substring(KEY_PREFIXES[k].length());
+					break;
+				}
+			}
+		}
+	}
+
+	private boolean matches(int inIndex) {
+		for (int t = 0; t < termCount; t++) {
+			String value = termValues[t];
+			String status = statusKey(statuses[inIndex]);
+			boolean match;
+			switch (termKeys[t]) {
+			case LABEL_KEY:
+				match = labelKeys[inIndex].contains(value);
+				break;
+			case NODE_KEY:
+				match = nodeKeys[inIndex].contains(value);
+				break;
+			case STATUS_KEY:
+				match = status.contains(value);
+				break;
+			default:
+				match = labelKeys[inIndex].contains(value) || nodeKeys[inIndex].contains(value)
+						|| status.contains(value);
+				break;
+			}
+			if (!match) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Merge sort of rows[0, rowCount) on the sort column; stable, and allocates nothing
+	private void sortRows() {
+		for (int width = 1; width < rowCount; width *= 2) {
+			for (int low = 0; low < rowCount - width; low += 2 * width) {
+				int mid = low + width;
+				int high = Math.min(low + 2 * width, rowCount);
+				int a = low;
+				int b = mid;
+				int out = low;
+				while (a < mid && b < high) {
+					sortBuffer[out++] = compare(rows[b], rows[a]) < 0 ? rows[b++] : rows[a++];
+				}
+				while (a < mid) {
+					sortBuffer[out++] = rows[a++];
+				}
+				while (b < high) {
+					sortBuffer[out++] = rows[b++];
+				}
+				System.arraycopy(sortBuffer, low, rows, low, high - low);
+			}
+		}
+	}
+
+	private int compare(int inA, int inB) {
+		int order;
+		switch (sortColumn) {
+		case LABEL_COLUMN:
+			order = labelKeys[inA].compareTo(labelKeys[inB]);
+			break;
+		case NUMBER_COLUMN:
+			order = compareInts(relays[inA].getNumber(), relays[inB].getNumber());
+			break;
+		case PIN_COLUMN:
+			order = compareInts(relays[inA].getPin(), relays[inB].getPin());
+			break;
+		case STATUS_COLUMN:
+			order = statusString(statuses[inA]).compareTo(statusString(statuses[inB]));
+			break;
+		case POWER_COLUMN:
+			order = Double.compare(powers[inA], powers[inB]);
+			break;
+		case DUTY_COLUMN:
+			order = Double.compare(duties[inA], duties[inB]);
+			break;
+		default:
+			// Unsigned, so addresses sort the way they read in hex
+			long a = nodes[inA] ^ Long.MIN_VALUE;
+			long b = nodes[inB] ^ Long.MIN_VALUE;
+			order = a < b ? -1 : a > b ? 1 : 0;
+			break;
+		}
+		return ascending ? order : -order;
+	}
+
+	// Counts, per node and mask bit, the window's recent samples and those with the bit on
+	private void countSamples() {
+		SampleWindow w = window;
+		if (w == null) {
+			return;
+		}
+		long now = System.nanoTime();
+		w.read(now - windowSpanNanos, now + 1, samples);
+		// Read after, so it covers every node in the samples
+		countedNodes = w.getNodeCount();
+		if (seen.length < countedNodes) {
+			seen = new int[Math.max(countedNodes, seen.length * 2)];
+			onCounts = new int[seen.length * MASK_BITS];
+		}
+		Arrays.fill(seen, 0, countedNodes, 0);
+		Arrays.fill(onCounts, 0, countedNodes * MASK_BITS, 0);
+		for (int i = 0; i < samples.size; i++) {
+			int node = samples.nodes[i];
+			seen[node]++;
+			for (int mask = samples.masks[i]; mask != 0; mask &= mask - 1) {
+				onCounts[node * MASK_BITS + Integer.numberOfTrailingZeros(mask)]++;
+			}
+		}
+	}
+
+	// Share of the counted samples with the relay on, NaN if its node sent none
+	private double dutyCycle(Relay inRelay) {
+		SampleWindow w = window;
+		int bit = IoSamples.bit(inRelay.getXbeePin());
+		if (w == null || bit == 0) {
+			return Double.NaN;
+		}
+		int node = w.getNodeIndex(inRelay.getNode());
+		if (node == LongIntMap.MISSING || node >= countedNodes || seen[node] == 0) {
+			return Double.NaN;
+		}
+		return (double) onCounts[node * MASK_BITS + Integer.numberOfTrailingZeros(bit)] / seen[node];
+	}
+
+	private static int compareInts(int inA, int inB) {
+		return inA < inB ? -1 : inA > inB ? 1 : 0;
+	}
+
+	// Same text as Relay.getStatusString(), for a status from the snapshot
+	private static String statusString(RelayStatus inStatus) {
+		if (inStatus == RelayStatus.UNITIALIZED)
+			return "Unitialized";
+		else if (inStatus == RelayStatus.ON)
+			return "On";
+		else
+			return "Off";
+	}
+
+	private static String statusKey(RelayStatus inStatus) {
+		if (inStatus == RelayStatus.UNITIALIZED)
+			return "unitialized";
+		else if (inStatus == RelayStatus.ON)
+			return "on";
+		else
+			return "off";
+	}
+
+	private final RelayFleet fleet;
+	private final PowerAttributor attributor;
+	private SampleWindow window;
+	private long windowSpanNanos;
+	// Sample counts from the window, by node index (times MASK_BITS, plus bit for onCounts)
+	private final SampleWindow.Columns samples = new SampleWindow.Columns();
+	private int countedNodes;
+	private int[] seen = new int[0];
+	private int[] onCounts = new int[0];
+	// Snapshot, by position in the fleet's registries as of the last refresh
+	private int size;
+	private Relay[] relays = new Relay[64];
+	private XbeeRelayManager[] managers = new XbeeRelayManager[64];
+	private RelayStatus[] statuses = new RelayStatus[64];
+	private double[] powers = new double[64];
+	private double[] duties = new double[64];
+	private String[] labels = new String[64];
+	private String[] labelKeys = new String[64];
+	private long[] nodes = new long[64];
+	private String[] nodeKeys = new String[64];
+	// Positions of the relays shown, in display order
+	private int[] rows = new int[64];
+	private int[] sortBuffer = new int[64];
+	private int rowCount;
+	private String filter = "";
+	private int termCount;
+	private int[] termKeys = new int[0];
+	private String[] termValues = new String[0];
+	private int sortColumn = NUMBER_COLUMN;
+	private boolean ascending = true;
+	private final Set<Relay> checked = Collections.newSetFromMap(new IdentityHashMap<Relay, Boolean>());
+}
@@ -0,0 +1,24 @@
+package xbeerelay;
+
+import xbeerelay.Relay.RelayStatus;
+
+/**
+ * Notified each time an IO sample shows a relay in a different state than before.
+ * 
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public interface RelayTransitionListener {
+
+	/**
+	 * Called when a sample changes a relay's status.  The first sample from a node
+	 * moves its relays out of RelayStatus.UNITIALIZED, so that is reported too.
+	 * The relay's manager is locked while this is called, so keep it short.
+	 * 
+	 * @param inRelay the relay that changed
+	 * @param inOldStatus status before the sample
+	 * @param inNewStatus status after the sample
+	 * @param inNanos System.nanoTime() when the sample was processed
+	 */
+	void relayChanged(Relay inRelay, RelayStatus inOldStatus, RelayStatus inNewStatus, long inNanos);
+}
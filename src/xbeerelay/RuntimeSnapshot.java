@@ -0,0 +1,329 @@
+package xbeerelay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import xbeerelay.Relay.RelayStatus;
+
+/**
+ * Saves what the program has learned while running (relay states, the nodes'
+ * 16-bit network addresses and the latest power readings) so a restart can
+ * pick up where it left off instead of waiting for fresh samples.
+ *
+ * <p>The snapshot is a small binary file, written to a temporary file and renamed
+ * over the old one so a crash mid-write never leaves a half-written snapshot.
+ * Where a rename can't replace a file (Windows), the old snapshot is deleted
+ * first, so a crash between the two leaves only the temporary file; restore()
+ * reads that if the snapshot itself is missing.  It is saved on a schedule and
+ * when stopped, and read back whole into memory by restore() (not mapped, which
+ * would hold the file open and keep the next save from replacing it on
+ * Windows), which should run before the radios are opened.
+ *
+ * <p>Restored relay states are timestamped with when they were saved, so they
+ * show in the GUI straight away but are too old to suppress commands, and the
+ * first sample from each node replaces them.  They are provisional (see
+ * Relay.setProvisionalStatus): transition listeners aren't told about them, and
+ * the first sample is reported to them as a transition out of UNITIALIZED even
+ * if it agrees with the restored state, so power attribution, history and
+ * alert rules all start from what the node actually reports.
+ *
+ * <p>The file format is:
+ * <pre>
+ * header: int MAGIC, short VERSION, long wall-clock millis when saved
+ * relays: int count, then per relay: long node, int number, byte status ordinal
+ * routes: int count, then per node: long node, short 16-bit address
+ * power:  int count, then per reading, oldest first: long millis, double mW
+ * </pre>
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class RuntimeSnapshot {
+
+	/** Identifies a runtime snapshot file ("XBRS"). */
+	public static final int MAGIC = 0x58425253;
+	/** Snapshot format version. */
+	public static final short VERSION = 1;
+	/** Most power readings kept in a snapshot. */
+	public static final int POWER_READINGS = 2048;
+
+	/**
+	 * Constructs a new RuntimeSnapshot.
+	 *
+	 * @param inFile the snapshot file
+	 * @param inFleet fleet whose relays and nodes are saved and restored
+	 */
+	public RuntimeSnapshot(File inFile, RelayFleet inFleet) {
+		file = inFile;
+		fleet = inFleet;
+	}
+
+	/**
+	 * Remembers a power reading to be saved with the next snapshot.
+	 *
+	 * @param inTimeMillis when the reading was taken, as System.currentTimeMillis()
+	 * @param inMilliwatts total power
+	 */
+	public synchronized void addPowerReading(long inTimeMillis, double inMilliwatts) {
+		int slot = (int) (powerCount++ % POWER_READINGS);
+		powerTimes[slot] = inTimeMillis;
+		powerValues[slot] = inMilliwatts;
+	}
+
+	/**
+	 * Writes a snapshot, replacing the previous one.
+	 *
+	 * @throws IOException if it can't be written
+	 */
+	public void save()
+		throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		buffer.putInt(MAGIC).putShort(VERSION).putLong(System.currentTimeMillis());
+
+		// Relays, one manager at a time so samples are only held up briefly
+		int relayCountAt = buffer.position();
+		int relays = 0;
+		buffer.putInt(0);
+		Map<XbeeManager, Boolean> xbManagers = new IdentityHashMap<XbeeManager, Boolean>();
+		for (XbeeRelayManager manager : fleet.getRelayManagers()) {
+			xbManagers.put(manager.getXbeeManager(), Boolean.TRUE);
+			synchronized (manager) {
+				RelayRegistry registry = manager.getRegistry();
+				for (int i = 0; i < registry.size(); i++) {
+					Relay r = registry.relayAt(i);
+					buffer = ensureRemaining(buffer, 13);
+					buffer.putLong(manager.getNode()).putInt(r.getNumber()).put((byte) r.getStatus().ordinal());
+					relays++;
+				}
+			}
+		}
+		buffer.putInt(relayCountAt, relays);
+
+		// Routes
+		int routeCountAt = buffer.position();
+		int routes = 0;
+		buffer = ensureRemaining(buffer, 4);
+		buffer.putInt(0);
+		for (XbeeManager xbManager : xbManagers.keySet()) {
+			for (long node : xbManager.getRoutedNodes()) {
+				int route = xbManager.getRoute(node);
+				if (route != XbeeManager.NO_ROUTE) {
+					buffer = ensureRemaining(buffer, 10);
+					buffer.putLong(node).putShort((short) route);
+					routes++;
+				}
+			}
+		}
+		buffer.putInt(routeCountAt, routes);
+
+		// Power
+		synchronized (this) {
+			int count = (int) Math.min(powerCount, POWER_READINGS);
+			buffer = ensureRemaining(buffer, 4 + count * 16);
+			buffer.putInt(count);
+			for (long i = powerCount - count; i < powerCount; i++) {
+				int slot = (int) (i % POWER_READINGS);
+				buffer.putLong(powerTimes[slot]).putDouble(powerValues[slot]);
+			}
+		}
+		buffer.flip();
+
+		File temp = tempFile();
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		try {
+			out.setLength(0);
+			FileChannel channel = out.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			// Windows won't rename over an existing file
+			file.delete();
+			if (!temp.renameTo(file)) {
+				throw new IOException("Can't replace " + file);
+			}
+		}
+	}
+
+	/**
+	 * Restores relay states and routes to the fleet, and power readings to a plot.
+	 * Relays that already have a status aren't touched.  If there is no snapshot
+	 * but a save was cut short after writing its temporary file, that is read.
+	 *
+	 * @param inPlotter plot to restore the power readings to, or null
+	 * @return the number of relays restored, 0 if there's no snapshot
+	 * @throws IOException if the snapshot can't be read or is corrupt
+	 */
+	public int restore(PowerPlotter inPlotter)
+		throws IOException {
+		File source = file;
+		if (!source.isFile()) {
+			source = tempFile();
+			if (!source.isFile()) {
+				return 0;
+			}
+		}
+		RandomAccessFile in = new RandomAccessFile(source, "r");
+		int restored = 0;
+		try {
+			if (in.length() > Integer.MAX_VALUE) {
+				throw new IOException(source + " is too big to be a runtime snapshot");
+			}
+			ByteBuffer buffer = ByteBuffer.allocate((int) in.length());
+			FileChannel channel = in.getChannel();
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					throw new IOException(source + " is cut short");
+				}
+			}
+			buffer.flip();
+			if (buffer.remaining() < 14 || buffer.getInt() != MAGIC || buffer.getShort() != VERSION) {
+				throw new IOException(source + " is not a runtime snapshot this version can read");
+			}
+			long savedMillis = buffer.getLong();
+			// Sample times are System.nanoTime(), so work out what that was when it was saved
+			long savedNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(
+					Math.max(System.currentTimeMillis() - savedMillis, 0));
+			RelayStatus[] statuses = RelayStatus.values();
+
+			int relays = buffer.getInt();
+			for (int i = 0; i < relays; i++) {
+				long node = buffer.getLong();
+				int number = buffer.getInt();
+				int status = buffer.get();
+				XbeeRelayManager manager = fleet.getRelayManager(node);
+				if (manager == null || status < 0 || status >= statuses.length
+						|| statuses[status] == RelayStatus.UNITIALIZED) {
+					continue;
+				}
+				synchronized (manager) {
+					try {
+						Relay r = manager.getManagedRelay(number);
+						if (r.getStatus() == RelayStatus.UNITIALIZED) {
+							r.setProvisionalStatus(statuses[status], savedNanos);
+							restored++;
+						}
+					} catch (RelayException e) {
+						// No longer managed
+					}
+				}
+			}
+
+			int routes = buffer.getInt();
+			for (int i = 0; i < routes; i++) {
+				long node = buffer.getLong();
+				int route = buffer.getShort() & 0xffff;
+				XbeeRelayManager manager = fleet.getRelayManager(node);
+				if (manager != null && manager.getXbeeManager().getRoute(node) == XbeeManager.NO_ROUTE) {
+					manager.getXbeeManager().setRoute(node, route);
+				}
+			}
+
+			int readings = buffer.getInt();
+			for (int i = 0; i < readings; i++) {
+				long time = buffer.getLong();
+				double value = buffer.getDouble();
+				addPowerReading(time, value);
+				if (inPlotter != null) {
+					inPlotter.addPowerReading(time, value);
+				}
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException(source + " is cut short");
+		} finally {
+			in.close();
+		}
+		return restored;
+	}
+
+	/**
+	 * Starts saving snapshots on a daemon thread.
+	 *
+	 * @param inPeriodMillis time between snapshots
+	 */
+	public synchronized void start(long inPeriodMillis) {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "xbee-snapshot");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					save();
+				} catch (IOException e) {
+					// TODO: Log error.
+					e.printStackTrace();
+				}
+			}
+		}, inPeriodMillis, inPeriodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the scheduled saves and saves one last snapshot.
+	 *
+	 * @throws IOException if the last snapshot can't be written
+	 */
+	public void stop()
+		throws IOException {
+		ScheduledExecutorService stopping;
+		synchronized (this) {
+			stopping = scheduler;
+			scheduler = null;
+		}
+		if (stopping != null) {
+			stopping.shutdown();
+			try {
+				stopping.awaitTermination(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		save();
+	}
+
+	// Where save() writes before renaming over the snapshot
+	private File tempFile() {
+		return new File(file.getPath() + ".tmp");
+	}
+
+	private static ByteBuffer ensureRemaining(ByteBuffer inBuffer, int inBytes) {
+		if (inBuffer.remaining() >= inBytes) {
+			return inBuffer;
+		}
+		ByteBuffer grown = ByteBuffer.allocate(Math.max(inBuffer.capacity() * 2, inBuffer.position() + inBytes));
+		inBuffer.flip();
+		grown.put(inBuffer);
+		return grown;
+	}
+
+	private final File file;
+	private final RelayFleet fleet;
+	private ScheduledExecutorService scheduler;
+	private final long[] powerTimes = new long[POWER_READINGS];
+	private final double[] powerValues = new double[POWER_READINGS];
+	private long powerCount;
+}
@@ -0,0 +1,319 @@
+package xbeerelay;
+
+import java.util.Arrays;
+
+import com.rapplogic.xbee.api.ApiId;
+import com.rapplogic.xbee.api.XBeeResponse;
+import com.rapplogic.xbee.api.zigbee.ZNetRxIoSampleResponse;
+
+/**
+ * Keeps the most recent IO samples from every node in a fixed amount of memory,
+ * for analytics over the last few minutes.
+ *
+ * <p>Samples are stored column by column in parallel primitive arrays (time,
+ * node index, digital mask, and one short per analog channel) used as a ring,
+ * rather than as one response object per sample.  A sample costs 24 bytes
+ * whatever is in it, the window's size is fixed when it is constructed, and
+ * nothing is allocated as samples arrive.  Scans walk the arrays in order.
+ *
+ * <p>Subscribe it to a PacketDispatcher, which gives it each sample with the
+ * time it was received (it is a TimedPacketListener), or add samples directly.
+ * Samples must be added from one thread at a time, and
+ * their times should not go backwards (a time earlier than the last one is
+ * recorded as the last one, so the window stays in time order).  Reads can come
+ * from any thread: read() copies a time range into a Columns to be scanned
+ * without holding up the writer, and the built-in analytics scan in place.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class SampleWindow implements TimedPacketListener {
+
+	/** Number of analog channels kept (AD0 to AD3). */
+	public static final int ANALOG_CHANNELS = 4;
+	/** Stored for an analog channel that wasn't in the sample (IoSamples.NO_ANALOG). */
+	public static final short NO_ANALOG = IoSamples.NO_ANALOG;
+	/** Bytes of memory each sample takes. */
+	public static final int BYTES_PER_SAMPLE = 8 + 4 + 4 + 2 * ANALOG_CHANNELS;
+
+	/**
+	 * Constructs a new SampleWindow.
+	 *
+	 * @param inCapacity the most samples kept; older ones are overwritten
+	 */
+	public SampleWindow(int inCapacity) {
+		capacity = Math.max(inCapacity, 1);
+		times = new long[capacity];
+		nodes = new int[capacity];
+		masks = new int[capacity];
+		analog = new short[ANALOG_CHANNELS][capacity];
+	}
+
+	/**
+	 * Adds an IO sample, stamped with the time now; other packets are ignored.
+	 *
+	 * @param response packet received from the radio
+	 */
+	@Override
+	public void processResponse(XBeeResponse response) {
+		processResponse(response, System.nanoTime());
+	}
+
+	/**
+	 * Adds an IO sample with the time it was received; other packets are ignored.
+	 *
+	 * @param inResponse packet received from the radio
+	 * @param inNanos System.nanoTime() when it was received
+	 */
+	@Override
+	public void processResponse(XBeeResponse inResponse, long inNanos) {
+		if (inResponse.getApiId() == ApiId.ZNET_IO_SAMPLE_RESPONSE) {
+			add((ZNetRxIoSampleResponse) inResponse, inNanos);
+		}
+	}
+
+	/**
+	 * Adds an IO sample.
+	 *
+	 * @param inIOResponse the sample
+	 * @param inNanos System.nanoTime() when it was received
+	 */
+	public void add(ZNetRxIoSampleResponse inIOResponse, long inNanos) {
+		add(NodeAddress.pack(inIOResponse.getRemoteAddress64()), inNanos,
+				IoSamples.digitalMask(inIOResponse),
+				IoSamples.analog(inIOResponse, 0), IoSamples.analog(inIOResponse, 1),
+				IoSamples.analog(inIOResponse, 2), IoSamples.analog(inIOResponse, 3));
+	}
+
+	/**
+	 * Adds a sample.
+	 *
+	 * @param inNode packed 64-bit node address (see NodeAddress)
+	 * @param inNanos System.nanoTime() when it was received
+	 * @param inDigitalMask one bit per Xbee pin sensed as ON (see IoSamples)
+	 * @param inAnalog0 AD0 reading, or NO_ANALOG
+	 * @param inAnalog1 AD1 reading, or NO_ANALOG
+	 * @param inAnalog2 AD2 reading, or NO_ANALOG
+	 * @param inAnalog3 AD3 reading, or NO_ANALOG
+	 */
+	public synchronized void add(long inNode, long inNanos, int inDigitalMask,
+			int inAnalog0, int inAnalog1, int inAnalog2, int inAnalog3) {
+		int node = nodeIndex.get(inNode);
+		if (node == LongIntMap.MISSING) {
+			node = nodeCount++;
+			if (node == nodeAddresses.length) {
+				nodeAddresses = Arrays.copyOf(nodeAddresses, node * 2);
+			}
+			nodeAddresses[node] = inNode;
+			nodeIndex.put(inNode, node);
+		}
+		if (written > 0 && inNanos - lastNanos < 0) {
+			inNanos = lastNanos;
+		}
+		lastNanos = inNanos;
+		int slot = (int) (written % capacity);
+		times[slot] = inNanos;
+		nodes[slot] = node;
+		masks[slot] = inDigitalMask;
+		analog[0][slot] = (short) inAnalog0;
+		analog[1][slot] = (short) inAnalog1;
+		analog[2][slot] = (short) inAnalog2;
+		analog[3][slot] = (short) inAnalog3;
+		written++;
+	}
+
+	/**
+	 * Copies the samples received in a time range into a Columns, oldest first.
+	 *
+	 * @param inFromNanos earliest time, inclusive
+	 * @param inToNanos latest time, exclusive
+	 * @param inOut where to copy them; its arrays are grown if need be
+	 * @return the number of samples copied (also inOut.size)
+	 */
+	public synchronized int read(long inFromNanos, long inToNanos, Columns inOut) {
+		long from = firstAtOrAfter(inFromNanos);
+		long to = firstAtOrAfter(inToNanos);
+		int n = (int) Math.max(to - from, 0);
+		inOut.ensureCapacity(n);
+		// At most two runs: up to the end of the arrays, then from the start
+		int copied = 0;
+		while (copied < n) {
+			int slot = (int) ((from + copied) % capacity);
+			int run = Math.min(n - copied, capacity - slot);
+			System.arraycopy(times, slot, inOut.times, copied, run);
+			System.arraycopy(nodes, slot, inOut.nodes, copied, run);
+			System.arraycopy(masks, slot, inOut.masks, copied, run);
+			for (int c = 0; c < ANALOG_CHANNELS; c++) {
+				System.arraycopy(analog[c], slot, inOut.analog[c], copied, run);
+			}
+			copied += run;
+		}
+		inOut.size = n;
+		return n;
+	}
+
+	/**
+	 * Gets the fraction of a node's samples since a given time that show a pin on.
+	 *
+	 * @param inNode packed 64-bit node address (see NodeAddress)
+	 * @param inPinBit the pin's bit in a digital mask (see IoSamples.bit)
+	 * @param inFromNanos earliest time, inclusive
+	 * @return fraction from 0 to 1, or NaN if there are no samples from the node
+	 */
+	public synchronized double getDutyCycle(long inNode, int inPinBit, long inFromNanos) {
+		int node = nodeIndex.get(inNode);
+		if (node == LongIntMap.MISSING) {
+			return Double.NaN;
+		}
+		int seen = 0;
+		int on = 0;
+		for (long i = firstAtOrAfter(inFromNanos); i < written; i++) {
+			int slot = (int) (i % capacity);
+			if (nodes[slot] == node) {
+				seen++;
+				if ((masks[slot] & inPinBit) != 0) {
+					on++;
+				}
+			}
+		}
+		return seen == 0 ? Double.NaN : (double) on / seen;
+	}
+
+	/**
+	 * Gets the mean of a node's readings on an analog channel since a given time.
+	 *
+	 * @param inNode packed 64-bit node address (see NodeAddress)
+	 * @param inChannel analog channel, 0 to ANALOG_CHANNELS - 1
+	 * @param inFromNanos earliest time, inclusive
+	 * @return mean reading, or NaN if there are no readings
+	 */
+	public synchronized double getAnalogMean(long inNode, int inChannel, long inFromNanos) {
+		int node = nodeIndex.get(inNode);
+		if (node == LongIntMap.MISSING) {
+			return Double.NaN;
+		}
+		short[] column = analog[inChannel];
+		long sum = 0;
+		int seen = 0;
+		for (long i = firstAtOrAfter(inFromNanos); i < written; i++) {
+			int slot = (int) (i % capacity);
+			if (nodes[slot] == node && column[slot] != NO_ANALOG) {
+				sum += column[slot];
+				seen++;
+			}
+		}
+		return seen == 0 ? Double.NaN : (double) sum / seen;
+	}
+
+	/**
+	 * Gets the index a node's samples are stored under (see Columns.nodes).
+	 *
+	 * @param inNode packed 64-bit node address (see NodeAddress)
+	 * @return the index, or LongIntMap.MISSING if the node hasn't sent a sample
+	 */
+	public synchronized int getNodeIndex(long inNode) {
+		return nodeIndex.get(inNode);
+	}
+
+	/**
+	 * Gets the node stored under an index.
+	 *
+	 * @param inIndex node index
+	 * @return packed 64-bit node address (see NodeAddress)
+	 */
+	public synchronized long getNode(int inIndex) {
+		if (inIndex < 0 || inIndex >= nodeCount) {
+			throw new IndexOutOfBoundsException("No node " + inIndex);
+		}
+		return nodeAddresses[inIndex];
+	}
+
+	/**
+	 * Gets the number of nodes that have sent samples.
+	 */
+	public synchronized int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * Gets the number of samples in the window.
+	 */
+	public synchronized int size() {
+		return (int) Math.min(written, capacity);
+	}
+
+	/**
+	 * Gets the most samples the window holds.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Gets the number of samples ever added, including those since overwritten.
+	 */
+	public synchronized long getAddedCount() {
+		return written;
+	}
+
+	// Logical index of the first sample at or after a time (written if none)
+	private long firstAtOrAfter(long inNanos) {
+		long low = Math.max(written - capacity, 0);
+		long high = written;
+		while (low < high) {
+			long mid = (low + high) >>> 1;
+			if (times[(int) (mid % capacity)] - inNanos < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Samples copied out of a SampleWindow, column by column: sample i is
+	 * times[i], nodes[i], masks[i] and analog[c][i], for i below size.  Reuse one
+	 * for repeated reads; its arrays only grow.
+	 */
+	public static final class Columns {
+
+		/** Constructs a new, empty Columns. */
+		public Columns() {
+			ensureCapacity(0);
+		}
+
+		void ensureCapacity(int inSize) {
+			if (times != null && times.length >= inSize) {
+				return;
+			}
+			int size = Math.max(inSize, 64);
+			times = new long[size];
+			nodes = new int[size];
+			masks = new int[size];
+			analog = new short[ANALOG_CHANNELS][size];
+		}
+
+		/** Number of samples held. */
+		public int size;
+		/** System.nanoTime() each sample was received. */
+		public long[] times;
+		/** Node index of each sample (see SampleWindow.getNode). */
+		public int[] nodes;
+		/** Digital mask of each sample (see IoSamples). */
+		public int[] masks;
+		/** Per analog channel, each sample's reading or NO_ANALOG. */
+		public short[][] analog;
+	}
+
+	private final int capacity;
+	private final long[] times;
+	private final int[] nodes;
+	private final int[] masks;
+	private final short[][] analog;
+	private long written;
+	private long lastNanos;
+	private final LongIntMap nodeIndex = new LongIntMap(64);
+	private long[] nodeAddresses = new long[64];
+	private int nodeCount;
+}
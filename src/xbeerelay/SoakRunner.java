@@ -0,0 +1,656 @@
+package xbeerelay;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.swing.Timer;
+
+import xbeerelay.Relay.RelayStatus;
+import xbeerelay.Relay.XbeeDigitalIOPin;
+
+import com.rapplogic.xbee.api.ApiId;
+import com.rapplogic.xbee.api.PacketListener;
+import com.rapplogic.xbee.api.XBee;
+import com.rapplogic.xbee.api.XBeeAddress64;
+import com.rapplogic.xbee.api.XBeeException;
+import com.rapplogic.xbee.api.XBeeRequest;
+import com.rapplogic.xbee.api.XBeeResponse;
+import com.rapplogic.xbee.api.zigbee.ZNetRxIoSampleResponse;
+import com.rapplogic.xbee.api.zigbee.ZNetTxRequest;
+
+/**
+ * Runs the relay managers and the sample pipeline for hours against a fake
+ * radio, to find slow leaks and throughput or latency regressions without any
+ * hardware.
+ *
+ * <p>The fake radio (FakeRadio below) stands in for a coordinator and a set of
+ * nodes with 4 relays each.  It acts on the relay commands it is sent, acks
+ * them after the airtime a real frame would take, and sends an IO sample for
+ * every node at a steady rate.  Frames are built as raw bytes and parsed by
+ * xbee-api, as they would be coming off a serial port.  Everything else is the
+ * real code the GUI uses: a CoordinatorPool feeding a PacketDispatcher, a
+ * RelayFleet, a PowerAttributor and a PowerPlotter (drained on a Swing timer as
+ * if it were on screen).
+ *
+ * <p>Worker threads send commands to random nodes at a fixed rate, with the
+ * occasional fleet-wide group switch.  Command latency is measured from when a
+ * command was due, not when it was sent, so a stall shows up in full.
+ *
+ * <p>Every report interval one line is printed with throughput, latency
+ * percentiles, the allocation rate (summed over all threads), GC count and time,
+ * the heap in use, and the heap still in use after the last collection, which
+ * is what grows when something leaks.  At the end, the trend of that retained
+ * heap is printed in MB per hour.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class SoakRunner {
+
+	private static final int RELAYS_PER_NODE = 4;
+	// The nodes' relays are on digital pins 2 to 5 (DP), sensed on Xbee pins D0 to D3
+	private static final int FIRST_DP = 2;
+	private static final int WORKERS = 4;
+	private static final int GROUP_EVERY = 500;
+
+	/**
+	 * Runs a soak test.  Options are given as name=value:
+	 * <ul>
+	 * <li>minutes: how long to run (60)</li>
+	 * <li>nodes: number of fake nodes (50)</li>
+	 * <li>sampleHz: IO samples per second from each node (1)</li>
+	 * <li>commandHz: relay commands per second across all nodes (20)</li>
+	 * <li>report: seconds between reports (10)</li>
+	 * <li>airtime: true to ack commands after a real frame's airtime, false to ack at once (true)</li>
+	 * <li>plotAge: seconds of power readings the plot keeps (60)</li>
+	 * </ul>
+	 *
+	 * @param args options, e.g. minutes=240 nodes=200 commandHz=100
+	 * @throws Exception if setting up fails
+	 */
+	public static void main(String[] args)
+		throws Exception {
+		double minutes = 60;
+		int nodes = 50;
+		double sampleHz = 1;
+		double commandHz = 20;
+		int reportSeconds = 10;
+		boolean airtime = true;
+		int plotAge = 60;
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			String name = equals < 0 ? arg : arg.substring(0, equals);
+			String value = equals < 0 ? "" : arg.substring(equals + 1);
+			if (name.equals("minutes")) {
+				minutes = Double.parseDouble(value);
+			} else if (name.equals("nodes")) {
+				nodes = Integer.parseInt(value);
+			} else if (name.equals("sampleHz")) {
+				sampleHz = Double.parseDouble(value);
+			} else if (name.equals("commandHz")) {
+				commandHz = Double.parseDouble(value);
+			} else if (name.equals("report")) {
+				reportSeconds = Integer.parseInt(value);
+			} else if (name.equals("airtime")) {
+				airtime = Boolean.parseBoolean(value);
+			} else if (name.equals("plotAge")) {
+				plotAge = Integer.parseInt(value);
+			} else {
+				System.out.println("usage: SoakRunner [minutes=60] [nodes=50] [sampleHz=1] [commandHz=20]"
+						+ " [report=10] [airtime=true] [plotAge=60]");
+				return;
+			}
+		}
+		System.setProperty("java.awt.headless", "true");
+		new SoakRunner(nodes, airtime, plotAge).run(minutes, sampleHz, commandHz, reportSeconds);
+	}
+
+	/**
+	 * Sets up the fake radio and the pipeline.
+	 */
+	private SoakRunner(int inNodes, boolean inAirtime, int inPlotAge)
+		throws RelayException, XBeeException {
+		radio = new FakeRadio(inAirtime);
+		dispatcher = new PacketDispatcher(4096, PacketDispatcher.OverflowPolicy.DROP_OLDEST);
+		pool = new CoordinatorPool(dispatcher);
+		pool.addCoordinator(radio, "fake", 115200);
+		pool.open();
+
+		fleet = new RelayFleet();
+		attributor = new PowerAttributor();
+		plotter = new PowerPlotter(inPlotAge);
+		List<Relay> everyRelay = new ArrayList<Relay>();
+		managers = new XbeeRelayManager[inNodes];
+		for (int n = 0; n < inNodes; n++) {
+			int[] address = {0, 0x13, 0xa2, 0, 0x40, (n >> 16) & 0xff, (n >> 8) & 0xff, n & 0xff};
+			radio.addNode(address);
+			XbeeRelayManager manager = new XbeeRelayManager(pool, address);
+			for (int r = 0; r < RELAYS_PER_NODE; r++) {
+				Relay relay = new Relay(FIRST_DP + r, n * RELAYS_PER_NODE + r + 1, XbeeDigitalIOPin.values()[r]);
+				manager.addManagedRelay(relay);
+				everyRelay.add(relay);
+			}
+			manager.addTransitionListener(attributor);
+			fleet.addRelayManager(manager);
+			managers[n] = manager;
+		}
+		fleet.defineGroup("all", everyRelay.toArray(new Relay[everyRelay.size()]));
+
+		samples = dispatcher.subscribe("samples", new PacketListener() {
+
+			@Override
+			public void processResponse(XBeeResponse response) {
+				if (response.getApiId() != ApiId.ZNET_IO_SAMPLE_RESPONSE) {
+					return;
+				}
+				ZNetRxIoSampleResponse ioSample = (ZNetRxIoSampleResponse) response;
+				long node = NodeAddress.pack(ioSample.getRemoteAddress64());
+				fleet.processSample(ioSample);
+				int reading = IoSamples.analog(ioSample, 0);
+				if (reading != IoSamples.NO_ANALOG) {
+					double milliwatts = reading * FakeRadio.MILLIWATTS_PER_COUNT;
+					attributor.addPowerReading(milliwatts, System.nanoTime());
+					plotter.addPowerReading(milliwatts);
+				}
+				long latency = System.nanoTime() - radio.getSentNanos(node);
+				sampleLatency.record(latency);
+				totalSampleLatency.record(latency);
+				samplesProcessed.incrementAndGet();
+			}
+		});
+	}
+
+	private void run(double inMinutes, double inSampleHz, double inCommandHz, int inReportSeconds)
+		throws InterruptedException {
+		// The plot is drained on the event thread, as it would be on screen
+		final Timer plotTimer = new Timer(100, new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				plotter.applyReadings();
+				plottedCount = plotter.getPlottedCount();
+			}
+		});
+		plotTimer.start();
+
+		ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+		final double samplesPerNano = managers.length * inSampleHz / 1e9;
+		sampler.scheduleAtFixedRate(new Runnable() {
+
+			private long last = System.nanoTime();
+			private double owed;
+			private int nextNode;
+
+			@Override
+			public void run() {
+				long now = System.nanoTime();
+				owed += (now - last) * samplesPerNano;
+				last = now;
+				while (owed >= 1) {
+					radio.sendSample(nextNode);
+					nextNode = (nextNode + 1) % managers.length;
+					owed--;
+				}
+			}
+		}, 10, 10, TimeUnit.MILLISECONDS);
+
+		ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
+		final long periodNanos = (long) (1e9 / Math.max(inCommandHz, 0.001));
+		final AtomicLong nextDue = new AtomicLong(System.nanoTime());
+		for (int w = 0; w < WORKERS; w++) {
+			final Random random = new Random(w);
+			workers.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					while (!stopping) {
+						long due = nextDue.getAndAdd(periodNanos);
+						long wait;
+						while ((wait = due - System.nanoTime()) > 0 && !stopping) {
+							LockSupport.parkNanos(wait);
+						}
+						try {
+							sendCommand(random);
+						} catch (RelayException e) {
+							commandFailures.incrementAndGet();
+						}
+						long latency = System.nanoTime() - due;
+						commandLatency.record(latency);
+						totalCommandLatency.record(latency);
+					}
+				}
+			});
+		}
+
+		System.out.println(String.format("%d nodes, %.1f samples/s per node, %.1f commands/s, %.0f minutes",
+				managers.length, inSampleHz, inCommandHz, inMinutes));
+		System.out.println("   time  samples/s  frames/s  cmd p50/p99/max ms    sample p50/p99 ms  "
+				+ "alloc MB/s  gc n/ms     heap MB  retained MB  plotted  lag");
+		long start = System.nanoTime();
+		long end = start + (long) (inMinutes * 60e9);
+		Reading previous = new Reading();
+		List<double[]> retained = new ArrayList<double[]>();
+		while (System.nanoTime() < end) {
+			Thread.sleep(Math.min(TimeUnit.SECONDS.toMillis(inReportSeconds),
+					Math.max(TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()), 1)));
+			Reading current = new Reading();
+			report(previous, current, start);
+			retained.add(new double[] {(current.nanos - start) / 3.6e12, current.retainedBytes / 1e6});
+			previous = current;
+		}
+
+		stopping = true;
+		workers.shutdown();
+		workers.awaitTermination(30, TimeUnit.SECONDS);
+		sampler.shutdown();
+		plotTimer.stop();
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println();
+		System.out.println(String.format("%d samples (%.0f/s), %d frames sent (%.0f/s), %d command failures",
+				samplesProcessed.get(), samplesProcessed.get() / seconds, radio.getFramesSent(),
+				radio.getFramesSent() / seconds, commandFailures.get()));
+		System.out.println("command latency: " + totalCommandLatency);
+		System.out.println("sample latency:  " + totalSampleLatency);
+		System.out.println("samples dropped by the dispatcher: " + samples.getDroppedCount()
+				+ ", power readings lost by the plot: " + plotter.getLostReadingCount());
+		System.out.println(String.format("retained heap trend: %+.2f MB/hour", slope(retained)));
+
+		pool.close();
+		dispatcher.close();
+		fleet.shutdown();
+		System.exit(0);
+	}
+
+	private void sendCommand(Random inRandom)
+		throws RelayException {
+		if (commandCount.incrementAndGet() % GROUP_EVERY == 0) {
+			fleet.setGroup("all", inRandom.nextBoolean() ? RelayStatus.ON : RelayStatus.OFF);
+			return;
+		}
+		int node = inRandom.nextInt(managers.length);
+		XbeeRelayManager manager = managers[node];
+		int first = node * RELAYS_PER_NODE + 1;
+		int bits = inRandom.nextInt(1 << RELAYS_PER_NODE);
+		int ons = Integer.bitCount(bits);
+		int[] on = new int[ons];
+		int[] off = new int[RELAYS_PER_NODE - ons];
+		for (int r = 0, i = 0, j = 0; r < RELAYS_PER_NODE; r++) {
+			if ((bits & (1 << r)) != 0) {
+				on[i++] = first + r;
+			} else {
+				off[j++] = first + r;
+			}
+		}
+		manager.setRelays(on, off);
+	}
+
+	private void report(Reading inPrevious, Reading inCurrent, long inStart) {
+		double seconds = (inCurrent.nanos - inPrevious.nanos) / 1e9;
+		long elapsed = TimeUnit.NANOSECONDS.toSeconds(inCurrent.nanos - inStart);
+		System.out.println(String.format("%3d:%02d:%02d  %9.0f  %8.0f  %6.1f/%6.1f/%6.1f  %8.2f/%8.2f  %10.1f  %3d/%-6d  %7.1f  %11.1f  %7d  %3d",
+				elapsed / 3600, elapsed / 60 % 60, elapsed % 60,
+				(inCurrent.samples - inPrevious.samples) / seconds,
+				(inCurrent.frames - inPrevious.frames) / seconds,
+				commandLatency.getPercentileNanos(50) / 1e6, commandLatency.getPercentileNanos(99) / 1e6,
+				commandLatency.getMaxNanos() / 1e6,
+				sampleLatency.getPercentileNanos(50) / 1e6, sampleLatency.getPercentileNanos(99) / 1e6,
+				inCurrent.allocatedBytes < 0 ? Double.NaN
+						: Math.max(inCurrent.allocatedBytes - inPrevious.allocatedBytes, 0) / seconds / 1e6,
+				inCurrent.gcCount - inPrevious.gcCount, inCurrent.gcMillis - inPrevious.gcMillis,
+				inCurrent.heapBytes / 1e6, inCurrent.retainedBytes / 1e6,
+				plottedCount, samples.getLag()));
+		commandLatency.reset();
+		sampleLatency.reset();
+	}
+
+	// Least-squares slope of y over x
+	private static double slope(List<double[]> inPoints) {
+		int n = inPoints.size();
+		if (n < 2) {
+			return 0;
+		}
+		double sx = 0, sy = 0, sxx = 0, sxy = 0;
+		for (double[] p : inPoints) {
+			sx += p[0];
+			sy += p[1];
+			sxx += p[0] * p[0];
+			sxy += p[0] * p[1];
+		}
+		double d = n * sxx - sx * sx;
+		return d == 0 ? 0 : (n * sxy - sx * sy) / d;
+	}
+
+	/**
+	 * Counters and JVM figures at one moment, to be differenced between reports.
+	 */
+	private final class Reading {
+
+		Reading() {
+			nanos = System.nanoTime();
+			samples = samplesProcessed.get();
+			frames = radio.getFramesSent();
+
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			long allocated = -1;
+			if (threads instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+				if (hotspot.isThreadAllocatedMemorySupported()) {
+					hotspot.setThreadAllocatedMemoryEnabled(true);
+					allocated = 0;
+					// Threads that have exited drop out, so this undercounts a little if threads come and go
+					for (long bytes : hotspot.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+						allocated += Math.max(bytes, 0);
+					}
+				}
+			}
+			allocatedBytes = allocated;
+
+			long count = 0;
+			long millis = 0;
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				count += Math.max(gc.getCollectionCount(), 0);
+				millis += Math.max(gc.getCollectionTime(), 0);
+			}
+			gcCount = count;
+			gcMillis = millis;
+
+			heapBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+			long after = 0;
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				MemoryUsage usage = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+				if (usage != null) {
+					after += usage.getUsed();
+				}
+			}
+			retainedBytes = after;
+		}
+
+		final long nanos;
+		final long samples;
+		final long frames;
+		final long allocatedBytes;
+		final long gcCount;
+		final long gcMillis;
+		final long heapBytes;
+		final long retainedBytes;
+	}
+
+	/**
+	 * A coordinator with a network of relay nodes behind it, all in memory.
+	 * Nodes switch their relays when sent "CMD"/"BCMD" payloads (as the Arduino
+	 * sketch does) and report them in IO samples, along with an analog reading
+	 * that goes up with the number of relays on.
+	 */
+	static final class FakeRadio extends XBee {
+
+		/** Power each analog count stands for. */
+		static final double MILLIWATTS_PER_COUNT = 100;
+		// Analog counts drawn by each relay that is on
+		private static final int COUNTS_PER_RELAY = 150;
+		private static final int[] ESCAPED = {0x7e, 0x7d, 0x11, 0x13};
+
+		FakeRadio(boolean inAirtime) {
+			airtime = inAirtime;
+		}
+
+		synchronized void addNode(int[] inAddress) {
+			int i = nodeCount++;
+			if (i == addresses.length) {
+				addresses = Arrays.copyOf(addresses, i * 2);
+				masks = Arrays.copyOf(masks, i * 2);
+				sentNanos = Arrays.copyOf(sentNanos, i * 2);
+			}
+			addresses[i] = inAddress.clone();
+			nodeIndex.put(NodeAddress.pack(inAddress), i);
+			serialIndex.put(NodeAddress.serialLow(NodeAddress.pack(inAddress)) & 0xffffffffL, i);
+		}
+
+		/**
+		 * Sends an IO sample from a node, through the listeners as if it had
+		 * just been read from the serial port.
+		 */
+		void sendSample(int inNode) {
+			int[] address;
+			int mask;
+			synchronized (this) {
+				address = addresses[inNode];
+				mask = masks[inNode];
+				sentNanos[inNode] = System.nanoTime();
+			}
+			int analog = Integer.bitCount(mask) * COUNTS_PER_RELAY;
+			int[] data = new int[20];
+			int d = 0;
+			data[d++] = 0x92;
+			for (int b : address) {
+				data[d++] = b;
+			}
+			data[d++] = 0x10 + ((inNode >> 8) & 0x0f);
+			data[d++] = inNode & 0xff;
+			data[d++] = 0x01; // acked
+			data[d++] = 1; // one sample
+			data[d++] = 0x00; // digital channels D0-D3
+			data[d++] = (1 << RELAYS_PER_NODE) - 1;
+			data[d++] = 0x01; // analog channel AD0
+			data[d++] = (mask >> 8) & 0xff;
+			data[d++] = mask & 0xff;
+			data[d++] = (analog >> 8) & 0x03;
+			data[d++] = analog & 0xff;
+			deliver(frame(data, d));
+		}
+
+		synchronized long getSentNanos(long inNode) {
+			int i = nodeIndex.get(inNode);
+			return i == LongIntMap.MISSING ? System.nanoTime() : sentNanos[i];
+		}
+
+		long getFramesSent() {
+			return framesSent.get();
+		}
+
+		@Override
+		public void open(String inPort, int inBaudRate) {
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public boolean isConnected() {
+			return true;
+		}
+
+		@Override
+		public void addPacketListener(PacketListener inListener) {
+			listeners.add(inListener);
+		}
+
+		@Override
+		public void removePacketListener(PacketListener inListener) {
+			listeners.remove(inListener);
+		}
+
+		@Override
+		public synchronized int getNextFrameId() {
+			frameId = frameId % 0xff + 1;
+			return frameId;
+		}
+
+		@Override
+		public synchronized int getCurrentFrameId() {
+			return frameId;
+		}
+
+		@Override
+		public XBeeResponse sendSynchronous(XBeeRequest inRequest, int inTimeout)
+			throws XBeeException {
+			return transmit(inRequest);
+		}
+
+		@Override
+		public void sendAsynchronous(XBeeRequest inRequest)
+			throws XBeeException {
+			transmit(inRequest);
+		}
+
+		// Acts on a transmit request and returns (and delivers) its status
+		private XBeeResponse transmit(XBeeRequest inRequest)
+			throws XBeeException {
+			if (!(inRequest instanceof ZNetTxRequest)) {
+				throw new XBeeException("The fake radio only handles ZNetTxRequests");
+			}
+			ZNetTxRequest request = (ZNetTxRequest) inRequest;
+			int[] payload = request.getPayload();
+			framesSent.incrementAndGet();
+			if (airtime) {
+				LockSupport.parkNanos(AirtimeLimiter.rfNanos(payload.length) + AirtimeLimiter.RF_ACK_NANOS);
+			}
+
+			int status = 0x00; // success
+			int node = 0xfffe;
+			XBeeAddress64 destination = request.getDestAddr64();
+			StringBuilder command = new StringBuilder(payload.length);
+			for (int b : payload) {
+				command.append((char) b);
+			}
+			synchronized (this) {
+				if (destination.equals(XBeeAddress64.BROADCAST)) {
+					applyBroadcast(command.toString());
+				} else {
+					int i = nodeIndex.get(NodeAddress.pack(destination));
+					if (i == LongIntMap.MISSING) {
+						status = 0x24; // address not found
+					} else {
+						apply(i, command.toString(), 0);
+						node = 0x1000 + i;
+					}
+				}
+			}
+
+			int[] data = {0x8b, request.getFrameId(), (node >> 8) & 0xff, node & 0xff, 0, status, 0};
+			XBeeResponse response = frame(data, data.length);
+			deliver(response);
+			return response;
+		}
+
+		// "BCMD @<SL> RON01 ROFF02 @<SL> ..."
+		private void applyBroadcast(String inCommand) {
+			int at = inCommand.indexOf('@');
+			while (at >= 0 && at + 9 <= inCommand.length()) {
+				int i = serialIndex.get(Long.parseLong(inCommand.substring(at + 1, at + 9), 16));
+				int next = inCommand.indexOf('@', at + 1);
+				if (i != LongIntMap.MISSING) {
+					apply(i, next < 0 ? inCommand : inCommand.substring(0, next), at + 9);
+				}
+				at = next;
+			}
+		}
+
+		// Applies "RONnn"/"ROFFnn" tokens from inFrom on
+		private void apply(int inNode, String inCommand, int inFrom) {
+			String[] tokens = inCommand.substring(inFrom).trim().split(" +");
+			for (String token : tokens) {
+				boolean on = token.startsWith("RON");
+				if (!on && !token.startsWith("ROFF")) {
+					continue;
+				}
+				int bit = Integer.parseInt(token.substring(on ? 3 : 4)) - FIRST_DP;
+				if (bit < 0 || bit >= RELAYS_PER_NODE) {
+					continue;
+				}
+				if (on) {
+					masks[inNode] |= 1 << bit;
+				} else {
+					masks[inNode] &= ~(1 << bit);
+				}
+			}
+		}
+
+		// Wraps frame data in a start delimiter, length and checksum, escapes it as
+		// on the serial line, and parses it
+		private static XBeeResponse frame(int[] inData, int inLength) {
+			int[] raw = new int[(inLength + 4) * 2];
+			int r = 0;
+			raw[r++] = 0x7e;
+			int checksum = 0;
+			int[] unescaped = new int[inLength + 3];
+			unescaped[0] = (inLength >> 8) & 0xff;
+			unescaped[1] = inLength & 0xff;
+			for (int i = 0; i < inLength; i++) {
+				unescaped[i + 2] = inData[i];
+				checksum += inData[i];
+			}
+			unescaped[inLength + 2] = 0xff - (checksum & 0xff);
+			for (int b : unescaped) {
+				boolean escape = false;
+				for (int e : ESCAPED) {
+					escape |= b == e;
+				}
+				if (escape) {
+					raw[r++] = 0x7d;
+					raw[r++] = b ^ 0x20;
+				} else {
+					raw[r++] = b;
+				}
+			}
+			return FrameReplayer.parse(raw, r);
+		}
+
+		// One at a time, as xbee-api's single reader thread would
+		private void deliver(XBeeResponse inResponse) {
+			synchronized (listeners) {
+				for (PacketListener listener : listeners) {
+					listener.processResponse(inResponse);
+				}
+			}
+		}
+
+		private final boolean airtime;
+		private final List<PacketListener> listeners = new CopyOnWriteArrayList<PacketListener>();
+		private final AtomicLong framesSent = new AtomicLong();
+		private int frameId;
+		private int nodeCount;
+		private int[][] addresses = new int[16][];
+		private int[] masks = new int[16];
+		private long[] sentNanos = new long[16];
+		private final LongIntMap nodeIndex = new LongIntMap(16);
+		// Low 32 bits of the address (SL) to node, for broadcasts
+		private final LongIntMap serialIndex = new LongIntMap(16);
+	}
+
+	private final FakeRadio radio;
+	private final PacketDispatcher dispatcher;
+	private final CoordinatorPool pool;
+	private final RelayFleet fleet;
+	private final PowerAttributor attributor;
+	private final PowerPlotter plotter;
+	private final XbeeRelayManager[] managers;
+	private final PacketDispatcher.Subscriber samples;
+	private final LatencyStats commandLatency = new LatencyStats();
+	private final LatencyStats totalCommandLatency = new LatencyStats();
+	private final LatencyStats sampleLatency = new LatencyStats();
+	private final LatencyStats totalSampleLatency = new LatencyStats();
+	private final AtomicLong samplesProcessed = new AtomicLong();
+	private final AtomicLong commandCount = new AtomicLong();
+	private final AtomicLong commandFailures = new AtomicLong();
+	private volatile boolean stopping;
+	private volatile int plottedCount;
+}
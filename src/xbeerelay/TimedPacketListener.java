@@ -0,0 +1,24 @@
+package xbeerelay;
+
+import com.rapplogic.xbee.api.PacketListener;
+import com.rapplogic.xbee.api.XBeeResponse;
+
+/**
+ * A PacketListener that also wants to know when each packet was received.
+ * PacketDispatcher stamps packets as the radio's reader thread hands them over
+ * and delivers them to listeners like this through the timed method, so the
+ * time doesn't include however long the packet waited in the ring.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public interface TimedPacketListener extends PacketListener {
+
+	/**
+	 * Called with a packet and when it was received.
+	 *
+	 * @param inResponse the packet
+	 * @param inNanos System.nanoTime() when it was received
+	 */
+	void processResponse(XBeeResponse inResponse, long inNanos);
+}
@@ -1,13 +1,16 @@
 package xbeerelay;
 
+import java.util.concurrent.Callable;
+
+import com.rapplogic.xbee.api.RemoteAtRequest;
+import com.rapplogic.xbee.api.RemoteAtResponse;
 import com.rapplogic.xbee.api.XBee;
 import com.rapplogic.xbee.api.XBeeAddress16;
 import com.rapplogic.xbee.api.XBeeAddress64;
 import com.rapplogic.xbee.api.XBeeException;
-import com.rapplogic.xbee.api.XBeeTimeoutException;
+import com.rapplogic.xbee.api.XBeeResponse;
 import com.rapplogic.xbee.api.zigbee.ZNetTxRequest;
 import com.rapplogic.xbee.api.zigbee.ZNetTxStatusResponse;
-import com.rapplogic.xbee.util.ByteUtils;
 
 /**
  * This is the class that interacts with the Xbee chips.  It makes use
@@ -22,6 +25,13 @@ import com.rapplogic.xbee.util.ByteUtils;
  */
 public class XbeeManager {
 	
+	/** The largest payload a single ZigBee transmit request can carry. */
+	public static final int MAX_PAYLOAD_LENGTH = 72;
+	/** Returned by getRoute when a node's 16-bit address isn't known. */
+	public static final int NO_ROUTE = LongIntMap.MISSING;
+	
+	private static final long RESPONSE_TIMEOUT_MILLIS = 10000;
+	
 	/**
 	 * Constructs a new XbeeManager instance.  This instance will use the 
 	 * specified XBee object for sending commands/payloads.
@@ -39,9 +49,11 @@ public class XbeeManager {
 	 * remote XBee.
 	 * 
 	 * <p>The payload must be 72 bytes or less in length.  If you try to send a packet with
-	 * a bigger payload, this might fail ungracefully -- it's up the user to check that
+	 * a bigger payload, an XBeeException is thrown -- it's up the user to check that
 	 * he/she is not trying to send too much in a single packet.
 	 * 
+	 * <p>The command is sent as INTERACTIVE.
+	 * 
 	 * @param inCommand the string payload, up to 72 bytes in length
 	 * @param inAddr64 the 64-bit address of the remote XBee
 	 * @return true if successful (acked), false if not
@@ -49,39 +61,407 @@ public class XbeeManager {
 	 */
 	public boolean sendCommand(String inCommand, XBeeAddress64 inAddr64) 
 		throws XBeeException {
+		return sendCommand(inCommand, inAddr64, CommandPriority.INTERACTIVE);
+	}
+	
+	/**
+	 * Send a command to a remote Xbee, as sendCommand(String, XBeeAddress64), in
+	 * a priority class.  With a CommandScheduler set, the command waits behind
+	 * anything of higher priority; either way this returns once it has been sent.
+	 * 
+	 * @param inCommand the string payload, up to 72 bytes in length
+	 * @param inAddr64 the 64-bit address of the remote XBee
+	 * @param inPriority the command's priority class
+	 * @return true if successful (acked), false if not
+	 * @throws XBeeException if something fails
+	 */
+	public boolean sendCommand(final String inCommand, final XBeeAddress64 inAddr64, CommandPriority inPriority) 
+		throws XBeeException {
+		CommandScheduler scheduler = commandScheduler;
+		if (scheduler == null) {
+			return sendNow(inCommand, null, 0, inAddr64, false);
+		}
+		return scheduler.submit(inPriority, new Callable<Boolean>() {
+
+			@Override
+			public Boolean call()
+				throws XBeeException {
+				return sendNow(inCommand, null, 0, inAddr64, false);
+			}
+		});
+	}
+	
+	/**
+	 * Send a payload to a remote Xbee, as sendCommand(String, XBeeAddress64,
+	 * CommandPriority), straight from a buffer.  Nothing is allocated on the way
+	 * (unless priority lanes are in use, which queue each send), so callers that
+	 * encode their commands into a reused buffer send without making garbage.
+	 * 
+	 * @param inPayload buffer holding the payload, one byte per int; it is copied
+	 *   before this returns, and not changed
+	 * @param inLength payload length, up to 72 bytes
+	 * @param inAddr64 the 64-bit address of the remote XBee
+	 * @param inPriority the command's priority class
+	 * @return true if successful (acked), false if not
+	 * @throws XBeeException if something fails
+	 */
+	public boolean sendPayload(final int[] inPayload, final int inLength, final XBeeAddress64 inAddr64, 
+			CommandPriority inPriority) 
+		throws XBeeException {
+		CommandScheduler scheduler = commandScheduler;
+		if (scheduler == null) {
+			return sendNow(null, inPayload, inLength, inAddr64, false);
+		}
+		return scheduler.submit(inPriority, new Callable<Boolean>() {
 
-		// Create the payload that we will use to send the command to the remote
-		// Xbee
-		int[] payload = ByteUtils.stringToIntArray(inCommand);
+			@Override
+			public Boolean call()
+				throws XBeeException {
+				return sendNow(null, inPayload, inLength, inAddr64, false);
+			}
+		});
+	}
+	
+	/*
+	 * Sends one frame, with the payload taken from inCommand if it isn't null
+	 * and from inPayload if it is, and waits for its status.
+	 */
+	private boolean sendNow(String inCommand, int[] inPayload, int inLength, XBeeAddress64 inAddr64, 
+			boolean inBroadcast) 
+		throws XBeeException {
+		int length = inCommand != null ? inCommand.length() : inLength;
+		if (length > MAX_PAYLOAD_LENGTH) {
+			throw new XBeeException("Payload of " + length + " bytes is more than " + MAX_PAYLOAD_LENGTH);
+		}
+		long node = inBroadcast ? NodeAddress.NONE : NodeAddress.pack(inAddr64);
 
-		// Construct the request to send, containing the above payload (with the command)
-		// to the specified address.
-		ZNetTxRequest request = new ZNetTxRequest(inAddr64, payload);
+		// Wait our turn on the link, so the coordinator isn't handed more than it can send
+		if (!awaitAirtime(node, length)) {
+			return false;
+		}
 
+		listen();
+		FrameCorrelator.Slot slot = correlator.acquire(ZNetTxStatusResponse.class, RESPONSE_TIMEOUT_MILLIS);
 		try {
-			ZNetTxStatusResponse response = (ZNetTxStatusResponse) xbee.sendSynchronous(request, 10000);
-			
-			// We need to update the frameID for each request (otherwise we won't know which packet is being
-			//  acked, the last one sent or the current one.
-			request.setFrameId(xbee.getNextFrameId());
+			// Fill the frame ID's own payload buffer and request, rather than new ones
+			int[] payload = slot.payload(length);
+			if (inCommand != null) {
+				for (int i = 0; i < length; i++) {
+					payload[i] = inCommand.charAt(i) & 0xff;
+				}
+			} else {
+				System.arraycopy(inPayload, 0, payload, 0, length);
+			}
+			// A known 16-bit address lets the coordinator skip address discovery
+			ZNetTxRequest request = slot.prepare(inAddr64, inBroadcast ? NO_ROUTE : getRoute(node), payload);
+
+			if (frameRecorder != null) {
+				frameRecorder.recordSent(request);
+			}
+
+			// The frame ID is already on the request, and the correlator routes
+			// the status response for it back to the slot (only a transmit status,
+			// so the cast is safe)
+			xbee.sendAsynchronous(request);
+			ZNetTxStatusResponse response = (ZNetTxStatusResponse) slot.await(RESPONSE_TIMEOUT_MILLIS);
+			if (response == null) {
+				// TODO: Log warning, inform someone!
+				return false;
+			}
 
 			if (response.getDeliveryStatus() == ZNetTxStatusResponse.DeliveryStatus.SUCCESS) {
-				// the packet was successfully delivered
-				if (response.getRemoteAddress16().equals(XBeeAddress16.ZNET_BROADCAST)) {
-					// specify 16-bit address for faster routing?.. really only need to do this when it changes
-					request.setDestAddr16(response.getRemoteAddress16());
+				if (!inBroadcast) {
+					// the packet was successfully delivered; remember the node's 16-bit address
+					// for next time (it only changes if the node rejoins)
+					XBeeAddress16 remote16 = response.getRemoteAddress16();
+					if (remote16 != null && !remote16.equals(XBeeAddress16.ZNET_BROADCAST)) {
+						setRoute(node, (remote16.getMsb() << 8) | remote16.getLsb());
+					}
 				}
 				return true;
-			} else {						
-				// packet failed.
-				// TODO: Log error.
+			} else {
+				if (!inBroadcast) {
+					// packet failed.  The node may have a new 16-bit address, so discover it next time.
+					// TODO: Log error.
+					clearRoute(node);
+				}
 				return false;
-			}			
-		} catch (XBeeTimeoutException e) {
-			// TODO: Log warning, inform someone!
+			}
+		} finally {
+			correlator.release(slot);
+		}
+	}
+	
+	/**
+	 * Broadcasts a command to every node on the network in a single frame.
+	 * <p>Broadcasts aren't acknowledged by the nodes that get them, so success
+	 * only means the local XBee sent the frame.  Callers that need to know the
+	 * command took effect have to check for themselves (RelayFleet watches the
+	 * nodes' IO samples).
+	 * 
+	 * <p>The command is sent as INTERACTIVE.
+	 * 
+	 * @param inCommand the string payload, up to 72 bytes in length
+	 * @return true if the frame was sent, false if not
+	 * @throws XBeeException if something fails
+	 */
+	public boolean broadcastCommand(String inCommand) 
+		throws XBeeException {
+		return broadcastCommand(inCommand, CommandPriority.INTERACTIVE);
+	}
+	
+	/**
+	 * Broadcasts a command, as broadcastCommand(String), in a priority class.
+	 * 
+	 * @param inCommand the string payload, up to 72 bytes in length
+	 * @param inPriority the command's priority class
+	 * @return true if the frame was sent, false if not
+	 * @throws XBeeException if something fails
+	 */
+	public boolean broadcastCommand(final String inCommand, CommandPriority inPriority) 
+		throws XBeeException {
+		CommandScheduler scheduler = commandScheduler;
+		if (scheduler == null) {
+			return sendNow(inCommand, null, 0, XBeeAddress64.BROADCAST, true);
+		}
+		return scheduler.submit(inPriority, new Callable<Boolean>() {
+
+			@Override
+			public Boolean call()
+				throws XBeeException {
+				return sendNow(inCommand, null, 0, XBeeAddress64.BROADCAST, true);
+			}
+		});
+	}
+	
+	/**
+	 * Sets an AT parameter on a remote Xbee (e.g. "IR", the IO sample rate) and
+	 * applies it.  The setting is not written to the node's flash, so it lasts
+	 * until the node restarts.
+	 * 
+	 * @param inAddr64 the 64-bit address of the remote XBee
+	 * @param inCommand two-letter AT command
+	 * @param inValue parameter value, most significant byte first
+	 * @param inPriority the command's priority class
+	 * @return true if the node applied it, false if it refused or didn't answer
+	 * @throws XBeeException if something fails
+	 */
+	public boolean sendRemoteAt(final XBeeAddress64 inAddr64, final String inCommand, final int[] inValue, 
+			CommandPriority inPriority) 
+		throws XBeeException {
+		CommandScheduler scheduler = commandScheduler;
+		if (scheduler == null) {
+			return sendRemoteAtNow(inAddr64, inCommand, inValue);
+		}
+		return scheduler.submit(inPriority, new Callable<Boolean>() {
+
+			@Override
+			public Boolean call()
+				throws XBeeException {
+				return sendRemoteAtNow(inAddr64, inCommand, inValue);
+			}
+		});
+	}
+	
+	private boolean sendRemoteAtNow(XBeeAddress64 inAddr64, String inCommand, int[] inValue) 
+		throws XBeeException {
+		long node = NodeAddress.pack(inAddr64);
+		if (!awaitAirtime(node, inCommand.length() + inValue.length)) {
 			return false;
 		}
+
+		listen();
+		FrameCorrelator.Slot slot = correlator.acquire(RemoteAtResponse.class, RESPONSE_TIMEOUT_MILLIS);
+		try {
+			// Provisioning is rare, so the request isn't pooled; the frame ID is
+			RemoteAtRequest request = new RemoteAtRequest(inAddr64, inCommand, inValue);
+			request.setFrameId(slot.getFrameId());
+			request.setApplyChanges(true);
+			if (frameRecorder != null) {
+				frameRecorder.recordSent(request);
+			}
+			xbee.sendAsynchronous(request);
+			RemoteAtResponse response = (RemoteAtResponse) slot.await(RESPONSE_TIMEOUT_MILLIS);
+			return response != null && response.isOk();
+		} finally {
+			correlator.release(slot);
+		}
+	}
+	
+	/**
+	 * Estimates how long a command to a remote Xbee would wait for the link
+	 * if it were sent now, so callers can decide whether to send it at all.
+	 * 
+	 * @param inCommand the string payload
+	 * @param inAddr64 the 64-bit address of the remote XBee, or null for a broadcast
+	 * @return wait in milliseconds, 0 if there is no airtime limiter
+	 */
+	public long estimateQueueDelay(String inCommand, XBeeAddress64 inAddr64) {
+		AirtimeLimiter limiter = airtimeLimiter;
+		if (limiter == null) {
+			return 0;
+		}
+		long node = inAddr64 == null ? NodeAddress.NONE : NodeAddress.pack(inAddr64);
+		return limiter.estimateDelayNanos(node, inCommand.length()) / 1000000L;
+	}
+	
+	/**
+	 * Gets the 16-bit network address last seen for a node.
+	 * 
+	 * @param inNode packed 64-bit node address (see NodeAddress)
+	 * @return the 16-bit address, or NO_ROUTE if it isn't known
+	 */
+	public int getRoute(long inNode) {
+		synchronized (routes) {
+			return routes.get(inNode);
+		}
+	}
+	
+	/**
+	 * Sets the 16-bit network address to send to a node with, e.g. one restored
+	 * from a RuntimeSnapshot.  If it's wrong the send fails once and the address
+	 * is rediscovered.
+	 * 
+	 * @param inNode packed 64-bit node address (see NodeAddress)
+	 * @param inAddr16 the 16-bit address
+	 */
+	public void setRoute(long inNode, int inAddr16) {
+		synchronized (routes) {
+			routes.put(inNode, inAddr16 & 0xffff);
+		}
+	}
+	
+	/**
+	 * Forgets a node's 16-bit network address.
+	 * 
+	 * @param inNode packed 64-bit node address (see NodeAddress)
+	 */
+	public void clearRoute(long inNode) {
+		synchronized (routes) {
+			routes.remove(inNode);
+		}
+	}
+	
+	/**
+	 * Gets every node whose 16-bit network address is known.
+	 * 
+	 * @return packed 64-bit node addresses
+	 */
+	public long[] getRoutedNodes() {
+		synchronized (routes) {
+			return routes.keys();
+		}
+	}
+	
+	/**
+	 * Sets a limiter that paces sends so they don't overrun the coordinator.
+	 * 
+	 * @param inLimiter the limiter, or null to send as fast as callers ask
+	 */
+	public void setAirtimeLimiter(AirtimeLimiter inLimiter) {
+		airtimeLimiter = inLimiter;
+	}
+	
+	/**
+	 * Gets the limiter pacing this manager's sends.
+	 * 
+	 * @return the limiter, or null if there isn't one
+	 */
+	public AirtimeLimiter getAirtimeLimiter() {
+		return airtimeLimiter;
+	}
+	
+	/**
+	 * Sets the scheduler that orders this manager's sends by priority.  The
+	 * airtime limiter's wait happens on the scheduler's thread, so a command
+	 * held back for airtime doesn't hold up one of higher priority queued
+	 * behind it for longer than one frame.
+	 * 
+	 * @param inScheduler the scheduler, or null to send on the caller's thread
+	 */
+	public void setCommandScheduler(CommandScheduler inScheduler) {
+		commandScheduler = inScheduler;
+	}
+	
+	/**
+	 * Gets the scheduler ordering this manager's sends.
+	 * 
+	 * @return the scheduler, or null if there isn't one
+	 */
+	public CommandScheduler getCommandScheduler() {
+		return commandScheduler;
+	}
+	
+	/**
+	 * Sets a recorder to capture every frame this manager sends.
+	 * 
+	 * @param inRecorder the recorder, or null to stop capturing
+	 */
+	public void setFrameRecorder(FrameRecorder inRecorder) {
+		frameRecorder = inRecorder;
+	}
+	
+	/**
+	 * Gets the table matching this manager's frames to their status responses.
+	 */
+	public FrameCorrelator getFrameCorrelator() {
+		return correlator;
+	}
+	
+	/**
+	 * Stops routing the radio's responses to this manager's frame correlator.
+	 * Call it before the radio is closed; a later send starts routing them again.
+	 */
+	public void close() {
+		synchronized (correlator) {
+			if (listening) {
+				xbee.removePacketListener(correlator);
+				listening = false;
+			}
+		}
+	}
+	
+	// Starts routing the radio's responses to the correlator.  Not done in the
+	// constructor, since xbee-api only takes listeners once the radio is open.
+	private void listen() {
+		if (!listening) {
+			synchronized (correlator) {
+				if (!listening) {
+					xbee.addPacketListener(correlator);
+					listening = true;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Reserves airtime for a frame and waits until it can be sent.
+	 * 
+	 * @return false if interrupted while waiting
+	 */
+	private boolean awaitAirtime(long inNode, int inPayloadLength) {
+		AirtimeLimiter limiter = airtimeLimiter;
+		if (limiter == null) {
+			return true;
+		}
+		long wait = limiter.reserve(inNode, inPayloadLength);
+		if (wait > 0) {
+			try {
+				Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
 	}
 	
 	private XBee xbee;
+	private final FrameCorrelator correlator = new FrameCorrelator();
+	private volatile boolean listening;
+	private volatile AirtimeLimiter airtimeLimiter;
+	private volatile CommandScheduler commandScheduler;
+	// 64-bit node address to 16-bit network address
+	private final LongIntMap routes = new LongIntMap(16);
+	private volatile FrameRecorder frameRecorder;
 }
@@ -3,13 +3,18 @@
  */
 package xbeerelay;
 
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import xbeerelay.Relay.RelayStatus;
 
 import com.rapplogic.xbee.api.XBeeAddress64;
 import com.rapplogic.xbee.api.XBeeException;
+import com.rapplogic.xbee.api.zigbee.ZNetRxIoSampleResponse;
 
 /**
  * This class is used for actually managing our relays remotely using the
@@ -18,6 +23,12 @@ import com.rapplogic.xbee.api.XBeeException;
  * system that is currently controlling the relays (running our relay 
  * control software).
  * 
+ * <p>Sends hold this manager's lock only while their commands are worked out
+ * and their relays marked pending, and again to record the outcome; it isn't
+ * held while the frames wait for the radio.  So a node that is busy with a long
+ * send still has its samples processed, and can still be sent an emergency
+ * command, which the CommandScheduler puts ahead of the rest of that send.
+ * 
  * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
  *
  */
@@ -32,7 +43,21 @@ public class XbeeRelayManager extends RelayManager {
 	public XbeeRelayManager(XbeeManager inXbeeManager, int[] inXbAddress) {
 		xbManager = inXbeeManager;
 		xbAddress = new XBeeAddress64(inXbAddress);
-		managedRelays = new HashMap<Integer, Relay>();
+		node = NodeAddress.pack(inXbAddress);
+	}
+	
+	/**
+	 * Constructs a new XbeeRelayManager instance without any initial relays,
+	 * which sends through whichever coordinator in a pool its node is assigned
+	 * to at the time (see CoordinatorPool).
+	 * 
+	 * @param inPool the coordinators to send through
+	 * @param inXbAddress the 8-integer array representing a 64-bit xb address
+	 */
+	public XbeeRelayManager(CoordinatorPool inPool, int[] inXbAddress) {
+		coordinatorPool = inPool;
+		xbAddress = new XBeeAddress64(inXbAddress);
+		node = NodeAddress.pack(inXbAddress);
 	}
 	
 	/**
@@ -46,9 +71,54 @@ public class XbeeRelayManager extends RelayManager {
 	public XbeeRelayManager(Relay[] inRelays, XbeeManager inXbeeManager, int[] inXbAddress) 
 		throws RelayException {
 		xbManager = inXbeeManager;
-		addManagedRelays(inRelays);
 		xbAddress = new XBeeAddress64(inXbAddress);
-		managedRelays = new HashMap<Integer, Relay>();
+		node = NodeAddress.pack(inXbAddress);
+		addManagedRelays(inRelays);
+	}
+	
+	/**
+	 * Associates a relay with this manager.  If the relay isn't attached to a 
+	 * node yet, it is attached to the node this manager talks to.
+	 * 
+	 * @param inRelay relay to associate
+	 * @throws RelayException if the relay number is already in use
+	 */
+	@Override
+	public void addManagedRelay(Relay inRelay) 
+		throws RelayException {
+		super.addManagedRelay(inRelay);
+		adoptRelay(inRelay);
+	}
+	
+	/**
+	 * Associates multiple relays with this manager (all or nothing).  Relays
+	 * not attached to a node yet are attached to the node this manager talks to.
+	 * 
+	 * @param inRelays array of relays to associate
+	 * @throws RelayException if any relay number is already in use
+	 */
+	@Override
+	public void addManagedRelays(Relay[] inRelays) 
+		throws RelayException {
+		super.addManagedRelays(inRelays);
+		for (Relay r : inRelays) {
+			adoptRelay(r);
+		}
+	}
+	
+	/**
+	 * Gets the node this manager talks to.
+	 * 
+	 * @return packed 64-bit address of the remote XBee (see NodeAddress)
+	 */
+	public long getNode() {
+		return node;
+	}
+	
+	private void adoptRelay(Relay inRelay) {
+		if (inRelay.getNode() == NodeAddress.NONE) {
+			inRelay.setNode(node);
+		}
 	}
 	
 	/* (non-Javadoc)
@@ -57,11 +127,7 @@ public class XbeeRelayManager extends RelayManager {
 	@Override
 	public void turnOff(int inPinNumber) 
 		throws RelayException {
-		try {
-			xbManager.sendCommand(String.format("CMD ROFF%02d", inPinNumber), xbAddress);
-		} catch (XBeeException e) {
-			throw new RelayException(e);
-		}
+		send(preparePin(inPinNumber, RelayStatus.OFF), CommandPriority.INTERACTIVE);
 	}
 
 	/* (non-Javadoc)
@@ -70,38 +136,551 @@ public class XbeeRelayManager extends RelayManager {
 	@Override
 	public void turnOn(int inPinNumber) 
 		throws RelayException {
-		try {
-			xbManager.sendCommand(String.format("CMD RON%02d", inPinNumber), xbAddress);
-		} catch (XBeeException e) {
-			throw new RelayException(e);
-		}
+		send(preparePin(inPinNumber, RelayStatus.ON), CommandPriority.INTERACTIVE);
 	}
 
 	@Override
 	public void turnOff(List<Integer> inPinNumbers) 
 		throws RelayException {
-		StringBuilder cmd = new StringBuilder("CMD ");
-		for (Integer i : inPinNumbers)
-			cmd.append(String.format("ROFF%02d ", i));
-		try {
-			xbManager.sendCommand(cmd.toString(), xbAddress);
-		} catch (XBeeException e) {
-			throw new RelayException(e);
-		}
+		send(preparePins(inPinNumbers, RelayStatus.OFF), CommandPriority.INTERACTIVE);
 	}
 
 	@Override
 	public void turnOn(List<Integer> inPinNumbers) throws RelayException {
-		StringBuilder cmd = new StringBuilder("CMD ");
+		send(preparePins(inPinNumbers, RelayStatus.ON), CommandPriority.INTERACTIVE);
+	}
+
+	/**
+	 * Switches several relays with as few frames as possible: every on and off
+	 * command for this node is packed into shared "CMD ..." payloads.
+	 * 
+	 * @param inOnRelayNumbers relay numbers to turn on
+	 * @param inOffRelayNumbers relay numbers to turn off
+	 * @throws RelayException if any relay number is invalid, or sending fails
+	 */
+	@Override
+	public void setRelays(int[] inOnRelayNumbers, int[] inOffRelayNumbers)
+		throws RelayException {
+		setRelays(inOnRelayNumbers, inOffRelayNumbers, CommandPriority.INTERACTIVE);
+	}
+
+	/**
+	 * Switches several relays as setRelays(int[], int[]) does, with the frames
+	 * sent in the given priority class.
+	 * 
+	 * @param inOnRelayNumbers relay numbers to turn on
+	 * @param inOffRelayNumbers relay numbers to turn off
+	 * @param inPriority priority class of the frames
+	 * @throws RelayException if any relay number is invalid, or sending fails
+	 */
+	public void setRelays(int[] inOnRelayNumbers, int[] inOffRelayNumbers, CommandPriority inPriority)
+		throws RelayException {
+		send(prepareRelays(inOnRelayNumbers, inOffRelayNumbers), inPriority);
+	}
+
+	/**
+	 * Builds the commands that switch the given relays.  Relays already known to
+	 * be in (or on their way to) the requested state are left out.
+	 * 
+	 * @param inOnRelayNumbers relay numbers to turn on
+	 * @param inOffRelayNumbers relay numbers to turn off
+	 * @return the commands
+	 * @throws RelayException if any relay number is invalid
+	 */
+	CommandBatch buildCommands(int[] inOnRelayNumbers, int[] inOffRelayNumbers)
+		throws RelayException {
+		CommandBatch batch = new CommandBatch(inOnRelayNumbers.length + inOffRelayNumbers.length);
+		addCommands(batch, inOnRelayNumbers, inOffRelayNumbers, System.nanoTime());
+		return batch;
+	}
+
+	private void addCommands(CommandBatch inBatch, int[] inOnRelayNumbers, int[] inOffRelayNumbers, long inNow)
+		throws RelayException {
+		for (int relayNumber : inOnRelayNumbers) {
+			Relay r = getManagedRelay(relayNumber);
+			addCommand(inBatch, r, r.getPin(), RelayStatus.ON, inNow);
+		}
+		for (int relayNumber : inOffRelayNumbers) {
+			Relay r = getManagedRelay(relayNumber);
+			addCommand(inBatch, r, r.getPin(), RelayStatus.OFF, inNow);
+		}
+	}
+
+	/**
+	 * Records that a batch of commands is on its way to this node, so its relays
+	 * wait for a sample to confirm they switched.  Call it with this manager's
+	 * lock held.
+	 * 
+	 * @param inBatch commands that were sent
+	 * @param inSentNanos System.nanoTime() when they were sent
+	 */
+	void commandsDelivered(CommandBatch inBatch, long inSentNanos) {
+		for (int i = 0; i < inBatch.size; i++) {
+			Relay r = inBatch.relays[i];
+			if (r != null) {
+				r.setPending(inBatch.targets[i], inSentNanos, inSentNanos + actuationTimeoutNanos);
+			}
+		}
+	}
+
+	// Adds a command for a relay (which may be null if we don't know the pin) unless it's redundant
+	private void addCommand(CommandBatch inBatch, Relay inRelay, int inPinNumber, RelayStatus inTarget, long inNow) {
+		if (!isRedundant(inRelay, inTarget, inNow)) {
+			inBatch.add(inPinNumber, inRelay, inTarget);
+		}
+	}
+
+	private synchronized Outbound preparePin(int inPinNumber, RelayStatus inTarget) {
+		Outbound out = takeOutbound();
+		addCommand(out.batch, managedRelays.getByPin(inPinNumber), inPinNumber, inTarget, out.sentNanos);
+		return markPending(out);
+	}
+
+	private synchronized Outbound preparePins(List<Integer> inPinNumbers, RelayStatus inTarget) {
+		Outbound out = takeOutbound();
 		for (Integer i : inPinNumbers)
-			cmd.append(String.format("RON%02d ", i));
+			addCommand(out.batch, managedRelays.getByPin(i), i, inTarget, out.sentNanos);
+		return markPending(out);
+	}
+
+	private synchronized Outbound prepareRelays(int[] inOnRelayNumbers, int[] inOffRelayNumbers)
+		throws RelayException {
+		Outbound out = takeOutbound();
+		try {
+			addCommands(out.batch, inOnRelayNumbers, inOffRelayNumbers, out.sentNanos);
+		} catch (RelayException e) {
+			spareOutbound.push(out);
+			throw e;
+		}
+		return markPending(out);
+	}
+
+	// A cleared Outbound from the spares (or a new one if they're all in use).  Called with the lock held.
+	private Outbound takeOutbound() {
+		Outbound out = spareOutbound.poll();
+		if (out == null) {
+			out = new Outbound();
+		}
+		out.batch.clear();
+		out.sentNanos = System.nanoTime();
+		return out;
+	}
+
+	// Marks the relays as on their way, so a command sent meanwhile isn't repeated.  Called with the lock held.
+	private Outbound markPending(Outbound inOut) {
+		commandsDelivered(inOut.batch, inOut.sentNanos);
+		return inOut;
+	}
+
+	/*
+	 * Sends a prepared batch without holding this manager's lock, then takes it
+	 * again to withdraw the pending states if the frames weren't all acked.
+	 */
+	private void send(Outbound inOut, CommandPriority inPriority)
+		throws RelayException {
+		boolean acked = false;
+		try {
+			acked = transmit(inOut, inPriority);
+		} finally {
+			synchronized (this) {
+				if (!acked) {
+					withdrawPending(inOut.batch, inOut.sentNanos);
+				}
+				spareOutbound.push(inOut);
+			}
+		}
+	}
+
+	// Clears the pending states a failed send set, unless a later command has replaced them
+	private void withdrawPending(CommandBatch inBatch, long inSentNanos) {
+		for (int i = 0; i < inBatch.size; i++) {
+			Relay r = inBatch.relays[i];
+			if (r != null && r.getPendingStatus() == inBatch.targets[i] 
+					&& r.getPendingSinceNanos() == inSentNanos) {
+				r.clearPending();
+			}
+		}
+	}
+
+	/**
+	 * A send being worked on: its commands, the buffer its payloads are encoded
+	 * into, and when its relays were marked pending.  Kept for reuse once the
+	 * send is done, so sending doesn't make garbage.
+	 */
+	private static final class Outbound {
+
+		final CommandBatch batch = new CommandBatch(8);
+		final int[] payload = new int[XbeeManager.MAX_PAYLOAD_LENGTH];
+		long sentNanos;
+	}
+
+	/**
+	 * Commands for one node: the pin each is for, the relay it switches (null
+	 * where we have no relay on that pin) and its target.
+	 */
+	static final class CommandBatch {
+
+		CommandBatch(int inSize) {
+			int size = Math.max(inSize, 1);
+			pins = new int[size];
+			relays = new Relay[size];
+			targets = new RelayStatus[size];
+		}
+
+		void add(int inPinNumber, Relay inRelay, RelayStatus inTarget) {
+			if (size == pins.length) {
+				pins = Arrays.copyOf(pins, size * 2);
+				relays = Arrays.copyOf(relays, size * 2);
+				targets = Arrays.copyOf(targets, size * 2);
+			}
+			pins[size] = inPinNumber;
+			relays[size] = inRelay;
+			targets[size] = inTarget;
+			size++;
+		}
+
+		void clear() {
+			Arrays.fill(relays, 0, size, null);
+			size = 0;
+		}
+
+		int size;
+		int[] pins;
+		Relay[] relays;
+		RelayStatus[] targets;
+	}
+
+	/**
+	 * Gets the length of a relay command ("RONnn" or "ROFFnn", the pin number
+	 * being at least two digits).
+	 * 
+	 * @param inPinNumber pin number
+	 * @param inTarget ON or OFF
+	 * @return length in bytes
+	 */
+	static int commandLength(int inPinNumber, RelayStatus inTarget) {
+		int digits = 2;
+		for (int p = inPinNumber; p >= 100; p /= 10) {
+			digits++;
+		}
+		return (inTarget == RelayStatus.ON ? 3 : 4) + digits;
+	}
+
+	/**
+	 * Writes a relay command ("RONnn" or "ROFFnn") into a payload buffer.
+	 * 
+	 * @param inBuffer payload buffer, one byte per int
+	 * @param inAt where to write it
+	 * @param inPinNumber pin number
+	 * @param inTarget ON or OFF
+	 * @return where the command ends
+	 */
+	static int encodeCommand(int[] inBuffer, int inAt, int inPinNumber, RelayStatus inTarget) {
+		int at = inAt;
+		inBuffer[at++] = 'R';
+		inBuffer[at++] = 'O';
+		if (inTarget == RelayStatus.ON) {
+			inBuffer[at++] = 'N';
+		} else {
+			inBuffer[at++] = 'F';
+			inBuffer[at++] = 'F';
+		}
+		int end = inAt + commandLength(inPinNumber, inTarget);
+		int p = inPinNumber;
+		for (int i = end - 1; i >= at; i--) {
+			inBuffer[i] = '0' + p % 10;
+			p /= 10;
+		}
+		return end;
+	}
+
+	/**
+	 * Appends a relay command ("RONnn" or "ROFFnn") to a string.
+	 * 
+	 * @param inCommand string to append to
+	 * @param inPinNumber pin number
+	 * @param inTarget ON or OFF
+	 */
+	static void appendCommand(StringBuilder inCommand, int inPinNumber, RelayStatus inTarget) {
+		inCommand.append(inTarget == RelayStatus.ON ? "RON" : "ROFF");
+		if (inPinNumber < 10) {
+			inCommand.append('0');
+		}
+		inCommand.append(inPinNumber);
+	}
+
+	/*
+	 * Sends a batch to our node, packed into as few "CMD RON02 ROFF03 " payloads
+	 * as fit in an Xbee frame.  They are encoded straight into the send's reused
+	 * buffer.  Returns true if all were acked.
+	 */
+	private boolean transmit(Outbound inOut, CommandPriority inPriority) 
+		throws RelayException {
+		CommandBatch batch = inOut.batch;
+		int[] payload = inOut.payload;
+		XbeeManager xbManager = getXbeeManager();
 		try {
-			xbManager.sendCommand(cmd.toString(), xbAddress);
+			boolean acked = true;
+			int length = 0;
+			for (int i = 0; i < batch.size; i++) {
+				int needed = commandLength(batch.pins[i], batch.targets[i]) + 1;
+				if (length > 0 && length + needed > XbeeManager.MAX_PAYLOAD_LENGTH) {
+					acked &= xbManager.sendPayload(payload, length, xbAddress, inPriority);
+					length = 0;
+				}
+				if (length == 0) {
+					payload[length++] = 'C';
+					payload[length++] = 'M';
+					payload[length++] = 'D';
+					payload[length++] = ' ';
+				}
+				length = encodeCommand(payload, length, batch.pins[i], batch.targets[i]);
+				payload[length++] = ' ';
+			}
+			if (length > 0) {
+				acked &= xbManager.sendPayload(payload, length, xbAddress, inPriority);
+			}
+			return acked;
 		} catch (XBeeException e) {
 			throw new RelayException(e);
 		}
 	}
 
+	/**
+	 * Sets how recent a relay's sampled status must be for a command that wouldn't
+	 * change it to be dropped.  The RelayManager contract says turning on a relay
+	 * that is already on does nothing; this decides when we believe we know
+	 * it's already on.
+	 * 
+	 * @param inMillis staleness bound in milliseconds, 0 to always send commands
+	 */
+	public void setSuppressionStaleness(long inMillis) {
+		suppressionStalenessNanos = TimeUnit.MILLISECONDS.toNanos(inMillis);
+	}
+	
+	/**
+	 * Gets the number of relay commands that were dropped because the relay was
+	 * already known to be in the requested state.
+	 */
+	public long getSuppressedCount() {
+		return suppressed.get();
+	}
+	
+	// True (and counted) if inRelay was recently sampled in, or is already being switched to, inTarget
+	private boolean isRedundant(Relay inRelay, RelayStatus inTarget, long inNow) {
+		if (inRelay == null || suppressionStalenessNanos <= 0) {
+			return false;
+		}
+		RelayStatus pending = inRelay.getPendingStatus();
+		boolean redundant;
+		if (pending != null && inNow - inRelay.getPendingDeadlineNanos() < 0) {
+			redundant = pending == inTarget;
+		} else {
+			redundant = inRelay.getStatus() == inTarget
+				&& inNow - inRelay.getStatusNanos() < suppressionStalenessNanos;
+		}
+		if (redundant) {
+			suppressed.incrementAndGet();
+		}
+		return redundant;
+	}
+	
+	/**
+	 * Updates the status of every relay on this node from an IO sample the node sent.
+	 * 
+	 * @param inIOResponse the IO sample
+	 */
+	public void processSample(ZNetRxIoSampleResponse inIOResponse) {
+		processSample(IoSamples.digitalMask(inIOResponse), System.nanoTime());
+	}
+	
+	/**
+	 * Updates the status of every relay on this node from a sampled digital mask.
+	 * 
+	 * @param inDigitalMask one bit per Xbee pin sensed as ON (see IoSamples)
+	 * @param inNanos System.nanoTime() when the sample was received
+	 */
+	public void processSample(int inDigitalMask, long inNanos) {
+		boolean settled = false;
+		for (int i = 0; i < managedRelays.size(); i++) {
+			Relay r = managedRelays.relayAt(i);
+			RelayStatus status = IoSamples.relayStatus(inDigitalMask, r.getXbeePin());
+			// A provisional (restored) status is reported as a transition from UNITIALIZED
+			RelayStatus previous = r.getConfirmedStatus();
+			r.setStatus(status, inNanos);
+			if (previous != status) {
+				for (RelayTransitionListener listener : transitionListeners) {
+					listener.relayChanged(r, previous, status, inNanos);
+				}
+			}
+			
+			RelayStatus pending = r.getPendingStatus();
+			if (pending != null) {
+				if (pending == status) {
+					actuationLatency.record(inNanos - r.getPendingSinceNanos());
+					r.clearPending();
+					settled = true;
+				} else if (inNanos - r.getPendingDeadlineNanos() >= 0) {
+					actuationFailures.incrementAndGet();
+					r.clearPending();
+					settled = true;
+				}
+			}
+		}
+		lastSampleNanos = inNanos;
+		if (settled) {
+			synchronized (actuationLock) {
+				actuationLock.notifyAll();
+			}
+		}
+		for (RelaySampleListener listener : sampleListeners) {
+			listener.sampleProcessed(this, inNanos);
+		}
+	}
+	
+	/**
+	 * Marks every relay on this node as UNITIALIZED, e.g. because the node has
+	 * stopped sending samples and their last status can't be trusted any more.
+	 * Transition listeners are told, and the next sample brings them back.
+	 * 
+	 * @param inNanos System.nanoTime() when the relays stopped being trusted
+	 */
+	public synchronized void markStale(long inNanos) {
+		for (int i = 0; i < managedRelays.size(); i++) {
+			Relay r = managedRelays.relayAt(i);
+			RelayStatus previous = r.getConfirmedStatus();
+			if (r.getStatus() != RelayStatus.UNITIALIZED) {
+				r.setStatus(RelayStatus.UNITIALIZED, inNanos);
+			}
+			if (previous != RelayStatus.UNITIALIZED) {
+				for (RelayTransitionListener listener : transitionListeners) {
+					listener.relayChanged(r, previous, RelayStatus.UNITIALIZED, inNanos);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Waits until the given relays have actually switched, i.e. until an IO sample
+	 * has confirmed (or the actuation timeout has failed) every command sent to them.
+	 * <p>Don't call this while synchronized on this manager: samples can't be 
+	 * processed while you hold it.
+	 * 
+	 * @param inRelayNumbers relays to wait for
+	 * @param inTimeoutMillis how long to wait at most
+	 * @return true if every relay ended up in the state it was last commanded to
+	 * @throws RelayException if a relay number is invalid
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean awaitActuation(int[] inRelayNumbers, long inTimeoutMillis)
+		throws RelayException, InterruptedException {
+		Relay[] relays = new Relay[inRelayNumbers.length];
+		RelayStatus[] targets = new RelayStatus[inRelayNumbers.length];
+		synchronized (this) {
+			for (int i = 0; i < relays.length; i++) {
+				relays[i] = getManagedRelay(inRelayNumbers[i]);
+				targets[i] = relays[i].getPendingStatus();
+			}
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(inTimeoutMillis);
+		synchronized (actuationLock) {
+			for (int i = 0; i < relays.length; i++) {
+				while (relays[i].getPendingStatus() != null) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						return false;
+					}
+					TimeUnit.NANOSECONDS.timedWait(actuationLock, remaining);
+				}
+			}
+		}
+		for (int i = 0; i < relays.length; i++) {
+			if (targets[i] != null && relays[i].getStatus() != targets[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Sets how long a relay may take to show up in a sample in its commanded
+	 * state before the command is counted as failed.
+	 * 
+	 * @param inMillis timeout in milliseconds
+	 */
+	public void setActuationTimeout(long inMillis) {
+		actuationTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(inMillis);
+	}
+	
+	/**
+	 * Gets the time from sending a command to seeing it take effect in a sample.
+	 */
+	public LatencyStats getActuationLatency() {
+		return actuationLatency;
+	}
+	
+	/**
+	 * Gets the number of commands that were delivered but never showed up in a
+	 * sample before the actuation timeout.
+	 */
+	public long getActuationFailureCount() {
+		return actuationFailures.get();
+	}
+	
+	/**
+	 * Gets when this node's relays were last updated from a sample.
+	 * 
+	 * @return System.nanoTime() of the last sample, or 0 if there hasn't been one
+	 */
+	public long getLastSampleNanos() {
+		return lastSampleNanos;
+	}
+	
+	/**
+	 * Registers a listener to be told whenever this manager processes a sample.
+	 * 
+	 * @param inListener listener to add
+	 */
+	public void addSampleListener(RelaySampleListener inListener) {
+		sampleListeners.add(inListener);
+	}
+	
+	/**
+	 * Unregisters a sample listener.
+	 * 
+	 * @param inListener listener to remove
+	 */
+	public void removeSampleListener(RelaySampleListener inListener) {
+		sampleListeners.remove(inListener);
+	}
+	
+	/**
+	 * Registers a listener to be told whenever a sample shows a relay has changed state.
+	 * 
+	 * @param inListener listener to add
+	 */
+	public void addTransitionListener(RelayTransitionListener inListener) {
+		transitionListeners.add(inListener);
+	}
+	
+	/**
+	 * Unregisters a transition listener.
+	 * 
+	 * @param inListener listener to remove
+	 */
+	public void removeTransitionListener(RelayTransitionListener inListener) {
+		transitionListeners.remove(inListener);
+	}
+	
+	/**
+	 * Gets the XbeeManager this manager sends commands with.  With a
+	 * CoordinatorPool that is looked up each time, as the node may have moved.
+	 */
+	public XbeeManager getXbeeManager() {
+		CoordinatorPool pool = coordinatorPool;
+		return pool != null ? pool.getXbeeManager(node) : xbManager;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.eclipsercp.xbeegui.model.RelayManager#updateRelayStatus(int)
 	 */
@@ -113,5 +692,18 @@ public class XbeeRelayManager extends RelayManager {
 	}
 
 	private XbeeManager xbManager;
+	private CoordinatorPool coordinatorPool;
 	private XBeeAddress64 xbAddress;
+	private long node;
+	// Outbounds not in use by a send; guarded by this manager's lock
+	private final ArrayDeque<Outbound> spareOutbound = new ArrayDeque<Outbound>();
+	private volatile long lastSampleNanos;
+	private volatile long suppressionStalenessNanos = TimeUnit.SECONDS.toNanos(2);
+	private final AtomicLong suppressed = new AtomicLong();
+	private volatile long actuationTimeoutNanos = TimeUnit.SECONDS.toNanos(10);
+	private final LatencyStats actuationLatency = new LatencyStats();
+	private final AtomicLong actuationFailures = new AtomicLong();
+	private final Object actuationLock = new Object();
+	private final List<RelaySampleListener> sampleListeners = new CopyOnWriteArrayList<RelaySampleListener>();
+	private final List<RelayTransitionListener> transitionListeners = new CopyOnWriteArrayList<RelayTransitionListener>();
 }
@@ -3,33 +3,41 @@ package xbeerelay;
 import java.awt.BorderLayout;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.JFrame;
 
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.events.ModifyEvent;
+import org.eclipse.swt.events.ModifyListener;
 import org.eclipse.swt.events.SelectionAdapter;
 import org.eclipse.swt.events.SelectionEvent;
+import org.eclipse.swt.layout.GridData;
+import org.eclipse.swt.layout.GridLayout;
 import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.Label;
+import org.eclipse.swt.widgets.Listener;
 import org.eclipse.swt.widgets.Menu;
 import org.eclipse.swt.widgets.MenuItem;
 import org.eclipse.swt.widgets.Shell;
 import org.eclipse.swt.widgets.Table;
 import org.eclipse.swt.widgets.TableColumn;
 import org.eclipse.swt.widgets.TableItem;
+import org.eclipse.swt.widgets.Text;
 
 import xbeerelay.Relay.RelayStatus;
 import xbeerelay.Relay.XbeeDigitalIOPin;
 
 import com.rapplogic.xbee.api.ApiId;
-import com.rapplogic.xbee.api.PacketListener;
-import com.rapplogic.xbee.api.XBee;
 import com.rapplogic.xbee.api.XBeeException;
 import com.rapplogic.xbee.api.XBeeResponse;
 import com.rapplogic.xbee.api.zigbee.ZNetRxIoSampleResponse;
@@ -50,18 +58,54 @@ import com.rapplogic.xbee.api.zigbee.ZNetRxIoSampleResponse;
  */
 public class XbeeSWTGui {
 	
-		
-	protected static final int PIN_NUMBER_COLUMN = 2;
-	protected static final int STATUS_COLUMN = 3;
 	private static XbeeRelayManager relayManager;
-	private static XBee xbee;
+	private static CoordinatorPool coordinatorPool;
 	private static int MAX_ITEM_AGE;
 	private static Integer NUM_RELAYS;
 	private static List<Relay> RELAY_LIST;
 	private static int[] XB_ADDRESS;
-	private static String SERIAL_ADDRESS;
+	private static String[] SERIAL_ADDRESSES;
+	private static int[] SERIAL_BAUDS;
+	private static int XB_COORDINATOR;
+	private static double AIRTIME_UTILIZATION;
+	private static boolean PRIORITY_LANES;
 	private static double ACTUAL_VCC;
 	private static int CURRENT_RESISTOR;
+	private static String CAPTURE_FILE;
+	private static FrameRecorder frameRecorder;
+	private static int SAMPLE_WINDOW_SIZE;
+	private static long DUTY_CYCLE_MS;
+	private static SampleWindow sampleWindow;
+	private static int RING_CAPACITY;
+	private static PacketDispatcher.OverflowPolicy RING_OVERFLOW;
+	private static PacketDispatcher packetDispatcher;
+	private static RelayFleet relayFleet;
+	private static PowerAttributor powerAttributor;
+	private static String HISTORY_DIR;
+	private static HistoryStore historyStore;
+	private static String STATE_LOG_FILE;
+	private static RelayStateLog relayStateLog;
+	private static String SNAPSHOT_FILE;
+	private static long SNAPSHOT_PERIOD_MS;
+	private static RuntimeSnapshot runtimeSnapshot;
+	private static long NODE_SAMPLE_INTERVAL_MS;
+	private static int NODE_MISSED_SAMPLES;
+	private static NodeHealthMonitor healthMonitor;
+	private static boolean PROVISION_NODES;
+	private static int SAMPLE_FAST_MS;
+	private static int SAMPLE_SLOW_MS;
+	private static long SAMPLE_IDLE_MS;
+	private static NodeProvisioner nodeProvisioner;
+	private static Map<String, String> GROUP_RELAYS;
+	private static Map<String, String[]> SCENE_RELAYS;
+	private static boolean BROADCAST_ENABLED;
+	private static long BROADCAST_TIMEOUT_MS;
+	private static long SUPPRESS_STALENESS_MS;
+	private static long ACTUATION_TIMEOUT_MS;
+	private static int TABLE_REFRESH_MS;
+	private static String ALERT_RULES_FILE;
+	private static volatile AlertEngine alertEngine;
+	private static RelayTableModel relayTableModel;
 	
 	/**
 	 * Returns an instance of XbeeDigitalIOPin given a String representation of that pin.
@@ -100,58 +144,6 @@ public class XbeeSWTGui {
 		}
 	}
 	
-	/**
-	 * This method simply checks if a Xbee pin is sensed as ON.
-	 * <p>To do this, it makes use of the methods in ZNetRxIoSampleResponse.
-	 * 
-	 * @param inIOResponse 
-	 * @param inXbPin
-	 * @return
-	 */
-	private static boolean isXbeeDigitalPinOn(ZNetRxIoSampleResponse inIOResponse, XbeeDigitalIOPin inXbPin) {
-		
-		boolean isPinOn = false;
-		
-		if (inXbPin == XbeeDigitalIOPin.D0) {
-			isPinOn = inIOResponse.isD0On();
-		} else if (inXbPin == XbeeDigitalIOPin.D1) {
-			isPinOn = inIOResponse.isD10On();
-		} else if (inXbPin == XbeeDigitalIOPin.D2) {
-			isPinOn = inIOResponse.isD2On();
-		} else if (inXbPin == XbeeDigitalIOPin.D3) {
-			isPinOn = inIOResponse.isD3On();
-		} else if (inXbPin == XbeeDigitalIOPin.D4) {
-			isPinOn = inIOResponse.isD4On();
-		} else if (inXbPin == XbeeDigitalIOPin.D5) {
-			isPinOn = inIOResponse.isD5On();
-		} else if (inXbPin == XbeeDigitalIOPin.D6) {
-			isPinOn = inIOResponse.isD6On();
-		} else if (inXbPin == XbeeDigitalIOPin.D7) {
-			isPinOn = inIOResponse.isD7On();
-		} else if (inXbPin == XbeeDigitalIOPin.D10) {
-			isPinOn = inIOResponse.isD10On();
-		} else if (inXbPin == XbeeDigitalIOPin.D11) {
-			isPinOn = inIOResponse.isD11On();
-		} else if (inXbPin == XbeeDigitalIOPin.D12) {
-			isPinOn = inIOResponse.isD12On();
-		}
-		
-		return isPinOn;
-	}
-	
-	/**
-	 * Simply returns an instance of the enum RelayStatus based on whether or not a pin is on.
-	 * 
-	 * @param inIsPinOn true if the pin is on
-	 * @return RelayStatus.ON if pin is on, RelayStatus.OFF if not
-	 */
-	private static RelayStatus getRelayStatusFromPinStatus(boolean inIsPinOn) {
-		if (inIsPinOn) 
-			return RelayStatus.ON;
-		else
-			return RelayStatus.OFF;
-	}
-	
 	/**
 	 * Reads the configuration file for this program.  I have this set in my home 
 	 * directory (on a Linux machine).  You'll need to change this in order to make it
@@ -186,8 +178,22 @@ public class XbeeSWTGui {
 			RELAY_LIST.add(new Relay(pinnum, relaynum, xbeepin, label));			
 		}
 		
-		// Xbee
-		SERIAL_ADDRESS = configFile.getProperty("SERIAL_ADDRESS");
+		// Xbee coordinators; the first uses SERIAL_ADDRESS, any others SERIAL_ADDRESS_2 and up
+		int numCoordinators = Integer.valueOf(configFile.getProperty("NUM_COORDINATORS", "1"));
+		SERIAL_ADDRESSES = new String[numCoordinators];
+		SERIAL_BAUDS = new int[numCoordinators];
+		SERIAL_ADDRESSES[0] = configFile.getProperty("SERIAL_ADDRESS");
+		SERIAL_BAUDS[0] = Integer.valueOf(configFile.getProperty("SERIAL_BAUD", "9600"));
+		for (int i = 1; i < numCoordinators; i++) {
+			SERIAL_ADDRESSES[i] = configFile.getProperty(String.format("SERIAL_ADDRESS_%d", i + 1));
+			SERIAL_BAUDS[i] = Integer.valueOf(configFile.getProperty(String.format("SERIAL_BAUD_%d", i + 1), "9600"));
+		}
+		// Fraction of each coordinator's link to fill before pacing sends (0 sends unpaced)
+		AIRTIME_UTILIZATION = Double.valueOf(configFile.getProperty("AIRTIME_UTILIZATION", "0.8"));
+		// Send emergency offs ahead of scenes and polling on each coordinator
+		PRIORITY_LANES = Boolean.valueOf(configFile.getProperty("PRIORITY_LANES", "true"));
+		// Which coordinator's network the node has joined
+		XB_COORDINATOR = Integer.valueOf(configFile.getProperty("XB_COORDINATOR", "1")) - 1;
 		XB_ADDRESS = new int[8];
 		for (int i = 0; i < 8; i++) {
 			XB_ADDRESS[i] = Integer.parseInt(configFile.getProperty(String.format("XB_ADDRESS_%d", i)), 16);
@@ -195,6 +201,162 @@ public class XbeeSWTGui {
 		
 		ACTUAL_VCC = Double.valueOf(configFile.getProperty("ACTUAL_VCC", "5.0"));
 		CURRENT_RESISTOR = Integer.valueOf(configFile.getProperty("CURRENT_RESISTOR"));
+		
+		// Optional raw frame capture, for replaying field problems with FrameReplayer
+		CAPTURE_FILE = configFile.getProperty("CAPTURE_FILE");
+		// Most recent IO samples kept in memory (0 keeps none), and how far back the
+		// relay table's on (%) column looks in them
+		SAMPLE_WINDOW_SIZE = Integer.valueOf(configFile.getProperty("SAMPLE_WINDOW_SIZE", "65536"));
+		DUTY_CYCLE_MS = Long.valueOf(configFile.getProperty("DUTY_CYCLE_MS", "300000"));
+		// Optional on-disk history of power and relay states, for range queries
+		HISTORY_DIR = configFile.getProperty("HISTORY_DIR");
+		// Optional log of every relay transition, for point-in-time relay state
+		STATE_LOG_FILE = configFile.getProperty("STATE_LOG_FILE");
+		// Optional snapshot of relay states, node addresses and recent power, for warm restarts
+		SNAPSHOT_FILE = configFile.getProperty("SNAPSHOT_FILE");
+		SNAPSHOT_PERIOD_MS = Long.valueOf(configFile.getProperty("SNAPSHOT_PERIOD_MS", "60000"));
+		// The node's IO sample rate (0 to learn it), and how many samples it may miss before
+		// its relays are shown as Unitialized
+		NODE_SAMPLE_INTERVAL_MS = Long.valueOf(configFile.getProperty("NODE_SAMPLE_INTERVAL_MS", "0"));
+		NODE_MISSED_SAMPLES = Integer.valueOf(configFile.getProperty("NODE_MISSED_SAMPLES", "3"));
+		// Set the nodes' sampling from here: report changes at once, sample fast while
+		// in use and slowly when idle (overrides NODE_SAMPLE_INTERVAL_MS)
+		PROVISION_NODES = Boolean.valueOf(configFile.getProperty("PROVISION_NODES", "false"));
+		SAMPLE_FAST_MS = Integer.valueOf(configFile.getProperty("SAMPLE_FAST_MS", "1000"));
+		SAMPLE_SLOW_MS = Integer.valueOf(configFile.getProperty("SAMPLE_SLOW_MS", "30000"));
+		SAMPLE_IDLE_MS = Long.valueOf(configFile.getProperty("SAMPLE_IDLE_MS", "60000"));
+		// How often the relay table reads the relays' status and power again
+		TABLE_REFRESH_MS = Integer.valueOf(configFile.getProperty("TABLE_REFRESH_MS", "1000"));
+		// Optional alert rules, one per line (see AlertEngine)
+		ALERT_RULES_FILE = configFile.getProperty("ALERT_RULES_FILE");
+		
+		// Hand-off between the radio's reader thread and everything that consumes packets
+		RING_CAPACITY = Integer.valueOf(configFile.getProperty("RING_CAPACITY", "1024"));
+		RING_OVERFLOW = PacketDispatcher.OverflowPolicy.valueOf(
+				configFile.getProperty("RING_OVERFLOW", "DROP_OLDEST"));
+		
+		// Groups and scenes, as comma-separated relay numbers
+		GROUP_RELAYS = new LinkedHashMap<String, String>();
+		int numGroups = Integer.valueOf(configFile.getProperty("NUM_GROUPS", "0"));
+		for (int i = 1; i <= numGroups; i++) {
+			GROUP_RELAYS.put(configFile.getProperty(String.format("GROUP_NAME_%d", i)),
+					configFile.getProperty(String.format("GROUP_RELAYS_%d", i), ""));
+		}
+		// How fresh a sampled relay status must be to skip commands that wouldn't change it
+		SUPPRESS_STALENESS_MS = Long.valueOf(configFile.getProperty("SUPPRESS_STALENESS_MS", "2000"));
+		// How long a relay may take to show a command in its samples before it counts as failed
+		ACTUATION_TIMEOUT_MS = Long.valueOf(configFile.getProperty("ACTUATION_TIMEOUT_MS", "10000"));
+		BROADCAST_ENABLED = Boolean.valueOf(configFile.getProperty("BROADCAST_ENABLED", "false"));
+		BROADCAST_TIMEOUT_MS = Long.valueOf(configFile.getProperty("BROADCAST_TIMEOUT_MS", "5000"));
+		SCENE_RELAYS = new LinkedHashMap<String, String[]>();
+		int numScenes = Integer.valueOf(configFile.getProperty("NUM_SCENES", "0"));
+		for (int i = 1; i <= numScenes; i++) {
+			SCENE_RELAYS.put(configFile.getProperty(String.format("SCENE_NAME_%d", i)), new String[] {
+					configFile.getProperty(String.format("SCENE_ON_%d", i), ""),
+					configFile.getProperty(String.format("SCENE_OFF_%d", i), "")});
+		}
+	}
+	
+	/**
+	 * Looks up the relays in a comma-separated list of relay numbers.
+	 * 
+	 * @param inRelayNumbers e.g. "1,2,5"
+	 * @return the corresponding managed relays
+	 * @throws RelayException if a relay number isn't managed
+	 */
+	private static Relay[] getRelaysFromString(String inRelayNumbers) 
+		throws RelayException {
+		List<Relay> relays = new LinkedList<Relay>();
+		for (String number : inRelayNumbers.split(",")) {
+			if (number.trim().length() > 0) {
+				relays.add(relayManager.getManagedRelay(Integer.parseInt(number.trim())));
+			}
+		}
+		return relays.toArray(new Relay[relays.size()]);
+	}
+	
+	/**
+	 * Builds the relay fleet and defines the groups and scenes from the config file on it.
+	 * 
+	 * @throws RelayException if a group or scene refers to a relay that isn't managed
+	 */
+	private static void buildFleet() 
+		throws RelayException {
+		relayFleet = new RelayFleet();
+		relayFleet.setBroadcastEnabled(BROADCAST_ENABLED);
+		relayFleet.setBroadcastTimeout(BROADCAST_TIMEOUT_MS);
+		relayFleet.addRelayManager(relayManager);
+		for (Map.Entry<String, String> group : GROUP_RELAYS.entrySet()) {
+			relayFleet.defineGroup(group.getKey(), getRelaysFromString(group.getValue()));
+		}
+		for (Map.Entry<String, String[]> scene : SCENE_RELAYS.entrySet()) {
+			relayFleet.defineScene(new RelayScene(scene.getKey())
+					.setAll(getRelaysFromString(scene.getValue()[0]), RelayStatus.ON)
+					.setAll(getRelaysFromString(scene.getValue()[1]), RelayStatus.OFF));
+		}
+	}
+	
+	/**
+	 * Adds a menu item that switches a group or applies a scene.
+	 * 
+	 * @param inMenu menu to add the item to
+	 * @param inText text of the item
+	 * @param inName group or scene name
+	 * @param inGroupStatus ON/OFF to switch a group, null to apply a scene
+	 */
+	private static void addFleetMenuItem(Menu inMenu, String inText, final String inName, 
+			final RelayStatus inGroupStatus) {
+		MenuItem item = new MenuItem(inMenu, SWT.NONE);
+		item.setText(inText);
+		item.addSelectionListener(new SelectionAdapter() {
+			
+			@Override
+			public void widgetSelected(SelectionEvent e) {
+				try {
+					if (inGroupStatus == null) {
+						relayFleet.applyScene(inName);
+					} else {
+						relayFleet.setGroup(inName, inGroupStatus);
+					}
+				} catch (RelayException e1) {
+					e1.printStackTrace();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Shows the relay table model's current rows in the (virtual) table.  Rows on
+	 * screen are filled in again as they're redrawn; the rest only when scrolled to.
+	 * 
+	 * @param inTable the relay table
+	 */
+	private static void showRows(Table inTable) {
+		inTable.setItemCount(relayTableModel.getRowCount());
+		inTable.clearAll();
+	}
+	
+	/**
+	 * Shows a message in the status line under the table.  Safe to call from any
+	 * thread; the label is updated on the SWT thread.
+	 * 
+	 * @param inDisplay the GUI's display
+	 * @param inLabel the status line
+	 * @param inMessage message to show
+	 */
+	private static void showStatus(Display inDisplay, final Label inLabel, final String inMessage) {
+		if (inDisplay.isDisposed()) {
+			return;
+		}
+		inDisplay.asyncExec(new Runnable() {
+			
+			@Override
+			public void run() {
+				if (!inLabel.isDisposed()) {
+					inLabel.setText(inMessage);
+				}
+			}
+		});
 	}
 	
 	/**
@@ -227,18 +389,44 @@ public class XbeeSWTGui {
 			// Relay control stuff
 			final Display display = new Display();
 			Shell shell = new Shell(display);
-			final Table table = new Table(shell, SWT.MULTI | SWT.BORDER | SWT.FULL_SELECTION| SWT.CHECK);
+			shell.setLayout(new GridLayout(1, false));
+			final Text filterText = new Text(shell, SWT.BORDER | SWT.SEARCH | SWT.ICON_CANCEL);
+			filterText.setMessage("Filter by label, node or status");
+			filterText.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
+			// Virtual, so only the rows on screen are ever built (see RelayTableModel)
+			final Table table = new Table(shell, SWT.VIRTUAL | SWT.MULTI | SWT.BORDER | SWT.FULL_SELECTION| SWT.CHECK);
 			table.setLinesVisible(true);
 			table.setHeaderVisible(true);
-			xbee = new XBee();
+			GridData tableData = new GridData(SWT.FILL, SWT.FILL, true, true);
+			tableData.heightHint = 200;
+			table.setLayoutData(tableData);
+			// The latest node silence or alert
+			final Label statusLabel = new Label(shell, SWT.NONE);
+			statusLabel.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
 			
-			final Map<Integer, TableItem> relayTableItemMap = new HashMap<Integer, TableItem>();
+			// Everything that handles packets runs on the dispatcher's threads, not xbee-api's
+			// reader threads, so the UI and storage can't hold up serial reads
+			packetDispatcher = new PacketDispatcher(RING_CAPACITY, RING_OVERFLOW);
+			coordinatorPool = new CoordinatorPool(packetDispatcher);
+			for (int i = 0; i < SERIAL_ADDRESSES.length; i++) {
+				int index = coordinatorPool.addCoordinator(SERIAL_ADDRESSES[i], SERIAL_BAUDS[i]);
+				if (AIRTIME_UTILIZATION > 0) {
+					AirtimeLimiter limiter = new AirtimeLimiter(SERIAL_BAUDS[i]);
+					limiter.setUtilization(AIRTIME_UTILIZATION);
+					coordinatorPool.getCoordinator(index).getXbeeManager().setAirtimeLimiter(limiter);
+				}
+				if (PRIORITY_LANES) {
+					coordinatorPool.getCoordinator(index).getXbeeManager().setCommandScheduler(
+							new CommandScheduler(SERIAL_ADDRESSES[i]));
+				}
+			}
 
 			// Add a menutoString on enum java
 			Menu menuBar = new Menu(shell, SWT.BAR);
 			// File menu
 			Menu fileMenu = new Menu(menuBar);
 			Menu relayMenu = new Menu(menuBar);
+			Menu sceneMenu = new Menu(menuBar);
 			// Create items in menuBar
 			// File
 			MenuItem fileItem = new MenuItem(menuBar, SWT.CASCADE);
@@ -248,6 +436,10 @@ public class XbeeSWTGui {
 			MenuItem relayItem = new MenuItem(menuBar, SWT.CASCADE);
 			relayItem.setText("Relay");
 			relayItem.setMenu(relayMenu);
+			// Scenes (filled in once the relays are set up)
+			MenuItem sceneItem = new MenuItem(menuBar, SWT.CASCADE);
+			sceneItem.setText("Scenes");
+			sceneItem.setMenu(sceneMenu);
 
 			// Create file menu items
 			MenuItem newItem = new MenuItem(fileMenu, SWT.NONE);
@@ -266,20 +458,14 @@ public class XbeeSWTGui {
 			// Listener to turn relays on
 			turnOnItem.addSelectionListener(new SelectionAdapter() {
 				public void widgetSelected(SelectionEvent e) {
-					// Create a list of the relays to turn on
-					List<Integer> turnOnList = new LinkedList<Integer>();
-					for (TableItem ti : table.getItems()) {
-						if (ti.getChecked()) {
-							// This relay is checked -- add it to the list of relays
-							// to turn on
-							turnOnList.add(Integer.valueOf(ti.getText(PIN_NUMBER_COLUMN)));
+					// Turn on the checked relays, a node at a time
+					for (XbeeRelayManager manager : relayFleet.getRelayManagers()) {
+						List<Integer> turnOnList = relayTableModel.getCheckedPins(manager);
+						if (turnOnList.isEmpty()) {
+							continue;
 						}
-					}
-					synchronized (relayManager) {
 						try {
-							relayManager.turnOn(turnOnList);
-						} catch (NumberFormatException e1) {
-							e1.printStackTrace();
+							manager.turnOn(turnOnList);
 						} catch (RelayException e1) {
 							e1.printStackTrace();
 						}
@@ -293,17 +479,13 @@ public class XbeeSWTGui {
 				
 				@Override
 				public void widgetSelected(SelectionEvent e) {
-					List<Integer> turnOffList = new LinkedList<Integer>();
-					for (TableItem ti : table.getItems()) {
-						if (ti.getChecked()) {
-							turnOffList.add(Integer.valueOf(ti.getText(PIN_NUMBER_COLUMN)));
+					for (XbeeRelayManager manager : relayFleet.getRelayManagers()) {
+						List<Integer> turnOffList = relayTableModel.getCheckedPins(manager);
+						if (turnOffList.isEmpty()) {
+							continue;
 						}
-					}
-					synchronized (relayManager) {
 						try {
-							relayManager.turnOff(turnOffList);
-						} catch (NumberFormatException e1) {
-							e1.printStackTrace();
+							manager.turnOff(turnOffList);
 						} catch (RelayException e1) {
 							e1.printStackTrace();
 						}
@@ -317,16 +499,8 @@ public class XbeeSWTGui {
 
 				@Override
 				public void widgetSelected(SelectionEvent e) {
-					synchronized (relayManager) {
-						for (Relay r : relayManager.getManagedRelays()) {
-							TableItem item = relayTableItemMap.get(r.getNumber());
-							item.setText(new String[] {
-									r.getLabel(), 
-									String.valueOf(r.getNumber()), 
-									String.valueOf(r.getPin()), 
-									r.getStatusString()});
-						}
-					}
+					relayTableModel.refresh();
+					showRows(table);
 				}
 				
 			});
@@ -334,15 +508,48 @@ public class XbeeSWTGui {
 			// Set the menu bar so it's actually displayed
 			shell.setMenuBar(menuBar);
 
-			// Create the table
-			String[] titles = { "Label", "Relay #", "Pin #", "Status" };
-			for (int i = 0; i < titles.length; i++) {
-				TableColumn column = new TableColumn(table, SWT.NONE);
-				column.setText(titles[i]);
+			// Create the table; clicking a column's header sorts on it, again to reverse
+			for (int i = 0; i < RelayTableModel.COLUMN_COUNT; i++) {
+				final TableColumn column = new TableColumn(table, SWT.NONE);
+				final int columnIndex = i;
+				column.setText(RelayTableModel.getColumnTitle(i));
+				column.addSelectionListener(new SelectionAdapter() {
+
+					@Override
+					public void widgetSelected(SelectionEvent e) {
+						boolean ascending = relayTableModel.getSortColumn() != columnIndex
+								|| !relayTableModel.isAscending();
+						relayTableModel.setSort(columnIndex, ascending);
+						table.setSortColumn(column);
+						table.setSortDirection(ascending ? SWT.UP : SWT.DOWN);
+						showRows(table);
+					}
+				});
 			}
 			
 			
-			relayManager = new XbeeRelayManager(new XbeeManager(xbee), XB_ADDRESS);
+			if (CAPTURE_FILE != null) {
+				frameRecorder = new FrameRecorder(new File(CAPTURE_FILE));
+				for (CoordinatorPool.Coordinator c : coordinatorPool.getCoordinators()) {
+					c.getXbeeManager().setFrameRecorder(frameRecorder);
+				}
+			}
+			long node = NodeAddress.pack(XB_ADDRESS);
+			coordinatorPool.assign(node, XB_COORDINATOR);
+			relayManager = new XbeeRelayManager(coordinatorPool, XB_ADDRESS);
+			relayManager.setSuppressionStaleness(SUPPRESS_STALENESS_MS);
+			relayManager.setActuationTimeout(ACTUATION_TIMEOUT_MS);
+			// Per-appliance power, worked out from relay transitions and the house total
+			powerAttributor = new PowerAttributor();
+			relayManager.addTransitionListener(powerAttributor);
+			if (HISTORY_DIR != null) {
+				historyStore = new HistoryStore(new File(HISTORY_DIR));
+				relayManager.addTransitionListener(historyStore);
+			}
+			if (STATE_LOG_FILE != null) {
+				relayStateLog = new RelayStateLog(new File(STATE_LOG_FILE));
+				relayManager.addSampleListener(relayStateLog);
+			}
 			try {
 				for (Relay r : RELAY_LIST) {
 					relayManager.addManagedRelay(r);
@@ -351,67 +558,222 @@ public class XbeeSWTGui {
 				System.out.println(e);
 				throw e;
 			}
+			
+			// Groups and scenes
+			buildFleet();
+			for (String group : relayFleet.getGroupNames()) {
+				addFleetMenuItem(sceneMenu, "Turn " + group + " on", group, RelayStatus.ON);
+				addFleetMenuItem(sceneMenu, "Turn " + group + " off", group, RelayStatus.OFF);
+			}
+			for (String scene : relayFleet.getSceneNames()) {
+				addFleetMenuItem(sceneMenu, scene, scene, null);
+			}
+			MenuItem allOffItem = new MenuItem(sceneMenu, SWT.NONE);
+			allOffItem.setText("Turn all relays off");
+			allOffItem.addSelectionListener(new SelectionAdapter() {
+				
+				@Override
+				public void widgetSelected(SelectionEvent e) {
+					try {
+						relayFleet.allOff();
+					} catch (RelayException e1) {
+						e1.printStackTrace();
+					}
+				}
+			});
 
 
-			// Populate items
-			for (Relay r : relayManager.getManagedRelays()) {
-				TableItem item = new TableItem(table, SWT.NONE);
-				relayTableItemMap.put(r.getNumber(), item);
-				item.setText(0, r.getLabel());
-				item.setText(1, String.valueOf(r.getNumber()));
-				item.setText(PIN_NUMBER_COLUMN, String.valueOf(r.getPin()));
-				item.setText(STATUS_COLUMN, r.getStatusString());
+			// Warm restart: pick up the last run's relay states, routes and power
+			// readings before the radios open, so the table isn't blank until samples arrive
+			if (SNAPSHOT_FILE != null) {
+				runtimeSnapshot = new RuntimeSnapshot(new File(SNAPSHOT_FILE), relayFleet);
+				try {
+					runtimeSnapshot.restore(panel);
+				} catch (IOException e) {
+					// TODO: Log warning.  A bad snapshot just means a cold start.
+					e.printStackTrace();
+				}
 			}
 
-			for (int i=0; i<titles.length; i++) {
-				table.getColumn (i).pack ();
-			}     
+			// Rows are filled in by the table as they come on screen
+			relayTableModel = new RelayTableModel(relayFleet, powerAttributor);
+			if (SAMPLE_WINDOW_SIZE > 0) {
+				sampleWindow = new SampleWindow(SAMPLE_WINDOW_SIZE);
+				relayTableModel.setSampleWindow(sampleWindow, DUTY_CYCLE_MS);
+			}
+			table.addListener(SWT.SetData, new Listener() {
 
-			table.setSize(table.computeSize(SWT.DEFAULT, 200));
+				@Override
+				public void handleEvent(Event e) {
+					TableItem item = (TableItem) e.item;
+					int row = table.indexOf(item);
+					if (row < relayTableModel.getRowCount()) {
+						item.setText(relayTableModel.getRowText(row));
+						item.setChecked(relayTableModel.isChecked(row));
+					}
+				}
+			});
+			table.addListener(SWT.Selection, new Listener() {
 
-			// TODO: Read in configuration file to figure out what relays should be listed
-			// Set the XBee up
-			xbee.open(SERIAL_ADDRESS, 9600);
-			xbee.addPacketListener(new PacketListener() {
+				@Override
+				public void handleEvent(Event e) {
+					if (e.detail == SWT.CHECK) {
+						TableItem item = (TableItem) e.item;
+						relayTableModel.setChecked(table.indexOf(item), item.getChecked());
+					}
+				}
+			});
+			filterText.addModifyListener(new ModifyListener() {
+
+				@Override
+				public void modifyText(ModifyEvent e) {
+					relayTableModel.setFilter(filterText.getText());
+					showRows(table);
+				}
+			});
+			relayTableModel.refresh();
+			showRows(table);
+			for (int i = 0; i < RelayTableModel.COLUMN_COUNT; i++) {
+				table.getColumn(i).pack();
+			}
+			// Keep status and power current; only the rows on screen are redrawn
+			display.timerExec(TABLE_REFRESH_MS, new Runnable() {
+
+				@Override
+				public void run() {
+					if (table.isDisposed()) {
+						return;
+					}
+					relayTableModel.refresh();
+					showRows(table);
+					display.timerExec(TABLE_REFRESH_MS, this);
+				}
+			});
+
+			// Subscribe before the radios open, so nothing they receive is missed; the
+			// capture is lossless so it really does hold every frame
+			if (frameRecorder != null) {
+				packetDispatcher.subscribe("capture", frameRecorder, true);
+			}
+			if (sampleWindow != null) {
+				packetDispatcher.subscribe("window", sampleWindow);
+			}
+			packetDispatcher.subscribe("samples", new TimedPacketListener() {
 
 				@Override
 				public void processResponse(XBeeResponse response) {
+					processResponse(response, System.nanoTime());
+				}
+
+				@Override
+				public void processResponse(XBeeResponse response, long inNanos) {
 					if (response.getApiId() == ApiId.ZNET_IO_SAMPLE_RESPONSE) {
 						ZNetRxIoSampleResponse ioSample = (ZNetRxIoSampleResponse) response;
+						// Everything is stamped with when the sample was received, not when it
+						// got out of the dispatcher's ring
+						long millis = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inNanos);
 						
-						System.out.println("received i/o sample packet.  contains analog is " + ioSample.containsAnalog() + ", contains digital is " + ioSample.containsDigital());
+						// Update the status first (the fleet synchronizes on the node's relay manager),
+						// so the power attributor sees transitions before the readings that show them
+						relayFleet.processSample(NodeAddress.pack(ioSample.getRemoteAddress64()),
+								IoSamples.digitalMask(ioSample), inNanos);
 						
-						// Update chart
-						synchronized(panel) {
-							if (ioSample.containsAnalog()) {
-								System.out.println("Fart");
-								int analogreading = ioSample.getAnalog0();
-								System.out.println(analogreading);
-								
-								// This is the voltage at the current measuring resistor
-								double voltageatmeasure = analogreading*1200.0/1024.0;
-								double currentatmeasure = voltageatmeasure/CURRENT_RESISTOR;
-								// Whatever voltage we don't observe on our resistor goes to load (the simulated house)
-								// Need to multiply ACTUAL_VCC by 1000 since its in volts
-								double voltagetoload = ACTUAL_VCC*1000 - voltageatmeasure;
-								// Power = voltage * current
-								double powertoload = voltagetoload * currentatmeasure; 
-								panel.addPowerReading(powertoload);
+						// Update chart (the plotter buffers the reading and redraws on the Swing thread)
+						int analogreading = IoSamples.analog(ioSample, 0);
+						if (analogreading != IoSamples.NO_ANALOG) {
+							// This is the voltage at the current measuring resistor
+							double voltageatmeasure = analogreading*1200.0/1024.0;
+							double currentatmeasure = voltageatmeasure/CURRENT_RESISTOR;
+							// Whatever voltage we don't observe on our resistor goes to load (the simulated house)
+							// Need to multiply ACTUAL_VCC by 1000 since its in volts
+							double voltagetoload = ACTUAL_VCC*1000 - voltageatmeasure;
+							// Power = voltage * current
+							double powertoload = voltagetoload * currentatmeasure; 
+							panel.addPowerReading(millis, powertoload);
+							powerAttributor.addPowerReading(powertoload, inNanos);
+							AlertEngine alerts = alertEngine;
+							if (alerts != null) {
+								alerts.addPowerReading(powertoload, inNanos);
 							}
-						}
-						
-						// Synchronize on relayManager here since other threads access that
-						synchronized (relayManager) {
-							// Update the status
-							for (Relay r : relayManager.getManagedRelays()) {
-								r.setStatus(getRelayStatusFromPinStatus(isXbeeDigitalPinOn(ioSample, r.getXbeePin())));
+							if (runtimeSnapshot != null) {
+								runtimeSnapshot.addPowerReading(millis, powertoload);
+							}
+							if (historyStore != null) {
+								try {
+									historyStore.addPowerReading(millis, powertoload);
+								} catch (IOException e) {
+									// TODO: Log error.
+									e.printStackTrace();
+								}
 							}
 						}
-						
 					}
 				}				
 			});
 
+			// Alerts are set up before the radios open, so the first samples are checked too
+			if (ALERT_RULES_FILE != null) {
+				AlertEngine engine = new AlertEngine(250);
+				engine.loadRules(new File(ALERT_RULES_FILE));
+				engine.addAlertListener(new AlertListener() {
+
+					@Override
+					public void alertRaised(AlertRule inRule, long inNanos) {
+						showStatus(display, statusLabel, "Alert: " + inRule);
+					}
+
+					@Override
+					public void alertCleared(AlertRule inRule, long inNanos) {
+						showStatus(display, statusLabel, "Alert cleared: " + inRule);
+					}
+				});
+				for (XbeeRelayManager manager : relayFleet.getRelayManagers()) {
+					engine.watch(manager);
+				}
+				engine.start();
+				alertEngine = engine;
+			}
+
+			// TODO: Read in configuration file to figure out what relays should be listed
+			// Set the XBees up
+			coordinatorPool.open();
+			healthMonitor = new NodeHealthMonitor(250);
+			healthMonitor.setMissedSamples(NODE_MISSED_SAMPLES);
+			healthMonitor.addLivenessListener(new NodeLivenessListener() {
+
+				@Override
+				public void nodeSilent(XbeeRelayManager inManager, long inLastSeenNanos) {
+					showStatus(display, statusLabel, "Node " + NodeAddress.toString(inManager.getNode()) + " has gone silent");
+				}
+
+				@Override
+				public void nodeRecovered(XbeeRelayManager inManager, long inSilentNanos) {
+					showStatus(display, statusLabel, "Node " + NodeAddress.toString(inManager.getNode()) + " is back after "
+							+ inSilentNanos / 1000000000L + " s");
+				}
+			});
+			for (XbeeRelayManager manager : relayFleet.getRelayManagers()) {
+				healthMonitor.watch(manager);
+				if (NODE_SAMPLE_INTERVAL_MS > 0) {
+					healthMonitor.setInterval(manager.getNode(), NODE_SAMPLE_INTERVAL_MS);
+				}
+			}
+			healthMonitor.start();
+			if (PROVISION_NODES) {
+				nodeProvisioner = new NodeProvisioner();
+				nodeProvisioner.setFastInterval(SAMPLE_FAST_MS);
+				nodeProvisioner.setSlowInterval(SAMPLE_SLOW_MS);
+				nodeProvisioner.setIdleTime(SAMPLE_IDLE_MS);
+				nodeProvisioner.setHealthMonitor(healthMonitor);
+				healthMonitor.addLivenessListener(nodeProvisioner);
+				for (XbeeRelayManager manager : relayFleet.getRelayManagers()) {
+					nodeProvisioner.manage(manager);
+				}
+				nodeProvisioner.start();
+			}
+			if (runtimeSnapshot != null) {
+				runtimeSnapshot.start(SNAPSHOT_PERIOD_MS);
+			}
 			
 			shell.pack();
 			shell.open();
@@ -421,8 +783,88 @@ public class XbeeSWTGui {
 			}
 			display.dispose();
 		} finally {
-			if (xbee != null)
-				xbee.close();
+			// Each step is on its own, so one failing can't keep the rest (above all
+			// the files) from being closed
+			if (alertEngine != null) {
+				try {
+					alertEngine.stop();
+				} catch (RuntimeException e) {
+					// TODO: Log error.
+					e.printStackTrace();
+				}
+			}
+			if (nodeProvisioner != null) {
+				try {
+					nodeProvisioner.stop();
+				} catch (RuntimeException e) {
+					// TODO: Log error.
+					e.printStackTrace();
+				}
+			}
+			if (healthMonitor != null) {
+				try {
+					healthMonitor.stop();
+				} catch (RuntimeException e) {
+					// TODO: Log error.
+					e.printStackTrace();
+				}
+			}
+			if (runtimeSnapshot != null) {
+				try {
+					runtimeSnapshot.stop();
+				} catch (IOException e) {
+					// TODO: Log error.  The last scheduled snapshot is still there.
+					e.printStackTrace();
+				}
+			}
+			if (coordinatorPool != null) {
+				try {
+					coordinatorPool.close();
+				} catch (RuntimeException e) {
+					// TODO: Log error.
+					e.printStackTrace();
+				}
+			}
+			if (packetDispatcher != null) {
+				try {
+					packetDispatcher.close();
+				} catch (RuntimeException e) {
+					// TODO: Log error.
+					e.printStackTrace();
+				}
+			}
+			if (relayFleet != null) {
+				try {
+					relayFleet.shutdown();
+				} catch (RuntimeException e) {
+					// TODO: Log error.
+					e.printStackTrace();
+				}
+			}
+			if (frameRecorder != null) {
+				try {
+					frameRecorder.close();
+				} catch (IOException e) {
+					// TODO: Log error.
+					e.printStackTrace();
+				}
+			}
+			if (historyStore != null) {
+				try {
+					historyStore.close();
+				} catch (IOException e) {
+					// TODO: Log error.
+					e.printStackTrace();
+				}
+			}
+			if (relayStateLog != null) {
+				try {
+					relayStateLog.close();
+				} catch (IOException e) {
+					// TODO: Log error.
+					e.printStackTrace();
+				}
+			}
 		}
 	}
 }
@@ -0,0 +1,154 @@
+package xbeerelay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import xbeerelay.Relay.XbeeDigitalIOPin;
+
+/**
+ * Tests that AlertEngine's relay rules start out from the relays' current
+ * status, follow their transitions from there, and tell apart relays with the
+ * same number on different nodes.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class AlertEngineTest {
+
+	private static final int[] ADDRESS = {0, 0x13, 0xa2, 0, 0x40, 0x3d, 0xb1, 0x5b};
+	private static final int[] OTHER_ADDRESS = {0, 0x13, 0xa2, 0, 0x40, 0x3d, 0xb1, 0x5c};
+
+	@Before
+	public void setUp() throws RelayException {
+		manager = new XbeeRelayManager(new XbeeManager(null), ADDRESS);
+		manager.addManagedRelay(new Relay(1, 5, XbeeDigitalIOPin.D2));
+		manager.addManagedRelay(new Relay(2, 6, XbeeDigitalIOPin.D3));
+		engine = new AlertEngine(250);
+		engine.addAlertListener(new AlertListener() {
+
+			@Override
+			public void alertRaised(AlertRule inRule, long inNanos) {
+				alerts.add("raised " + inRule);
+			}
+
+			@Override
+			public void alertCleared(AlertRule inRule, long inNanos) {
+				alerts.add("cleared " + inRule);
+			}
+		});
+	}
+
+	@Test
+	public void ruleAddedAfterWatchSeesRelaysAlreadyOn() throws RelayException {
+		engine.watch(manager);
+		sample((1 << 2) | (1 << 3));
+		AlertRule rule = engine.addRule("relay 5 ON while relay 6 ON");
+		assertTrue(rule.isRaised());
+		assertEquals("[raised relay 5 ON while relay 6 ON]", alerts.toString());
+
+		sample(1 << 2);
+		assertFalse(rule.isRaised());
+	}
+
+	@Test
+	public void watchSeesRelaysAlreadyOn() throws RelayException {
+		AlertRule both = engine.addRule("relay 5 ON while relay 6 ON");
+		AlertRule off = engine.addRule("relay 6 OFF");
+		sample((1 << 2) | (1 << 3));
+		assertEquals(0, alerts.size());
+		engine.watch(manager);
+		assertTrue(both.isRaised());
+		assertFalse(off.isRaised());
+
+		sample(1 << 2);
+		assertFalse(both.isRaised());
+		assertTrue(off.isRaised());
+	}
+
+	@Test
+	public void seededRuleStillWaitsOutItsHold() throws RelayException {
+		engine.watch(manager);
+		sample(1 << 3);
+		AlertRule rule = engine.addRule("relay 6 ON for 10s");
+		assertFalse(rule.isRaised());
+		engine.tick(System.nanoTime() + 11000000000L);
+		assertTrue(rule.isRaised());
+	}
+
+	@Test
+	public void unknownRelaysDontMatch() throws RelayException {
+		engine.watch(manager);
+		// No sample yet, so neither relay's status is known
+		AlertRule rule = engine.addRule("relay 5 OFF");
+		assertFalse(rule.isRaised());
+		sample(0);
+		assertTrue(rule.isRaised());
+	}
+
+	@Test
+	public void sameRelayNumberOnTwoNodes() throws RelayException {
+		XbeeRelayManager other = new XbeeRelayManager(new XbeeManager(null), OTHER_ADDRESS);
+		other.addManagedRelay(new Relay(1, 5, XbeeDigitalIOPin.D2));
+		AlertRule mine = engine.addRule("relay 0013A200403DB15B 5 ON");
+		AlertRule both = engine.addRule("relay 0013A200403DB15B 5 ON while relay 0013A200403DB15C 5 ON");
+		engine.watch(manager);
+		engine.watch(other);
+
+		// Only this node's relay 5 counts for it
+		synchronized (other) {
+			other.processSample(1 << 2, System.nanoTime());
+		}
+		assertFalse(mine.isRaised());
+		assertFalse(both.isRaised());
+		sample(1 << 2);
+		assertTrue(mine.isRaised());
+		assertTrue(both.isRaised());
+		synchronized (other) {
+			other.processSample(0, System.nanoTime());
+		}
+		assertTrue(mine.isRaised());
+		assertFalse(both.isRaised());
+
+		// Without the node it could be either
+		try {
+			engine.addRule("relay 5 ON");
+			fail("a relay rule without its node should have been refused");
+		} catch (RelayException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void secondNodeRefusedWhileRulesDontGiveTheirNode() throws RelayException {
+		AlertRule rule = engine.addRule("relay 5 ON");
+		engine.watch(manager);
+		sample(1 << 2);
+		assertTrue(rule.isRaised());
+		XbeeRelayManager other = new XbeeRelayManager(new XbeeManager(null), OTHER_ADDRESS);
+		other.addManagedRelay(new Relay(1, 5, XbeeDigitalIOPin.D2));
+		try {
+			engine.watch(other);
+			fail("a second node should have been refused");
+		} catch (RelayException e) {
+			// expected
+		}
+	}
+
+	private void sample(int inMask) {
+		synchronized (manager) {
+			manager.processSample(inMask, System.nanoTime());
+		}
+	}
+
+	private XbeeRelayManager manager;
+	private AlertEngine engine;
+	private final List<String> alerts = new ArrayList<String>();
+}
@@ -0,0 +1,271 @@
+package xbeerelay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rapplogic.xbee.api.XBeeException;
+
+/**
+ * Tests the order CommandScheduler sends in: emergencies first, then a smooth
+ * weighted round robin over the classes, with starvation protection; and that
+ * nobody is left waiting when it stops.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class CommandSchedulerTest {
+
+	@Before
+	public void setUp() {
+		scheduler = new CommandScheduler("test");
+		callers = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.shutdown();
+		callers.shutdownNow();
+	}
+
+	@Test
+	public void sharesTheLinkByWeight() throws Exception {
+		scheduler.setMaxWait(60000);
+		CountDownLatch gate = blockSender();
+		// Enough for three whole rounds of weights 8, 3 and 1
+		queue(CommandPriority.POLLING, 3);
+		queue(CommandPriority.BULK, 9);
+		queue(CommandPriority.INTERACTIVE, 24);
+		gate.countDown();
+		List<String> order = awaitSent(36);
+
+		int total = CommandPriority.INTERACTIVE.getWeight() + CommandPriority.BULK.getWeight()
+				+ CommandPriority.POLLING.getWeight();
+		for (int round = 0; round < 3; round++) {
+			List<String> sent = order.subList(round * total, (round + 1) * total);
+			assertEquals(sent.toString(), CommandPriority.INTERACTIVE.getWeight(), count(sent, CommandPriority.INTERACTIVE));
+			assertEquals(sent.toString(), CommandPriority.BULK.getWeight(), count(sent, CommandPriority.BULK));
+			assertEquals(sent.toString(), CommandPriority.POLLING.getWeight(), count(sent, CommandPriority.POLLING));
+		}
+		// Smooth: BULK is spread through a round rather than sent in a burst
+		for (int i = 0; i + 2 < order.size(); i++) {
+			assertTrue(order.toString(), !(order.get(i).startsWith("BULK") && order.get(i + 1).startsWith("BULK")
+					&& order.get(i + 2).startsWith("BULK")));
+		}
+		// First in, first out within a class
+		assertInOrder(order, CommandPriority.INTERACTIVE);
+		assertInOrder(order, CommandPriority.BULK);
+	}
+
+	@Test
+	public void emergencyGoesFirst() throws Exception {
+		scheduler.setMaxWait(60000);
+		CountDownLatch gate = blockSender();
+		queue(CommandPriority.INTERACTIVE, 5);
+		queue(CommandPriority.POLLING, 5);
+		queue(CommandPriority.EMERGENCY_OFF, 2);
+		gate.countDown();
+		List<String> order = awaitSent(12);
+		assertEquals("EMERGENCY_OFF 0", order.get(0));
+		assertEquals("EMERGENCY_OFF 1", order.get(1));
+	}
+
+	@Test
+	public void oldestGoesFirstOnceOverdue() throws Exception {
+		scheduler.setMaxWait(0);
+		CountDownLatch gate = blockSender();
+		queue(CommandPriority.POLLING, 2);
+		queue(CommandPriority.INTERACTIVE, 2);
+		gate.countDown();
+		List<String> order = awaitSent(4);
+		assertEquals("[POLLING 0, POLLING 1, INTERACTIVE 0, INTERACTIVE 1]", order.toString());
+	}
+
+	@Test
+	public void sendsFromTheSenderThreadRunAtOnce() throws Exception {
+		boolean acked = scheduler.submit(CommandPriority.BULK, new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() throws XBeeException {
+				// Would deadlock if it queued behind the send it's part of
+				return scheduler.submit(CommandPriority.POLLING, new Callable<Boolean>() {
+
+					@Override
+					public Boolean call() {
+						return true;
+					}
+				});
+			}
+		});
+		assertTrue(acked);
+	}
+
+	@Test
+	public void refusesAfterShutdown() {
+		scheduler.shutdown();
+		try {
+			scheduler.submit(CommandPriority.BULK, new Callable<Boolean>() {
+
+				@Override
+				public Boolean call() {
+					return true;
+				}
+			});
+			fail("submit() should have been refused");
+		} catch (XBeeException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void failsQueuedSendsWhenInterrupted() throws Exception {
+		final CountDownLatch gate = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(1);
+		callers.submit(new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() throws XBeeException {
+				return scheduler.submit(CommandPriority.INTERACTIVE, new Callable<Boolean>() {
+
+					@Override
+					public Boolean call() throws InterruptedException {
+						started.countDown();
+						gate.await(10, TimeUnit.SECONDS);
+						// As if the sending thread were interrupted mid-send
+						Thread.currentThread().interrupt();
+						return true;
+					}
+				});
+			}
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		queue(CommandPriority.BULK, 2);
+		List<Future<Boolean>> waiting = new ArrayList<Future<Boolean>>();
+		synchronized (pending) {
+			waiting.addAll(pending);
+		}
+		gate.countDown();
+		for (Future<Boolean> f : waiting) {
+			try {
+				f.get(5, TimeUnit.SECONDS);
+				fail("A queued send should have failed");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof XBeeException);
+			}
+		}
+		assertEquals(0, sent.size());
+		assertEquals(0, scheduler.getQueueLength(CommandPriority.BULK));
+		try {
+			scheduler.submit(CommandPriority.BULK, new Callable<Boolean>() {
+
+				@Override
+				public Boolean call() {
+					return true;
+				}
+			});
+			fail("submit() should have been refused");
+		} catch (XBeeException e) {
+			// expected
+		}
+	}
+
+	// Ties the sending thread up until the returned latch is counted down
+	private CountDownLatch blockSender() throws InterruptedException {
+		final CountDownLatch gate = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(1);
+		callers.submit(new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() throws XBeeException {
+				return scheduler.submit(CommandPriority.INTERACTIVE, new Callable<Boolean>() {
+
+					@Override
+					public Boolean call() throws InterruptedException {
+						started.countDown();
+						return gate.await(10, TimeUnit.SECONDS);
+					}
+				});
+			}
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		return gate;
+	}
+
+	// Queues sends from their own threads, as each caller blocks; waits until they're in the lane
+	private void queue(final CommandPriority inPriority, int inCount) throws InterruptedException {
+		int before = scheduler.getQueueLength(inPriority);
+		for (int i = 0; i < inCount; i++) {
+			final String name = inPriority + " " + i;
+			pending.add(callers.submit(new Callable<Boolean>() {
+
+				@Override
+				public Boolean call() throws XBeeException {
+					return scheduler.submit(inPriority, new Callable<Boolean>() {
+
+						@Override
+						public Boolean call() {
+							sent.add(name);
+							return true;
+						}
+					});
+				}
+			}));
+			// One at a time, so the lane is in the order of the names
+			long deadline = System.currentTimeMillis() + 5000;
+			while (scheduler.getQueueLength(inPriority) < before + i + 1) {
+				assertTrue(System.currentTimeMillis() < deadline);
+				Thread.sleep(1);
+			}
+		}
+	}
+
+	private List<String> awaitSent(int inCount) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (sent.size() < inCount) {
+			assertTrue("only " + sent, System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+		synchronized (sent) {
+			return new ArrayList<String>(sent);
+		}
+	}
+
+	private static int count(List<String> inSent, CommandPriority inPriority) {
+		int n = 0;
+		for (String s : inSent) {
+			if (s.startsWith(inPriority + " ")) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	private static void assertInOrder(List<String> inSent, CommandPriority inPriority) {
+		int next = 0;
+		for (String s : inSent) {
+			if (s.startsWith(inPriority + " ")) {
+				assertEquals(inPriority + " " + next++, s);
+			}
+		}
+	}
+
+	private CommandScheduler scheduler;
+	private ExecutorService callers;
+	private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+	private final List<Future<Boolean>> pending = Collections.synchronizedList(new ArrayList<Future<Boolean>>());
+}
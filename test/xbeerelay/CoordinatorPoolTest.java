@@ -0,0 +1,147 @@
+package xbeerelay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.rapplogic.xbee.api.ApiId;
+import com.rapplogic.xbee.api.XBee;
+import com.rapplogic.xbee.api.XBeeAddress64;
+import com.rapplogic.xbee.api.XBeeException;
+import com.rapplogic.xbee.api.zigbee.ZNetRxIoSampleResponse;
+
+/**
+ * Tests that CoordinatorPool only closes the XBees it opened, backs out of a
+ * failed open(), and sends to a node through the coordinator its samples
+ * arrive on.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class CoordinatorPoolTest {
+
+	@Test
+	public void closesOnlyWhatWasOpened() {
+		CoordinatorPool pool = new CoordinatorPool(null);
+		FakeXbee first = new FakeXbee(false);
+		pool.addCoordinator(first, "/dev/ttyUSB0", 9600);
+		pool.close();
+		assertEquals("[]", events.toString());
+		assertFalse(pool.getCoordinator(0).isOpen());
+	}
+
+	@Test
+	public void closesEachOpenedOnce() throws XBeeException {
+		CoordinatorPool pool = new CoordinatorPool(null);
+		pool.addCoordinator(new FakeXbee(false), "/dev/ttyUSB0", 9600);
+		pool.addCoordinator(new FakeXbee(false), "/dev/ttyUSB1", 115200);
+		pool.open();
+		assertTrue(pool.getCoordinator(0).isOpen());
+		assertTrue(pool.getCoordinator(1).isOpen());
+		pool.close();
+		pool.close();
+		assertEquals("[open /dev/ttyUSB0, open /dev/ttyUSB1, close /dev/ttyUSB0, close /dev/ttyUSB1]",
+				events.toString());
+	}
+
+	@Test
+	public void backsOutOfFailedOpen() {
+		CoordinatorPool pool = new CoordinatorPool(null);
+		pool.addCoordinator(new FakeXbee(false), "/dev/ttyUSB0", 9600);
+		pool.addCoordinator(new FakeXbee(false), "/dev/ttyUSB1", 9600);
+		pool.addCoordinator(new FakeXbee(true), "/dev/ttyUSB2", 9600);
+		try {
+			pool.open();
+			fail("open() should have thrown");
+		} catch (XBeeException e) {
+			// expected
+		}
+		assertEquals("[open /dev/ttyUSB0, open /dev/ttyUSB1, close /dev/ttyUSB1, close /dev/ttyUSB0]",
+				events.toString());
+		for (CoordinatorPool.Coordinator c : pool.getCoordinators()) {
+			assertFalse(c.isOpen());
+		}
+		pool.close();
+		assertEquals(4, events.size());
+	}
+
+	@Test
+	public void nodesFollowTheirSamples() throws RelayException {
+		final int[] address = {0, 0x13, 0xa2, 0, 0x40, 0x3d, 0xb1, 0x5b};
+		long node = NodeAddress.pack(address);
+		PacketDispatcher dispatcher = new PacketDispatcher(16, PacketDispatcher.OverflowPolicy.DROP_OLDEST);
+		CoordinatorPool pool = new CoordinatorPool(dispatcher);
+		pool.addCoordinator(new FakeXbee(false), "/dev/ttyUSB0", 9600);
+		pool.addCoordinator(new FakeXbee(false), "/dev/ttyUSB1", 9600);
+		XbeeRelayManager manager = new XbeeRelayManager(pool, address);
+
+		// Not assigned or heard from: a guess, which isn't recorded
+		assertEquals(0, pool.getCoordinatorFor(node));
+		assertFalse(pool.isAssigned(node));
+		assertEquals(0, pool.getCoordinator(0).getNodeCount());
+
+		// Assigned to the wrong coordinator up front, then heard from on the other
+		pool.assign(node, 0);
+		assertTrue(manager.getXbeeManager() == pool.getCoordinator(0).getXbeeManager());
+		pool.getCoordinator(1).processResponse(new ZNetRxIoSampleResponse() {
+
+			@Override
+			public ApiId getApiId() {
+				return ApiId.ZNET_IO_SAMPLE_RESPONSE;
+			}
+
+			@Override
+			public XBeeAddress64 getRemoteAddress64() {
+				return new XBeeAddress64() {
+
+					@Override
+					public int[] getAddress() {
+						return address;
+					}
+				};
+			}
+		});
+		assertEquals(1, pool.getCoordinatorFor(node));
+		assertTrue(manager.getXbeeManager() == pool.getCoordinator(1).getXbeeManager());
+		assertEquals(0, pool.getCoordinator(0).getNodeCount());
+		assertEquals(1, pool.getCoordinator(1).getNodeCount());
+		dispatcher.close();
+	}
+
+	// Records opens and closes, and throws as the XBee API does for a close before open
+	private class FakeXbee extends XBee {
+
+		FakeXbee(boolean inFailOpen) {
+			failOpen = inFailOpen;
+		}
+
+		@Override
+		public void open(String inPort, int inBaudRate) throws XBeeException {
+			if (failOpen) {
+				throw new XBeeException("No such port " + inPort);
+			}
+			port = inPort;
+			events.add("open " + inPort);
+		}
+
+		@Override
+		public void close() {
+			if (port == null) {
+				throw new IllegalStateException("XBee is not connected");
+			}
+			events.add("close " + port);
+			port = null;
+		}
+
+		private final boolean failOpen;
+		private String port;
+	}
+
+	private final List<String> events = new ArrayList<String>();
+}
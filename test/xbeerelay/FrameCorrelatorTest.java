@@ -0,0 +1,133 @@
+package xbeerelay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.rapplogic.xbee.api.RemoteAtResponse;
+import com.rapplogic.xbee.api.XBeeException;
+import com.rapplogic.xbee.api.XBeeResponse;
+import com.rapplogic.xbee.api.zigbee.ZNetTxStatusResponse;
+
+/**
+ * Tests FrameCorrelator's frame ID rotation and response matching, by frame ID
+ * and by the type of response expected.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class FrameCorrelatorTest {
+
+	@Test
+	public void rollsOverFrom255To1() throws XBeeException {
+		FrameCorrelator correlator = new FrameCorrelator();
+		for (int round = 0; round < 3; round++) {
+			for (int id = 1; id <= FrameCorrelator.FRAME_IDS; id++) {
+				FrameCorrelator.Slot slot = correlator.acquire(ZNetTxStatusResponse.class, 0);
+				assertEquals(id, slot.getFrameId());
+				correlator.release(slot);
+			}
+		}
+		assertEquals(0, correlator.getInFlightCount());
+	}
+
+	@Test
+	public void skipsIdsStillInFlight() throws XBeeException {
+		FrameCorrelator correlator = new FrameCorrelator();
+		FrameCorrelator.Slot held = correlator.acquire(ZNetTxStatusResponse.class, 0);
+		assertEquals(1, held.getFrameId());
+		for (int id = 2; id <= FrameCorrelator.FRAME_IDS; id++) {
+			correlator.release(correlator.acquire(ZNetTxStatusResponse.class, 0));
+		}
+		// 1 is still out, so the rotation goes on to 2
+		assertEquals(2, correlator.acquire(ZNetTxStatusResponse.class, 0).getFrameId());
+		assertEquals(2, correlator.getInFlightCount());
+	}
+
+	@Test
+	public void timesOutWhenEveryIdIsInFlight() throws XBeeException {
+		FrameCorrelator correlator = new FrameCorrelator();
+		FrameCorrelator.Slot[] slots = new FrameCorrelator.Slot[FrameCorrelator.FRAME_IDS];
+		for (int i = 0; i < slots.length; i++) {
+			slots[i] = correlator.acquire(ZNetTxStatusResponse.class, 0);
+		}
+		try {
+			correlator.acquire(ZNetTxStatusResponse.class, 20);
+			fail("acquire() should have timed out");
+		} catch (XBeeException e) {
+			// expected
+		}
+		correlator.release(slots[100]);
+		correlator.release(slots[100]); // twice is harmless
+		assertEquals(FrameCorrelator.FRAME_IDS - 1, correlator.getInFlightCount());
+		assertEquals(101, correlator.acquire(ZNetTxStatusResponse.class, 0).getFrameId());
+	}
+
+	@Test
+	public void matchesResponsesToWaitingSlots() throws XBeeException {
+		FrameCorrelator correlator = new FrameCorrelator();
+		FrameCorrelator.Slot first = correlator.acquire(ZNetTxStatusResponse.class, 0);
+		FrameCorrelator.Slot second = correlator.acquire(ZNetTxStatusResponse.class, 0);
+		XBeeResponse status = txStatus(second.getFrameId());
+		correlator.processResponse(status);
+		assertSame(status, second.await(0));
+		assertNull(first.await(0));
+		assertEquals(0, correlator.getUnmatchedCount());
+
+		// Too late for the first, whose send gave up; and a frame ID of 0
+		correlator.release(first);
+		correlator.processResponse(txStatus(first.getFrameId()));
+		correlator.processResponse(txStatus(0));
+		assertEquals(2, correlator.getUnmatchedCount());
+	}
+
+	@Test
+	public void ignoresResponsesOfTheWrongType() throws XBeeException {
+		FrameCorrelator correlator = new FrameCorrelator();
+		FrameCorrelator.Slot slot = correlator.acquire(ZNetTxStatusResponse.class, 0);
+		// A remote AT response for an ID since reused for a transmit
+		correlator.processResponse(remoteAt(slot.getFrameId()));
+		assertEquals(1, correlator.getUnmatchedCount());
+
+		// The transmit's own status still gets through
+		XBeeResponse status = txStatus(slot.getFrameId());
+		correlator.processResponse(status);
+		assertSame(status, slot.await(0));
+
+		// And the other way round
+		correlator.release(slot);
+		for (int id = 2; id <= FrameCorrelator.FRAME_IDS; id++) {
+			correlator.release(correlator.acquire(ZNetTxStatusResponse.class, 0));
+		}
+		FrameCorrelator.Slot at = correlator.acquire(RemoteAtResponse.class, 0);
+		assertEquals(slot.getFrameId(), at.getFrameId());
+		correlator.processResponse(txStatus(at.getFrameId()));
+		assertEquals(2, correlator.getUnmatchedCount());
+		XBeeResponse response = remoteAt(at.getFrameId());
+		correlator.processResponse(response);
+		assertSame(response, at.await(0));
+	}
+
+	private static XBeeResponse remoteAt(final int inFrameId) {
+		return new RemoteAtResponse() {
+
+			@Override
+			public int getFrameId() {
+				return inFrameId;
+			}
+		};
+	}
+
+	private static XBeeResponse txStatus(final int inFrameId) {
+		return new ZNetTxStatusResponse() {
+
+			@Override
+			public int getFrameId() {
+				return inFrameId;
+			}
+		};
+	}
+}
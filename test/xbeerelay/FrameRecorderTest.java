@@ -0,0 +1,98 @@
+package xbeerelay;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Tests FrameRecorder's record layout and timestamps.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class FrameRecorderTest {
+
+	@Test
+	public void recordsFramesWithGapsBetweenThem() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		FrameRecorder recorder = new FrameRecorder(bytes);
+		long start = System.nanoTime() + 1000000;
+		recorder.recordFrame(FrameRecorder.RECEIVED, new int[] {0x7e, 0, 1, 0x8a, 0x75}, start);
+		recorder.recordFrame(FrameRecorder.SENT, new int[] {0x7e, 0, 2, 0x08, 0x01, 0xf6}, start + 300);
+		recorder.recordFrame(FrameRecorder.RECEIVED, new int[] {0x7e}, start + 300 + 200000);
+		recorder.close();
+		assertEquals(3, recorder.getFrameCount());
+
+		DataInputStream in = openCapture(bytes);
+		in.readByte();
+		readVarLong(in); // since the recorder was made
+		skipFrame(in, 5);
+		assertEquals(FrameRecorder.SENT, in.readByte());
+		assertEquals(300, readVarLong(in));
+		skipFrame(in, 6);
+		assertEquals(FrameRecorder.RECEIVED, in.readByte());
+		assertEquals(200000, readVarLong(in));
+		skipFrame(in, 1);
+		assertEquals(-1, in.read());
+	}
+
+	@Test
+	public void frameStampedBeforeThePreviousOneComesAtTheSameTime() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		FrameRecorder recorder = new FrameRecorder(bytes);
+		long now = System.nanoTime() + 1000000;
+		recorder.recordFrame(FrameRecorder.SENT, new int[] {1}, now);
+		// Received before the send, but it waited in the dispatcher
+		recorder.recordFrame(FrameRecorder.RECEIVED, new int[] {2}, now - 5000);
+		recorder.recordFrame(FrameRecorder.RECEIVED, new int[] {3}, now + 7000);
+		recorder.close();
+
+		DataInputStream in = openCapture(bytes);
+		in.readByte();
+		readVarLong(in);
+		skipFrame(in, 1);
+		in.readByte();
+		assertEquals(0, readVarLong(in));
+		skipFrame(in, 1);
+		in.readByte();
+		assertEquals(7000, readVarLong(in));
+	}
+
+	@Test
+	public void framesAfterCloseAreDropped() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		FrameRecorder recorder = new FrameRecorder(bytes);
+		recorder.close();
+		recorder.recordFrame(FrameRecorder.RECEIVED, new int[] {1});
+		assertEquals(0, recorder.getFrameCount());
+	}
+
+	private static DataInputStream openCapture(ByteArrayOutputStream inBytes) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(inBytes.toByteArray()));
+		assertEquals(FrameRecorder.MAGIC, in.readInt());
+		assertEquals(FrameRecorder.VERSION, in.readShort());
+		in.readLong();
+		return in;
+	}
+
+	private static void skipFrame(DataInputStream inStream, int inLength) throws IOException {
+		assertEquals(inLength, readVarLong(inStream));
+		inStream.skipBytes(inLength);
+	}
+
+	private static long readVarLong(DataInputStream inStream) throws IOException {
+		long value = 0;
+		for (int shift = 0; ; shift += 7) {
+			int b = inStream.readUnsignedByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+	}
+}
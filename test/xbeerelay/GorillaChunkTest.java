@@ -0,0 +1,178 @@
+package xbeerelay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests GorillaChunk's bit encoding: every time bucket at its edges, value
+ * windows from 64 meaningful bits down to none, and decoding from a buffer.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class GorillaChunkTest {
+
+	@Test
+	public void timeBucketEdges() {
+		// Deltas of deltas either side of each bucket's bounds, then back again
+		long[] deltaOfDeltas = { 0, -63, 64, -64, 65, -255, 256, -256, 257, -2047, 2048, -2048, 2049,
+				Long.MAX_VALUE / 4, Long.MIN_VALUE / 4, 1, -1 };
+		long[] times = new long[deltaOfDeltas.length + 2];
+		double[] values = new double[times.length];
+		times[0] = 1000000;
+		times[1] = times[0] + 1000;
+		long delta = 1000;
+		for (int i = 0; i < deltaOfDeltas.length; i++) {
+			delta += deltaOfDeltas[i];
+			times[i + 2] = times[i + 1] + delta;
+		}
+		checkRoundTrip(times, values);
+	}
+
+	@Test
+	public void extremeFirstPoint() {
+		checkRoundTrip(new long[] { Long.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1 },
+				new double[] { Double.NaN, Double.NaN, -0.0 });
+		checkRoundTrip(new long[] { Long.MAX_VALUE }, new double[] { Double.NEGATIVE_INFINITY });
+	}
+
+	@Test
+	public void meaningfulBitsFrom64DownToNone() {
+		double[] values = {
+				0.0,
+				// XOR with 0.0 has no leading or trailing zeros: all 64 bits
+				Double.longBitsToDouble(0x8000000000000001L),
+				// Fits in the 64-bit window
+				Double.longBitsToDouble(0x8000000000000003L),
+				// Only a sign flip: 1 meaningful bit at the top
+				Double.longBitsToDouble(0x0000000000000003L),
+				// 1 meaningful bit at the bottom
+				Double.longBitsToDouble(0x0000000000000002L),
+				// More than 31 leading zeros, capped at 31
+				Double.longBitsToDouble(0x0000000000000102L),
+				// Repeats: no meaningful bits
+				Double.longBitsToDouble(0x0000000000000102L),
+				Double.longBitsToDouble(0x0000000000000102L),
+				Double.MAX_VALUE,
+				Double.MIN_VALUE,
+				-0.0,
+				0.0,
+				Double.POSITIVE_INFINITY,
+				Double.NaN,
+				1.0,
+				1.0 };
+		long[] times = new long[values.length];
+		for (int i = 0; i < times.length; i++) {
+			times[i] = 1000L * i;
+		}
+		checkRoundTrip(times, values);
+	}
+
+	@Test
+	public void randomPointsFitTheWorstCase() {
+		Random random = new Random(47);
+		for (int run = 0; run < 200; run++) {
+			int n = 1 + random.nextInt(300);
+			long[] times = new long[n];
+			double[] values = new double[n];
+			times[0] = random.nextLong() >> 2;
+			for (int i = 0; i < n; i++) {
+				if (i > 0) {
+					times[i] = times[i - 1] + (random.nextBoolean() ? 1000 : random.nextInt(1 << random.nextInt(30)));
+				}
+				switch (random.nextInt(4)) {
+				case 0:
+					values[i] = Double.longBitsToDouble(random.nextLong());
+					break;
+				case 1:
+					values[i] = random.nextInt(1024) * 0.25;
+					break;
+				case 2:
+					values[i] = random.nextInt(2);
+					break;
+				default:
+					values[i] = i == 0 ? 0 : values[i - 1];
+				}
+			}
+			checkRoundTrip(times, values);
+		}
+	}
+
+	@Test
+	public void readerSeesTheChunkAsItWas() {
+		GorillaChunk.Writer writer = new GorillaChunk.Writer(4);
+		writer.append(10, 1.0);
+		writer.append(20, 2.0);
+		GorillaChunk.Reader reader = writer.read(new GorillaChunk.Reader());
+		writer.append(30, 3.0);
+		assertTrue(reader.next());
+		assertTrue(reader.next());
+		assertEquals(20, reader.getTime());
+		assertEquals(2.0, reader.getValue(), 0);
+		assertFalse(reader.next());
+	}
+
+	@Test
+	public void fullChunkRefusesPointsUntilReset() {
+		GorillaChunk.Writer writer = new GorillaChunk.Writer(2);
+		writer.append(10, 1.0);
+		writer.append(20, 1.0);
+		try {
+			writer.append(30, 1.0);
+			fail("append() to a full chunk should have been refused");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		writer.reset();
+		assertEquals(0, writer.getCount());
+		assertEquals(0, writer.getByteCount());
+		// Reset must clear the old bits, as writing ORs into the array
+		writer.append(5, 0.5);
+		writer.append(6, 0.25);
+		GorillaChunk.Reader reader = writer.read(new GorillaChunk.Reader());
+		assertTrue(reader.next());
+		assertEquals(5, reader.getTime());
+		assertEquals(0.5, reader.getValue(), 0);
+		assertTrue(reader.next());
+		assertEquals(6, reader.getTime());
+		assertEquals(0.25, reader.getValue(), 0);
+		assertFalse(reader.next());
+	}
+
+	@Test
+	public void emptyChunk() {
+		assertEquals(0, GorillaChunk.maxBytes(0));
+		GorillaChunk.Writer writer = new GorillaChunk.Writer(0);
+		assertEquals(0, writer.getByteCount());
+		assertFalse(writer.read(new GorillaChunk.Reader()).next());
+	}
+
+	// Writes the points, copies the chunk into the middle of a buffer, and reads them back
+	private static void checkRoundTrip(long[] inTimes, double[] inValues) {
+		GorillaChunk.Writer writer = new GorillaChunk.Writer(inTimes.length);
+		for (int i = 0; i < inTimes.length; i++) {
+			writer.append(inTimes[i], inValues[i]);
+		}
+		assertTrue(writer.getByteCount() <= GorillaChunk.maxBytes(inTimes.length));
+		assertEquals(inTimes[inTimes.length - 1], writer.getLastTime());
+
+		ByteBuffer buffer = ByteBuffer.allocate(writer.getByteCount() + 10);
+		buffer.position(3);
+		writer.writeTo(buffer);
+		GorillaChunk.Reader reader = new GorillaChunk.Reader().reset(buffer, 3, inTimes.length);
+		for (int i = 0; i < inTimes.length; i++) {
+			assertTrue(reader.next());
+			assertEquals("time " + i, inTimes[i], reader.getTime());
+			assertEquals("value " + i, Double.doubleToRawLongBits(inValues[i]),
+					Double.doubleToRawLongBits(reader.getValue()));
+		}
+		assertFalse(reader.next());
+	}
+}
@@ -0,0 +1,104 @@
+package xbeerelay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests LongIntMap against a HashMap, including the probe runs that wrap round
+ * the end of the table and backward-shift removal.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class LongIntMapTest {
+
+	@Test
+	public void putGetRemove() {
+		LongIntMap map = new LongIntMap(4);
+		assertEquals(LongIntMap.MISSING, map.get(7));
+		map.put(7, 70);
+		map.put(0, 0);
+		map.put(Long.MIN_VALUE, 1);
+		map.put(Long.MAX_VALUE, Integer.MAX_VALUE);
+		map.put(-1, 2);
+		assertEquals(5, map.size());
+		assertEquals(70, map.get(7));
+		assertEquals(0, map.get(0));
+		assertEquals(1, map.get(Long.MIN_VALUE));
+		assertEquals(Integer.MAX_VALUE, map.get(Long.MAX_VALUE));
+		assertEquals(2, map.get(-1));
+
+		map.put(7, 71);
+		assertEquals(5, map.size());
+		assertEquals(71, map.remove(7));
+		assertEquals(LongIntMap.MISSING, map.remove(7));
+		assertFalse(map.containsKey(7));
+		assertTrue(map.containsKey(0));
+		assertEquals(4, map.size());
+
+		long[] keys = map.keys();
+		Arrays.sort(keys);
+		assertArrayEquals(new long[] { Long.MIN_VALUE, -1, 0, Long.MAX_VALUE }, keys);
+
+		map.clear();
+		assertEquals(0, map.size());
+		assertEquals(LongIntMap.MISSING, map.get(0));
+		assertEquals(0, map.keys().length);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNegativeValues() {
+		new LongIntMap(4).put(1, LongIntMap.MISSING);
+	}
+
+	@Test
+	public void growsAndKeepsEverything() {
+		LongIntMap map = new LongIntMap(1);
+		for (int i = 0; i < 10000; i++) {
+			map.put(i * 0x100000001L, i);
+		}
+		assertEquals(10000, map.size());
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(i, map.get(i * 0x100000001L));
+		}
+	}
+
+	@Test
+	public void matchesHashMapUnderChurn() {
+		// A small key space in a small table: long probe runs, many of them wrapping
+		// round the end of the table, and removals from the middle of them
+		Random random = new Random(26);
+		for (int keySpace : new int[] { 6, 20, 300 }) {
+			LongIntMap map = new LongIntMap(1);
+			Map<Long, Integer> expected = new HashMap<Long, Integer>();
+			for (int i = 0; i < 50000; i++) {
+				long key = random.nextInt(keySpace) * 0x9e3779b97f4a7c15L;
+				int op = random.nextInt(3);
+				if (op == 0) {
+					int value = random.nextInt(Integer.MAX_VALUE);
+					map.put(key, value);
+					expected.put(key, value);
+				} else if (op == 1) {
+					Integer old = expected.remove(key);
+					assertEquals(old == null ? LongIntMap.MISSING : old.intValue(), map.remove(key));
+				} else {
+					Integer value = expected.get(key);
+					assertEquals(value == null ? LongIntMap.MISSING : value.intValue(), map.get(key));
+				}
+				assertEquals(expected.size(), map.size());
+			}
+			for (Map.Entry<Long, Integer> e : expected.entrySet()) {
+				assertEquals(e.getValue().intValue(), map.get(e.getKey()));
+			}
+		}
+	}
+}
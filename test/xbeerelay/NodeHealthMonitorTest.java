@@ -0,0 +1,189 @@
+package xbeerelay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import xbeerelay.Relay.RelayStatus;
+import xbeerelay.Relay.XbeeDigitalIOPin;
+
+/**
+ * Tests NodeHealthMonitor's timer wheel and interval learning, driving it with
+ * tick() and made-up sample times instead of its own thread.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class NodeHealthMonitorTest {
+
+	private static final long TICK_MILLIS = 250;
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	@Before
+	public void setUp() throws RelayException {
+		manager = new XbeeRelayManager(new XbeeManager(null), new int[] {0, 0x13, 0xa2, 0, 0x40, 0x3d, 0xb1, 0x5b});
+		manager.addManagedRelay(new Relay(2, 1, XbeeDigitalIOPin.D2));
+		monitor = new NodeHealthMonitor(TICK_MILLIS);
+		monitor.addLivenessListener(new NodeLivenessListener() {
+
+			@Override
+			public void nodeSilent(XbeeRelayManager inManager, long inLastSeenNanos) {
+				silences++;
+			}
+
+			@Override
+			public void nodeRecovered(XbeeRelayManager inManager, long inSilentNanos) {
+				recoveries++;
+			}
+		});
+		monitor.watch(manager);
+		now = monitor.getLastSeenNanos(manager.getNode());
+	}
+
+	@Test
+	public void regularSamplesStayAlive() {
+		for (int i = 0; i < 20; i++) {
+			advance(5 * SECOND);
+			sample();
+		}
+		assertEquals(0, silences);
+		assertTrue(monitor.isAlive(manager.getNode()));
+		assertEquals(RelayStatus.ON, relayStatus());
+	}
+
+	@Test
+	public void missedSamplesGoSilentAndRecover() {
+		for (int i = 0; i < 5; i++) {
+			advance(5 * SECOND);
+			sample();
+		}
+		advance(14 * SECOND);
+		assertEquals(0, silences);
+		advance(2 * SECOND);
+		assertEquals(1, silences);
+		assertFalse(monitor.isAlive(manager.getNode()));
+		assertEquals(RelayStatus.UNITIALIZED, relayStatus());
+
+		sample();
+		assertEquals(1, recoveries);
+		assertTrue(monitor.isAlive(manager.getNode()));
+		assertEquals(RelayStatus.ON, relayStatus());
+	}
+
+	@Test
+	public void learnsIntervalLongerThanDefaultTimeout() {
+		// IR of 20 s against the default 5 s interval (so a 15 s timeout)
+		for (int i = 0; i < 30; i++) {
+			advance(20 * SECOND);
+			sample();
+		}
+		assertTrue("flapped " + silences + " times", silences <= 2);
+		long before = silences;
+		for (int i = 0; i < 30; i++) {
+			advance(20 * SECOND);
+			sample();
+		}
+		assertEquals(before, silences);
+		assertEquals(RelayStatus.ON, relayStatus());
+
+		// And it still notices when the node really stops
+		advance(90 * SECOND);
+		assertEquals(before + 1, silences);
+	}
+
+	@Test
+	public void fixedIntervalIsNotLearned() {
+		// A set interval is trusted even when the node keeps coming back late
+		monitor.setInterval(manager.getNode(), 5000);
+		for (int i = 0; i < 10; i++) {
+			advance(20 * SECOND);
+			sample();
+		}
+		assertEquals(10, silences);
+		assertEquals(10, recoveries);
+	}
+
+	@Test
+	public void deadlineManyTurnsOfTheWheelAway() {
+		// 3 x 10 minutes is thousands of ticks, so the node sits through many turns of the wheel
+		monitor.setInterval(manager.getNode(), TimeUnit.MINUTES.toMillis(10));
+		sample();
+		advance(TimeUnit.MINUTES.toNanos(29));
+		assertEquals(0, silences);
+		advance(TimeUnit.MINUTES.toNanos(2));
+		assertEquals(1, silences);
+	}
+
+	@Test
+	public void neverSampledNodeGoesSilent() {
+		advance(16 * SECOND);
+		assertEquals(1, silences);
+		assertEquals(1, monitor.getSilentCount());
+	}
+
+	@Test
+	public void sampleDuringTickIsNotMarkedStale() throws InterruptedException {
+		// Up to just short of the 15 s timeout; the ticker takes the tick that finds it silent
+		long step = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+		advance(15 * SECOND - step);
+		assertEquals(0, silences);
+		final long due = now + 2 * step;
+		Thread ticker = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				monitor.tick(due);
+			}
+		});
+		synchronized (manager) {
+			// The tick finds the node silent, then waits for the manager
+			ticker.start();
+			long deadline = System.currentTimeMillis() + 5000;
+			while (ticker.getState() != Thread.State.BLOCKED) {
+				assertTrue(System.currentTimeMillis() < deadline);
+				Thread.sleep(1);
+			}
+			now = due;
+			manager.processSample(1 << 2, now);
+		}
+		ticker.join(5000);
+		assertEquals(0, silences);
+		assertTrue(monitor.isAlive(manager.getNode()));
+		assertEquals(RelayStatus.ON, relayStatus());
+	}
+
+	// Moves the clock forward, ticking the monitor as its thread would
+	private void advance(long inNanos) {
+		long end = now + inNanos;
+		long step = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+		while (now < end) {
+			now = Math.min(now + step, end);
+			monitor.tick(now);
+		}
+	}
+
+	private void sample() {
+		synchronized (manager) {
+			manager.processSample(1 << 2, now);
+		}
+	}
+
+	private RelayStatus relayStatus() {
+		try {
+			return manager.getManagedRelay(1).getStatus();
+		} catch (RelayException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private XbeeRelayManager manager;
+	private NodeHealthMonitor monitor;
+	private long now;
+	private long silences;
+	private long recoveries;
+}
@@ -0,0 +1,243 @@
+package xbeerelay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.rapplogic.xbee.api.XBeeResponse;
+import com.rapplogic.xbee.api.zigbee.ZNetRxIoSampleResponse;
+
+/**
+ * Tests PacketDispatcher's ring: delivery order, wrap-around, each overflow
+ * policy, lossless subscribers and receive timestamps.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class PacketDispatcherTest {
+
+	@After
+	public void tearDown() {
+		if (dispatcher != null) {
+			dispatcher.close();
+		}
+	}
+
+	@Test
+	public void deliversEveryPacketInOrderAcrossWrapAround() throws Exception {
+		dispatcher = new PacketDispatcher(5, PacketDispatcher.OverflowPolicy.BLOCK);
+		Collector collector = new Collector(null);
+		PacketDispatcher.Subscriber subscriber = dispatcher.subscribe("test", collector);
+		XBeeResponse[] packets = packets(1000);
+		for (XBeeResponse packet : packets) {
+			dispatcher.processResponse(packet);
+		}
+		collector.await(packets.length);
+		for (int i = 0; i < packets.length; i++) {
+			assertSame(packets[i], collector.get(i));
+		}
+		assertEquals(0, subscriber.getDroppedCount());
+		assertEquals(0, subscriber.getLag());
+		assertEquals(packets.length, dispatcher.getPublishedCount());
+	}
+
+	@Test
+	public void subscriberOnlySeesLaterPackets() throws Exception {
+		dispatcher = new PacketDispatcher(8, PacketDispatcher.OverflowPolicy.DROP_OLDEST);
+		XBeeResponse[] packets = packets(3);
+		dispatcher.processResponse(packets[0]);
+		Collector collector = new Collector(null);
+		dispatcher.subscribe("test", collector);
+		dispatcher.processResponse(packets[1]);
+		dispatcher.processResponse(packets[2]);
+		collector.await(2);
+		Thread.sleep(50);
+		assertEquals(2, collector.size());
+		assertSame(packets[1], collector.get(0));
+	}
+
+	@Test
+	public void dropOldestSkipsSlowSubscriberAhead() throws Exception {
+		dispatcher = new PacketDispatcher(4, PacketDispatcher.OverflowPolicy.DROP_OLDEST);
+		CountDownLatch release = new CountDownLatch(1);
+		Collector collector = new Collector(release);
+		PacketDispatcher.Subscriber subscriber = dispatcher.subscribe("slow", collector);
+		XBeeResponse[] packets = packets(20);
+		dispatcher.processResponse(packets[0]);
+		collector.awaitStarted();
+		// The subscriber is stuck on the first packet; the ring fills and wraps without waiting
+		for (int i = 1; i < packets.length; i++) {
+			dispatcher.processResponse(packets[i]);
+		}
+		release.countDown();
+		collector.await(packets.length - (int) subscriber.getDroppedCount());
+		assertTrue(subscriber.getDroppedCount() > 0);
+		assertEquals(packets.length, collector.size() + subscriber.getDroppedCount());
+		// What it did see is the newest, in order
+		assertSame(packets[packets.length - 1], collector.get(collector.size() - 1));
+	}
+
+	@Test
+	public void losslessSubscriberIsWaitedFor() throws Exception {
+		dispatcher = new PacketDispatcher(4, PacketDispatcher.OverflowPolicy.DROP_OLDEST);
+		CountDownLatch release = new CountDownLatch(1);
+		Collector collector = new Collector(release);
+		PacketDispatcher.Subscriber subscriber = dispatcher.subscribe("capture", collector, true);
+		assertTrue(subscriber.isLossless());
+		final XBeeResponse[] packets = packets(20);
+		Thread producer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				for (XBeeResponse packet : packets) {
+					dispatcher.processResponse(packet);
+				}
+			}
+		});
+		producer.start();
+		collector.awaitStarted();
+		producer.join(200);
+		assertTrue("producer should wait for a full lossless subscriber", producer.isAlive());
+		release.countDown();
+		producer.join(5000);
+		assertFalse(producer.isAlive());
+		collector.await(packets.length);
+		assertEquals(0, subscriber.getDroppedCount());
+		for (int i = 0; i < packets.length; i++) {
+			assertSame(packets[i], collector.get(i));
+		}
+	}
+
+	@Test
+	public void sampleThinsPacketsWhileFull() throws Exception {
+		dispatcher = new PacketDispatcher(4, PacketDispatcher.OverflowPolicy.SAMPLE, 4);
+		CountDownLatch release = new CountDownLatch(1);
+		Collector collector = new Collector(release);
+		dispatcher.subscribe("slow", collector);
+		XBeeResponse[] packets = packets(40);
+		dispatcher.processResponse(packets[0]);
+		collector.awaitStarted();
+		for (int i = 1; i < packets.length; i++) {
+			dispatcher.processResponse(packets[i]);
+		}
+		release.countDown();
+		assertTrue(dispatcher.getSampledOutCount() > 0);
+		assertEquals(packets.length, dispatcher.getPublishedCount() + dispatcher.getSampledOutCount());
+	}
+
+	@Test
+	public void sampleDropsNothingWithLosslessSubscriber() throws Exception {
+		dispatcher = new PacketDispatcher(4, PacketDispatcher.OverflowPolicy.SAMPLE, 4);
+		Collector capture = new Collector(null);
+		dispatcher.subscribe("capture", capture, true);
+		CountDownLatch release = new CountDownLatch(1);
+		Collector slow = new Collector(release);
+		dispatcher.subscribe("slow", slow);
+		XBeeResponse[] packets = packets(40);
+		dispatcher.processResponse(packets[0]);
+		slow.awaitStarted();
+		for (int i = 1; i < packets.length; i++) {
+			dispatcher.processResponse(packets[i]);
+		}
+		release.countDown();
+		capture.await(packets.length);
+		assertEquals(0, dispatcher.getSampledOutCount());
+		assertEquals(packets.length, capture.size());
+	}
+
+	@Test
+	public void timedListenersGetPublishTime() throws Exception {
+		dispatcher = new PacketDispatcher(8, PacketDispatcher.OverflowPolicy.BLOCK);
+		CountDownLatch release = new CountDownLatch(1);
+		Collector collector = new Collector(release);
+		dispatcher.subscribe("test", collector);
+		long before = System.nanoTime();
+		dispatcher.processResponse(new ZNetRxIoSampleResponse());
+		long after = System.nanoTime();
+		collector.awaitStarted();
+		// However long the listener takes, the time is when the packet was published
+		Thread.sleep(50);
+		release.countDown();
+		collector.await(1);
+		long nanos = collector.getNanos(0);
+		assertTrue(nanos >= before && nanos <= after);
+	}
+
+	private static XBeeResponse[] packets(int inCount) {
+		XBeeResponse[] packets = new XBeeResponse[inCount];
+		for (int i = 0; i < inCount; i++) {
+			packets[i] = new ZNetRxIoSampleResponse();
+		}
+		return packets;
+	}
+
+	// Keeps what it's given; waits on a latch (if any) on the first packet
+	private static final class Collector implements TimedPacketListener {
+
+		Collector(CountDownLatch inRelease) {
+			release = inRelease;
+		}
+
+		@Override
+		public void processResponse(XBeeResponse inResponse) {
+			processResponse(inResponse, 0);
+		}
+
+		@Override
+		public void processResponse(XBeeResponse inResponse, long inNanos) {
+			started.countDown();
+			if (release != null) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			synchronized (this) {
+				responses.add(inResponse);
+				nanos.add(inNanos);
+				notifyAll();
+			}
+		}
+
+		void awaitStarted() throws InterruptedException {
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+		}
+
+		synchronized void await(int inCount) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (responses.size() < inCount && System.currentTimeMillis() < deadline) {
+				wait(100);
+			}
+			assertTrue("got " + responses.size() + " of " + inCount, responses.size() >= inCount);
+		}
+
+		synchronized int size() {
+			return responses.size();
+		}
+
+		synchronized XBeeResponse get(int inIndex) {
+			return responses.get(inIndex);
+		}
+
+		synchronized long getNanos(int inIndex) {
+			return nanos.get(inIndex);
+		}
+
+		private final CountDownLatch release;
+		private final CountDownLatch started = new CountDownLatch(1);
+		private final List<XBeeResponse> responses = new ArrayList<XBeeResponse>();
+		private final List<Long> nanos = new ArrayList<Long>();
+	}
+
+	private PacketDispatcher dispatcher;
+}
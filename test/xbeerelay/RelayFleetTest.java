@@ -0,0 +1,239 @@
+package xbeerelay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import xbeerelay.Relay.RelayStatus;
+import xbeerelay.Relay.XbeeDigitalIOPin;
+
+import com.rapplogic.xbee.api.XBeeAddress64;
+import com.rapplogic.xbee.api.XBeeException;
+
+/**
+ * Tests RelayFleet's broadcast dispatch: the caller isn't held up waiting for
+ * confirmation, and nodes that don't confirm are sent a unicast afterwards;
+ * and that a long send to a node doesn't hold up an emergency to it.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class RelayFleetTest {
+
+	private static final int[] FIRST = {0, 0x13, 0xa2, 0, 0x40, 0x3d, 0xb1, 0x5b};
+	private static final int[] SECOND = {0, 0x13, 0xa2, 0, 0x40, 0x3d, 0xb1, 0x5c};
+	private static final long TIMEOUT_MILLIS = 200;
+
+	@Before
+	public void setUp() throws RelayException {
+		radio = new FakeXbeeManager();
+		first = new XbeeRelayManager(radio, FIRST);
+		first.addManagedRelay(new Relay(1, 1, XbeeDigitalIOPin.D2));
+		second = new XbeeRelayManager(radio, SECOND);
+		second.addManagedRelay(new Relay(2, 2, XbeeDigitalIOPin.D2));
+		fleet = new RelayFleet();
+		fleet.addRelayManager(first);
+		fleet.addRelayManager(second);
+		fleet.defineGroup("both", new Relay[] { first.getManagedRelay(1), second.getManagedRelay(2) });
+		fleet.setBroadcastEnabled(true);
+		fleet.setBroadcastTimeout(TIMEOUT_MILLIS);
+	}
+
+	@After
+	public void tearDown() {
+		fleet.shutdown();
+	}
+
+	@Test
+	public void doesNotWaitForConfirmation() throws Exception {
+		long start = System.nanoTime();
+		fleet.setGroup("both", RelayStatus.ON);
+		long took = (System.nanoTime() - start) / 1000000L;
+		assertTrue("setGroup took " + took + " ms", took < TIMEOUT_MILLIS);
+		assertEquals("[broadcast]", radio.sent().toString());
+		assertEquals(1, fleet.getBroadcastCount());
+	}
+
+	@Test
+	public void unicastsToNodesThatDidNotConfirm() throws Exception {
+		fleet.setGroup("both", RelayStatus.ON);
+		synchronized (first) {
+			first.processSample(1 << 2, System.nanoTime());
+		}
+		long deadline = System.currentTimeMillis() + 10 * TIMEOUT_MILLIS;
+		while (radio.sent().size() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		// The second node's relay is on pin 2
+		assertEquals("[broadcast, unicast CMD RON02]", radio.sent().toString());
+		assertEquals(1, fleet.getUnicastFallbackCount());
+	}
+
+	@Test
+	public void noUnicastWhenEveryNodeConfirms() throws Exception {
+		fleet.setGroup("both", RelayStatus.ON);
+		synchronized (first) {
+			first.processSample(1 << 2, System.nanoTime());
+		}
+		synchronized (second) {
+			second.processSample(1 << 2, System.nanoTime());
+		}
+		Thread.sleep(3 * TIMEOUT_MILLIS);
+		assertEquals("[broadcast]", radio.sent().toString());
+		assertEquals(0, fleet.getUnicastFallbackCount());
+	}
+
+	@Test
+	public void emergencyOvertakesBlockedBulkSend() throws Exception {
+		// Enough relays on one node for a BULK send of several frames
+		final XbeeRelayManager busy = new XbeeRelayManager(new GatedXbeeManager(), FIRST);
+		final int[] numbers = new int[20];
+		for (int i = 0; i < numbers.length; i++) {
+			numbers[i] = 10 + i;
+			busy.addManagedRelay(new Relay(10 + i, numbers[i], XbeeDigitalIOPin.D2));
+		}
+		final RelayFleet single = new RelayFleet();
+		single.addRelayManager(busy);
+		GatedXbeeManager radio = (GatedXbeeManager) busy.getXbeeManager();
+		ExecutorService callers = Executors.newCachedThreadPool();
+		try {
+			Future<Void> bulk = callers.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws RelayException {
+					busy.setRelays(numbers, new int[0], CommandPriority.BULK);
+					return null;
+				}
+			});
+			// The first BULK frame is on the air; the rest of the send is still to come
+			assertTrue(radio.sending.await(5, TimeUnit.SECONDS));
+
+			// Samples for the node are still processed meanwhile
+			long start = System.nanoTime();
+			assertTrue(single.processSample(busy.getNode(), 0, System.nanoTime()));
+			assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+
+			Future<Void> emergency = callers.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws RelayException {
+					single.allOff();
+					return null;
+				}
+			});
+			long deadline = System.currentTimeMillis() + 5000;
+			while (radio.scheduler.getQueueLength(CommandPriority.EMERGENCY_OFF) == 0) {
+				assertTrue("allOff() never reached the scheduler", System.currentTimeMillis() < deadline);
+				Thread.sleep(1);
+			}
+			radio.gate.countDown();
+			emergency.get(5, TimeUnit.SECONDS);
+			bulk.get(5, TimeUnit.SECONDS);
+
+			List<String> sent = radio.sent();
+			assertTrue(sent.toString(), sent.size() >= 4);
+			assertTrue(sent.toString(), sent.get(0).startsWith("BULK CMD RON10 "));
+			assertTrue(sent.toString(), sent.get(1).startsWith("EMERGENCY_OFF CMD ROFF10 "));
+		} finally {
+			radio.gate.countDown();
+			callers.shutdownNow();
+			single.shutdown();
+			radio.scheduler.shutdown();
+		}
+	}
+
+	// Sends through a real scheduler, holding the first BULK frame until the gate opens
+	private static class GatedXbeeManager extends XbeeManager {
+
+		GatedXbeeManager() {
+			super(null);
+			setCommandScheduler(scheduler);
+		}
+
+		@Override
+		public boolean sendPayload(int[] inPayload, int inLength, XBeeAddress64 inAddr64,
+				final CommandPriority inPriority) throws XBeeException {
+			StringBuilder payload = new StringBuilder();
+			for (int i = 0; i < inLength; i++) {
+				payload.append((char) inPayload[i]);
+			}
+			final String frame = inPriority + " " + payload.toString().trim();
+			return scheduler.submit(inPriority, new Callable<Boolean>() {
+
+				@Override
+				public Boolean call() throws InterruptedException {
+					if (inPriority == CommandPriority.BULK && sending.getCount() > 0) {
+						sending.countDown();
+						gate.await(5, TimeUnit.SECONDS);
+					}
+					sent.add(frame);
+					return true;
+				}
+			});
+		}
+
+		List<String> sent() {
+			synchronized (sent) {
+				return new ArrayList<String>(sent);
+			}
+		}
+
+		final CommandScheduler scheduler = new CommandScheduler("test");
+		final CountDownLatch sending = new CountDownLatch(1);
+		final CountDownLatch gate = new CountDownLatch(1);
+		private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+	}
+
+	// Acks everything, and records what was sent (unicasts by payload)
+	private static class FakeXbeeManager extends XbeeManager {
+
+		FakeXbeeManager() {
+			super(null);
+		}
+
+		@Override
+		public boolean broadcastCommand(String inCommand, CommandPriority inPriority) {
+			record("broadcast");
+			return true;
+		}
+
+		@Override
+		public boolean sendPayload(int[] inPayload, int inLength, XBeeAddress64 inAddr64,
+				CommandPriority inPriority) {
+			StringBuilder payload = new StringBuilder();
+			for (int i = 0; i < inLength; i++) {
+				payload.append((char) inPayload[i]);
+			}
+			record("unicast " + payload.toString().trim());
+			return true;
+		}
+
+		synchronized List<String> sent() {
+			return new ArrayList<String>(sent);
+		}
+
+		private synchronized void record(String inWhat) {
+			sent.add(inWhat);
+		}
+
+		private final List<String> sent = new ArrayList<String>();
+	}
+
+	private FakeXbeeManager radio;
+	private XbeeRelayManager first;
+	private XbeeRelayManager second;
+	private RelayFleet fleet;
+}
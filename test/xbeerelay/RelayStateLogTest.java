@@ -0,0 +1,226 @@
+package xbeerelay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests RelayStateLog's varints, reconstruction from snapshots and deltas, and
+ * its file handling, including the timer that writes out records left waiting.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class RelayStateLogTest {
+
+	private static final int NODES = 6;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("relaystate", ".log");
+		file.delete();
+		start = System.currentTimeMillis() + 1000;
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void varLongsRoundTrip() {
+		long[] values = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, 0xffffffffL,
+				Long.MAX_VALUE, Long.MIN_VALUE, -1, -128 };
+		int[] lengths = { 1, 1, 1, 2, 2, 3, 5, 5, 9, 10, 10, 10 };
+		byte[] bytes = new byte[10 * values.length];
+		int offset = 0;
+		for (int i = 0; i < values.length; i++) {
+			int next = RelayStateLog.writeVarLong(bytes, offset, values[i]);
+			assertEquals("length of " + values[i], lengths[i], next - offset);
+			offset = next;
+		}
+		int[] cursor = { 0 };
+		for (int i = 0; i < values.length; i++) {
+			assertEquals(values[i], RelayStateLog.readVarLong(bytes, cursor));
+		}
+		assertEquals(offset, cursor[0]);
+
+		Random random = new Random(38);
+		for (int i = 0; i < 10000; i++) {
+			long value = random.nextLong() >>> random.nextInt(64);
+			int end = RelayStateLog.writeVarLong(bytes, 3, value);
+			cursor[0] = 3;
+			assertEquals(value, RelayStateLog.readVarLong(bytes, cursor));
+			assertEquals(end, cursor[0]);
+		}
+	}
+
+	@Test
+	public void rebuildsStateInMemory() throws IOException {
+		RelayStateLog log = new RelayStateLog();
+		List<long[]> events = recordRandom(log, new Random(1), 3000);
+		checkRandomTimes(log, events, new Random(2));
+		assertEquals(log.getByteCount(), log.getMemoryByteCount());
+	}
+
+	@Test
+	public void rebuildsStateFromFileAndMemory() throws IOException {
+		RelayStateLog log = new RelayStateLog(file);
+		List<long[]> events = recordRandom(log, new Random(3), 3000);
+		log.flush();
+		// Older snapshot intervals have been trimmed and must come from the file
+		assertTrue(log.getMemoryByteCount() < log.getByteCount());
+		checkRandomTimes(log, events, new Random(4));
+		log.close();
+
+		log = new RelayStateLog(file);
+		checkRandomTimes(log, events, new Random(5));
+		events.addAll(recordRandom(log, new Random(6), 1000));
+		checkRandomTimes(log, events, new Random(7));
+		log.close();
+	}
+
+	@Test
+	public void keepsWhatWasFlushedWithoutClose() throws IOException {
+		RelayStateLog log = new RelayStateLog(file);
+		List<long[]> events = recordRandom(log, new Random(8), 1500);
+		log.flush();
+		long bytes = log.getByteCount();
+		// No close, as after a crash
+
+		RelayStateLog reopened = new RelayStateLog(file);
+		assertEquals(bytes, reopened.getByteCount());
+		checkRandomTimes(reopened, events, new Random(9));
+		reopened.close();
+		log.close();
+	}
+
+	@Test
+	public void dropsTruncatedFinalRecord() throws IOException {
+		RelayStateLog log = new RelayStateLog(file);
+		log.record(0x0013a200403db15bL, 1, start);
+		log.record(0x0013a200403db15bL, 3, start + 10);
+		long whole = log.getByteCount();
+		// A node with a long address, so its record is several bytes
+		log.record(0x7013a200403db15cL, 4, start + 20);
+		long all = log.getByteCount();
+		log.close();
+
+		// Cut into the new node's record
+		RandomAccessFile raw = new RandomAccessFile(file, "rw");
+		raw.setLength(raw.length() - (all - whole) + 4);
+		raw.close();
+
+		log = new RelayStateLog(file);
+		assertEquals(whole, log.getByteCount());
+		assertEquals(3, log.maskAt(0x0013a200403db15bL, start + 30));
+		assertEquals(0, log.maskAt(0x7013a200403db15cL, start + 30));
+		assertEquals(2, log.getTransitionCount());
+		// Carries on from the last whole record
+		log.record(0x7013a200403db15cL, 4, start + 40);
+		assertEquals(4, log.maskAt(0x7013a200403db15cL, start + 40));
+		log.close();
+	}
+
+	@Test
+	public void flushesOnceRecordsBuildUp() throws IOException {
+		RelayStateLog log = new RelayStateLog(file);
+		long time = start;
+		int mask = 0;
+		while (log.getByteCount() < 4096 + 100) {
+			mask ^= 1;
+			log.record(1, mask, time);
+		}
+		assertTrue(file.length() > 4096);
+		log.close();
+	}
+
+	@Test
+	public void flushesOnceRecordsAreOld() throws IOException {
+		RelayStateLog log = new RelayStateLog(file);
+		log.record(1, 1, start);
+		long written = file.length();
+		log.record(1, 0, start + 500);
+		assertEquals(written, file.length());
+		log.record(1, 1, start + 1000);
+		assertTrue(file.length() > written);
+		log.close();
+	}
+
+	@Test
+	public void flushesOnTimerWithoutMoreRecords() throws IOException, InterruptedException {
+		RelayStateLog log = new RelayStateLog(file);
+		long written = file.length();
+		log.record(1, 1, System.currentTimeMillis());
+		assertEquals(written, file.length());
+		// Nothing else comes in, so only the timer can write it out
+		long deadline = System.currentTimeMillis() + 5000;
+		while (file.length() == written) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		log.close();
+	}
+
+	// Records random transitions, returning them as { time, node, mask }
+	private List<long[]> recordRandom(RelayStateLog inLog, Random inRandom, int inCount)
+		throws IOException {
+		List<long[]> events = new ArrayList<long[]>();
+		int[] masks = new int[NODES];
+		for (int n = 0; n < NODES; n++) {
+			masks[n] = inLog.maskAt(node(n), Long.MAX_VALUE);
+		}
+		for (int i = 0; i < inCount; i++) {
+			// Some gaps of 0, some over a varint byte's worth
+			start += inRandom.nextInt(4) == 0 ? 0 : inRandom.nextInt(300);
+			int n = inRandom.nextInt(NODES);
+			masks[n] ^= 1 << inRandom.nextInt(13);
+			inLog.record(node(n), masks[n], start);
+			events.add(new long[] { start, n, masks[n] });
+		}
+		start++;
+		return events;
+	}
+
+	private void checkRandomTimes(RelayStateLog inLog, List<long[]> inEvents, Random inRandom)
+		throws IOException {
+		long first = inEvents.get(0)[0] - 10;
+		long last = inEvents.get(inEvents.size() - 1)[0] + 10;
+		for (int i = 0; i < 300; i++) {
+			long time = first + (long) (inRandom.nextDouble() * (last - first));
+			if (i % 3 == 0) {
+				time = inEvents.get(inRandom.nextInt(inEvents.size()))[0];
+			}
+			int[] expected = new int[NODES];
+			for (long[] event : inEvents) {
+				if (event[0] > time) {
+					break;
+				}
+				expected[(int) event[1]] = (int) event[2];
+			}
+			int[] actual = new int[NODES];
+			for (int n = 0; n < NODES; n++) {
+				actual[n] = inLog.maskAt(node(n), time);
+			}
+			assertArrayEquals("at " + (time - first) + " of " + (last - first), expected, actual);
+		}
+	}
+
+	private static long node(int inIndex) {
+		return 0x0013a20040000000L + inIndex * 0x10001L;
+	}
+
+	private File file;
+	private long start;
+}
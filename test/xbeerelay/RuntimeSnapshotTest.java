@@ -0,0 +1,161 @@
+package xbeerelay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import xbeerelay.Relay.RelayStatus;
+import xbeerelay.Relay.XbeeDigitalIOPin;
+
+/**
+ * Tests RuntimeSnapshot saving and restoring relay states and routes, including
+ * from a save cut short before its rename.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class RuntimeSnapshotTest {
+
+	private static final int[] ADDRESS = {0, 0x13, 0xa2, 0, 0x40, 0x3d, 0xb1, 0x5b};
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("snapshot", ".bin");
+		file.delete();
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+		new File(file.getPath() + ".tmp").delete();
+	}
+
+	@Test
+	public void restoresStatusesAndRoutes() throws Exception {
+		RelayFleet fleet = newFleet();
+		XbeeRelayManager manager = fleet.getRelayManager(NodeAddress.pack(ADDRESS));
+		synchronized (manager) {
+			manager.processSample(1 << 2, System.nanoTime());
+		}
+		manager.getXbeeManager().setRoute(manager.getNode(), 0x1234);
+		new RuntimeSnapshot(file, fleet).save();
+
+		RelayFleet restarted = newFleet();
+		XbeeRelayManager restored = restarted.getRelayManager(NodeAddress.pack(ADDRESS));
+		assertEquals(2, new RuntimeSnapshot(file, restarted).restore(null));
+		assertEquals(RelayStatus.ON, restored.getManagedRelay(1).getStatus());
+		assertEquals(RelayStatus.OFF, restored.getManagedRelay(2).getStatus());
+		assertTrue(restored.getManagedRelay(1).isStatusProvisional());
+		assertEquals(RelayStatus.UNITIALIZED, restored.getManagedRelay(1).getConfirmedStatus());
+		assertEquals(0x1234, restored.getXbeeManager().getRoute(restored.getNode()));
+	}
+
+	@Test
+	public void firstConfirmingSampleIsReportedAsTransition() throws Exception {
+		RelayFleet fleet = newFleet();
+		XbeeRelayManager manager = fleet.getRelayManager(NodeAddress.pack(ADDRESS));
+		synchronized (manager) {
+			manager.processSample(1 << 2, System.nanoTime());
+		}
+		new RuntimeSnapshot(file, fleet).save();
+
+		RelayFleet restarted = newFleet();
+		XbeeRelayManager restored = restarted.getRelayManager(NodeAddress.pack(ADDRESS));
+		new RuntimeSnapshot(file, restarted).restore(null);
+		final List<String> transitions = new ArrayList<String>();
+		restored.addTransitionListener(new RelayTransitionListener() {
+
+			@Override
+			public void relayChanged(Relay inRelay, RelayStatus inOldStatus, RelayStatus inNewStatus, long inNanos) {
+				transitions.add(inRelay.getNumber() + ":" + inOldStatus + "->" + inNewStatus);
+			}
+		});
+
+		// Agrees with what was restored, but listeners have never heard of it
+		synchronized (restored) {
+			restored.processSample(1 << 2, System.nanoTime());
+		}
+		assertEquals("[1:UNITIALIZED->ON, 2:UNITIALIZED->OFF]", transitions.toString());
+		assertFalse(restored.getManagedRelay(1).isStatusProvisional());
+
+		transitions.clear();
+		synchronized (restored) {
+			restored.processSample(1 << 2, System.nanoTime());
+		}
+		assertTrue(transitions.isEmpty());
+	}
+
+	@Test
+	public void staleProvisionalStatusIsNotReported() throws Exception {
+		RelayFleet fleet = newFleet();
+		XbeeRelayManager manager = fleet.getRelayManager(NodeAddress.pack(ADDRESS));
+		synchronized (manager) {
+			manager.processSample(1 << 2, System.nanoTime());
+		}
+		new RuntimeSnapshot(file, fleet).save();
+
+		RelayFleet restarted = newFleet();
+		XbeeRelayManager restored = restarted.getRelayManager(NodeAddress.pack(ADDRESS));
+		new RuntimeSnapshot(file, restarted).restore(null);
+		final List<String> transitions = new ArrayList<String>();
+		restored.addTransitionListener(new RelayTransitionListener() {
+
+			@Override
+			public void relayChanged(Relay inRelay, RelayStatus inOldStatus, RelayStatus inNewStatus, long inNanos) {
+				transitions.add(inRelay.getNumber() + ":" + inOldStatus + "->" + inNewStatus);
+			}
+		});
+		restored.markStale(System.nanoTime());
+		assertTrue(transitions.isEmpty());
+		assertEquals(RelayStatus.UNITIALIZED, restored.getManagedRelay(1).getStatus());
+	}
+
+	@Test
+	public void noSnapshotRestoresNothing() throws Exception {
+		assertEquals(0, new RuntimeSnapshot(file, newFleet()).restore(null));
+	}
+
+	@Test
+	public void restoresFromTempFileWhenSnapshotIsMissing() throws Exception {
+		RelayFleet fleet = newFleet();
+		XbeeRelayManager manager = fleet.getRelayManager(NodeAddress.pack(ADDRESS));
+		synchronized (manager) {
+			manager.processSample(1 << 2, System.nanoTime());
+		}
+		new RuntimeSnapshot(file, fleet).save();
+		// As if a save deleted the old snapshot and then crashed before its rename
+		File temp = new File(file.getPath() + ".tmp");
+		assertTrue(file.renameTo(temp));
+
+		RelayFleet restarted = newFleet();
+		XbeeRelayManager restored = restarted.getRelayManager(NodeAddress.pack(ADDRESS));
+		RuntimeSnapshot snapshot = new RuntimeSnapshot(file, restarted);
+		assertEquals(2, snapshot.restore(null));
+		assertEquals(RelayStatus.ON, restored.getManagedRelay(1).getStatus());
+
+		// The next save replaces it as usual
+		snapshot.save();
+		assertTrue(file.isFile());
+		assertFalse(temp.exists());
+	}
+
+	private static RelayFleet newFleet() throws RelayException {
+		XbeeRelayManager manager = new XbeeRelayManager(new XbeeManager(null), ADDRESS);
+		manager.addManagedRelay(new Relay(2, 1, XbeeDigitalIOPin.D2));
+		manager.addManagedRelay(new Relay(3, 2, XbeeDigitalIOPin.D3));
+		RelayFleet fleet = new RelayFleet();
+		fleet.addRelayManager(manager);
+		return fleet;
+	}
+
+	private File file;
+}
@@ -0,0 +1,124 @@
+package xbeerelay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import xbeerelay.Relay.XbeeDigitalIOPin;
+
+/**
+ * Tests SampleWindow's ring (reads across the wrap, overwriting, times kept in
+ * order) and its analytics, and the relay table's on (%) column read from it.
+ *
+ * @author <a href=mailto:cdw38@cornell.edu>Casey Worthington</a>
+ *
+ */
+public class SampleWindowTest {
+
+	private static final long NODE_A = 0x0013a200403db15bL;
+	private static final long NODE_B = 0x0013a200403db15cL;
+	private static final int[] ADDRESS_A = {0, 0x13, 0xa2, 0, 0x40, 0x3d, 0xb1, 0x5b};
+	private static final int NA = SampleWindow.NO_ANALOG;
+
+	@Test
+	public void readsAcrossTheWrap() {
+		SampleWindow window = new SampleWindow(8);
+		for (int i = 0; i < 13; i++) {
+			window.add(i % 2 == 0 ? NODE_A : NODE_B, 1000 + i * 10, i, i, NA, NA, NA);
+		}
+		assertEquals(8, window.size());
+		assertEquals(13, window.getAddedCount());
+
+		// The oldest five were overwritten; the rest are split across the end of the arrays
+		SampleWindow.Columns columns = new SampleWindow.Columns();
+		assertEquals(8, window.read(0, Long.MAX_VALUE, columns));
+		for (int i = 0; i < 8; i++) {
+			assertEquals(1050 + i * 10, columns.times[i]);
+			assertEquals(5 + i, columns.masks[i]);
+			assertEquals(5 + i, columns.analog[0][i]);
+			assertEquals(NA, columns.analog[1][i]);
+			assertEquals(window.getNodeIndex(i % 2 == 0 ? NODE_B : NODE_A), columns.nodes[i]);
+		}
+
+		// From inclusive, to exclusive
+		assertEquals(3, window.read(1080, 1110, columns));
+		assertEquals(1080, columns.times[0]);
+		assertEquals(1100, columns.times[2]);
+		assertEquals(0, window.read(2000, 3000, columns));
+		assertEquals(0, window.read(1110, 1080, columns));
+	}
+
+	@Test
+	public void emptyWindow() {
+		SampleWindow window = new SampleWindow(4);
+		assertEquals(0, window.read(0, Long.MAX_VALUE, new SampleWindow.Columns()));
+		assertTrue(Double.isNaN(window.getDutyCycle(NODE_A, 1, 0)));
+		assertTrue(Double.isNaN(window.getAnalogMean(NODE_A, 0, 0)));
+		assertEquals(LongIntMap.MISSING, window.getNodeIndex(NODE_A));
+	}
+
+	@Test
+	public void keepsTimesInOrder() {
+		SampleWindow window = new SampleWindow(4);
+		window.add(NODE_A, 100, 0, NA, NA, NA, NA);
+		window.add(NODE_A, 90, 0, NA, NA, NA, NA);
+		SampleWindow.Columns columns = new SampleWindow.Columns();
+		window.read(0, Long.MAX_VALUE, columns);
+		assertEquals(100, columns.times[1]);
+	}
+
+	@Test
+	public void dutyCycleAndAnalogMean() {
+		SampleWindow window = new SampleWindow(100);
+		int bit = IoSamples.bit(XbeeDigitalIOPin.D2);
+		for (int i = 0; i < 10; i++) {
+			window.add(NODE_A, i, i < 3 ? bit : 0, i < 5 ? 100 : NA, NA, NA, NA);
+			window.add(NODE_B, i, bit, 500, NA, NA, NA);
+		}
+		assertEquals(0.3, window.getDutyCycle(NODE_A, bit, 0), 1e-9);
+		assertEquals(0.0, window.getDutyCycle(NODE_A, bit, 5), 1e-9);
+		assertEquals(1.0, window.getDutyCycle(NODE_B, bit, 0), 1e-9);
+		// Samples without the channel are left out
+		assertEquals(100, window.getAnalogMean(NODE_A, 0, 0), 1e-9);
+		assertTrue(Double.isNaN(window.getAnalogMean(NODE_A, 0, 5)));
+		assertEquals(2, window.getNodeCount());
+		assertEquals(NODE_B, window.getNode(window.getNodeIndex(NODE_B)));
+	}
+
+	@Test
+	public void relayTableShowsDutyCycle() throws RelayException {
+		XbeeRelayManager manager = new XbeeRelayManager(new XbeeManager(null), ADDRESS_A);
+		manager.addManagedRelay(new Relay(1, 1, XbeeDigitalIOPin.D2));
+		manager.addManagedRelay(new Relay(2, 2, XbeeDigitalIOPin.D3));
+		manager.addManagedRelay(new Relay(3, 3, XbeeDigitalIOPin.D4));
+		RelayFleet fleet = new RelayFleet();
+		fleet.addRelayManager(manager);
+		RelayTableModel model = new RelayTableModel(fleet, null);
+		model.refresh();
+		assertEquals("", model.getText(0, RelayTableModel.DUTY_COLUMN));
+
+		SampleWindow window = new SampleWindow(64);
+		long now = System.nanoTime();
+		int d2 = IoSamples.bit(XbeeDigitalIOPin.D2);
+		int d3 = IoSamples.bit(XbeeDigitalIOPin.D3);
+		// Too old to count
+		window.add(manager.getNode(), now - 120000000000L, d2 | d3, NA, NA, NA, NA);
+		for (int i = 0; i < 4; i++) {
+			window.add(manager.getNode(), now - 1000000L * (4 - i), d2 | (i == 0 ? d3 : 0), NA, NA, NA, NA);
+		}
+		// Another node's samples don't count towards this one's relays
+		window.add(NODE_B, now, 0, NA, NA, NA, NA);
+		model.setSampleWindow(window, 60000);
+		model.setSort(RelayTableModel.NUMBER_COLUMN, true);
+		model.refresh();
+		assertEquals("100", model.getText(0, RelayTableModel.DUTY_COLUMN));
+		assertEquals("25", model.getText(1, RelayTableModel.DUTY_COLUMN));
+		assertEquals("0", model.getText(2, RelayTableModel.DUTY_COLUMN));
+
+		model.setSort(RelayTableModel.DUTY_COLUMN, true);
+		assertEquals(3, model.getRelay(0).getNumber());
+		assertEquals(1, model.getRelay(2).getNumber());
+		fleet.shutdown();
+	}
+}